@@ -0,0 +1,811 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A <tt>ConcurrentLRUMap</tt> is a thread-safe version of {@link LRUMap}:
+ * a <tt>Map</tt> of a fixed maximum size that discards its least recently
+ * used entries to make room for new ones. It can be shared by any number
+ * of threads without external synchronization, and retrievals never
+ * block.</p>
+ *
+ * <p>In an {@link LRUMap}, even <tt>get()</tt> modifies the map, since it
+ * moves the retrieved entry to the head of the LRU queue; so a shared
+ * <tt>LRUMap</tt> has to be wrapped with
+ * <tt>Collections.synchronizedMap()</tt>, and all its readers contend for
+ * one lock. A <tt>ConcurrentLRUMap</tt> keeps its entries in a
+ * <tt>ConcurrentHashMap</tt>, which <tt>get()</tt> consults without
+ * locking. Instead of reordering the LRU queue itself, <tt>get()</tt>
+ * records the access in one of several small, lock-free buffers (chosen
+ * by thread, to spread the contention). The buffers are drained, and the
+ * recorded accesses applied to the queue in a batch, by whichever thread
+ * first finds a buffer filling up and manages to acquire the queue's lock
+ * without waiting. If a buffer is full, the access is simply dropped:
+ * recency is a heuristic, and losing an occasional access is cheaper than
+ * waiting. Updates (<tt>put()</tt>, <tt>remove()</tt> and
+ * <tt>clear()</tt>) do take the lock; they apply any buffered accesses
+ * before evicting, so eviction sees an up-to-date queue.</p>
+ *
+ * <p>Otherwise, the map behaves like an {@link LRUMap}:</p>
+ *
+ * <ul>
+ *   <li>The <tt>put()</tt> and <tt>get()</tt> methods refresh an entry;
+ *       <tt>containsKey()</tt>, <tt>containsValue()</tt> and iteration
+ *       don't.
+ *   <li>Listeners registered via {@link #addRemovalListener
+ *       addRemovalListener()} are notified, in the thread that made the
+ *       change, when entries are evicted (and, unless they asked for
+ *       automatic removals only, when entries are removed).
+ * </ul>
+ *
+ * <p>Unlike an {@link LRUMap}, a <tt>ConcurrentLRUMap</tt> does not permit
+ * <tt>null</tt> keys or values, and its iterators are weakly consistent:
+ * they traverse the entries in no particular order, they never throw
+ * <tt>ConcurrentModificationException</tt>, and they may or may not
+ * reflect changes made during the traversal.</p>
+ *
+ * @see LRUMap
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public class ConcurrentLRUMap<K,V> extends AbstractMap<K,V>
+{
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Number of slots in each read buffer. Must be a power of two.
+     */
+    private static final int READ_BUFFER_SIZE = 32;
+
+    /**
+     * Number of pending accesses in a read buffer at which a reader tries
+     * to drain the buffers.
+     */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 16;
+
+    /**
+     * Maximum number of read buffers. The actual number depends on the
+     * number of processors.
+     */
+    private static final int MAX_READ_BUFFERS = 64;
+
+    /*----------------------------------------------------------------------*\
+                           Private Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * An entry in the map, and in the LRU queue. The links, and the
+     * <tt>linked</tt> flag, are guarded by the queue lock.
+     */
+    private static final class Node<K,V>
+    {
+        final K     key;
+        volatile V  value;
+
+        Node<K,V>   previous = null;
+        Node<K,V>   next     = null;
+        boolean     linked   = false;
+
+        Node (K key, V value)
+        {
+            this.key   = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A bounded, lossy buffer of accesses. Any number of threads can add
+     * to it; it's drained by the thread holding the queue lock.
+     */
+    private static final class ReadBuffer<K,V>
+    {
+        final AtomicReferenceArray<Node<K,V>> slots =
+            new AtomicReferenceArray<Node<K,V>> (READ_BUFFER_SIZE);
+        final AtomicLong writeCount = new AtomicLong (0);
+        volatile long    readCount  = 0;
+
+        /**
+         * Record an access, unless the buffer is full.
+         *
+         * @return <tt>true</tt> if the buffer should be drained
+         */
+        boolean record (Node<K,V> node)
+        {
+            long written = writeCount.get();
+            long pending = written - readCount;
+
+            if ((pending < READ_BUFFER_SIZE) &&
+                writeCount.compareAndSet (written, written + 1))
+            {
+                slots.lazySet ((int) (written & (READ_BUFFER_SIZE - 1)),
+                               node);
+            }
+
+            return (pending >= READ_BUFFER_DRAIN_THRESHOLD);
+        }
+    }
+
+    /**
+     * Wraps any ObjectRemovalListener passed into addRemovalListener().
+     */
+    private static class RemovalListenerWrapper
+    {
+        final boolean               automaticOnly;
+        final ObjectRemovalListener realListener;
+
+        RemovalListenerWrapper (ObjectRemovalListener realListener,
+                                boolean               automaticOnly)
+        {
+            this.realListener  = realListener;
+            this.automaticOnly = automaticOnly;
+        }
+    }
+
+    /**
+     * Set of Map.Entry objects returned by entrySet().
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<K,V>>
+    {
+        public Iterator<Map.Entry<K,V>> iterator()
+        {
+            return new Iterator<Map.Entry<K,V>>()
+            {
+                Iterator<Node<K,V>> it = data.values().iterator();
+                Node<K,V> current = null;
+
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                public Map.Entry<K,V> next()
+                {
+                    current = it.next();
+                    return new SimpleImmutableEntry<K,V> (current.key,
+                                                          current.value);
+                }
+
+                public void remove()
+                {
+                    if (current == null)
+                        throw new IllegalStateException();
+
+                    ConcurrentLRUMap.this.remove (current.key);
+                    current = null;
+                }
+            };
+        }
+
+        public boolean contains (Object o)
+        {
+            boolean has = false;
+
+            if (o instanceof Map.Entry)
+            {
+                Map.Entry<?,?> e    = (Map.Entry<?,?>) o;
+                Node<K,V>      node = data.get (e.getKey());
+
+                has = (node != null) && node.value.equals (e.getValue());
+            }
+
+            return has;
+        }
+
+        public boolean remove (Object o)
+        {
+            boolean removed = false;
+
+            if (contains (o))
+            {
+                Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+                removed = (ConcurrentLRUMap.this.remove (e.getKey()) != null);
+            }
+
+            return removed;
+        }
+
+        public int size()
+        {
+            return ConcurrentLRUMap.this.size();
+        }
+
+        public void clear()
+        {
+            ConcurrentLRUMap.this.clear();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                             Private Variables
+    \*----------------------------------------------------------------------*/
+
+    private final ConcurrentHashMap<K, Node<K,V>> data;
+    private final ReadBuffer<K,V>[]               readBuffers;
+    private final ReentrantLock                   queueLock =
+        new ReentrantLock();
+
+    /**
+     * The LRU queue, from most recently used (head) to least recently used
+     * (tail). Guarded by queueLock.
+     */
+    private Node<K,V> head = null;
+    private Node<K,V> tail = null;
+
+    private volatile int maxCapacity;
+
+    private final CopyOnWriteArrayList<RemovalListenerWrapper>
+        removalListeners = new CopyOnWriteArrayList<RemovalListenerWrapper>();
+
+    /*----------------------------------------------------------------------*\
+                                Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Construct a new empty map with the specified maximum capacity.
+     *
+     * @param maxCapacity the maximum number of entries permitted in the
+     *                    map. Must be positive.
+     */
+    public ConcurrentLRUMap (int maxCapacity)
+    {
+        this (LRUMap.DEFAULT_INITIAL_CAPACITY, maxCapacity);
+    }
+
+    /**
+     * Construct a new empty map with the specified initial and maximum
+     * capacities.
+     *
+     * @param initialCapacity  the initial capacity
+     * @param maxCapacity      the maximum number of entries permitted in
+     *                         the map. Must be positive.
+     */
+    public ConcurrentLRUMap (int initialCapacity, int maxCapacity)
+    {
+        assert (maxCapacity > 0);
+        assert (initialCapacity > 0);
+
+        int buffers = 1;
+        int wanted  = Math.min (MAX_READ_BUFFERS,
+                                Runtime.getRuntime().availableProcessors() * 2);
+
+        while (buffers < wanted)
+            buffers <<= 1;
+
+        this.maxCapacity = maxCapacity;
+        this.data        = new ConcurrentHashMap<K, Node<K,V>>
+                               (Math.min (initialCapacity, maxCapacity));
+        @SuppressWarnings("unchecked")
+        ReadBuffer<K,V>[] newBuffers =
+            (ReadBuffer<K,V>[]) new ReadBuffer<?,?>[buffers];
+
+        for (int i = 0; i < buffers; i++)
+            newBuffers[i] = new ReadBuffer<K,V>();
+
+        this.readBuffers = newBuffers;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * <p>Add an <tt>EventListener</tt> that will be called whenever an
+     * object is removed from the cache. If <tt>automaticOnly</tt> is
+     * <tt>true</tt>, then the listener is only notified for objects that
+     * are removed automatically when the cache needs to be cleared to make
+     * room for new objects. If <tt>automaticOnly</tt> is <tt>false</tt>,
+     * then the listener is notified whenever an object is removed for any
+     * reason, include a call to the {@link #remove remove()} method. The
+     * event's source is a <tt>Map.Entry</tt> containing the removed key
+     * and value. Adding a listener that's already registered replaces
+     * it.</p>
+     *
+     * @param listener      the listener to add
+     * @param automaticOnly see above
+     *
+     * @see #removeRemovalListener
+     */
+    public synchronized void
+    addRemovalListener (ObjectRemovalListener listener, boolean automaticOnly)
+    {
+        removeRemovalListener (listener);
+        removalListeners.add (new RemovalListenerWrapper (listener,
+                                                          automaticOnly));
+    }
+
+    /**
+     * Remove an <tt>EventListener</tt> from the set of listeners to be invoked
+     * when an object is removed from the cache.
+     *
+     * @param listener the listener to remove
+     *
+     * @return <tt>true</tt> if the listener was in the list and was removed,
+     *         <tt>false</tt> otherwise
+     *
+     * @see #addRemovalListener
+     */
+    public synchronized boolean
+    removeRemovalListener (ObjectRemovalListener listener)
+    {
+        for (RemovalListenerWrapper wrapper : removalListeners)
+        {
+            if (wrapper.realListener == listener)
+                return removalListeners.remove (wrapper);
+        }
+
+        return false;
+    }
+
+    /**
+     * Remove all mappings from this map. Removal listeners are not
+     * notified.
+     */
+    public void clear()
+    {
+        queueLock.lock();
+        try
+        {
+            drainReadBuffers();
+            data.clear();
+
+            while (head != null)
+            {
+                Node<K,V> next = head.next;
+
+                unlink (head);
+                head = next;
+            }
+        }
+
+        finally
+        {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Determine whether this map contains a mapping for a given key. Note
+     * that this implementation of <tt>containsKey()</tt> does not refresh
+     * the object in the cache.
+     *
+     * @param key  the key to find
+     *
+     * @return <tt>true</tt> if the key is in the map, <tt>false</tt> if not
+     */
+    public boolean containsKey (Object key)
+    {
+        return data.containsKey (key);
+    }
+
+    /**
+     * Determine whether this map contains a given value. Note that this
+     * implementation of <tt>containsValue()</tt> does not refresh the
+     * objects in the cache.
+     *
+     * @param value the value to find
+     *
+     * @return <tt>true</tt> if the value is in the map, <tt>false</tt> if not
+     */
+    public boolean containsValue (Object value)
+    {
+        for (Node<K,V> node : data.values())
+        {
+            if (node.value.equals (value))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Get a set view of the mappings in this map. The set is backed by the
+     * map, and its iterator is weakly consistent. The set supports element
+     * removal, but not <tt>add()</tt> or <tt>addAll()</tt>; the entries
+     * themselves are immutable.
+     *
+     * @return the entry set
+     */
+    public Set<Map.Entry<K,V>> entrySet()
+    {
+        return new EntrySet();
+    }
+
+    /**
+     * Retrieve an object from the map. Retrieving an object from an
+     * LRU map "refreshes" the object so that it is among the most recently
+     * used objects. This method never blocks.
+     *
+     * @param key  the object's key in the map.
+     *
+     * @return the associated object, or null if not found
+     */
+    public V get (Object key)
+    {
+        Node<K,V> node = data.get (key);
+
+        if (node == null)
+            return null;
+
+        recordAccess (node);
+        return node.value;
+    }
+
+    /**
+     * Get the maximum capacity of this map.
+     *
+     * @return the maximum capacity
+     *
+     * @see #setMaximumCapacity
+     */
+    public int getMaximumCapacity()
+    {
+        return maxCapacity;
+    }
+
+    /**
+     * Determine whether this map is empty or not.
+     *
+     * @return <tt>true</tt> if the map has no mappings, <tt>false</tt>
+     *          otherwise
+     */
+    public boolean isEmpty()
+    {
+        return data.isEmpty();
+    }
+
+    /**
+     * Associates the specified value with the specified key in this map,
+     * making the entry the most recently used one. If the map is full, and
+     * the key isn't already in the map, the least recently used entry is
+     * evicted to make room.
+     *
+     * @param key   the key with which the specified value is to be associated
+     * @param value the value to associate with the specified key
+     *
+     * @return the previous value associated with the key, or null if there
+     *         was no previous value
+     *
+     * @throws NullPointerException <tt>key</tt> or <tt>value</tt> is
+     *                              <tt>null</tt>
+     */
+    public V put (K key, V value)
+    {
+        if ((key == null) || (value == null))
+            throw new NullPointerException();
+
+        V               oldValue = null;
+        List<Node<K,V>> evicted;
+
+        queueLock.lock();
+        try
+        {
+            Node<K,V> node = data.get (key);
+
+            if (node != null)
+            {
+                oldValue = node.value;
+                node.value = value;
+                moveToHead (node);
+                evicted = null;
+            }
+
+            else
+            {
+                node = new Node<K,V> (key, value);
+                data.put (key, node);
+                addToHead (node);
+                drainReadBuffers();
+                evicted = evictTo (maxCapacity);
+            }
+        }
+
+        finally
+        {
+            queueLock.unlock();
+        }
+
+        callRemovalListeners (evicted, true);
+        return oldValue;
+    }
+
+    /**
+     * Removes the mapping for a key, if there is one.
+     *
+     * @param key the key to remove
+     *
+     * @return the previous value associated with the key, or null if there
+     *         was no previous value
+     */
+    public V remove (Object key)
+    {
+        Node<K,V> node;
+
+        queueLock.lock();
+        try
+        {
+            node = data.remove (key);
+            if (node != null)
+                unlink (node);
+        }
+
+        finally
+        {
+            queueLock.unlock();
+        }
+
+        if (node == null)
+            return null;
+
+        List<Node<K,V>> removed = new ArrayList<Node<K,V>> (1);
+
+        removed.add (node);
+        callRemovalListeners (removed, false);
+        return node.value;
+    }
+
+    /**
+     * Set or change the maximum capacity of this map. If the maximum
+     * capacity is reduced to less than the map's current size, the least
+     * recently used entries are evicted.
+     *
+     * @param newCapacity  the new maximum capacity
+     *
+     * @return the old maximum capacity
+     *
+     * @see #getMaximumCapacity
+     */
+    public int setMaximumCapacity (int newCapacity)
+    {
+        assert (newCapacity > 0);
+
+        int             oldCapacity;
+        List<Node<K,V>> evicted;
+
+        queueLock.lock();
+        try
+        {
+            oldCapacity      = maxCapacity;
+            maxCapacity      = newCapacity;
+            drainReadBuffers();
+            evicted = evictTo (newCapacity);
+        }
+
+        finally
+        {
+            queueLock.unlock();
+        }
+
+        callRemovalListeners (evicted, true);
+        return oldCapacity;
+    }
+
+    /**
+     * Get the number of entries in the map.
+     *
+     * @return the number of entries in the map
+     */
+    public int size()
+    {
+        return data.size();
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Record an access to an entry in the current thread's read buffer,
+     * draining the buffers if the buffer is filling up and the queue lock
+     * is free.
+     */
+    private void recordAccess (Node<K,V> node)
+    {
+        int index = (int) Thread.currentThread().getId();
+
+        index ^= (index >>> 16);
+        index *= 0x9e3779b9;
+
+        ReadBuffer<K,V> buffer =
+            readBuffers[(index >>> 16) & (readBuffers.length - 1)];
+
+        if (buffer.record (node) && queueLock.tryLock())
+        {
+            try
+            {
+                drainReadBuffers();
+            }
+
+            finally
+            {
+                queueLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Apply the buffered accesses to the LRU queue. Called with the queue
+     * lock held.
+     */
+    private void drainReadBuffers()
+    {
+        for (ReadBuffer<K,V> buffer : readBuffers)
+        {
+            long read    = buffer.readCount;
+            long written = buffer.writeCount.get();
+
+            // A slot that has been claimed, but not yet filled, is skipped
+            // rather than waited for: if the reader that claimed it was
+            // preempted, waiting would leave the buffer full, and drop
+            // every access recorded in it, until that reader ran again.
+            // The late write then leaves a stale entry in the slot, which
+            // is harmless.
+
+            for (; read < written; read++)
+            {
+                int       slot = (int) (read & (READ_BUFFER_SIZE - 1));
+                Node<K,V> node = buffer.slots.getAndSet (slot, null);
+
+                // The entry may have been removed since it was accessed.
+
+                if ((node != null) && node.linked)
+                    moveToHead (node);
+            }
+
+            buffer.readCount = read;
+        }
+    }
+
+    /**
+     * Evict least recently used entries until the map is no larger than a
+     * given size. Called with the queue lock held.
+     *
+     * @return the evicted entries, or null if there were none
+     */
+    private List<Node<K,V>> evictTo (int size)
+    {
+        List<Node<K,V>> evicted = null;
+
+        while ((data.size() > size) && (tail != null))
+        {
+            Node<K,V> node = tail;
+
+            unlink (node);
+            data.remove (node.key, node);
+
+            if (evicted == null)
+                evicted = new ArrayList<Node<K,V>>();
+            evicted.add (node);
+        }
+
+        return evicted;
+    }
+
+    private void addToHead (Node<K,V> node)
+    {
+        node.previous = null;
+        node.next     = head;
+
+        if (head == null)
+            tail = node;
+        else
+            head.previous = node;
+
+        head        = node;
+        node.linked = true;
+    }
+
+    private void unlink (Node<K,V> node)
+    {
+        if (node.previous != null)
+            node.previous.next = node.next;
+        else
+            head = node.next;
+
+        if (node.next != null)
+            node.next.previous = node.previous;
+        else
+            tail = node.previous;
+
+        node.previous = null;
+        node.next     = null;
+        node.linked   = false;
+    }
+
+    private void moveToHead (Node<K,V> node)
+    {
+        if (node != head)
+        {
+            unlink (node);
+            addToHead (node);
+        }
+    }
+
+    private void callRemovalListeners (List<Node<K,V>> nodes,
+                                       boolean         automatic)
+    {
+        if ((nodes == null) || removalListeners.isEmpty())
+            return;
+
+        for (Node<K,V> node : nodes)
+        {
+            ObjectRemovalEvent event = null;
+
+            for (RemovalListenerWrapper l : removalListeners)
+            {
+                if ((! automatic) && l.automaticOnly)
+                    continue;
+
+                if (event == null)
+                {
+                    event = new ObjectRemovalEvent
+                                (new SimpleImmutableEntry<K,V> (node.key,
+                                                                node.value));
+                }
+
+                l.realListener.objectRemoved (event);
+            }
+        }
+    }
+}
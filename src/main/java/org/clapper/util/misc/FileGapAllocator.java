@@ -0,0 +1,261 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Tracks the free extents (gaps) in a <tt>FileHashMap</tt> data file. Each
+ * extent is indexed twice: by file position, so that a released extent
+ * can be coalesced with its neighbors in O(log n) time, and by size, so
+ * that the best-fitting extent for an allocation can be found in O(log n)
+ * time. This class is not publicly accessible, and it is not thread-safe;
+ * <tt>FileHashMap</tt> serializes access to it.
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+final class FileGapAllocator
+{
+    /*----------------------------------------------------------------------*\
+                             Private Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * A free extent.
+     */
+    private static final class Extent
+    {
+        final long pos;
+        final long size;
+
+        Extent (long pos, long size)
+        {
+            this.pos  = pos;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Orders extents by size, then by file position, so that the best fit
+     * is the lowest-addressed of the smallest extents that are big enough.
+     */
+    private static final class ExtentSizeComparator
+        implements Comparator<Extent>
+    {
+        public int compare (Extent e1, Extent e2)
+        {
+            int cmp = compareLongs (e1.size, e2.size);
+
+            if (cmp == 0)
+                cmp = compareLongs (e1.pos, e2.pos);
+
+            return cmp;
+        }
+
+        private static int compareLongs (long l1, long l2)
+        {
+            return (l1 < l2) ? -1 : ((l1 == l2) ? 0 : 1);
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Free extents, by file position.
+     */
+    private TreeMap<Long, Extent> byPosition = new TreeMap<Long, Extent>();
+
+    /**
+     * Free extents, by size.
+     */
+    private TreeSet<Extent> bySize =
+        new TreeSet<Extent> (new ExtentSizeComparator());
+
+    /**
+     * Total number of free bytes.
+     */
+    private long totalFree = 0;
+
+    /*----------------------------------------------------------------------*\
+                               Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new allocator with no free space.
+     */
+    FileGapAllocator()
+    {
+        // Nothing to do
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Package Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Allocate space from the smallest free extent that's large enough.
+     * Any space left over in the extent remains free.
+     *
+     * @param size  the number of bytes needed
+     *
+     * @return the file position of the allocated space, or -1 if no free
+     *         extent is large enough
+     */
+    long allocate (long size)
+    {
+        if (size <= 0)
+            return -1;
+
+        Extent extent = bySize.ceiling (new Extent (-1, size));
+
+        if (extent == null)
+            return -1;
+
+        remove (extent);
+        if (extent.size > size)
+            add (new Extent (extent.pos + size, extent.size - size));
+
+        return extent.pos;
+    }
+
+    /**
+     * Mark a region of the file as free, coalescing it with adjacent free
+     * extents.
+     *
+     * @param pos   the file position of the region
+     * @param size  the size of the region
+     */
+    void release (long pos, long size)
+    {
+        if (size <= 0)
+            return;
+
+        long start = pos;
+        long end   = pos + size;
+
+        Map.Entry<Long, Extent> before = byPosition.floorEntry (pos);
+        if (before != null)
+        {
+            Extent e = before.getValue();
+            assert (e.pos + e.size <= pos);
+            if (e.pos + e.size == pos)
+            {
+                remove (e);
+                start = e.pos;
+            }
+        }
+
+        Map.Entry<Long, Extent> after = byPosition.higherEntry (pos);
+        if (after != null)
+        {
+            Extent e = after.getValue();
+            assert (end <= e.pos);
+            if (e.pos == end)
+            {
+                remove (e);
+                end = e.pos + e.size;
+            }
+        }
+
+        add (new Extent (start, end - start));
+    }
+
+    /**
+     * Discard all free extents.
+     */
+    void clear()
+    {
+        byPosition.clear();
+        bySize.clear();
+        totalFree = 0;
+    }
+
+    /**
+     * Get the number of free extents.
+     *
+     * @return the number of extents
+     */
+    int getExtentCount()
+    {
+        return byPosition.size();
+    }
+
+    /**
+     * Get the total number of free bytes.
+     *
+     * @return the number of free bytes
+     */
+    long getFreeBytes()
+    {
+        return totalFree;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private void add (Extent extent)
+    {
+        byPosition.put (extent.pos, extent);
+        bySize.add (extent);
+        totalFree += extent.size;
+    }
+
+    private void remove (Extent extent)
+    {
+        byPosition.remove (extent.pos);
+        bySize.remove (extent);
+        totalFree -= extent.size;
+    }
+}
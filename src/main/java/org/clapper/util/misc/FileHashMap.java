@@ -48,8 +48,8 @@ package org.clapper.util.misc;
 
 import org.clapper.util.logging.Logger;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -57,24 +57,66 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.io.Serializable;
+
+import java.lang.reflect.Method;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
 
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * <p><tt>FileHashMap</tt> implements a <tt>java.util.Map</tt> that keeps
@@ -117,7 +159,12 @@ import java.util.TreeSet;
  *     <td>The saved in-memory index. This file is created only if the
  *         <tt>FileHashMap</tt> is not marked as transient. (See below.)
  *         The {@link #INDEX_FILE_SUFFIX <tt>INDEX_FILE_SUFFIX</tt>}
- *         constant defines this string.</td>
+ *         constant defines this string. The index is stored in a compact
+ *         binary format: a fixed-width (position, size) record, followed by
+ *         the length-prefixed encoded key, for each entry. Index files
+ *         written by older versions of this class, which stored the index
+ *         using Java serialization, can still be read; they're rewritten
+ *         in the new format the next time the index is saved.</td>
  *   </tr>
  *
  *   <tr valign="top">
@@ -127,6 +174,15 @@ import java.util.TreeSet;
  *         The {@link #DATA_FILE_SUFFIX <tt>DATA_FILE_SUFFIX</tt>}
  *         constant defines this string.</td>
  *   </tr>
+ *
+ *   <tr valign="top">
+ *     <td>.jx</td>
+ *     <td>The index journal, which records the index changes made since
+ *         the index was last saved. This file exists only for persistent
+ *         maps opened with the {@link #JOURNALED} flag. (See below.)
+ *         The {@link #JOURNAL_FILE_SUFFIX <tt>JOURNAL_FILE_SUFFIX</tt>}
+ *         constant defines this string.</td>
+ *   </tr>
  * </table>
  * </blockquote>
  *
@@ -215,6 +271,33 @@ import java.util.TreeSet;
  * any file access at all, because the keys are cached in memory. See
  * the next section for more details.</p>
  *
+ * <p>For a full pass over a large map, {@link #scan scan()} and
+ * {@link #stream stream()} are faster still: they visit the entries in
+ * file position order, but instead of reading each value separately, they
+ * read the data file in large sequential chunks (reading the next chunk in
+ * a background thread while the current one is decoded) and decode the
+ * values straight out of the chunks, so a scan proceeds at close to the
+ * disk's sequential read rate.</p>
+ *
+ * <p>The spliterators of the {@link #keySet keySet()},
+ * {@link #values values()} and {@link #entrySet entrySet()} views split the
+ * entries, sorted by file position, into contiguous ranges of the data
+ * file. Each range's values are read in runs, as with {@link #getAll
+ * getAll()}, so a parallel stream over one of the views reads and decodes
+ * the values on several threads at once. (Unless the map is
+ * {@link #CONCURRENT}, the reads themselves are still serialized.)</p>
+ *
+ * <p><u>Batch operations</u></p>
+ *
+ * <p>{@link #putAll putAll()} encodes all the values into one buffer and
+ * appends them to the data file in a single write (or, for very large
+ * batches, in a few multi-megabyte writes). {@link #getAll getAll()}
+ * retrieves the values for a collection of keys in file position order,
+ * reading neighboring values with one large read. Both are much faster
+ * than the equivalent sequence of <tt>put()</tt> or <tt>get()</tt>
+ * calls. Note that <tt>putAll()</tt> always appends, even if
+ * {@link #RECLAIM_FILE_GAPS} is set.</p>
+ *
  * <p><u>Memory Conservation</u></p>
  *
  * <p>The values stored in the map are serialized and written to a data
@@ -238,6 +321,21 @@ import java.util.TreeSet;
  * disk file. A value is loaded from disk only when you actually attempt to
  * retrieve it from the <tt>Iterator</tt> or <tt>Set</tt>.
  *
+ * <p>With tens of millions of keys, even the index becomes a burden: each
+ * key costs a hash table entry, an index object and the key object itself,
+ * all of which the garbage collector has to trace. If you pass the
+ * {@link #OFF_HEAP_INDEX} flag to the constructor, the index is instead
+ * kept in an open-addressing hash table in direct (off-heap) buffers,
+ * with a fixed-width slot for each key's hash, file position and value
+ * size, and with the keys themselves stored in their encoded form (see
+ * below). Index objects and keys are created only when they're retrieved,
+ * so the heap space used by the index no longer grows with the number of
+ * keys. The price is that keys have to be encoded on every lookup and
+ * decoded during iteration, and lookups are serialized, even in a
+ * {@link #CONCURRENT} map. Because keys are compared by their encoded
+ * form, rather than with <tt>equals()</tt>, the key codec must encode equal
+ * keys identically; the {@link ValueCodecs} codecs do.</p>
+ *
  * <p><b>Reclaiming Gaps in the File</b></p>
  *
  * <p>Normally, when you remove an object from the map, the space where the
@@ -255,10 +353,226 @@ import java.util.TreeSet;
  *
  * <p>This mode is not the default, because it can add time to processing.
  * However, it does not access the file at all; the file gap maintenance
- * logic uses in-memory data only. So, while it adds a small amount of
- * computational overhead, the difference between running with
- * {@link #RECLAIM_FILE_GAPS} enabled and running with it disabled should not
- * be dramatic.</p>
+ * logic uses in-memory data only. The gaps are found by scanning the index
+ * once, when the map is opened. After that, they're kept in two sorted
+ * structures, one ordered by file position and one by size, so releasing
+ * space (and coalescing it with adjacent gaps) and finding the best fit
+ * for a new object both take O(log n) time, regardless of the size of the
+ * map.</p>
+ *
+ * <p>With {@link #RECLAIM_FILE_GAPS}, a map that is neither
+ * {@link #CONCURRENT} nor {@link #JOURNALED} also writes a replacement
+ * value over the value it replaces, when the new value fits. (A journaled
+ * map keeps the old value intact until the new one has been committed to
+ * the journal, so that recovery never finds an overwritten value.)
+ * {@link #put put()} still has to read the old value, in order to return
+ * it; when the old value isn't needed, {@link #set set()} skips that read,
+ * so an update costs a single write.</p>
+ *
+ * <p><b>Compaction</b></p>
+ *
+ * <p>Without {@link #RECLAIM_FILE_GAPS}, the space occupied by removed and
+ * replaced values is never reused, and a long-lived map's data file grows
+ * without bound. (Even with that flag, gaps too small to reuse accumulate.)
+ * The {@link #compact compact()} method copies the live values, in file
+ * position order, into a new data file, which then replaces the old one.
+ * Readers are never blocked; in a {@link #CONCURRENT} map, updates are
+ * blocked only while the values written during the copy are moved and the
+ * files are swapped. {@link #getLiveBytes}, {@link #getDeadBytes} and
+ * {@link #getFragmentation} report how much of the data file is wasted, and
+ * {@link #startBackgroundCompaction startBackgroundCompaction()} starts a
+ * daemon thread that compacts a {@link #CONCURRENT} map whenever its
+ * fragmentation reaches a threshold.</p>
+ *
+ * <p>Compacting a persistent map also saves its index. The new data file
+ * and index are written under temporary names
+ * (<tt>.db.compact</tt> and <tt>.ix.compact</tt>) and then renamed into
+ * place; if the program dies between the two renames, the next
+ * <tt>FileHashMap</tt> to open the map finishes the job.</p>
+ *
+ * <p><b>Snapshots</b></p>
+ *
+ * <p>Iterating over a map while it's being updated throws a
+ * <tt>ConcurrentModificationException</tt> (or, in a {@link #CONCURRENT}
+ * map, sees some of the updates but not others). {@link #snapshot
+ * snapshot()} returns a read-only {@link Snapshot} of the map as it was
+ * at a point in time, which can be read at leisure while the map is
+ * updated. Taking a snapshot copies the in-memory index, but not the
+ * values: the snapshot reads them from the map's data file. While any
+ * snapshot is open, the space occupied by replaced and removed values is
+ * not reused (it's released for reuse, if {@link #RECLAIM_FILE_GAPS} is
+ * set, when the last snapshot is closed), <tt>clear()</tt> doesn't
+ * truncate the data file, and the map can't be compacted.</p>
+ *
+ * <p><b>Value Cache</b></p>
+ *
+ * <p>Every retrieval normally reads the value from the data file and
+ * decodes it. If some keys are read much more often than others, call
+ * {@link #enableValueCache enableValueCache()} to keep recently retrieved
+ * values in memory, in an {@link LRUMap} bounded by a number of entries
+ * and, optionally, by the total encoded size of the cached values (an
+ * estimate of the memory they occupy). The cache is kept coherent by
+ * <tt>put()</tt>, <tt>remove()</tt> and <tt>clear()</tt>, and
+ * {@link #getValueCacheHits} and {@link #getValueCacheMisses} report how
+ * well it's working. Note that a cached value is shared by every caller
+ * that retrieves it, rather than decoded anew for each caller, so the
+ * cache should only be used with values that aren't modified once
+ * retrieved.</p>
+ *
+ * <p><b>Value Encoding</b></p>
+ *
+ * <p>By default, values are stored using Java serialization, which works
+ * for any <tt>Serializable</tt> object, but which writes class descriptor
+ * information into every record and uses reflection to encode and decode
+ * each value. If the values are all of one simple type, you can pass a
+ * {@link ValueCodec} to the
+ * {@link #FileHashMap(String,int,ValueCodec) constructor}. The
+ * {@link ValueCodecs} class provides codecs for byte arrays, strings (as
+ * UTF-8) and the boxed primitive types; their records are far smaller
+ * than the serialized equivalents, and they are much cheaper to encode and
+ * decode. For example:</p>
+ *
+ * <blockquote><pre>
+ * FileHashMap&lt;String,Long&gt; map =
+ *     new FileHashMap&lt;String,Long&gt; ("/tmp/counts", 0, ValueCodecs.LONG);
+ * </pre></blockquote>
+ *
+ * <p>Keys are kept in memory, but a persistent map must store them in its
+ * index file when it is saved. They, too, are encoded with Java
+ * serialization by default; another codec can be specified via the
+ * {@link #FileHashMap(String,int,ValueCodec,ValueCodec) constructor}.</p>
+ *
+ * <p>The codecs are not recorded in the map's files. A persistent map must
+ * always be reopened with the codecs it was created with.</p>
+ *
+ * <p>A value's encoded form can be retrieved without decoding it, via
+ * {@link #getRaw getRaw()}, or copied straight to a channel, via
+ * {@link #transferValueTo transferValueTo()}. The latter uses
+ * <tt>FileChannel.transferTo()</tt>, so the bytes needn't pass through
+ * the Java heap at all; for a {@link #MEMORY_MAPPED} map, the former
+ * returns a slice of the mapping.</p>
+ *
+ * <p><b>Compression</b></p>
+ *
+ * <p>If the values are large and compressible, call
+ * {@link #enableCompression enableCompression()} to have each encoded
+ * value at least as large as a threshold deflated before it's written to
+ * the data file. A value is stored compressed only if that actually makes
+ * it smaller; a flag in the index records which values are compressed, so
+ * compression can be enabled and disabled at will, and a map containing
+ * compressed values can always be read. <tt>Deflater</tt> and
+ * <tt>Inflater</tt> objects are pooled and reused, rather than created for
+ * each value. {@link #getCompressionRatio} reports how well compression
+ * is working.</p>
+ *
+ * <p><b>Memory-mapped Data Files</b></p>
+ *
+ * <p>By default, every value retrieval seeks the shared data file and
+ * reads the serialized value into a buffer; since there's only one file
+ * pointer, retrievals are serialized on the map's monitor. If you pass the
+ * {@link #MEMORY_MAPPED} flag to the constructor, the data file is instead
+ * mapped into memory in fixed-size segments. Values are written into the
+ * mapping (which grows, a segment at a time, as the file grows) and read
+ * straight out of it, without taking the map's monitor, so multiple threads
+ * can retrieve values at the same time. While a memory-mapped map is open,
+ * its data file is extended to the next segment boundary; the file is
+ * trimmed back to its real length when the map is closed.</p>
+ *
+ * <p><b>Concurrent Access</b></p>
+ *
+ * <p>A <tt>FileHashMap</tt> is normally meant to be used by one thread at a
+ * time: its in-memory index is a plain <tt>HashMap</tt>, and all data file
+ * access goes through a single shared file pointer. If the map is to be
+ * shared by multiple threads (for instance, as a lookup table behind a
+ * thread pool), pass the {@link #CONCURRENT} flag to the constructor. In
+ * concurrent mode:</p>
+ *
+ * <ul>
+ *   <li>The index is kept in a <tt>java.util.concurrent.ConcurrentHashMap</tt>.
+ *   <li>Values are read with positional <tt>FileChannel</tt> reads, which
+ *       don't use (or disturb) a shared file pointer, so retrievals never
+ *       take a lock.
+ *   <li>Values are serialized and written outside any lock; only the
+ *       allocation of space in the data file is serialized.
+ *   <li>Iterators are weakly consistent: they traverse the entries present
+ *       when the iterator was created, and they never throw
+ *       <tt>ConcurrentModificationException</tt>.
+ * </ul>
+ *
+ * <p><tt>clear()</tt>, <tt>save()</tt> and <tt>close()</tt> are not atomic
+ * with respect to concurrent updates; callers should quiesce writers before
+ * invoking them. {@link #CONCURRENT} can be combined with
+ * {@link #MEMORY_MAPPED}, in which case reads come from the mapping. It can
+ * also be combined with {@link #RECLAIM_FILE_GAPS}. The space of a replaced
+ * or removed value then isn't reused until every retrieval that might
+ * have found the old value has finished, so a concurrent update never
+ * hands a reader another value's bytes. (A buffer returned by
+ * {@link #getRaw getRaw()} is still only valid until the value is
+ * replaced or removed.)</p>
+ *
+ * <p><b>Asynchronous Operations</b></p>
+ *
+ * <p>{@link #getAsync getAsync()}, {@link #putAsync putAsync()} and
+ * {@link #removeAsync removeAsync()} queue an operation and return a
+ * <tt>CompletableFuture</tt> for its result, so the caller needn't wait
+ * for the disk. A single task, run by the map's executor (see
+ * {@link #setAsyncExecutor setAsyncExecutor()}), drains the queue in
+ * order, combining consecutive retrievals into one
+ * {@link #getAll getAll()} and consecutive stores into one
+ * {@link #putAll putAll()}; the busier the queue, the larger the batches.
+ * By default, the task runs in a virtual thread, if the Java runtime
+ * supports them, and otherwise in a pooled daemon thread. Queued
+ * operations are carried out in the order they were queued, but they
+ * aren't ordered with respect to calls to the synchronous methods; unless
+ * the map is {@link #CONCURRENT}, callers must not use the synchronous
+ * methods while asynchronous operations are outstanding.</p>
+ *
+ * <p><b>Journaling</b></p>
+ *
+ * <p>Normally, the index of a persistent map is written to disk only when
+ * the map is saved or closed; changes made since the last save are lost if
+ * the program dies, and each save rewrites the entire index. If you pass
+ * the {@link #JOURNALED} flag to the constructor, every change to the index
+ * is also appended, as a small checksummed record, to a journal file. Each
+ * <tt>put()</tt> or <tt>remove()</tt> returns only after its record has
+ * been written to the journal. When multiple threads update the map at the
+ * same time, their records are batched: one thread writes all the records
+ * that have accumulated, while the others wait for it (group commit).</p>
+ *
+ * <p>In journaled mode, {@link #save save()} is a checkpoint: it writes the
+ * index and empties the journal. When a map is opened, any journal records
+ * written after the last checkpoint are replayed on top of the saved index;
+ * a partially written record at the end of the journal (the result of a
+ * crash in the middle of a write) is discarded. Opening a map without the
+ * {@link #JOURNALED} flag also replays a leftover journal, after which the
+ * index is saved and the journal is removed.</p>
+ *
+ * <p><b>Durability</b></p>
+ *
+ * <p>By default, values and journal records are written to the operating
+ * system, but they are not forced to the storage device, so a persistent
+ * map survives the death of the program, not the loss of the machine.
+ * {@link #setDurability setDurability()} trades write latency for
+ * stronger guarantees:</p>
+ *
+ * <ul>
+ *   <li>{@link Durability#NONE} (the default): nothing is forced, except
+ *       by an explicit call to {@link #sync sync()}.
+ *   <li>{@link Durability#PERIODIC}: a journaled map's daemon thread
+ *       calls {@link #sync sync()} at a fixed interval, so at most an
+ *       interval's worth of changes can be lost. (A map that isn't
+ *       journaled can't offer that guarantee, since its index reaches the
+ *       disk only when it's saved.)
+ *   <li>{@link Durability#SYNC}: a journaled map's <tt>put()</tt> and
+ *       <tt>remove()</tt> return only after the data file and the journal
+ *       have been forced to the storage device. Concurrent writers share a
+ *       single force per batch of journal records (group commit), and the
+ *       committing thread can be told to wait briefly before writing, so
+ *       that more writers join its batch.
+ * </ul>
+ *
+ * <p>In the <tt>PERIODIC</tt> and <tt>SYNC</tt> modes, saving the index
+ * also forces the data file and the index file.</p>
  *
  * <p><b>Restrictions</b></p>
  *
@@ -267,7 +581,8 @@ import java.util.TreeSet;
  *
  * <ul>
  *   <li>An object cannot be stored in a <tt>FileHashMap</tt> unless it
- *       implements <tt>java.io.Serializable</tt>.
+ *       implements <tt>java.io.Serializable</tt>, or the map was created
+ *       with a {@link ValueCodec} that can encode it.
  *   <li>The maximum size of a serialized stored object is confined to
  *       a 32-bit integer. This restriction is unlikely to cause anyone
  *       problems, and it keeps the keyspace down.
@@ -305,6 +620,11 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
      */
     public static final String DATA_FILE_SUFFIX = ".db";
 
+    /**
+     * Journal file suffix.
+     */
+    public static final String JOURNAL_FILE_SUFFIX = ".jx";
+
     /**
      * Constructor flag value: If specified, the disk files will not be
      * created if they don't exist; instead, the constructor will throw an
@@ -346,1627 +666,6420 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
      */
     public static final int RECLAIM_FILE_GAPS = 0x08;
 
-    /*----------------------------------------------------------------------*\
-                             Private Constants
-    \*----------------------------------------------------------------------*/
+    /**
+     * Constructor flag value: Tells the object to map the data file into
+     * memory and to satisfy reads directly from the mapping, without
+     * locking the map. See the section on memory-mapped data files, in the
+     * class documentation, for details. Like {@link #RECLAIM_FILE_GAPS},
+     * this flag is not persistent; it only affects how the open
+     * <tt>FileHashMap</tt> object accesses the data file.
+     */
+    public static final int MEMORY_MAPPED = 0x10;
 
     /**
-     * Version stamp, written to the index file. Used to detect invalid files
-     * and older incompatible versions.
+     * Constructor flag value: Tells the object to permit concurrent access
+     * by multiple threads, with lock-free reads. See the section on
+     * concurrent access, in the class documentation, for details. This
+     * flag is not persistent.
      */
-    private static final String VERSION_STAMP =
-                                      "org.clapper.util.misc.FileHashMap-1.0";
+    public static final int CONCURRENT = 0x20;
 
     /**
-     * Used to validate the set of flags passed to the constructor. Negate
-     * this value, AND it with a passed-in flags value, and the result had
-     * better be 0. Otherwise, someone has set an unsupported flag value.
+     * Constructor flag value: Tells the object to append every index change
+     * to a journal file, so that changes survive without a full save of the
+     * index. See the section on journaling, in the class documentation, for
+     * details. This flag is ignored for transient maps.
      */
-    private static final int ALL_FLAGS_MASK = NO_CREATE
-                                            | TRANSIENT
-                                            | FORCE_OVERWRITE
-                                            | RECLAIM_FILE_GAPS;
+    public static final int JOURNALED = 0x40;
 
-    /*----------------------------------------------------------------------*\
-                           Private Inner Classes
-    \*----------------------------------------------------------------------*/
+    /**
+     * Constructor flag value: Tells the object to keep its in-memory index
+     * outside the Java heap. See the section on memory conservation, in
+     * the class documentation, for details. This flag is not persistent.
+     */
+    public static final int OFF_HEAP_INDEX = 0x80;
 
     /**
-     * Wraps the values data file and other administrative references related
-     * to it.
+     * How hard the map works to get its changes onto the storage device.
+     * See the section on durability, in the class documentation.
+     *
+     * @see #setDurability
      */
-    private static class ValuesFile
+    public enum Durability
     {
-        private RandomAccessFile file;
-
-        ValuesFile (File f)
-            throws IOException
-        {
-            this.file = new RandomAccessFile (f, "rw");
-        }
+        /**
+         * Changes are forced only by {@link FileHashMap#sync}.
+         */
+        NONE,
 
-        RandomAccessFile getFile()
-            throws ConcurrentModificationException
-        {
-            return file;
-        }
+        /**
+         * Changes are forced at a fixed interval (journaled maps only).
+         */
+        PERIODIC,
 
-        void close()
-            throws IOException
-        {
-            // Lock is implicitly released on close.
-            file.close();
-        }
+        /**
+         * Each change is forced before the update returns (journaled maps
+         * only).
+         */
+        SYNC
     }
 
+    /*----------------------------------------------------------------------*\
+                           Public Inner Classes
+    \*----------------------------------------------------------------------*/
+
     /**
-     * Comparator for FileHashMapEntry objects. Sorts by natural order,
-     * which is file position.
+     * A read-only view of a <tt>FileHashMap</tt> at a point in time,
+     * returned by {@link FileHashMap#snapshot}. The snapshot is unaffected
+     * by later changes to the map. Iterating over the snapshot's entries,
+     * or its values, reads the data file sequentially, as with
+     * {@link FileHashMap#scan}. A snapshot can be used by multiple threads
+     * at once, if the map is {@link FileHashMap#CONCURRENT}. Once the
+     * snapshot or the map has been closed, the snapshot can no longer be
+     * used.
+     *
+     * @see FileHashMap#snapshot
      */
-    private class FileHashMapEntryComparator
-        implements Comparator<FileHashMapEntry<K>>
+    public static class Snapshot<K,V>
+        extends AbstractMap<K,V>
+        implements Closeable
     {
-        private FileHashMapEntryComparator()
+        private final FileHashMap<K,V>            map;
+        private final Map<K, FileHashMapEntry<K>> index;
+        private List<FileHashMapEntry<K>>         sortedEntries = null;
+        private volatile boolean                  closed = false;
+
+        private Snapshot (FileHashMap<K,V>            map,
+                          Map<K, FileHashMapEntry<K>> index)
         {
-            // Nothing to do
+            this.map   = map;
+            this.index = index;
         }
 
-        public int compare (FileHashMapEntry<K> o1, FileHashMapEntry<K> o2)
+        public boolean containsKey (Object key)
         {
-            return o1.compareTo (o2);
+            checkOpen();
+            return index.containsKey (key);
         }
 
-        public boolean equals (Object o)
+        public V get (Object key)
         {
-            // This fail to compile with generics:
-            //
-            // return (o instanceof FileHashMapEntryComparator);
-            //
-            // But this works:
+            checkOpen();
 
-            return (this.getClass().isInstance (o));
+            FileHashMapEntry<K> entry = index.get (key);
+
+            return (entry == null) ? null : map.readValueNoError (entry);
         }
 
-        public int hashCode()                                       // NOPMD
+        public int size()
         {
-            return super.hashCode();
+            checkOpen();
+            return index.size();
         }
-    }
 
-    /**
-     * Comparator for FileHashMapEntry objects. Sorts by object size, then
-     * file position. Used for ordering gap entries.
-     */
-    private class FileHashMapEntryGapComparator
-        implements Comparator<FileHashMapEntry<K>>
-    {
-        private FileHashMapEntryGapComparator()
+        public Set<K> keySet()
         {
-            // Nothing to do
+            checkOpen();
+            return Collections.unmodifiableSet (index.keySet());
         }
 
-        public int compare (FileHashMapEntry<K> o1, FileHashMapEntry<K> o2)
+        public Set<Map.Entry<K,V>> entrySet()
         {
-            int cmp;
+            checkOpen();
 
-            if ((cmp = (int) (o1.getObjectSize() - o2.getObjectSize())) == 0)
-                cmp = (int) (o1.getFilePosition() - o2.getFilePosition());
+            return new AbstractSet<Map.Entry<K,V>>()
+            {
+                public Iterator<Map.Entry<K,V>> iterator()
+                {
+                    return newScanIterator();
+                }
 
-            return cmp;
+                public int size()
+                {
+                    return Snapshot.this.size();
+                }
+            };
         }
 
-        public boolean equals (Object o)
+        /**
+         * Pass each entry in the snapshot to an action, in data file
+         * order.
+         *
+         * @param action  the action to perform on each key and value
+         *
+         * @see FileHashMap#scan
+         */
+        public void scan (BiConsumer<? super K, ? super V> action)
         {
-            // This fail to compile with generics:
-            //
-            // return (o instanceof FileHashMapEntryGapComparator);
-            //
-            // But this works:
+            Iterator<Map.Entry<K,V>> it = newScanIterator();
 
-            return (this.getClass().isInstance (o));
-        }
-
-        public int hashCode()                                   // NOPMD
-        {
-            return super.hashCode();
+            while (it.hasNext())
+            {
+                Map.Entry<K,V> mapEntry = it.next();
+                action.accept (mapEntry.getKey(), mapEntry.getValue());
+            }
         }
-    }
-
-    /**
-     * Internal iterator that loops through the FileHashMapEntry objects in
-     * sorted order, by file position. Used to implement other iterators.
-     */
-    private class EntryIterator implements Iterator<FileHashMapEntry<K>>
-    {
-        List<FileHashMapEntry<K>>     entries;
-        Iterator<FileHashMapEntry<K>> iterator;
-        FileHashMapEntry<K>           currentEntry = null;
 
         /**
-         * The expectedSize value that the iterator believes that the backing
-         * Map should have.  If this expectation is violated, the iterator
-         * has detected concurrent modification.
+         * Close the snapshot, allowing the map to reuse the space occupied
+         * by values that have been replaced or removed since the snapshot
+         * was taken. Closing a closed snapshot has no effect.
          */
-        private int expectedSize = 0;
-
-        EntryIterator()
+        public void close()
         {
-            entries      = FileHashMap.this.getSortedEntries();
-            iterator     = entries.iterator();
-            expectedSize = entries.size();
+            if (! closed)
+            {
+                closed = true;
+                map.releaseSnapshot();
+            }
         }
 
-        public boolean hasNext()
+        private Iterator<Map.Entry<K,V>> newScanIterator()
         {
-            return iterator.hasNext();
+            checkOpen();
+            return map.new ScanIterator (getSortedEntries(), SCAN_BUFFER_SIZE,
+                                         SCAN_MAX_GAP, true, null, false);
         }
 
-        public FileHashMapEntry<K> next()
+        private synchronized List<FileHashMapEntry<K>> getSortedEntries()
         {
-            if (expectedSize != FileHashMap.this.indexMap.size())
-                throw new ConcurrentModificationException();
-
-            if (hasNext())
-                currentEntry = iterator.next();
-
-            else
+            if (sortedEntries == null)
             {
-                currentEntry = null;
-                throw new NoSuchElementException();
+                sortedEntries =
+                    new ArrayList<FileHashMapEntry<K>> (index.values());
+                Collections.sort (sortedEntries,
+                                  map.new FileHashMapEntryComparator());
             }
 
-            return currentEntry;
+            return sortedEntries;
         }
 
-        public void remove()
+        private void checkOpen()
         {
-            if ((currentEntry != null) && (expectedSize > 0))
-            {
-                K key = currentEntry.getKey();
-                V value = FileHashMap.this.remove (key);
-                if (value != null)
-                {
-                    if (hasNext())
-                        currentEntry = iterator.next();
-                    else
-                        currentEntry = null;
-                }
-            }
+            if (closed)
+                throw new IllegalStateException ("Snapshot is closed");
+
+            map.checkValidity();
         }
     }
 
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
     /**
-     * Specialized iterator for looping through the value set. The iterator
-     * loops through the FileHashMapEntry items, which have been sorted by
-     * file position; each call to next() causes the iterator to load the
-     * appropriate value. This approach (a) iterates through the value file
-     * sequentially, and (b) demand-loads the values, so they're not all
-     * loaded into memory at the same time.
+     * Version stamp, written to the index file. Used to detect invalid files
+     * and older incompatible versions. This version denotes the binary
+     * index format.
      */
-    private class ValueIterator implements Iterator<V>
-    {
-        EntryIterator it;
+    private static final String VERSION_STAMP =
+                                      "org.clapper.util.misc.FileHashMap-2.0";
 
-        private ValueIterator()
-        {
-            it = new EntryIterator();
-        }
+    /**
+     * Version stamp for an index file that consists of a serialized
+     * HashMap. Such index files can be read, but not written.
+     */
+    private static final String SERIALIZED_INDEX_VERSION_STAMP =
+                                      "org.clapper.util.misc.FileHashMap-1.0";
 
-        public boolean hasNext()
-        {
-            return it.hasNext();
-        }
+    /**
+     * The first two bytes of a Java serialization stream, used to
+     * recognize a serialized index file.
+     */
+    private static final int SERIALIZATION_MAGIC = 0xaced;
 
-        public V next()
-        {
-            return FileHashMap.this.readValueNoError (it.next());
-        }
+    /**
+     * Size of the buffer used to read and write the index file.
+     */
+    private static final int INDEX_BUFFER_SIZE = 64 * 1024;
 
-        public void remove()
-        {
-            throw new UnsupportedOperationException();
-        }
-    }
+    /**
+     * Size of the fixed-width portion of each index file record: the file
+     * position (a long), the object size (an int, with the high bit set if
+     * the object is compressed), and the length of the encoded key (an
+     * int).
+     */
+    private static final int INDEX_RECORD_SIZE = 8 + 4 + 4;
 
     /**
-     * Shallow set that contains pointers to the on-disk values. Values
-     * are loaded only when referenced.
+     * Version stamp, written at the beginning of the journal file.
      */
-    private class ValueSet extends AbstractSet<V>
-    {
-        ValuesFile valuesDB = FileHashMap.this.valuesDB;
+    private static final String JOURNAL_VERSION_STAMP =
+                              "org.clapper.util.misc.FileHashMap-journal-1.0";
 
-        private ValueSet()
-        {
-            // Nothing to do
-        }
+    /**
+     * Size of the header of each journal record: the length of the record
+     * body (an int) and its CRC-32 checksum (an int).
+     */
+    private static final int JOURNAL_RECORD_HEADER_SIZE = 4 + 4;
 
-        public void clear()
-        {
-            throw new UnsupportedOperationException();
-        }
+    /**
+     * Journal record type: a key was added or replaced. The body contains
+     * the file position (a long) and object size (an int, with the high bit
+     * set if the object is compressed), followed by the encoded key.
+     */
+    private static final byte JOURNAL_PUT = 1;
 
-        public boolean contains (Object o)
-        {
-            boolean containsIt = false;
+    /**
+     * Journal record type: a key was removed. The body contains the encoded
+     * key.
+     */
+    private static final byte JOURNAL_REMOVE = 2;
 
-            // Loop through values sequentially, to optimize file access.
+    /**
+     * Journal record type: the map was cleared. The body is empty.
+     */
+    private static final byte JOURNAL_CLEAR = 3;
 
-            seekTo (0);
-            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
-            {
-                V obj = it.next();
+    /**
+     * Encoding for the version stamp.
+     */
+    private static final Charset UTF8 = Charset.forName ("UTF-8");
 
-                if (obj.equals (o))
-                {
-                    containsIt = true;
-                    break;
-                }
-            }
+    /**
+     * Used to validate the set of flags passed to the constructor. Negate
+     * this value, AND it with a passed-in flags value, and the result had
+     * better be 0. Otherwise, someone has set an unsupported flag value.
+     */
+    private static final int ALL_FLAGS_MASK = NO_CREATE
+                                            | TRANSIENT
+                                            | FORCE_OVERWRITE
+                                            | RECLAIM_FILE_GAPS
+                                            | MEMORY_MAPPED
+                                            | CONCURRENT
+                                            | JOURNALED
+                                            | OFF_HEAP_INDEX;
 
-            return containsIt;
-        }
+    /**
+     * Log (base 2) of the size of each mapped region of the data file, when
+     * {@link #MEMORY_MAPPED} is in effect.
+     */
+    private static final int MAPPED_SEGMENT_SHIFT = 24;
 
-        public boolean containsAll (Collection c)
-        {
-            boolean containsThem = true;
+    /**
+     * Size of each mapped region of the data file.
+     */
+    private static final int MAPPED_SEGMENT_SIZE = 1 << MAPPED_SEGMENT_SHIFT;
 
-            // Loop through values sequentially, to optimize file access.
+    /**
+     * Suffix appended to the names of the data and index files being
+     * written by a compaction.
+     */
+    private static final String COMPACTION_SUFFIX = ".compact";
 
-            seekTo (0);
-            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
-            {
-                V obj = it.next();
+    /**
+     * Size of the buffer used to copy runs of adjacent values during
+     * compaction.
+     */
+    private static final int COMPACTION_BUFFER_SIZE = 1024 * 1024;
 
-                if (! c.contains (obj))
-                {
-                    containsThem = false;
-                    break;
-                }
-            }
+    /**
+     * Maximum number of bytes of encoded values that putAll() writes in one
+     * operation.
+     */
+    private static final int BATCH_WRITE_SIZE = 4 * 1024 * 1024;
 
-            return containsThem;
-        }
+    /**
+     * Maximum number of bytes getAll() reads in one operation.
+     */
+    private static final int BATCH_READ_SIZE = 1024 * 1024;
 
-        public boolean equals (Object o)
-        {
-            boolean  eq    = false;
-            Set      other = (Set) o;
+    /**
+     * Largest gap between two values that getAll() reads through, rather
+     * than reading the values separately.
+     */
+    private static final int BATCH_READ_MAX_GAP = 4096;
 
-            if (other.size() == size())
-                eq = this.containsAll (other);
+    /**
+     * Size of each read performed by scan() and stream().
+     */
+    private static final int SCAN_BUFFER_SIZE = 4 * 1024 * 1024;
 
-            return eq;
-        }
+    /**
+     * Largest gap between two values that scan() and stream() read
+     * through.
+     */
+    private static final int SCAN_MAX_GAP = 64 * 1024;
 
-        public int hashCode()
-        {
-            int result = 0;
+    /**
+     * Number of seconds an idle read-ahead thread waits for another scan
+     * before it exits.
+     */
+    private static final int SCAN_THREAD_KEEP_ALIVE = 30;
 
-            // Loop through values sequentially, to optimize file access.
+    /**
+     * Types of asynchronous operation.
+     */
+    private static final int ASYNC_GET    = 0;
+    private static final int ASYNC_PUT    = 1;
+    private static final int ASYNC_REMOVE = 2;
 
-            seekTo (0);
-            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
-            {
-                Object obj = it.next();
+    /**
+     * Maximum number of queued asynchronous operations combined into one
+     * batch.
+     */
+    private static final int ASYNC_BATCH_SIZE = 1024;
 
-                result += obj.hashCode();
-            }
+    /*----------------------------------------------------------------------*\
+                           Private Inner Classes
+    \*----------------------------------------------------------------------*/
 
-            return result;
+    /**
+     * Wraps the values data file and other administrative references related
+     * to it. The file is accessed in one of three ways:
+     *
+     * <ul>
+     *   <li>through the <tt>RandomAccessFile</tt> file pointer (the default),
+     *       in which case callers must serialize all access;
+     *   <li>through positional <tt>FileChannel</tt> reads and writes, which
+     *       are safe for concurrent use; or
+     *   <li>through memory-mapped segments, which are also safe for
+     *       concurrent use.
+     * </ul>
+     *
+     * In the latter two cases, this class also keeps track of the logical
+     * length of the file. (A mapped file is physically longer, since it's
+     * extended to a segment boundary when a segment is mapped. It's trimmed
+     * to its logical length when it's closed; if it isn't closed, the
+     * logical length saved in the index is restored when it's reopened.)
+     *
+     * Reads and writes that don't serialize on the map are counted, and
+     * closing the file waits for those in progress to finish.
+     *
+     * Each compaction creates a new generation of the data file. The
+     * previous generation is kept open until the next compaction, so that
+     * index entries obtained before the swap can still be read.
+     */
+    private static class ValuesFile
+    {
+        private RandomAccessFile file;
+        private FileChannel channel;
+        private boolean positional;
+        private volatile MappedByteBuffer[] segments = null;
+        private volatile long length = 0;
+        private int generation;
+        private volatile ValuesFile previous;
+        private final AtomicInteger users = new AtomicInteger (0);
+        private volatile boolean closing = false;
+
+        ValuesFile (File f, boolean mapped, boolean positional)
+            throws IOException
+        {
+            this (f, mapped, positional, 0, null);
         }
 
-        public boolean isEmpty()
+        ValuesFile (File       f,
+                    boolean    mapped,
+                    boolean    positional,
+                    int        generation,
+                    ValuesFile previous)
+            throws IOException
         {
-            return indexMap.isEmpty();
+            this.generation = generation;
+            this.previous   = previous;
+            this.file       = new RandomAccessFile (f, "rw");
+            this.channel    = file.getChannel();
+            this.positional = positional && (! mapped);
+            this.length     = file.length();
+
+            if (mapped)
+            {
+                this.segments = new MappedByteBuffer[0];
+                mapThrough (length);
+            }
         }
 
-        public Iterator<V> iterator()
+        RandomAccessFile getFile()
+            throws ConcurrentModificationException
         {
-            return new ValueIterator();
+            return file;
         }
 
-        public boolean remove (Object o)
+        boolean isMapped()
         {
-            return (FileHashMap.this.remove (o) != null);
+            return (segments != null);
         }
 
-        public int size()
+        int getGeneration()
         {
-            return currentSize();
+            return generation;
         }
 
-        private void seekTo (long pos)
+        ValuesFile getPrevious()
         {
-            try
-            {
-                valuesDB.getFile().seek (pos);
-            }
+            return previous;
+        }
 
-            catch (IOException ex)
+        /**
+         * Close and forget the previous generation of the file.
+         */
+        void closePrevious()
+        {
+            ValuesFile old = previous;
+
+            previous = null;
+            if (old != null)
             {
+                try
+                {
+                    old.close();
+                }
+
+                catch (IOException ex)
+                {
+                    log.error ("Can't close old data file", ex);
+                }
             }
         }
-    }
-
-    /**
-     * Necessary to support the Map.entrySet() routine. Each object
-     * returned by FileHashMap.entrySet().iterator() is of this type. Each
-     * EntrySetEntry object provides an alternate, user-acceptable view of
-     * a FileHashMapEntry.
-     */
-    private class EntrySetEntry implements Map.Entry<K,V>
-    {
-        private FileHashMapEntry<K> entry;
 
-        EntrySetEntry (FileHashMapEntry<K> entry)
+        /**
+         * Determine whether multiple threads can read and write the file
+         * at the same time.
+         *
+         * @return <tt>true</tt> if concurrent access is safe, <tt>false</tt>
+         *         if callers must serialize access
+         */
+        boolean supportsConcurrentAccess()
         {
-            this.entry = entry;
+            return positional || isMapped();
         }
 
-        public boolean equals(Object o)
+        long length()
+            throws IOException
         {
-            Map.Entry<K,V> mo        = (Map.Entry<K,V>) o;
-            Object         thisValue = getValue();
-            Object         thisKey   = getKey();
-
-            // Adapted directly from Map.Entry javadoc.
-
-            return (mo.getKey() == null ?
-                    thisKey == null : mo.getKey().equals (thisKey))
-                                     &&
-                   (mo.getValue() == null ?
-                    thisValue == null : mo.getValue().equals (thisValue));
+            return supportsConcurrentAccess() ? length : file.length();
         }
 
-        public K getKey()
+        /**
+         * Restore the logical length of a mapped file that wasn't trimmed
+         * when it was last used (because the program died before closing
+         * it). The length is never extended.
+         *
+         * @param size  the logical length
+         */
+        synchronized void restoreLength (long size)
         {
-            return entry.getKey();
+            if (isMapped() && (size < length))
+            {
+                log.debug ("Restoring logical length of mapped data file: " +
+                           size + " (physical length " + length + ")");
+                length = size;
+            }
         }
 
-        public V getValue()
+        /**
+         * Allocate space at the end of the file.
+         *
+         * @param size  the number of bytes to allocate
+         *
+         * @return the file position of the allocated space
+         *
+         * @throws IOException on error
+         */
+        synchronized long allocate (int size)
+            throws IOException
         {
-            return FileHashMap.this.readValueNoError (entry);
-        }
+            long pos;
 
-        public int hashCode()
-        {
-            // Adapted directly from the Map.Entry javadoc
+            if (supportsConcurrentAccess())
+            {
+                pos = length;
+                length += size;
+            }
 
-            V value = getValue();
-            K key   = getKey();
+            else
+            {
+                // The caller holds the lock and will write immediately.
 
-            return (key == null ? 0 : key.hashCode()) ^
-                   (value == null ? 0 : value.hashCode());
-        }
+                pos = file.length();
+            }
 
-        public V setValue (V value)
-        {
-            throw new UnsupportedOperationException();
+            return pos;
         }
-    }
 
-    /**
-     * The actual entry set returned by FileHashMap.entrySet(). The values
-     * are demand-loaded. The iterator() and toArray() methods ensure that
-     * the keys are returned in an order that causes sequential access to the
-     * values file.
-     */
-    private class EntrySet extends AbstractSet<Map.Entry<K,V>>
-    {
-        private EntrySet()
+        /**
+         * Read bytes from the file. If the file doesn't support concurrent
+         * access, the caller must ensure that no other thread is using the
+         * file pointer.
+         *
+         * @param pos  where to start reading
+         * @param buf  the buffer to fill
+         *
+         * @return the number of bytes actually read
+         *
+         * @throws IOException on error
+         */
+        int read (long pos, byte[] buf)
+            throws IOException
         {
-            // Nothing to do
+            return read (pos, buf, buf.length);
         }
 
-        public void clear()
+        /**
+         * Read bytes from the file into the beginning of a buffer.
+         *
+         * @param pos  where to start reading
+         * @param buf  the buffer to fill
+         * @param len  how many bytes to read
+         *
+         * @return the number of bytes actually read
+         *
+         * @throws IOException on error
+         */
+        int read (long pos, byte[] buf, int len)
+            throws IOException
         {
-            throw new UnsupportedOperationException();
-        }
+            int total;
 
-        public boolean contains (Map.Entry<K,V> o)
-        {
-            return FileHashMap.this.containsValue(o.getValue());
+            enter();
+            try
+            {
+                total = doRead (pos, buf, len);
+            }
+
+            finally
+            {
+                exit();
+            }
+
+            return total;
         }
 
-        public Iterator<Map.Entry<K,V>> iterator()
+        private int doRead (long pos, byte[] buf, int len)
+            throws IOException
         {
-            return new Iterator<Map.Entry<K,V>>()
-            {
-                EntryIterator it = new EntryIterator();
+            int total;
 
-                public Map.Entry<K,V> next()
-                {
-                    return (Map.Entry<K,V>) new EntrySetEntry (it.next());
-                }
+            if (isMapped())
+            {
+                total = (int) Math.max (0, Math.min (len, length - pos));
+                copy (pos, buf, 0, total, false);
+            }
 
-                public boolean hasNext()
-                {
-                    return it.hasNext();
-                }
+            else if (positional)
+            {
+                ByteBuffer bb = ByteBuffer.wrap (buf, 0, len);
 
-                public void remove()
+                while (bb.hasRemaining())
                 {
-                    it.remove();
+                    if (channel.read (bb, pos + bb.position()) < 0)
+                        break;
                 }
-            };
-        }
 
-        public boolean equals(Object obj)
-        {
-            boolean eq = (this == obj);
+                total = bb.position();
+            }
 
-            if (! eq)
-                eq = super.equals(obj);
+            else
+            {
+                file.seek (pos);
+                total = file.read (buf, 0, len);
+            }
 
-            return eq;
+            return total;
         }
 
-        public int hashCode()                                // NOPMD
+        /**
+         * Write bytes to the file. If the file doesn't support concurrent
+         * access, the caller must ensure that no other thread is using the
+         * file pointer. Otherwise, the caller must merely ensure that no
+         * other thread is writing to the same region.
+         *
+         * @param pos  where to write the bytes, typically obtained from
+         *             {@link #allocate}
+         * @param buf  the bytes to write
+         * @param len  how many bytes of <tt>buf</tt> to write
+         *
+         * @throws IOException on error
+         */
+        void write (long pos, byte[] buf, int len)
+            throws IOException
         {
-            return super.hashCode();
-        }
+            enter();
+            try
+            {
+                doWrite (pos, buf, len);
+            }
 
-        public boolean remove (FileHashMapEntry<K> o)
+            finally
+            {
+                exit();
+            }
+        }
+
+        private void doWrite (long pos, byte[] buf, int len)
+            throws IOException
         {
-            throw new UnsupportedOperationException();
+            if (isMapped())
+            {
+                mapThrough (pos + len);
+                copy (pos, buf, 0, len, true);
+            }
+
+            else if (positional)
+            {
+                ByteBuffer bb = ByteBuffer.wrap (buf, 0, len);
+
+                while (bb.hasRemaining())
+                    channel.write (bb, pos + bb.position());
+            }
+
+            else
+            {
+                file.seek (pos);
+                file.write (buf, 0, len);
+            }
         }
 
-        public boolean removeAll (Collection c)
+        synchronized void truncate (long size)
+            throws IOException
         {
-            throw new UnsupportedOperationException();
+            // A mapped file isn't physically truncated until it's closed,
+            // since touching a mapped page beyond the end of the file is
+            // fatal.
+
+            if (! isMapped())
+                channel.truncate (size);
+
+            length = size;
         }
 
-        public boolean retainAll (Collection c)
+        /**
+         * Get a read-only view of a region of the mapping, without copying
+         * it.
+         *
+         * @param pos  the start of the region
+         * @param len  the length of the region
+         *
+         * @return the view, or null if the file isn't mapped or the region
+         *         spans segments
+         */
+        ByteBuffer slice (long pos, int len)
         {
-            throw new UnsupportedOperationException();
+            MappedByteBuffer[] segs = segments;
+
+            if ((segs == null) || closing)
+                return null;
+
+            int index  = (int) (pos >>> MAPPED_SEGMENT_SHIFT);
+            int segPos = (int) (pos & (MAPPED_SEGMENT_SIZE - 1));
+
+            if ((index >= segs.length) || (segPos + len > MAPPED_SEGMENT_SIZE))
+                return null;
+
+            ByteBuffer segment = segs[index].duplicate();
+
+            segment.position (segPos);
+            segment.limit (segPos + len);
+            return segment.slice().asReadOnlyBuffer();
         }
 
-        public int size()
+        /**
+         * Copy a region of the file to a channel, via
+         * <tt>FileChannel.transferTo()</tt>.
+         *
+         * @param pos     the start of the region
+         * @param len     the length of the region
+         * @param target  the channel
+         *
+         * @return <tt>true</tt> if the region was transferred,
+         *         <tt>false</tt> if the file was closed before anything was
+         *         transferred
+         *
+         * @throws IOException on error
+         */
+        boolean transferTo (long pos, int len, WritableByteChannel target)
+            throws IOException
         {
-            return FileHashMap.this.size();
+            long done = 0;
+
+            try
+            {
+                enter();
+            }
+
+            catch (ClosedChannelException ex)
+            {
+                return false;
+            }
+
+            try
+            {
+                while (done < len)
+                {
+                    long n = channel.transferTo (pos + done, len - done,
+                                                 target);
+
+                    if ((n == 0) && (pos + done >= channel.size()))
+                    {
+                        throw new IOException ("Expected to transfer " + len +
+                                               " bytes at position " + pos +
+                                               ". Got only " + done +
+                                               " bytes.");
+                    }
+
+                    done += n;
+                }
+            }
+
+            catch (ClosedChannelException ex)
+            {
+                if ((done == 0) && (! channel.isOpen()))
+                    return false;
+
+                throw ex;
+            }
+
+            finally
+            {
+                exit();
+            }
+
+            return true;
         }
-    }
 
-    /**
-     * Specialized iterator for looping through the set returned by
-     * FileHashMap.keySet(). The iterator returns the keys so that their
-     * corresponding FileHashMapEntry objects are sorted by file position
-     * value. This approach optimizes the following type of use:
-     *
-     *     Iterator it = fileHashMap.keySet().iterator();
-     *     while (it.hasNext())
-     *     {
-     *         Object value = fileHashMap.get (it.next());
-     *         ...
-     *     }
-     *
-     * That is, each key corresponds to a FileHashMapEntry, and since the
-     * keys are ordered by FileHashMapEntry file pointer, the above loop
-     * will traverse the data file sequentially.
-     */
-    private class KeyIterator implements Iterator<K>
-    {
-        private EntryIterator it;
+        boolean isOpen()
+        {
+            return (! closing) && channel.isOpen();
+        }
 
-        KeyIterator()
+        /**
+         * Force the file's contents to the storage device.
+         *
+         * @throws IOException on error
+         */
+        void force()
+            throws IOException
         {
-            it = new EntryIterator();
+            MappedByteBuffer[] current = segments;
+
+            if (current == null)
+                channel.force (false);
+
+            else
+            {
+                for (MappedByteBuffer segment : current)
+                    segment.force();
+            }
         }
 
-        public boolean hasNext()
+        void close()
+            throws IOException
         {
-            return it.hasNext();
+            closePrevious();
+
+            // Refuse new reads and writes, and wait for those in progress.
+            // A mapped segment mustn't be touched once the file has been
+            // trimmed.
+
+            closing = true;
+            synchronized (this)
+            {
+                while (users.get() > 0)
+                    awaitUsers();
+            }
+
+            if (isMapped())
+            {
+                segments = null;
+
+                try
+                {
+                    channel.truncate (length);
+                }
+
+                catch (IOException ex)
+                {
+                    // Some platforms won't truncate a file that's still
+                    // mapped. The tail end of the file is merely wasted.
+
+                    log.error ("Can't trim mapped data file to " + length +
+                               " bytes", ex);
+                }
+            }
+
+            // Lock is implicitly released on close.
+            file.close();
         }
 
-        public K next()
+        /**
+         * Note the start of a read or write.
+         *
+         * @throws ClosedChannelException the file is being closed
+         */
+        private void enter()
+            throws ClosedChannelException
         {
-            return it.next().getKey();
+            users.incrementAndGet();
+            if (closing)
+            {
+                exit();
+                throw new ClosedChannelException();
+            }
         }
 
-        public void remove()
+        /**
+         * Note the end of a read or write, waking a thread waiting to
+         * close the file if it was the last one.
+         */
+        private void exit()
         {
-            it.remove();
+            if ((users.decrementAndGet() == 0) && closing)
+            {
+                synchronized (this)
+                {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Wait for the monitor to be notified, ignoring (but preserving)
+         * interrupts. The caller must hold the monitor.
+         */
+        private void awaitUsers()
+        {
+            try
+            {
+                wait();
+            }
+
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Ensure that the mapping covers the file through the specified
+         * position, mapping new segments as necessary.
+         *
+         * @param end  the position through which the file must be mapped
+         *
+         * @throws IOException on error
+         */
+        private synchronized void mapThrough (long end)
+            throws IOException
+        {
+            MappedByteBuffer[] current = segments;
+            int total = (int) ((end + MAPPED_SEGMENT_SIZE - 1) >>>
+                               MAPPED_SEGMENT_SHIFT);
+
+            if (total > current.length)
+            {
+                MappedByteBuffer[] newSegments = new MappedByteBuffer[total];
+
+                System.arraycopy (current, 0, newSegments, 0, current.length);
+                for (int i = current.length; i < total; i++)
+                {
+                    newSegments[i] = channel.map
+                                         (FileChannel.MapMode.READ_WRITE,
+                                          ((long) i) << MAPPED_SEGMENT_SHIFT,
+                                          MAPPED_SEGMENT_SIZE);
+                }
+
+                segments = newSegments;
+            }
+        }
+
+        /**
+         * Copy bytes between a buffer and the mapped segments. Each
+         * transfer uses a duplicate of the segment buffer, so concurrent
+         * transfers don't disturb each other's positions.
+         */
+        private void copy (long    pos,
+                           byte[]  buf,
+                           int     offset,
+                           int     len,
+                           boolean toFile)
+            throws ClosedChannelException
+        {
+            MappedByteBuffer[] segs = segments;
+
+            if (segs == null)
+                throw new ClosedChannelException();
+
+            while (len > 0)
+            {
+                int index   = (int) (pos >>> MAPPED_SEGMENT_SHIFT);
+                int segPos  = (int) (pos & (MAPPED_SEGMENT_SIZE - 1));
+                int chunk   = Math.min (len, MAPPED_SEGMENT_SIZE - segPos);
+                ByteBuffer segment = segs[index].duplicate();
+
+                segment.position (segPos);
+                if (toFile)
+                    segment.put (buf, offset, chunk);
+                else
+                    segment.get (buf, offset, chunk);
+
+                pos    += chunk;
+                offset += chunk;
+                len    -= chunk;
+            }
         }
     }
 
     /**
-     * Implements a key set -- the set of keys the caller used to store
-     * values in the FileHashMap. The iterator() and toArray() methods ensure
-     * that the keys are returned in a manner that optimizes looping through
-     * the associated values (as with the various iterators, above).
+     * Writes the binary index file through a FileChannel, using a single
+     * reusable buffer.
      */
-    private class KeySet extends AbstractSet<K>
+    private static class IndexWriter
     {
-        ArrayList<K> keys = null;
+        private FileChannel channel;
+        private ByteBuffer  buf = ByteBuffer.allocate (INDEX_BUFFER_SIZE);
 
-        private KeySet()
+        IndexWriter (FileChannel channel)
         {
-            // Nothing to do
+            this.channel = channel;
         }
 
-        public void clear()
+        /**
+         * Ensure that there's room in the buffer for a specified number
+         * of bytes, flushing the buffer if necessary.
+         */
+        void reserve (int n)
+            throws IOException
         {
-            throw new UnsupportedOperationException();
+            if (buf.remaining() < n)
+                flush();
         }
 
-        public boolean contains (Object o)
+        void putLong (long l)
+            throws IOException
         {
-            return FileHashMap.this.indexMap.containsKey (o);
+            reserve (8);
+            buf.putLong (l);
         }
 
-        public boolean containsAll (Collection c)
+        void putInt (int i)
+            throws IOException
         {
-            boolean  contains = true;
-            Iterator it       = c.iterator();
-
-            while (contains && it.hasNext())
-                contains = FileHashMap.this.indexMap.containsKey (it.next());
-
-            return contains;
+            reserve (4);
+            buf.putInt (i);
         }
 
-        public boolean equals (Object o)
+        void putBytes (byte[] bytes)
+            throws IOException
         {
-            Set<K>   so        = (Set<K>) o;
-            boolean  eq        = false;
-            Set<K>   myKeys    = FileHashMap.this.indexMap.keySet();
-
-            if (so.size() == myKeys.size())
+            if (bytes.length > buf.capacity())
             {
-                eq = true;
-                Iterator<K> it = myKeys.iterator();
-                while (eq)
-                {
-                    K myKey = it.next();
-
-                    if (! so.contains (myKey))
-                        eq = false;
-                }
+                flush();
+                ByteBuffer bb = ByteBuffer.wrap (bytes);
+                while (bb.hasRemaining())
+                    channel.write (bb);
             }
 
-            return eq;
+            else
+            {
+                reserve (bytes.length);
+                buf.put (bytes);
+            }
         }
 
-        public int hashCode()
+        void putString (String s)
+            throws IOException
         {
-            return FileHashMap.this.indexMap.keySet().hashCode();
+            byte[] bytes = s.getBytes (UTF8);
+
+            reserve (2);
+            buf.putShort ((short) bytes.length);
+            putBytes (bytes);
         }
 
-        public boolean isEmpty()
+        void flush()
+            throws IOException
         {
-            return FileHashMap.this.indexMap.isEmpty();
+            buf.flip();
+            while (buf.hasRemaining())
+                channel.write (buf);
+            buf.clear();
         }
+    }
 
-        public Iterator<K> iterator()
+    /**
+     * Reads the binary index file through a FileChannel, using a single
+     * reusable buffer. Small fields are decoded directly from the buffer.
+     */
+    private static class IndexReader
+    {
+        private FileChannel channel;
+        private ByteBuffer  buf = ByteBuffer.allocate (INDEX_BUFFER_SIZE);
+
+        IndexReader (FileChannel channel)
         {
-            return new KeyIterator();
+            this.channel = channel;
+            buf.flip();
         }
 
-        public boolean remove (Object o)
+        /**
+         * Ensure that the specified number of bytes (which must not exceed
+         * the buffer size) are available in the buffer.
+         */
+        void require (int n)
+            throws IOException
         {
-            throw new UnsupportedOperationException();
+            if (buf.remaining() < n)
+            {
+                buf.compact();
+                while (buf.position() < n)
+                {
+                    if (channel.read (buf) < 0)
+                        throw new EOFException ("Truncated index file.");
+                }
+
+                buf.flip();
+            }
         }
 
-        public boolean removeAll (Collection c)
+        ByteBuffer buffer()
         {
-            throw new UnsupportedOperationException();
+            return buf;
         }
 
-        public boolean retainAll (Collection c)
+        long getLong()
+            throws IOException
         {
-            throw new UnsupportedOperationException();
+            require (8);
+            return buf.getLong();
         }
 
-        public int size()
+        int getInt()
+            throws IOException
         {
-            return FileHashMap.this.currentSize();
+            require (4);
+            return buf.getInt();
         }
 
-        private synchronized void loadKeyArray()
+        void getBytes (byte[] bytes)
+            throws IOException
         {
-            if (keys == null)
-            {
-                List<FileHashMapEntry<K>> entries;
+            int offset = 0;
 
-                entries = FileHashMap.this.getSortedEntries();
-                keys = new ArrayList<K>();
-                for (FileHashMapEntry<K> entry : entries)
-                    keys.add (entry.getKey());
+            while (offset < bytes.length)
+            {
+                require (1);
+                int chunk = Math.min (buf.remaining(), bytes.length - offset);
+                buf.get (bytes, offset, chunk);
+                offset += chunk;
             }
         }
-    }
 
-    /*----------------------------------------------------------------------*\
-                           Private Instance Data
-    \*----------------------------------------------------------------------*/
+        String getString()
+            throws IOException
+        {
+            require (2);
+            byte[] bytes = new byte[buf.getShort() & 0xffff];
+            getBytes (bytes);
+            return new String (bytes, UTF8);
+        }
+    }
 
     /**
-     * The index, cached in memory. Each entry in the list is a
-     * FileHashMapEntry object. This index is stored on disk, in the index
-     * file.
+     * The index journal. Records are added to an in-memory buffer by
+     * threads holding the journal's monitor, which lets the caller change
+     * the index and log the change atomically. A record is written to the
+     * file by {@link #commit}: the first committing thread takes the whole
+     * buffer and writes it, outside the monitor, while other committing
+     * threads wait for that write to cover their records. In synchronous
+     * mode, the committing thread also forces the data file (before
+     * writing the records that refer to it) and the journal.
      */
-    private HashMap<K, FileHashMapEntry<K>> indexMap = null;
-
+    private static class Journal
+    {
+        private RandomAccessFile file;
+        private FileChannel      channel;
+        private long             headerLength;
+        private long             length;
+        private ByteBuffer       pending = ByteBuffer.allocate (4096);
+        private ByteBuffer       spare   = ByteBuffer.allocate (4096);
+        private long             appended = 0;
+        private long             written = 0;
+        private long             durable = 0;
+        private boolean          writing = false;
+        private boolean          syncCommits = false;
+        private long             windowNanos = 0;
+        private IOException      failure = null;
+        private CRC32            crc = new CRC32();
+
+        Journal (File f)
+            throws IOException
+        {
+            this.file    = new RandomAccessFile (f, "rw");
+            this.channel = file.getChannel();
+            this.length  = channel.size();
+
+            ByteBuffer header = ByteBuffer.allocate (256);
+            byte[]     stamp  = JOURNAL_VERSION_STAMP.getBytes (UTF8);
+
+            header.putShort ((short) stamp.length);
+            header.put (stamp);
+            header.flip();
+            headerLength = header.remaining();
+
+            if (length < headerLength)
+            {
+                // New (or hopelessly truncated) journal.
+
+                channel.truncate (0);
+                while (header.hasRemaining())
+                    channel.write (header, header.position());
+                length = headerLength;
+            }
+        }
+
+        FileChannel getChannel()
+        {
+            return channel;
+        }
+
+        long getHeaderLength()
+        {
+            return headerLength;
+        }
+
+        /**
+         * Discard everything after a specified position, which must be the
+         * end of a complete record. Used after replaying the journal.
+         */
+        synchronized void truncate (long end)
+            throws IOException
+        {
+            channel.truncate (end);
+            length = end;
+        }
+
+        /**
+         * Add a record to the buffer. The caller must hold the monitor.
+         *
+         * @return the record's sequence number, for commit()
+         */
+        long log (byte type, long pos, int size, byte[] key)
+        {
+            assert (Thread.holdsLock (this));
+
+            int bodyLength = 1 + ((type == JOURNAL_PUT) ? (8 + 4) : 0) +
+                             ((key == null) ? 0 : key.length);
+            int recordLength = JOURNAL_RECORD_HEADER_SIZE + bodyLength;
+
+            if (pending.remaining() < recordLength)
+            {
+                ByteBuffer bigger = ByteBuffer.allocate
+                    (Math.max (pending.capacity() * 2,
+                               pending.position() + recordLength));
+                pending.flip();
+                bigger.put (pending);
+                pending = bigger;
+            }
+
+            int start = pending.position();
+            pending.putInt (bodyLength);
+            pending.putInt (0);
+            pending.put (type);
+            if (type == JOURNAL_PUT)
+            {
+                pending.putLong (pos);
+                pending.putInt (size);
+            }
+
+            if (key != null)
+                pending.put (key);
+
+            crc.reset();
+            crc.update (pending.array(),
+                        start + JOURNAL_RECORD_HEADER_SIZE,
+                        bodyLength);
+            pending.putInt (start + 4, (int) crc.getValue());
+
+            return ++appended;
+        }
+
+        /**
+         * Set the commit mode.
+         *
+         * @param sync         whether commits force the data file and
+         *                     the journal
+         * @param windowNanos  in synchronous mode, how long the committing
+         *                     thread waits for other records to join its
+         *                     batch
+         */
+        synchronized void setSync (boolean sync, long windowNanos)
+        {
+            this.syncCommits = sync;
+            this.windowNanos = windowNanos;
+        }
+
+        /**
+         * Get the sequence number of the last record added to the buffer.
+         */
+        synchronized long getAppended()
+        {
+            return appended;
+        }
+
+        /**
+         * Wait until the record with the specified sequence number has been
+         * written to the file (and, in synchronous mode, forced), writing
+         * it (and any other buffered records) if no other thread is already
+         * doing so. Must not be called with the monitor held.
+         *
+         * @param seq  the record's sequence number
+         * @param db   the data file the records refer to
+         */
+        void commit (long seq, ValuesFile db)
+            throws IOException
+        {
+            commit (seq, db, false);
+        }
+
+        /**
+         * Wait until the record with the specified sequence number has been
+         * written to the file, optionally forcing the data file and the
+         * journal regardless of the commit mode.
+         *
+         * @param seq    the record's sequence number
+         * @param db     the data file the records refer to
+         * @param force  whether to force the files
+         */
+        void commit (long seq, ValuesFile db, boolean force)
+            throws IOException
+        {
+            ByteBuffer batch = null;
+            long       target = 0;
+            long       pos = 0;
+            boolean    sync;
+            long       window;
+
+            synchronized (this)
+            {
+                sync   = force || syncCommits;
+                window = syncCommits ? windowNanos : 0;
+
+                for (;;)
+                {
+                    if (failure != null)
+                        throw failure;
+
+                    if ((sync ? durable : written) >= seq)
+                        return;
+
+                    if (! writing)
+                        break;
+
+                    awaitWriter();
+                }
+
+                writing = true;
+            }
+
+            boolean ok = false;
+
+            try
+            {
+                // Give other writers a chance to join the batch.
+
+                if (window > 0)
+                    LockSupport.parkNanos (window);
+
+                synchronized (this)
+                {
+                    batch   = pending;
+                    pending = spare;
+                    spare   = null;
+                    target  = appended;
+                    pos     = length;
+                }
+
+                // The values the batch refers to have already been written.
+                // They must reach the device before the records do.
+
+                if (sync)
+                    db.force();
+
+                batch.flip();
+                while (batch.hasRemaining())
+                    pos += channel.write (batch, pos);
+
+                if (sync)
+                    channel.force (false);
+
+                ok = true;
+            }
+
+            catch (IOException ex)
+            {
+                synchronized (this)
+                {
+                    failure = ex;
+                }
+
+                throw ex;
+            }
+
+            finally
+            {
+                synchronized (this)
+                {
+                    if (batch != null)
+                    {
+                        batch.clear();
+                        spare = batch;
+                    }
+
+                    if (ok)
+                    {
+                        length  = pos;
+                        written = target;
+                        if (sync)
+                            durable = target;
+                    }
+
+                    writing = false;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Empty the journal, discarding all buffered and written records.
+         * Called, with the monitor held, once the index has been saved.
+         */
+        void reset()
+            throws IOException
+        {
+            assert (Thread.holdsLock (this));
+
+            while (writing)
+                awaitWriter();
+
+            pending.clear();
+            channel.truncate (headerLength);
+            length  = headerLength;
+            written = appended;
+            notifyAll();
+        }
+
+        /**
+         * Wait for the monitor to be notified, ignoring (but preserving)
+         * interrupts. The caller must hold the monitor.
+         */
+        void awaitWriter()
+        {
+            try
+            {
+                wait();
+            }
+
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized void close()
+            throws IOException
+        {
+            while (writing)
+                awaitWriter();
+
+            file.close();
+        }
+    }
+
+    /**
+     * In-memory cache of decoded values, in front of the data file. Each
+     * cached value is tagged with the index entry it was read from, and is
+     * returned only while that entry is still the key's current entry, so
+     * a value cached by a reader that raced with an update is never used.
+     * All access is synchronized on the cache.
+     */
+    private static class ValueCache<K,V>
+    {
+        private static class CachedValue<K,V>
+        {
+            final FileHashMapEntry<K> entry;
+            final V                   value;
+
+            CachedValue (FileHashMapEntry<K> entry, V value)
+            {
+                this.entry = entry;
+                this.value = value;
+            }
+        }
+
+        private LRUMap<K, CachedValue<K,V>> values;
+        private long                        maxBytes;
+        private long                        hits = 0;
+        private long                        misses = 0;
+
+        ValueCache (int maxEntries, long maxBytes)
+        {
+            // Each value weighs its encoded size, so the LRU map enforces
+            // the byte budget, as well as the entry limit.
+
+            this.values   = new LRUMap<K, CachedValue<K,V>>
+                                ((maxBytes > 0) ? maxBytes : Long.MAX_VALUE,
+                                 new Weigher<K, CachedValue<K,V>>()
+                                 {
+                                     public int weigh (K                key,
+                                                       CachedValue<K,V> cached)
+                                     {
+                                         return cached.entry.getObjectSize();
+                                     }
+                                 });
+            this.maxBytes = maxBytes;
+
+            values.setMaximumCapacity (maxEntries);
+        }
+
+        synchronized V get (Object key, FileHashMapEntry<K> entry)
+        {
+            CachedValue<K,V> cached = values.get (key);
+
+            if ((cached != null) && cached.entry.sameLocation (entry))
+            {
+                hits++;
+                return cached.value;
+            }
+
+            misses++;
+            return null;
+        }
+
+        synchronized void put (FileHashMapEntry<K> entry, V value)
+        {
+            int size = entry.getObjectSize();
+
+            if ((maxBytes > 0) && (size > maxBytes))
+                return;
+
+            values.put (entry.getKey(), new CachedValue<K,V> (entry, value));
+        }
+
+        synchronized void invalidate (Object key)
+        {
+            values.remove (key);
+        }
+
+        synchronized void clear()
+        {
+            values.clear();
+        }
+
+        synchronized long getHits()
+        {
+            return hits;
+        }
+
+        synchronized long getMisses()
+        {
+            return misses;
+        }
+    }
+
+    /**
+     * Compresses values, if compression is enabled. Deflaters are pooled,
+     * so that concurrent writers can each use one without creating a new
+     * one for every value.
+     */
+    private static class Compressor
+    {
+        private final int                            threshold;
+        private final int                            level;
+        private final ConcurrentLinkedQueue<Deflater> deflaters =
+            new ConcurrentLinkedQueue<Deflater>();
+        private final AtomicLong                     bytesIn  =
+            new AtomicLong();
+        private final AtomicLong                     bytesOut =
+            new AtomicLong();
+
+        Compressor (int threshold, int level)
+        {
+            this.threshold = threshold;
+            this.level     = level;
+        }
+
+        /**
+         * Compress an encoded value, if it's large enough and compression
+         * makes it smaller. A compressed record consists of the length of
+         * the uncompressed value (an int), followed by the deflated value,
+         * so a value no longer than that int is never compressed.
+         *
+         * @param bytes  the encoded value
+         *
+         * @return the compressed record, or null to store the value as is
+         */
+        byte[] compress (byte[] bytes)
+        {
+            byte[] result = null;
+
+            if ((bytes.length >= threshold) && (bytes.length > 4))
+            {
+                Deflater deflater = deflaters.poll();
+
+                if (deflater == null)
+                    deflater = new Deflater (level);
+
+                try
+                {
+                    byte[] buf = new byte[bytes.length];
+                    int    size;
+
+                    deflater.setInput (bytes);
+                    deflater.finish();
+                    size = deflater.deflate (buf, 4, buf.length - 4);
+
+                    if (deflater.finished())
+                    {
+                        ByteBuffer.wrap (buf).putInt (0, bytes.length);
+                        result = new byte[size + 4];
+                        System.arraycopy (buf, 0, result, 0, result.length);
+                    }
+                }
+
+                finally
+                {
+                    deflater.reset();
+                    deflaters.offer (deflater);
+                }
+            }
+
+            bytesIn.addAndGet (bytes.length);
+            bytesOut.addAndGet ((result == null) ? bytes.length
+                                                 : result.length);
+            return result;
+        }
+
+        double getRatio()
+        {
+            long out = bytesOut.get();
+            return (out == 0) ? 1.0 : ((double) bytesIn.get() / out);
+        }
+
+        void end()
+        {
+            Deflater deflater;
+
+            while ((deflater = deflaters.poll()) != null)
+                deflater.end();
+        }
+    }
+
+    /**
+     * Comparator for FileHashMapEntry objects. Sorts by natural order,
+     * which is file position.
+     */
+    private class FileHashMapEntryComparator
+        implements Comparator<FileHashMapEntry<K>>
+    {
+        private FileHashMapEntryComparator()
+        {
+            // Nothing to do
+        }
+
+        public int compare (FileHashMapEntry<K> o1, FileHashMapEntry<K> o2)
+        {
+            return o1.compareTo (o2);
+        }
+
+        public boolean equals (Object o)
+        {
+            // This fail to compile with generics:
+            //
+            // return (o instanceof FileHashMapEntryComparator);
+            //
+            // But this works:
+
+            return (this.getClass().isInstance (o));
+        }
+
+        public int hashCode()                                       // NOPMD
+        {
+            return super.hashCode();
+        }
+    }
+
+    /**
+     * Internal iterator that loops through the FileHashMapEntry objects in
+     * sorted order, by file position. Used to implement other iterators.
+     */
+    private class EntryIterator implements Iterator<FileHashMapEntry<K>>
+    {
+        List<FileHashMapEntry<K>>     entries;
+        Iterator<FileHashMapEntry<K>> iterator;
+        FileHashMapEntry<K>           currentEntry = null;
+
+        /**
+         * The expectedSize value that the iterator believes that the backing
+         * Map should have.  If this expectation is violated, the iterator
+         * has detected concurrent modification.
+         */
+        private int expectedSize = 0;
+
+        EntryIterator()
+        {
+            entries      = FileHashMap.this.getSortedEntries();
+            iterator     = entries.iterator();
+            expectedSize = entries.size();
+        }
+
+        public boolean hasNext()
+        {
+            return iterator.hasNext();
+        }
+
+        public FileHashMapEntry<K> next()
+        {
+            if (((flags & CONCURRENT) == 0) &&
+                (expectedSize != FileHashMap.this.indexMap.size()))
+                throw new ConcurrentModificationException();
+
+            if (hasNext())
+                currentEntry = iterator.next();
+
+            else
+            {
+                currentEntry = null;
+                throw new NoSuchElementException();
+            }
+
+            return currentEntry;
+        }
+
+        public void remove()
+        {
+            if ((currentEntry != null) && (expectedSize > 0))
+            {
+                K key = currentEntry.getKey();
+                V value = FileHashMap.this.remove (key);
+                if (value != null)
+                {
+                    if (hasNext())
+                        currentEntry = iterator.next();
+                    else
+                        currentEntry = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Specialized iterator for looping through the value set. The iterator
+     * loops through the FileHashMapEntry items, which have been sorted by
+     * file position; each call to next() causes the iterator to load the
+     * appropriate value. This approach (a) iterates through the value file
+     * sequentially, and (b) demand-loads the values, so they're not all
+     * loaded into memory at the same time.
+     */
+    private class ValueIterator implements Iterator<V>
+    {
+        EntryIterator it;
+
+        private ValueIterator()
+        {
+            it = new EntryIterator();
+        }
+
+        public boolean hasNext()
+        {
+            return it.hasNext();
+        }
+
+        public V next()
+        {
+            return FileHashMap.this.readCurrentValueNoError (it.next());
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Shallow set that contains pointers to the on-disk values. Values
+     * are loaded only when referenced.
+     */
+    private class ValueSet extends AbstractSet<V>
+    {
+        ValuesFile valuesDB = FileHashMap.this.valuesDB;
+
+        private ValueSet()
+        {
+            // Nothing to do
+        }
+
+        public void clear()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean contains (Object o)
+        {
+            boolean containsIt = false;
+
+            // Loop through values sequentially, to optimize file access.
+
+            seekTo (0);
+            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
+            {
+                V obj = it.next();
+
+                if (obj.equals (o))
+                {
+                    containsIt = true;
+                    break;
+                }
+            }
+
+            return containsIt;
+        }
+
+        public boolean containsAll (Collection c)
+        {
+            boolean containsThem = true;
+
+            // Loop through values sequentially, to optimize file access.
+
+            seekTo (0);
+            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
+            {
+                V obj = it.next();
+
+                if (! c.contains (obj))
+                {
+                    containsThem = false;
+                    break;
+                }
+            }
+
+            return containsThem;
+        }
+
+        public boolean equals (Object o)
+        {
+            boolean  eq    = false;
+            Set      other = (Set) o;
+
+            if (other.size() == size())
+                eq = this.containsAll (other);
+
+            return eq;
+        }
+
+        public int hashCode()
+        {
+            int result = 0;
+
+            // Loop through values sequentially, to optimize file access.
+
+            seekTo (0);
+            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
+            {
+                Object obj = it.next();
+
+                result += obj.hashCode();
+            }
+
+            return result;
+        }
+
+        public boolean isEmpty()
+        {
+            return indexMap.isEmpty();
+        }
+
+        public Iterator<V> iterator()
+        {
+            return new ValueIterator();
+        }
+
+        public Spliterator<V> spliterator()
+        {
+            return new EntrySpliterator<V> (EntrySpliterator.VALUES);
+        }
+
+        public boolean remove (Object o)
+        {
+            return (FileHashMap.this.remove (o) != null);
+        }
+
+        public int size()
+        {
+            return currentSize();
+        }
+
+        private void seekTo (long pos)
+        {
+            try
+            {
+                valuesDB.getFile().seek (pos);
+            }
+
+            catch (IOException ex)
+            {
+            }
+        }
+    }
+
+    /**
+     * Necessary to support the Map.entrySet() routine. Each object
+     * returned by FileHashMap.entrySet().iterator() is of this type. Each
+     * EntrySetEntry object provides an alternate, user-acceptable view of
+     * a FileHashMapEntry.
+     */
+    private class EntrySetEntry implements Map.Entry<K,V>
+    {
+        private FileHashMapEntry<K> entry;
+
+        EntrySetEntry (FileHashMapEntry<K> entry)
+        {
+            this.entry = entry;
+        }
+
+        public boolean equals(Object o)
+        {
+            Map.Entry<K,V> mo        = (Map.Entry<K,V>) o;
+            Object         thisValue = getValue();
+            Object         thisKey   = getKey();
+
+            // Adapted directly from Map.Entry javadoc.
+
+            return (mo.getKey() == null ?
+                    thisKey == null : mo.getKey().equals (thisKey))
+                                     &&
+                   (mo.getValue() == null ?
+                    thisValue == null : mo.getValue().equals (thisValue));
+        }
+
+        public K getKey()
+        {
+            return entry.getKey();
+        }
+
+        public V getValue()
+        {
+            return FileHashMap.this.readCurrentValueNoError (entry);
+        }
+
+        public int hashCode()
+        {
+            // Adapted directly from the Map.Entry javadoc
+
+            V value = getValue();
+            K key   = getKey();
+
+            return (key == null ? 0 : key.hashCode()) ^
+                   (value == null ? 0 : value.hashCode());
+        }
+
+        public V setValue (V value)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The actual entry set returned by FileHashMap.entrySet(). The values
+     * are demand-loaded. The iterator() and toArray() methods ensure that
+     * the keys are returned in an order that causes sequential access to the
+     * values file.
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<K,V>>
+    {
+        private EntrySet()
+        {
+            // Nothing to do
+        }
+
+        public void clear()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean contains (Map.Entry<K,V> o)
+        {
+            return FileHashMap.this.containsValue(o.getValue());
+        }
+
+        public Iterator<Map.Entry<K,V>> iterator()
+        {
+            return new Iterator<Map.Entry<K,V>>()
+            {
+                EntryIterator it = new EntryIterator();
+
+                public Map.Entry<K,V> next()
+                {
+                    return (Map.Entry<K,V>) new EntrySetEntry (it.next());
+                }
+
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                public void remove()
+                {
+                    it.remove();
+                }
+            };
+        }
+
+        public Spliterator<Map.Entry<K,V>> spliterator()
+        {
+            return new EntrySpliterator<Map.Entry<K,V>>
+                (EntrySpliterator.ENTRIES);
+        }
+
+        public boolean equals(Object obj)
+        {
+            boolean eq = (this == obj);
+
+            if (! eq)
+                eq = super.equals(obj);
+
+            return eq;
+        }
+
+        public int hashCode()                                // NOPMD
+        {
+            return super.hashCode();
+        }
+
+        public boolean remove (FileHashMapEntry<K> o)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean removeAll (Collection c)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean retainAll (Collection c)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public int size()
+        {
+            return FileHashMap.this.size();
+        }
+    }
+
+    /**
+     * Specialized iterator for looping through the set returned by
+     * FileHashMap.keySet(). The iterator returns the keys so that their
+     * corresponding FileHashMapEntry objects are sorted by file position
+     * value. This approach optimizes the following type of use:
+     *
+     *     Iterator it = fileHashMap.keySet().iterator();
+     *     while (it.hasNext())
+     *     {
+     *         Object value = fileHashMap.get (it.next());
+     *         ...
+     *     }
+     *
+     * That is, each key corresponds to a FileHashMapEntry, and since the
+     * keys are ordered by FileHashMapEntry file pointer, the above loop
+     * will traverse the data file sequentially.
+     */
+    private class KeyIterator implements Iterator<K>
+    {
+        private EntryIterator it;
+
+        KeyIterator()
+        {
+            it = new EntryIterator();
+        }
+
+        public boolean hasNext()
+        {
+            return it.hasNext();
+        }
+
+        public K next()
+        {
+            return it.next().getKey();
+        }
+
+        public void remove()
+        {
+            it.remove();
+        }
+    }
+
+    /**
+     * Implements a key set -- the set of keys the caller used to store
+     * values in the FileHashMap. The iterator() and toArray() methods ensure
+     * that the keys are returned in a manner that optimizes looping through
+     * the associated values (as with the various iterators, above).
+     */
+    private class KeySet extends AbstractSet<K>
+    {
+        ArrayList<K> keys = null;
+
+        private KeySet()
+        {
+            // Nothing to do
+        }
+
+        public void clear()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean contains (Object o)
+        {
+            return FileHashMap.this.indexMap.containsKey (o);
+        }
+
+        public boolean containsAll (Collection c)
+        {
+            boolean  contains = true;
+            Iterator it       = c.iterator();
+
+            while (contains && it.hasNext())
+                contains = FileHashMap.this.indexMap.containsKey (it.next());
+
+            return contains;
+        }
+
+        public boolean equals (Object o)
+        {
+            Set<K>   so        = (Set<K>) o;
+            boolean  eq        = false;
+            Set<K>   myKeys    = FileHashMap.this.indexMap.keySet();
+
+            if (so.size() == myKeys.size())
+            {
+                eq = true;
+                Iterator<K> it = myKeys.iterator();
+                while (eq)
+                {
+                    K myKey = it.next();
+
+                    if (! so.contains (myKey))
+                        eq = false;
+                }
+            }
+
+            return eq;
+        }
+
+        public int hashCode()
+        {
+            return FileHashMap.this.indexMap.keySet().hashCode();
+        }
+
+        public boolean isEmpty()
+        {
+            return FileHashMap.this.indexMap.isEmpty();
+        }
+
+        public Iterator<K> iterator()
+        {
+            return new KeyIterator();
+        }
+
+        public Spliterator<K> spliterator()
+        {
+            return new EntrySpliterator<K> (EntrySpliterator.KEYS);
+        }
+
+        public boolean remove (Object o)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean removeAll (Collection c)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean retainAll (Collection c)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public int size()
+        {
+            return FileHashMap.this.currentSize();
+        }
+
+        private synchronized void loadKeyArray()
+        {
+            if (keys == null)
+            {
+                List<FileHashMapEntry<K>> entries;
+
+                entries = FileHashMap.this.getSortedEntries();
+                keys = new ArrayList<K>();
+                for (FileHashMapEntry<K> entry : entries)
+                    keys.add (entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Splittable spliterator for the key, value and entry views. It covers
+     * a range of the FileHashMapEntry items, sorted by file position, so
+     * each split covers a contiguous range of the data file; the values in
+     * the range are read in runs, by a ScanIterator. Splitting is done at
+     * the middle of the file range, rather than at the middle entry, so
+     * that the splits have roughly the same amount of data to read. The
+     * entry list is obtained on first use.
+     */
+    private class EntrySpliterator<T> implements Spliterator<T>
+    {
+        static final int KEYS    = 0;
+        static final int VALUES  = 1;
+        static final int ENTRIES = 2;
+
+        private final int view;
+
+        private List<FileHashMapEntry<K>> entries = null;
+        private int                       index;
+        private int                       fence;
+        private int                       expectedSize;
+
+        /**
+         * Values in the range, once traversal has started.
+         */
+        private Iterator<Map.Entry<K,V>> values = null;
+
+        EntrySpliterator (int view)
+        {
+            this.view = view;
+        }
+
+        private EntrySpliterator (int                       view,
+                                  List<FileHashMapEntry<K>> entries,
+                                  int                       index,
+                                  int                       fence,
+                                  int                       expectedSize)
+        {
+            this.view         = view;
+            this.entries      = entries;
+            this.index        = index;
+            this.fence        = fence;
+            this.expectedSize = expectedSize;
+        }
+
+        public boolean tryAdvance (Consumer<? super T> action)
+        {
+            init();
+
+            boolean advanced = false;
+
+            if (view == KEYS)
+            {
+                if (index < fence)
+                {
+                    action.accept (keyAt (index++));
+                    advanced = true;
+                }
+            }
+
+            else
+            {
+                if (values == null)
+                    startValues();
+
+                if (values.hasNext())
+                {
+                    action.accept (element (values.next()));
+                    advanced = true;
+                }
+            }
+
+            checkForComodification();
+            return advanced;
+        }
+
+        public void forEachRemaining (Consumer<? super T> action)
+        {
+            init();
+
+            if (view == KEYS)
+            {
+                while (index < fence)
+                    action.accept (keyAt (index++));
+            }
+
+            else
+            {
+                if (values == null)
+                    startValues();
+
+                while (values.hasNext())
+                    action.accept (element (values.next()));
+            }
+
+            checkForComodification();
+        }
+
+        public Spliterator<T> trySplit()
+        {
+            init();
+
+            if ((values != null) || (fence - index < 2))
+                return null;
+
+            // Split at the entry closest to the middle of the file range.
+
+            long startPos = entries.get (index).getFilePosition();
+            long endPos   = entries.get (fence - 1).getFilePosition();
+            long midPos   = startPos + ((endPos - startPos) / 2);
+            int  lo       = index + 1;
+            int  hi       = fence - 1;
+
+            while (lo < hi)
+            {
+                int mid = (lo + hi) >>> 1;
+
+                if (entries.get (mid).getFilePosition() < midPos)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+
+            Spliterator<T> prefix =
+                new EntrySpliterator<T> (view, entries, index, lo,
+                                         expectedSize);
+            index = lo;
+            return prefix;
+        }
+
+        public long estimateSize()
+        {
+            init();
+            return fence - index;
+        }
+
+        public int characteristics()
+        {
+            int result = Spliterator.ORDERED | Spliterator.NONNULL;
+
+            // Values that can't be read are skipped, so the size is only
+            // exact for the key view.
+
+            switch (view)
+            {
+                case KEYS:
+                    result |= Spliterator.DISTINCT |
+                              Spliterator.SIZED |
+                              Spliterator.SUBSIZED;
+                    break;
+
+                case ENTRIES:
+                    result |= Spliterator.DISTINCT;
+                    break;
+
+                default:
+                    break;
+            }
+
+            return result;
+        }
+
+        private void init()
+        {
+            if (entries == null)
+            {
+                entries      = FileHashMap.this.getSortedEntries();
+                index        = 0;
+                fence        = entries.size();
+                expectedSize = fence;
+            }
+        }
+
+        private void startValues()
+        {
+            values = new ScanIterator (entries.subList (index, fence),
+                                       BATCH_READ_SIZE, BATCH_READ_MAX_GAP,
+                                       false, null, true);
+            index = fence;
+        }
+
+        private T keyAt (int i)
+        {
+            @SuppressWarnings("unchecked")
+            T key = (T) entries.get (i).getKey();
+
+            return key;
+        }
+
+        private T element (Map.Entry<K,V> mapEntry)
+        {
+            @SuppressWarnings("unchecked")
+            T element = (T) ((view == VALUES) ? mapEntry.getValue()
+                                              : mapEntry);
+
+            return element;
+        }
+
+        private void checkForComodification()
+        {
+            if (((flags & CONCURRENT) == 0) &&
+                (expectedSize != FileHashMap.this.indexMap.size()))
+                throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * A run of neighboring values, read from the data file with a single
+     * read.
+     */
+    private static class Run
+    {
+        /**
+         * Indexes of the first entry in the run and the entry following
+         * the run.
+         */
+        int first;
+        int end;
+
+        long       start;
+        int        size;
+        ValuesFile db;
+
+        /**
+         * The bytes, or null if the run is to be read value by value
+         * (because it couldn't be read, or it refers to an older
+         * generation of the data file).
+         */
+        byte[] data;
+    }
+
+    /**
+     * Iterates over the values for a list of entries, sorted by file
+     * position, reading runs of neighboring values with a single read and
+     * decoding the values out of the run. Optionally, the next run is read
+     * by a background thread while the current one is being decoded.
+     * Entries whose values can't be read are skipped. Used by getAll(),
+     * scan() and stream().
+     */
+    private class ScanIterator implements Iterator<Map.Entry<K,V>>
+    {
+        private final List<FileHashMapEntry<K>> entries;
+        private final int                       maxRun;
+        private final int                       maxGap;
+        private final ValueCache<K,V>           cache;
+        private final boolean                   live;
+        private final Executor                  readAhead;
+        private final ArrayDeque<Map.Entry<K,V>> pending =
+            new ArrayDeque<Map.Entry<K,V>>();
+
+        /**
+         * Index of the first entry not yet assigned to a run.
+         */
+        private int next = 0;
+
+        /**
+         * Read buffers. Two are needed for read-ahead: one being decoded,
+         * and one being filled.
+         */
+        private byte[] buf   = null;
+        private byte[] spare = null;
+
+        private FutureTask<Run> prefetched = null;
+
+        /**
+         * @param entries    the entries, sorted by file position
+         * @param maxRun     maximum size of a run
+         * @param maxGap     maximum gap to read through
+         * @param readAhead  whether to read ahead in a background thread
+         * @param cache      value cache to populate, or null
+         * @param live       <tt>true</tt> if the entries came from the
+         *                   map's index, <tt>false</tt> if they came from
+         *                   a snapshot's
+         */
+        ScanIterator (List<FileHashMapEntry<K>> entries,
+                      int                       maxRun,
+                      int                       maxGap,
+                      boolean                   readAhead,
+                      ValueCache<K,V>           cache,
+                      boolean                   live)
+        {
+            this.entries = entries;
+            this.maxRun  = maxRun;
+            this.maxGap  = maxGap;
+            this.cache   = cache;
+            this.live    = live;
+
+            if (readAhead && (entries.size() > 0))
+                this.readAhead = getReadAheadExecutor();
+            else
+                this.readAhead = null;
+        }
+
+        public boolean hasNext()
+        {
+            while (pending.isEmpty() &&
+                   ((prefetched != null) || (next < entries.size())))
+            {
+                Run run;
+
+                if (prefetched != null)
+                {
+                    run = awaitRun (prefetched);
+                    prefetched = null;
+                }
+
+                else
+                {
+                    run = loadRun (nextRun());
+                }
+
+                if ((readAhead != null) && (next < entries.size()))
+                {
+                    final Run ahead = nextRun();
+
+                    prefetched = new FutureTask<Run>
+                        (new Callable<Run>()
+                        {
+                            public Run call()
+                            {
+                                return loadRun (ahead);
+                            }
+                        });
+                    readAhead.execute (prefetched);
+                }
+
+                decodeRun (run);
+            }
+
+            return ! pending.isEmpty();
+        }
+
+        public Map.Entry<K,V> next()
+        {
+            if (! hasNext())
+                throw new NoSuchElementException();
+
+            return pending.poll();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Group the next entries into a run, and assign the run a buffer.
+         */
+        private Run nextRun()
+        {
+            Run                 run   = new Run();
+            FileHashMapEntry<K> first = entries.get (next);
+            ValuesFile          db    = valuesDB;
+
+            run.first = next;
+            run.end   = next + 1;
+            run.db    = db;
+            run.start = first.getFilePosition();
+
+            if (first.getGeneration() != db.getGeneration())
+            {
+                // Obtained before a compaction.
+
+                next = run.end;
+                return run;
+            }
+
+            long runEnd = run.start + first.getObjectSize();
+
+            while (run.end < entries.size())
+            {
+                FileHashMapEntry<K> entry = entries.get (run.end);
+                long pos = entry.getFilePosition();
+                long end = Math.max (runEnd, pos + entry.getObjectSize());
+
+                if ((entry.getGeneration() != db.getGeneration()) ||
+                    (pos - runEnd > maxGap) ||
+                    (end - run.start > maxRun))
+                {
+                    break;
+                }
+
+                runEnd = end;
+                run.end++;
+            }
+
+            next     = run.end;
+            run.size = (int) (runEnd - run.start);
+
+            if (run.size > maxRun)
+                run.data = new byte[run.size];
+
+            else
+            {
+                if (buf == null)
+                    buf = new byte[maxRun];
+
+                run.data = buf;
+
+                // Alternate buffers, so that the next run can be read
+                // while this one is being decoded.
+
+                if (readAhead != null)
+                {
+                    buf   = spare;
+                    spare = run.data;
+                }
+            }
+
+            return run;
+        }
+
+        /**
+         * Read a run. On error, or if any of the run's entries has been
+         * superseded since the scan began, the run's values are left to be
+         * read one at a time.
+         */
+        private Run loadRun (Run run)
+        {
+            int slot = live ? enterRead() : -1;
+
+            try
+            {
+                if ((run.size > 0) && ((slot < 0) || isCurrent (run)))
+                {
+                    try
+                    {
+                        readRun (run.db, run.start, run.data, run.size);
+                    }
+
+                    catch (IOException ex)
+                    {
+                        // Possibly closed by a compaction.
+
+                        run.data = null;
+                    }
+                }
+
+                else
+                {
+                    run.data = null;
+                }
+            }
+
+            finally
+            {
+                exitRead (slot);
+            }
+
+            return run;
+        }
+
+        /**
+         * Determine whether all of a run's entries are still in the index.
+         * Called by a registered reader, so that space that's still in the
+         * index can't be reused until the run has been read.
+         */
+        private boolean isCurrent (Run run)
+        {
+            for (int i = run.first; i < run.end; i++)
+            {
+                FileHashMapEntry<K> entry   = entries.get (i);
+                FileHashMapEntry<K> current = indexMap.get (entry.getKey());
+
+                if ((current == null) ||
+                    (current.getFilePosition() != entry.getFilePosition()) ||
+                    (current.getSizeAndFlags() != entry.getSizeAndFlags()) ||
+                    (current.getGeneration() != entry.getGeneration()))
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private Run awaitRun (FutureTask<Run> task)
+        {
+            boolean interrupted = false;
+
+            try
+            {
+                for (;;)
+                {
+                    try
+                    {
+                        return task.get();
+                    }
+
+                    catch (InterruptedException ex)
+                    {
+                        interrupted = true;
+                    }
+                }
+            }
+
+            catch (ExecutionException ex)
+            {
+                throw new IllegalStateException (ex.getCause());
+            }
+
+            finally
+            {
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        private void decodeRun (Run run)
+        {
+            for (int i = run.first; i < run.end; i++)
+            {
+                FileHashMapEntry<K> entry = entries.get (i);
+                V                   value = null;
+
+                if (run.data == null)
+                {
+                    value = live ? readCurrentValueNoError (entry)
+                                 : readValueNoError (entry);
+                }
+
+                else
+                {
+                    try
+                    {
+                        value = decodeValue
+                                  (entry,
+                                   run.data,
+                                   (int) (entry.getFilePosition() - run.start));
+                    }
+
+                    catch (IOException ex)
+                    {
+                    }
+
+                    catch (ClassNotFoundException ex)
+                    {
+                    }
+                }
+
+                if (value != null)
+                {
+                    pending.add (new SimpleImmutableEntry<K,V>
+                                     (entry.getKey(), value));
+                    if (cache != null)
+                        cache.put (entry, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the daemon threads that read ahead for scans and, where
+     * virtual threads aren't available, run asynchronous operations.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String name;
+
+        DaemonThreadFactory (String name)
+        {
+            this.name = name;
+        }
+
+        public Thread newThread (Runnable r)
+        {
+            Thread thread = new Thread (r, name);
+
+            thread.setDaemon (true);
+            return thread;
+        }
+    }
+
+    /**
+     * A queued asynchronous operation.
+     */
+    private class AsyncRequest
+    {
+        final int                  type;
+        final K                    key;
+        final V                    value;
+        final CompletableFuture<V> future = new CompletableFuture<V>();
+
+        AsyncRequest (int type, K key, V value)
+        {
+            this.type  = type;
+            this.key   = key;
+            this.value = value;
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                           Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The index, cached in memory. Each entry in the list is a
+     * FileHashMapEntry object. This index is stored on disk, in the index
+     * file. It's a ConcurrentHashMap if the CONCURRENT flag was passed to
+     * the constructor, and a HashMap otherwise.
+     */
+    private Map<K, FileHashMapEntry<K>> indexMap = null;
+
+    /**
+     * The file prefix with which this object was created.
+     */
+    private String filePrefix = null;
+
+    /**
+     * The index file.
+     */
+    private File indexFilePath = null;
+
+    /**
+     * The values file.
+     */
+    private File valuesDBPath = null;
+
+    /**
+     * The journal file.
+     */
+    private File journalFilePath = null;
+
+    /**
+     * The open journal, if the map is journaled.
+     */
+    private Journal journal = null;
+
+    /**
+     * The open values database. Replaced when the map is compacted.
+     */
+    private volatile ValuesFile valuesDB = null;
+
+    /**
+     * Total size of the values referenced by the index.
+     */
+    private final AtomicLong liveBytes = new AtomicLong (0);
+
+    /**
+     * In a CONCURRENT map, updates hold the read lock, so that a compaction
+     * can hold them off, while it swaps data files, by taking the write
+     * lock. Null in other maps.
+     */
+    private ReadWriteLock updateLock = null;
+
+    /**
+     * Held for the duration of a compaction.
+     */
+    private final Object compactionLock = new Object();
+
+    /**
+     * Runs background compactions, if they've been requested.
+     */
+    private Timer compactionTimer = null;
+
+    /**
+     * The number of open snapshots, and the entries whose space will be
+     * released when the last one is closed. Guarded by the map's monitor.
+     */
+    private int openSnapshots = 0;
+    private List<FileHashMapEntry<K>> deferredReleases =
+        new ArrayList<FileHashMapEntry<K>>();
+
+    /**
+     * Reader epochs, in a CONCURRENT map with RECLAIM_FILE_GAPS. Lock-free
+     * readers register in the current epoch (see enterRead()), and space
+     * released by updates is queued in the epoch in which it was released.
+     * The epoch only advances when every reader registered in the previous
+     * epoch has finished; the space queued in the previous epoch can then
+     * no longer be read, and is handed to the allocator. epochReaders is
+     * null in other maps. The queues are guarded by the map's monitor.
+     */
+    private AtomicInteger[] epochReaders = null;
+    private volatile long readEpoch = 0;
+    private volatile boolean epochReleasesPending = false;
+    private List<FileHashMapEntry<K>> currentEpochReleases =
+        new ArrayList<FileHashMapEntry<K>>();
+    private List<FileHashMapEntry<K>> previousEpochReleases =
+        new ArrayList<FileHashMapEntry<K>>();
+
+    /**
+     * The durability mode, and the timer that forces the files in
+     * PERIODIC mode.
+     */
+    private volatile Durability durability = Durability.NONE;
+    private Timer syncTimer = null;
+
+    /**
+     * Cache of recently retrieved values, if enabled.
+     */
+    private volatile ValueCache<K,V> valueCache = null;
+
+    /**
+     * Value compressor, if compression is enabled.
+     */
+    private volatile Compressor compressor = null;
+
+    /**
+     * Inflaters available for reuse.
+     */
+    private final ConcurrentLinkedQueue<Inflater> inflaters =
+        new ConcurrentLinkedQueue<Inflater>();
+
+    /**
+     * Queued asynchronous operations, the executor that runs them (null
+     * for the default), and whether a task is draining the queue.
+     */
+    private final ConcurrentLinkedQueue<AsyncRequest> asyncQueue =
+        new ConcurrentLinkedQueue<AsyncRequest>();
+    private volatile Executor asyncExecutor = null;
+    private final AtomicBoolean asyncDraining = new AtomicBoolean (false);
+
+    /**
+     * The executor that reads ahead for scans, created when the first
+     * read-ahead scan starts, and shut down when the map is closed.
+     */
+    private ThreadPoolExecutor readAheadExecutor = null;
+
+    /**
+     * The flags specified to the constructor.
+     */
+    private int flags = 0;
+
+    /**
+     * Whether or not the index has been modified since the file was
+     * opened.
+     */
+    private volatile boolean modified = false;
+
+    /**
+     * The logical length of the data file, as recorded in the index when
+     * it was loaded (0 if the index didn't record it).
+     */
+    private long savedDataLength = 0;
+
+    /**
+     * Whether or not the object is still valid. See close().
+     */
+    private boolean valid = true;
+
+    /**
+     * The value returned by the entrySet() method. It's created the first
+     * time entrySet() is called.
+     */
+    private EntrySet entrySetResult = null;
+
+    /**
+     * Converts values to and from their on-disk form.
+     */
+    private ValueCodec<V> valueCodec = null;
+
+    /**
+     * Converts keys to and from their on-disk (index file) form.
+     */
+    private ValueCodec<K> keyCodec = null;
+
+    /**
+     * The gaps in the data file, indexed by position and by size. This
+     * reference will be non-null only if the RECLAIM_FILE_GAPS flag was
+     * passed to the constructor.
+     */
+    private FileGapAllocator fileGaps = null;
+
+    /*----------------------------------------------------------------------*\
+                            Private Class Data
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * For log messages
+     */
+    private static final Logger log = new Logger (FileHashMap.class);
+
+    /**
+     * The default executor for asynchronous operations, created when it's
+     * first needed.
+     */
+    private static Executor defaultAsyncExecutor = null;
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * <p>Create a new transient <tt>FileHashMap</tt> object. The transient
+     * disk files will be in the normal temporary directory and will have
+     * the prefix "FileHashMap". The names of the associated disk files are
+     * guaranteed to be unique, and will go away when the object is
+     * finalized or when the Java VM goes away. Call this constructor is
+     * identical to calling {@link #FileHashMap(String)} with a null
+     * <tt>filePrefix</tt> parameter.</p>
+     *
+     * <p>Note that this constructor implicitly sets the {@link #TRANSIENT}
+     * flag.</p>
+     *
+     * @throws IOException  Unable to create temp file
+     *
+     * @see #FileHashMap(String,int)
+     * @see #FileHashMap(String)
+     */
+    public FileHashMap()
+        throws IOException
+    {
+        this (null);
+    }
+
+    /**
+     * <p>Create a new transient <tt>FileHashMap</tt> object. The transient
+     * disk files will be in the normal temporary directory and will have
+     * the specified temporary file prefix. If no temporary file prefix is
+     * specified (i.e., the <tt>tempFilePrefix</tt> parameter is null), then
+     * "fhm" will be used. The names of the associated disk files are
+     * guaranteed to be unique, and they will go away when the object is
+     * finalized or when the Java VM goes away.</p>
+     *
+     * <p>Note that this constructor implicitly sets the {@link #TRANSIENT}
+     * flag.</p>
+     *
+     * @param tempFilePrefix the prefix to use with the temporary file, or
+     *                       null for default prefix "fhm"
+     *
+     * @throws IOException  Unable to create temp file
+     *
+     * @see #FileHashMap(String,int)
+     * @see #FileHashMap()
+     */
+    public FileHashMap (String tempFilePrefix)
+        throws IOException
+    {
+        this.flags = TRANSIENT;
+        this.filePrefix = tempFilePrefix;
+        this.valueCodec = ValueCodecs.serialization();
+        this.keyCodec   = ValueCodecs.serialization();
+
+        if (filePrefix == null)
+            filePrefix = "fmh";
+
+        this.valuesDBPath = File.createTempFile (filePrefix, DATA_FILE_SUFFIX);
+        this.valuesDBPath.deleteOnExit();
+
+        createNewMap (this.valuesDBPath);
+    }
+
+    /**
+     * <p>Create a new <tt>FileHashMap</tt> object that will read its data
+     * from and/or store its data in files derived from the specified
+     * prefix. The prefix is a file prefix onto which data and index
+     * suffixes will be appended.</p>
+     *
+     * <p><u>Values for the <tt>flag</tt> parameter</u></p>
+     *
+     * <p>The <tt>flags</tt> parameter consists of a set of logically OR'd
+     * constants.
+     *
+     * <p>If <tt>(flags & NO_CREATE)</tt> is zero, the constructor will
+     * attempt to create the index files if they don't exist. Otherwise, it
+     * expects to find a saved hash map, and it will throw an exception if
+     * the files are not present.</p>
+     *
+     * <p>If <tt>(flags & TRANSIENT)</tt> is non-zero, the constructor will
+     * attempt to create a transient map. A transient map is not saved; its
+     * disk files are removed when the map is finalized or manually closed.
+     * You cannot create a transient map using a file prefix that specifies
+     * an existing, saved map. Specifying the <tt>TRANSIENT</tt> flag
+     * causes any <tt>NO_CREATE</tt> flag to be ignored.</p>
+     *
+     * <p>For example, the following statement creates a transient
+     * <tt>FileHashMap</tt>:</p>
+     *
+     * <blockquote><pre>
+     * Map map = new FileHashMap ("/my/temp/dir", FileHashMap.TRANSIENT);
+     * </pre></blockquote>
+     *
+     * <p>whereas this statements opens a persistent <tt>FileHashMap</tt>,
+     * creating it if it doesn't already exist:</p>
+     *
+     * <blockquote><pre>
+     * Map map = new FileHashMap ("/my/map/dir", FileHashMap.CREATE);
+     * </pre></blockquote>
+     *
+     * @param pathPrefix   The pathname prefix to the files to be used
+     * @param flags        Flags that control the disposition of the files.
+     *                     A value of 0 means no flags are set. See above
+     *                     for details.
+     *
+     * @throws FileNotFoundException        The specified hash files do not
+     *                                      exist, and the {@link #NO_CREATE}
+     *                                      flag was specified.
+     * @throws ClassNotFoundException       Failed to deserialize an object
+     * @throws VersionMismatchException     Bad or unsupported version stamp
+     *                                      in <tt>FileHashMap</tt> index file
+     * @throws ObjectExistsException        One or both of the files already
+     *                                      exist, but the {@link #TRANSIENT}
+     *                                      flag was set and the
+     *                                      {@link #FORCE_OVERWRITE} flag was
+     *                                      <i>not</i> set.
+     * @throws IOException                  Other errors
+     *
+     * @see #NO_CREATE
+     * @see #TRANSIENT
+     *
+     * @see #FileHashMap()
+     * @see #FileHashMap(String)
+     * @see #FileHashMap(String,int,ValueCodec)
+     */
+    public FileHashMap (String pathPrefix, int flags)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               IOException
+    {
+        this (pathPrefix, flags, ValueCodecs.<V>serialization());
+    }
+
+    /**
+     * <p>Create a new <tt>FileHashMap</tt> object that will read its data
+     * from and/or store its data in files derived from the specified
+     * prefix, and that will use the specified {@link ValueCodec} to encode
+     * and decode its values. The prefix and flags are the same as for the
+     * {@link #FileHashMap(String,int)} constructor. A persistent map must
+     * be reopened with the same codec that was used to create it.</p>
+     *
+     * @param pathPrefix   The pathname prefix to the files to be used
+     * @param flags        Flags that control the disposition of the files.
+     *                     A value of 0 means no flags are set.
+     * @param valueCodec   The codec to use for the values. See
+     *                     {@link ValueCodecs} for built-in codecs.
+     *
+     * @throws FileNotFoundException        The specified hash files do not
+     *                                      exist, and the {@link #NO_CREATE}
+     *                                      flag was specified.
+     * @throws ClassNotFoundException       Failed to deserialize an object
+     * @throws VersionMismatchException     Bad or unsupported version stamp
+     *                                      in <tt>FileHashMap</tt> index file
+     * @throws ObjectExistsException        One or both of the files already
+     *                                      exist, but the {@link #TRANSIENT}
+     *                                      flag was set and the
+     *                                      {@link #FORCE_OVERWRITE} flag was
+     *                                      <i>not</i> set.
+     * @throws IOException                  Other errors
+     *
+     * @see #FileHashMap(String,int)
+     * @see #FileHashMap(String,int,ValueCodec,ValueCodec)
+     */
+    public FileHashMap (String pathPrefix, int flags, ValueCodec<V> valueCodec)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               IOException
+    {
+        this (pathPrefix, flags, ValueCodecs.<K>serialization(), valueCodec);
+    }
+
+    /**
+     * <p>Create a new <tt>FileHashMap</tt> object that will read its data
+     * from and/or store its data in files derived from the specified
+     * prefix, and that will use the specified {@link ValueCodec} objects
+     * to encode and decode its keys (in the index file) and its values (in
+     * the data file). The prefix and flags are the same as for the
+     * {@link #FileHashMap(String,int)} constructor. A persistent map must
+     * be reopened with the same codecs that were used to create it.</p>
+     *
+     * @param pathPrefix   The pathname prefix to the files to be used
+     * @param flags        Flags that control the disposition of the files.
+     *                     A value of 0 means no flags are set.
+     * @param keyCodec     The codec to use for the keys. See
+     *                     {@link ValueCodecs} for built-in codecs.
+     * @param valueCodec   The codec to use for the values.
+     *
+     * @throws FileNotFoundException        The specified hash files do not
+     *                                      exist, and the {@link #NO_CREATE}
+     *                                      flag was specified.
+     * @throws ClassNotFoundException       Failed to deserialize an object
+     * @throws VersionMismatchException     Bad or unsupported version stamp
+     *                                      in <tt>FileHashMap</tt> index file
+     * @throws ObjectExistsException        One or both of the files already
+     *                                      exist, but the {@link #TRANSIENT}
+     *                                      flag was set and the
+     *                                      {@link #FORCE_OVERWRITE} flag was
+     *                                      <i>not</i> set.
+     * @throws IOException                  Other errors
+     *
+     * @see #FileHashMap(String,int,ValueCodec)
+     */
+    public FileHashMap (String        pathPrefix,
+                        int           flags,
+                        ValueCodec<K> keyCodec,
+                        ValueCodec<V> valueCodec)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               IOException
+    {
+        assert ( ((~ALL_FLAGS_MASK) & flags) == 0 );
+
+        int filesFound = 0;
+
+        this.filePrefix = pathPrefix;
+        this.flags      = flags;
+        this.keyCodec   = keyCodec;
+        this.valueCodec = valueCodec;
+
+        if ((flags & CONCURRENT) != 0)
+        {
+            updateLock = new ReentrantReadWriteLock();
+            if ((flags & RECLAIM_FILE_GAPS) != 0)
+            {
+                epochReaders = new AtomicInteger[]
+                {
+                    new AtomicInteger(), new AtomicInteger()
+                };
+            }
+        }
+
+        valuesDBPath    = new File (pathPrefix + DATA_FILE_SUFFIX);
+        indexFilePath   = new File (pathPrefix + INDEX_FILE_SUFFIX);
+        journalFilePath = new File (pathPrefix + JOURNAL_FILE_SUFFIX);
+
+        recoverCompaction();
+
+        if ((flags & TRANSIENT) != 0)
+        {
+            flags &= (~NO_CREATE);
+            this.flags &= (~JOURNALED);
+        }
+
+        if (valuesDBPath.exists())
+            filesFound++;
+        if (indexFilePath.exists())
+            filesFound++;
+
+        if ( (filesFound > 0) && ((flags & TRANSIENT) != 0) )
+        {
+            if ((flags & FORCE_OVERWRITE) == 0)
+            {
+                throw new ObjectExistsException
+                    (Package.BUNDLE_NAME, "FileHashMap.diskFilesExist",
+                     "One or both of the hash table files (\"{0}\" " +
+                     "and/or \"{1}\") already exists, but the " +
+                     "FileHashMap.FORCE_OVERWRITE constructor flag " +
+                     "was not set.",
+                     new Object[]
+                     {
+                         valuesDBPath.getName(),
+                         indexFilePath.getName()
+                     });
+            }
+
+            // FORCE_OVERWRITE is set. Wipe out the files, and reset the
+            // existence count.
+
+            valuesDBPath.delete();
+            indexFilePath.delete();
+            journalFilePath.delete();
+            filesFound = 0;
+        }
+
+        switch (filesFound)
+        {
+            case 0:
+                if ((flags & NO_CREATE) != 0)
+                {
+                    // Can't localize this one. It's not one of our exceptions.
+
+                    throw new FileNotFoundException
+                                  ("On-disk hash table \"" +
+                                   pathPrefix +
+                                   "\" does not exist, and the " +
+                                   "FileHashMap.NO_CREATE flag was set.");
+                }
+
+                createNewMap (this.valuesDBPath);
+
+                if ((this.flags & JOURNALED) != 0)
+                {
+                    // Any journal lying around belongs to some other map.
+                    // Save the (empty) index right away, so the journal
+                    // always has an index to be replayed against.
+
+                    journalFilePath.delete();
+                    saveIndex();
+                    openJournal();
+                }
+                break;
+
+            case 1:
+                throw new ObjectExistsException
+                              (Package.BUNDLE_NAME,
+                               "FileHashMap.halfMissing",
+                               "One of the hash table files exists (\"{0}\" " +
+                               "or \"{1}\") exists, but the other one does " +
+                               "not.",
+                               new Object[]
+                               {
+                                   valuesDBPath.getName(),
+                                   indexFilePath.getName()
+                               });
+
+            case 2:
+                valuesDB = new ValuesFile (valuesDBPath,
+                                           (flags & MEMORY_MAPPED) != 0,
+                                           (flags & CONCURRENT) != 0);
+                loadIndex();
+                openJournal();
+                break;
+
+            default:
+                assert (false);
+        }
+
+        if ((flags & RECLAIM_FILE_GAPS) != 0)
+            findFileGaps();
+
+        countLiveBytes();
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Finalizer
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Finalizer
+     *
+     * @throws throwable on error
+     */
+    protected void finalize()
+        throws Throwable
+    {
+        try
+        {
+            close();
+        }
+
+        catch (IOException ex)
+        {
+            log.error("Error during finalize", ex);
+        }
+
+        super.finalize();
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * <p>Removes all mappings from this map. The data file is cleared by
+     * closing it, deleting it, and reopening it. If an I/O error occurs at
+     * any point, this object will be closed and marked invalid.</p>
+     */
+    public void clear()
+    {
+        lockUpdates();
+
+        try
+        {
+            synchronized (this)
+            {
+                clearMap();
+            }
+        }
+
+        finally
+        {
+            unlockUpdates();
+        }
+    }
+
+    /**
+     * Implements clear(). The caller holds the map's monitor.
+     */
+    private void clearMap()
+    {
+        checkValidity();
+
+        try
+        {
+            if (journal == null)
+                indexMap.clear();
+
+            else
+            {
+                long seq;
+
+                synchronized (journal)
+                {
+                    indexMap.clear();
+                    seq = journal.log (JOURNAL_CLEAR, 0, 0, null);
+                }
+
+                journal.commit (seq, valuesDB);
+            }
+
+            // Implement the clear operation by truncating the data file,
+            // unless a snapshot is still reading it.
+
+            if (openSnapshots == 0)
+                valuesDB.truncate (0);
+            liveBytes.set (0);
+
+            ValueCache<K,V> cache = valueCache;
+            if (cache != null)
+                cache.clear();
+            if (fileGaps != null)
+                fileGaps.clear();
+            currentEpochReleases.clear();
+            previousEpochReleases.clear();
+            epochReleasesPending = false;
+            modified = true;
+        }
+
+        catch (IOException ex)
+        {
+            log.error ("Failed to clear FileHashMap \"" + filePrefix + "\"",
+                       ex);
+            valid = false;
+        }
+    }
+
+    /**
+     * <p>Close this map. If the map is not marked as transient, this method
+     * saves the index to disk. Otherwise, it removes both the index file
+     * and data file.</p>
+     *
+     * @throws NotSerializableException Can't save index (bug)
+     * @throws IOException              Error writing index
+     *
+     * @see #save
+     */
+    public void close()
+        throws NotSerializableException,
+               IOException
+    {
+        stopBackgroundCompaction();
+        stopPeriodicSync();
+        stopReadAhead();
+
+        // Wait for any compaction in progress.
+
+        synchronized (compactionLock)
+        {
+            closeMap();
+        }
+
+        disableCompression();
+
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null)
+            inflater.end();
+    }
+
+    /**
+     * <p>Copy the live values into a new data file, in file position order,
+     * and replace the old data file with the new one, reclaiming the space
+     * occupied by removed and replaced values. See the section on
+     * compaction, in the class documentation, for details.</p>
+     *
+     * <p>Readers can use the map during compaction. In a
+     * {@link #CONCURRENT} map, so can writers, except while the files are
+     * being swapped. If the map is persistent, its index is saved.</p>
+     *
+     * @throws IOException  I/O error. If the error occurs while the files
+     *                      are being swapped, the map is marked invalid;
+     *                      the files on disk are left in a consistent
+     *                      state.
+     * @throws IllegalStateException  the map is closed, or it has open
+     *                                snapshots
+     *
+     * @see #getFragmentation
+     * @see #startBackgroundCompaction
+     * @see #snapshot
+     */
+    public void compact()
+        throws IOException
+    {
+        synchronized (compactionLock)
+        {
+            checkValidity();
+
+            if (openSnapshots > 0)
+            {
+                throw new IllegalStateException ("Can't compact a map with " +
+                                                 "open snapshots");
+            }
+
+            compactDataFile();
+        }
+    }
+
+    /**
+     * <p>Take a read-only snapshot of the map. See the section on
+     * snapshots, in the class documentation. The snapshot should be
+     * closed when it's no longer needed.</p>
+     *
+     * @return the snapshot
+     *
+     * @see Snapshot
+     */
+    public Snapshot<K,V> snapshot()
+    {
+        Map<K, FileHashMapEntry<K>> index;
+
+        // A compaction in progress is allowed to finish first.
+
+        synchronized (compactionLock)
+        {
+            checkValidity();
+
+            if (updateLock != null)
+                updateLock.writeLock().lock();
+
+            try
+            {
+                synchronized (this)
+                {
+                    index = newIndexMap (currentSize());
+                    index.putAll (indexMap);
+                    openSnapshots++;
+                }
+            }
+
+            finally
+            {
+                if (updateLock != null)
+                    updateLock.writeLock().unlock();
+            }
+        }
+
+        return new Snapshot<K,V> (this, index);
+    }
+
+    /**
+     * <p>Get the total number of bytes occupied, in the data file, by the
+     * values in the map.</p>
+     *
+     * @return the number of live bytes
+     *
+     * @see #getDeadBytes
+     * @see #getFragmentation
+     */
+    public long getLiveBytes()
+    {
+        checkValidity();
+        return liveBytes.get();
+    }
+
+    /**
+     * <p>Get the number of bytes in the data file that are not occupied by
+     * values in the map: space left behind by removed and replaced
+     * values, whether or not it's available for reuse via
+     * {@link #RECLAIM_FILE_GAPS}.</p>
+     *
+     * @return the number of dead bytes
+     *
+     * @throws IOException  can't determine the size of the data file
+     *
+     * @see #getLiveBytes
+     * @see #getFragmentation
+     */
+    public long getDeadBytes()
+        throws IOException
+    {
+        checkValidity();
+        return Math.max (0, valuesDB.length() - liveBytes.get());
+    }
+
+    /**
+     * <p>Get the fraction of the data file that's wasted: the number of dead
+     * bytes divided by the size of the data file.</p>
+     *
+     * @return the fragmentation ratio, from 0.0 to 1.0
+     *
+     * @throws IOException  can't determine the size of the data file
+     *
+     * @see #getDeadBytes
+     * @see #compact
+     */
+    public double getFragmentation()
+        throws IOException
+    {
+        checkValidity();
+
+        long length = valuesDB.length();
+
+        return (length == 0) ? 0.0
+                             : ((double) Math.max (0, length - liveBytes.get())
+                                / length);
+    }
+
+    /**
+     * <p>Keep recently retrieved values in memory. See the section on the
+     * value cache, in the class documentation, for details. If a cache is
+     * already enabled, it's replaced by an empty one.</p>
+     *
+     * @param maxEntries  the maximum number of values to cache
+     * @param maxBytes    the maximum total encoded size of the cached
+     *                    values, or 0 for no limit. A value larger than
+     *                    this is never cached.
+     *
+     * @see #disableValueCache
+     * @see #getValueCacheHits
+     * @see #getValueCacheMisses
+     */
+    public void enableValueCache (int maxEntries, long maxBytes)
+    {
+        checkValidity();
+
+        if (maxEntries <= 0)
+        {
+            throw new IllegalArgumentException ("Bad maximum cache size: " +
+                                                maxEntries);
+        }
+
+        valueCache = new ValueCache<K,V> (maxEntries, Math.max (0, maxBytes));
+    }
+
+    /**
+     * <p>Stop caching values, and discard the cached values.</p>
+     *
+     * @see #enableValueCache
+     */
+    public void disableValueCache()
+    {
+        valueCache = null;
+    }
+
+    /**
+     * <p>Get the number of retrievals that were satisfied by the value
+     * cache since it was enabled.</p>
+     *
+     * @return the number of cache hits, or 0 if the cache isn't enabled
+     *
+     * @see #enableValueCache
+     * @see #getValueCacheMisses
+     */
+    public long getValueCacheHits()
+    {
+        ValueCache<K,V> cache = valueCache;
+        return (cache == null) ? 0 : cache.getHits();
+    }
+
+    /**
+     * <p>Get the number of retrievals that had to read the data file
+     * because the value wasn't in the value cache.</p>
+     *
+     * @return the number of cache misses, or 0 if the cache isn't enabled
+     *
+     * @see #enableValueCache
+     * @see #getValueCacheHits
+     */
+    public long getValueCacheMisses()
+    {
+        ValueCache<K,V> cache = valueCache;
+        return (cache == null) ? 0 : cache.getMisses();
+    }
+
+    /**
+     * <p>Compress values, using the default compression level, before
+     * writing them to the data file. See the section on compression, in the
+     * class documentation, for details.</p>
+     *
+     * @param threshold  the encoded size, in bytes, below which values are
+     *                   stored uncompressed
+     *
+     * @see #enableCompression(int,int)
+     * @see #disableCompression
+     * @see #getCompressionRatio
+     */
+    public void enableCompression (int threshold)
+    {
+        enableCompression (threshold, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * <p>Compress values before writing them to the data file. If
+     * compression is already enabled, the new settings replace the old ones,
+     * and the compression ratio is reset.</p>
+     *
+     * @param threshold  the encoded size, in bytes, below which values are
+     *                   stored uncompressed
+     * @param level      the <tt>java.util.zip.Deflater</tt> compression
+     *                   level, from 0 to 9, or -1 for the default
+     *
+     * @see #disableCompression
+     * @see #getCompressionRatio
+     */
+    public void enableCompression (int threshold, int level)
+    {
+        checkValidity();
+
+        if ((level < Deflater.DEFAULT_COMPRESSION) ||
+            (level > Deflater.BEST_COMPRESSION))
+        {
+            throw new IllegalArgumentException ("Bad compression level: " +
+                                                level);
+        }
+
+        Compressor old = compressor;
+        compressor = new Compressor (Math.max (0, threshold), level);
+        if (old != null)
+            old.end();
+    }
+
+    /**
+     * <p>Stop compressing values. Values that were stored compressed can
+     * still be retrieved.</p>
+     *
+     * @see #enableCompression(int)
+     */
+    public void disableCompression()
+    {
+        Compressor old = compressor;
+
+        compressor = null;
+        if (old != null)
+            old.end();
+    }
+
+    /**
+     * <p>Get the compression ratio for the values written since compression
+     * was enabled: their total encoded size divided by the total size of
+     * what was actually stored. Values below the threshold, and values that
+     * didn't shrink, count at their original size.</p>
+     *
+     * @return the compression ratio, or 1.0 if compression isn't enabled
+     *         or no values have been written
+     *
+     * @see #enableCompression(int)
+     */
+    public double getCompressionRatio()
+    {
+        Compressor c = compressor;
+        return (c == null) ? 1.0 : c.getRatio();
+    }
+
+    /**
+     * <p>Set the map's durability mode. See the section on durability, in
+     * the class documentation.</p>
+     *
+     * @param durability  the mode
+     * @param interval    for {@link Durability#PERIODIC}, the time between
+     *                    forces (must be positive); for
+     *                    {@link Durability#SYNC}, how long a committing
+     *                    thread waits for other writers to join its batch
+     *                    (0 not to wait); ignored for
+     *                    {@link Durability#NONE}
+     * @param unit        the unit of <tt>interval</tt>
+     *
+     * @throws IllegalStateException    <tt>PERIODIC</tt> or <tt>SYNC</tt>
+     *                                  was requested for a map that isn't
+     *                                  journaled
+     * @throws IllegalArgumentException bad interval
+     *
+     * @see #getDurability
+     * @see #sync
+     */
+    public synchronized void setDurability (Durability durability,
+                                            long       interval,
+                                            TimeUnit   unit)
+    {
+        checkValidity();
+
+        if ((durability != Durability.NONE) && (journal == null))
+        {
+            throw new IllegalStateException (durability + " durability " +
+                                             "requires a JOURNALED map");
+        }
+
+        if ((interval < 0) ||
+            ((durability == Durability.PERIODIC) && (interval == 0)))
+        {
+            throw new IllegalArgumentException ("Bad durability interval: " +
+                                                interval);
+        }
+
+        stopPeriodicSync();
+
+        if (journal != null)
+        {
+            if (durability == Durability.SYNC)
+                journal.setSync (true, unit.toNanos (interval));
+            else
+                journal.setSync (false, 0);
+        }
+
+        this.durability = durability;
+
+        if (durability == Durability.PERIODIC)
+        {
+            long period = Math.max (1, unit.toMillis (interval));
+
+            syncTimer = new Timer ("FileHashMap sync: " + filePrefix, true);
+            syncTimer.schedule (new TimerTask()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        if (valid)
+                            sync();
+                    }
+
+                    catch (IllegalStateException ex)
+                    {
+                        // Closed.
+
+                        cancel();
+                    }
+
+                    catch (IOException ex)
+                    {
+                        log.error ("Periodic sync of FileHashMap \"" +
+                                   filePrefix + "\" failed", ex);
+                    }
+                }
+            },
+            period,
+            period);
+        }
+    }
+
+    /**
+     * <p>Set the map's durability mode, with no interval. Equivalent to
+     * <tt>setDurability(durability, 0, TimeUnit.MILLISECONDS)</tt>, so it
+     * can't be used to select {@link Durability#PERIODIC}.</p>
+     *
+     * @param durability  the mode
+     *
+     * @throws IllegalStateException    <tt>SYNC</tt> was requested for a
+     *                                  map that isn't journaled
+     * @throws IllegalArgumentException <tt>PERIODIC</tt> was requested
+     *
+     * @see #setDurability(Durability,long,TimeUnit)
+     */
+    public void setDurability (Durability durability)
+    {
+        setDurability (durability, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <p>Get the map's durability mode.</p>
+     *
+     * @return the mode
+     *
+     * @see #setDurability(Durability,long,TimeUnit)
+     */
+    public Durability getDurability()
+    {
+        return durability;
+    }
+
+    /**
+     * <p>Force the data file, and the journal, if the map is journaled, to
+     * the storage device. Every change to a journaled map that has already
+     * returned is then durable. In a map that isn't journaled, the index
+     * changes made since the last {@link #save save()} are not written, so
+     * only the saved state is durable.</p>
+     *
+     * @throws IOException on error
+     *
+     * @see #setDurability(Durability,long,TimeUnit)
+     */
+    public void sync()
+        throws IOException
+    {
+        checkValidity();
+
+        ValuesFile db = valuesDB;
+        Journal    j  = journal;
+
+        if (j == null)
+            db.force();
+        else
+            j.commit (j.getAppended(), db, true);
+    }
+
+    /**
+     * Get the executor that reads ahead for scans, creating it if
+     * necessary. The map's scans share it; each running scan has at most
+     * one read outstanding, and idle threads exit after
+     * {@link #SCAN_THREAD_KEEP_ALIVE} seconds.
+     *
+     * @return the executor
+     */
+    private synchronized Executor getReadAheadExecutor()
+    {
+        if (readAheadExecutor == null)
+        {
+            readAheadExecutor =
+                new ThreadPoolExecutor (0, Integer.MAX_VALUE,
+                                        SCAN_THREAD_KEEP_ALIVE,
+                                        TimeUnit.SECONDS,
+                                        new SynchronousQueue<Runnable>(),
+                                        new DaemonThreadFactory
+                                            ("FileHashMap read-ahead: " +
+                                             filePrefix));
+        }
+
+        return readAheadExecutor;
+    }
+
+    /**
+     * Shut down the read-ahead executor, if it was created.
+     */
+    private synchronized void stopReadAhead()
+    {
+        if (readAheadExecutor != null)
+        {
+            readAheadExecutor.shutdown();
+            readAheadExecutor = null;
+        }
+    }
+
+    /**
+     * Stop the PERIODIC durability timer, if it's running.
+     */
+    private synchronized void stopPeriodicSync()
+    {
+        if (syncTimer != null)
+        {
+            syncTimer.cancel();
+            syncTimer = null;
+        }
+    }
+
+    /**
+     * <p>Start a daemon thread that periodically checks the map's
+     * fragmentation and compacts the map when the fragmentation reaches a
+     * threshold. If background compaction is already running, it's
+     * restarted with the new settings. Background compaction stops when
+     * the map is closed. The map must have been created with the
+     * {@link #CONCURRENT} flag, since the compactor runs in a different
+     * thread than the map's users.</p>
+     *
+     * @param threshold      the fragmentation ratio (greater than 0.0, and
+     *                       no more than 1.0) at which to compact the map
+     * @param checkInterval  milliseconds between checks
+     *
+     * @throws IllegalStateException    the map isn't a CONCURRENT map
+     * @throws IllegalArgumentException bad threshold or interval
+     *
+     * @see #stopBackgroundCompaction
+     * @see #getFragmentation
+     */
+    public synchronized void startBackgroundCompaction
+        (final double threshold, long checkInterval)
+    {
+        checkValidity();
+
+        if ((flags & CONCURRENT) == 0)
+        {
+            throw new IllegalStateException ("Background compaction " +
+                                             "requires a CONCURRENT map");
+        }
+
+        if ((threshold <= 0.0) || (threshold > 1.0))
+        {
+            throw new IllegalArgumentException ("Bad compaction threshold: " +
+                                                threshold);
+        }
+
+        if (checkInterval <= 0)
+        {
+            throw new IllegalArgumentException ("Bad compaction interval: " +
+                                                checkInterval);
+        }
+
+        stopBackgroundCompaction();
+        compactionTimer = new Timer ("FileHashMap compactor: " + filePrefix,
+                                     true);
+        compactionTimer.schedule (new TimerTask()
+        {
+            public void run()
+            {
+                try
+                {
+                    if (valid &&
+                        (openSnapshots == 0) &&
+                        (getFragmentation() >= threshold))
+                    {
+                        log.debug ("Compacting \"" + filePrefix + "\"");
+                        compact();
+                    }
+                }
+
+                catch (IllegalStateException ex)
+                {
+                    // Closed, or a snapshot was taken since the check.
+
+                    if (! valid)
+                        cancel();
+                }
+
+                catch (IOException ex)
+                {
+                    log.error ("Background compaction of FileHashMap \"" +
+                               filePrefix + "\" failed", ex);
+                }
+            }
+        },
+        checkInterval,
+        checkInterval);
+    }
+
+    /**
+     * <p>Stop background compaction, if it's running. A compaction that's
+     * already in progress is not interrupted.</p>
+     *
+     * @see #startBackgroundCompaction
+     */
+    public synchronized void stopBackgroundCompaction()
+    {
+        if (compactionTimer != null)
+        {
+            compactionTimer.cancel();
+            compactionTimer = null;
+        }
+    }
+
+    /**
+     * Implements close().
+     *
+     * @throws IOException on error
+     */
+    private synchronized void closeMap()
+        throws IOException
+    {
+        if (valid)
+        {
+            if ((flags & TRANSIENT) != 0)
+            {
+                // Be sure to remove the data files.
+
+                if (valuesDB != null)
+                {
+                    valuesDB.close();
+                    valuesDB = null;
+                }
+
+                deleteMapFiles();
+            }
+
+            else
+            {
+                save();
+
+                if (journal != null)
+                {
+                    journal.close();
+                    journal = null;
+                }
+
+                if (valuesDB != null)
+                {
+                    valuesDB.close();
+                    valuesDB = null;
+                }
+            }
+
+            valid = false;
+        }
+    }
+
+    /**
+     * <p>Returns <tt>true</tt> if this map contains a mapping for the
+     * specified key. Since the keys are cached in an in-memory index, this
+     * method does not have to access the data file, and is fairly
+     * cheap.</p>
+     *
+     * @param key key whose presence in this map is to be tested
+     *
+     * @return <tt>true</tt> if this map contains a mapping for the specified
+     *         key, <tt>false</tt> otherwise.
+     */
+    public boolean containsKey (Object key)
+    {
+        checkValidity();
+        return indexMap.containsKey (key);
+    }
+
+    /**
+     * <p>Returns <tt>true</tt> if this map maps one or more keys that are
+     * mapped to the specified value. Because it must iterate through some
+     * portion of the on-disk value set, this method can be slow.</p>
+     *
+     * @param value value whose presence in this map is to be tested.
+     *
+     * @return <tt>true</tt> if this map maps one or more keys to the
+     *         specified value, <tt>false</tt> otherwise.
+     */
+    public boolean containsValue (Object value)
+    {
+        checkValidity();
+        return new ValueSet().contains (value);
+    }
+
+    /**
+     * Deletes the files backing this <tt>FileHashMap</tt>. This method
+     * implicitly calls {@link #close}.
+     */
+    public void delete()
+    {
+        try
+        {
+            close();
+        }
+
+        catch (NotSerializableException ex)
+        {
+        }
+
+        catch (IOException ex)
+        {
+        }
+
+        deleteMapFiles();
+    }
+
+    /**
+     * <p>Returns a "thin" set view of the mappings contained in this map.
+     * Each element in the returned set is a <tt>Map.Entry</tt>; each
+     * <tt>Map.Entry</tt> contains a key and a proxy for the associated value.
+     * The map's values themselves are not loaded into memory until requested
+     * via a call to <tt>Map.Entry.getValue()</tt>.</p>
+     *
+     * <p>The set is backed by the map, so changes to the map are reflected
+     * in the set. If the map is modified while an iteration over the set
+     * is in progress, the results of the iteration are undefined. Neither
+     * the set nor its associated iterator supports any of the
+     * set-modification methods (e.g., <tt>add()</tt>, <tt>remove()</tt>,
+     * etc). If you attempt to call any of those methods, the called method
+     * will throw an <tt>UnsupportedOperationException</tt>.</p>
+     *
+     * <p>NOTE: Calling this method on an invalid or closed
+     * <tt>FileHashMap</tt> will result in an exception.</p>
+     *
+     * @return a set view of the mappings contained in this map.
+     *
+     * @see #keySet
+     * @see #values
+     * @see UnsupportedOperationException
+     */
+    public Set<Map.Entry<K,V>> entrySet()
+    {
+        checkValidity();
+
+        if (entrySetResult == null)
+            entrySetResult = new EntrySet();
+
+        return (Set<Map.Entry<K,V>>) entrySetResult;
+    }
+
+    /**
+     * <p>Compares the specified object with this map for equality.  Returns
+     * <tt>true</tt> if the given object is also a map and the two Maps
+     * represent the same mappings.  More formally, two maps <tt>t1</tt> and
+     * <tt>t2</tt> represent the same mappings if
+     * <tt>t1.entrySet().equals(t2.entrySet())</tt>.  This ensures that the
+     * <tt>equals</tt> method works properly across different implementations
+     * of the <tt>Map</tt> interface.</p>
+     *
+     * <p><b>Warning:</b>: Because this method must compare the actual
+     * values stored in the map, and the values in a file, this method can
+     * be quite slow.</p>
+     *
+     * @param o object to be compared for equality with this map.
+     *
+     * @return <tt>true</tt> if the specified object is equal to this map.
+     */
+    public boolean equals (Object o)
+    {
+        checkValidity();
+
+        return super.equals (o);
+    }
+
+    /**
+     * <p>Returns the value associated with the the specified key.  Returns
+     * <tt>null</tt> if the map contains no mapping for this key.</p>
+     *
+     * @param key key whose associated value is to be returned.
+     *
+     * @return the value to which this map maps the specified key, or
+     *         <tt>null</tt> if the map contains no mapping for this key.
+     *
+     * @throws ClassCastException   if the key is of an inappropriate type for
+     *                              this map.
+     * @throws NullPointerException key is <tt>null</tt>
+     *
+     * @see #containsKey(Object)
+     */
+    public V get (Object key)
+    {
+        checkValidity();
+
+        V   result = null;
+        int slot   = enterRead();
+
+        try
+        {
+            FileHashMapEntry<K> entry = indexMap.get (key);
+
+            if (entry != null)
+            {
+                ValueCache<K,V> cache = valueCache;
+
+                if (cache == null)
+                    result = readValueNoError (entry);
+
+                else if ((result = cache.get (key, entry)) == null)
+                {
+                    result = readValueNoError (entry);
+                    if (result != null)
+                        cache.put (entry, result);
+                }
+            }
+        }
+
+        finally
+        {
+            exitRead (slot);
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>Get the encoded form of the value associated with a key, as
+     * produced by the map's {@link ValueCodec}, without decoding it. For a
+     * {@link #MEMORY_MAPPED} map, the buffer is usually a view of the
+     * mapping, not a copy, so it's only valid until the value is replaced
+     * or removed (and its space, possibly, reused). Compressed values are
+     * decompressed.</p>
+     *
+     * @param key  the key
+     *
+     * @return a read-only buffer containing the encoded value, or null if
+     *         the key isn't mapped to a value
+     *
+     * @throws IOException  error reading the value
+     *
+     * @see #transferValueTo
+     */
+    public ByteBuffer getRaw (Object key)
+        throws IOException
+    {
+        int slot = enterRead();
+
+        try
+        {
+            for (;;)
+            {
+                checkValidity();
+
+                FileHashMapEntry<K> entry = indexMap.get (key);
+
+                if (entry == null)
+                    return null;
+
+                ValuesFile db = fileFor (entry);
+
+                if (db == null)
+                    continue;
+
+                long pos  = entry.getFilePosition();
+                int  size = entry.getObjectSize();
+
+                if (! entry.isCompressed())
+                {
+                    ByteBuffer slice = db.slice (pos, size);
+
+                    if (slice != null)
+                        return slice;
+                }
+
+                byte[] buf = new byte[size];
+
+                try
+                {
+                    readRun (db, pos, buf, size);
+                }
+
+                catch (ClosedChannelException ex)
+                {
+                    // Closed by a compaction. Look the key up again.
+
+                    if (db.isOpen())
+                        throw ex;
+
+                    continue;
+                }
+
+                if (entry.isCompressed())
+                    buf = inflateValue (buf, 0, size);
+
+                return ByteBuffer.wrap (buf).asReadOnlyBuffer();
+            }
+        }
+
+        finally
+        {
+            exitRead (slot);
+        }
+    }
+
+    /**
+     * <p>Write the encoded form of the value associated with a key to a
+     * channel, without decoding it. Unless the value is compressed, it's
+     * copied with <tt>FileChannel.transferTo()</tt>, which allows the
+     * operating system to move the bytes directly from the data file to
+     * the target (a socket, for instance). The target should be in
+     * blocking mode.</p>
+     *
+     * @param key     the key
+     * @param target  the channel to write to
+     *
+     * @return <tt>true</tt> if the value was written, <tt>false</tt> if
+     *         the key isn't mapped to a value
+     *
+     * @throws IOException  error reading the value or writing the channel
+     *
+     * @see #getRaw
+     */
+    public boolean transferValueTo (Object key, WritableByteChannel target)
+        throws IOException
+    {
+        int slot = enterRead();
+
+        try
+        {
+            for (;;)
+            {
+                checkValidity();
+
+                FileHashMapEntry<K> entry = indexMap.get (key);
+
+                if (entry == null)
+                    return false;
+
+                if (entry.isCompressed())
+                {
+                    ByteBuffer buf = getRaw (key);
+
+                    if (buf == null)
+                        return false;
+
+                    while (buf.hasRemaining())
+                        target.write (buf);
+
+                    return true;
+                }
+
+                ValuesFile db = fileFor (entry);
+
+                if ((db != null) &&
+                    db.transferTo (entry.getFilePosition(),
+                                   entry.getObjectSize(),
+                                   target))
+                {
+                    return true;
+                }
+
+                // Superseded, or closed, by a compaction. Look the key up
+                // again.
+            }
+        }
+
+        finally
+        {
+            exitRead (slot);
+        }
+    }
+
+    /**
+     * <p>Retrieve the values for a collection of keys. The values are read
+     * in the order they appear in the data file, and neighboring values
+     * are read with a single read, so this method is considerably faster
+     * than calling {@link #get get()} for each key.</p>
+     *
+     * @param keys  the keys to look up
+     *
+     * @return a map containing an entry for each key that's in this map.
+     *         Keys that aren't in this map are omitted.
+     *
+     * @see #get
+     * @see #putAll
+     */
+    public Map<K,V> getAll (Collection<? extends K> keys)
+    {
+        checkValidity();
+
+        Map<K,V>                  result  = new HashMap<K,V>();
+        List<FileHashMapEntry<K>> entries =
+            new ArrayList<FileHashMapEntry<K>>();
+        ValueCache<K,V>           cache   = valueCache;
+
+        for (K key : keys)
+        {
+            FileHashMapEntry<K> entry = indexMap.get (key);
+
+            if (entry == null)
+                continue;
+
+            if (cache != null)
+            {
+                V value = cache.get (key, entry);
+
+                if (value != null)
+                {
+                    result.put (key, value);
+                    continue;
+                }
+            }
+
+            entries.add (entry);
+        }
+
+        Collections.sort (entries, new FileHashMapEntryComparator());
+
+        Iterator<Map.Entry<K,V>> it =
+            new ScanIterator (entries, BATCH_READ_SIZE, BATCH_READ_MAX_GAP,
+                              false, cache, true);
+
+        while (it.hasNext())
+        {
+            Map.Entry<K,V> mapEntry = it.next();
+            result.put (mapEntry.getKey(), mapEntry.getValue());
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>Retrieve the value associated with a key asynchronously. See the
+     * section on asynchronous operations, in the class documentation.</p>
+     *
+     * @param key  the key
+     *
+     * @return a future for the value, or for null if the key isn't mapped
+     *         to a value
+     *
+     * @see #get
+     * @see #setAsyncExecutor
+     */
+    public CompletableFuture<V> getAsync (K key)
+    {
+        return queueAsync (new AsyncRequest (ASYNC_GET, key, null));
+    }
+
+    /**
+     * <p>Store a value asynchronously. Like {@link #set set()}, and unlike
+     * {@link #put put()}, the operation doesn't read the value it
+     * replaces. See the section on asynchronous operations, in the class
+     * documentation.</p>
+     *
+     * @param key   key with which the value is to be associated
+     * @param value value to be associated with the key
+     *
+     * @return a future that completes (with null) once the value is stored
+     *
+     * @throws NullPointerException the specified key or value is
+     *                              <tt>null</tt>
+     *
+     * @see #putAll
+     * @see #setAsyncExecutor
+     */
+    public CompletableFuture<Void> putAsync (K key, V value)
+        throws NullPointerException
+    {
+        if (key == null)
+            throw new NullPointerException ("null key parameter");     // NOPMD
+
+        if (value == null)
+            throw new NullPointerException ("null value parameter");   // NOPMD
+
+        return queueAsync (new AsyncRequest (ASYNC_PUT, key, value))
+                   .thenApply (v -> (Void) null);
+    }
+
+    /**
+     * <p>Remove a mapping asynchronously. See the section on asynchronous
+     * operations, in the class documentation.</p>
+     *
+     * @param key  the key
+     *
+     * @return a future for the removed value, or for null if the key
+     *         wasn't mapped to a value
+     *
+     * @see #remove
+     * @see #setAsyncExecutor
+     */
+    public CompletableFuture<V> removeAsync (K key)
+    {
+        return queueAsync (new AsyncRequest (ASYNC_REMOVE, key, null));
+    }
+
+    /**
+     * <p>Set the executor that runs asynchronous operations. The futures
+     * returned by the asynchronous methods are completed by the executor's
+     * threads.</p>
+     *
+     * @param executor  the executor, or null to use the default (virtual
+     *                  threads, if the Java runtime supports them, and
+     *                  otherwise a pool of daemon threads)
+     *
+     * @see #getAsync
+     */
+    public void setAsyncExecutor (Executor executor)
+    {
+        this.asyncExecutor = executor;
+    }
+
+    /**
+     * <p>Pass each entry in the map to an action, in data file order. The
+     * data file is read sequentially, in large chunks, and the values are
+     * decoded straight out of the chunks; see the section on sequential
+     * access, in the class documentation. Entries whose values can't be
+     * read are skipped.</p>
+     *
+     * <p>The scan covers the entries present when it starts. Unless the map
+     * is {@link #CONCURRENT}, it must not be modified during the scan.</p>
+     *
+     * @param action  the action to perform on each key and value
+     *
+     * @see #stream
+     */
+    public void scan (BiConsumer<? super K, ? super V> action)
+    {
+        checkValidity();
+
+        Iterator<Map.Entry<K,V>> it =
+            new ScanIterator (getSortedEntries(), SCAN_BUFFER_SIZE,
+                              SCAN_MAX_GAP, true, null, true);
+
+        while (it.hasNext())
+        {
+            Map.Entry<K,V> mapEntry = it.next();
+            action.accept (mapEntry.getKey(), mapEntry.getValue());
+        }
+    }
+
+    /**
+     * <p>Return a sequential stream of the entries in the map, in data file
+     * order. The stream reads the data file the same way
+     * {@link #scan scan()} does.</p>
+     *
+     * @return the stream
+     *
+     * @see #scan
+     */
+    public Stream<Map.Entry<K,V>> stream()
+    {
+        checkValidity();
+
+        Iterator<Map.Entry<K,V>> it =
+            new ScanIterator (getSortedEntries(), SCAN_BUFFER_SIZE,
+                              SCAN_MAX_GAP, true, null, true);
+
+        return StreamSupport.stream
+            (Spliterators.spliteratorUnknownSize (it,
+                                                  Spliterator.ORDERED |
+                                                  Spliterator.NONNULL),
+             false);
+    }
+
+    /**
+     * <p>Returns the hash code value for this map. The hash code of a map
+     * is defined to be the sum of the hash codes of each entry in the
+     * map's <tt>entrySet()</tt> view. This ensures that
+     * <tt>t1.equals(t2)</tt> implies that
+     * <tt>t1.hashCode()==t2.hashCode()</tt> for any two maps <tt>t1</tt>
+     * and <tt>t2</tt>, as required by the general contract of
+     * Object.hashCode.</p>
+     *
+     * <p><b>Warning:</b>: The recommended hash code for each entry in the
+     * <tt>entrySet()</tt> view is a combination of hash codes for the
+     * entry's key and the entry's value. (See <tt>java.util.Map.Entry</tt>
+     * for details.) Because the values in a <tt>FileHashMap</tt> object
+     * are stored in a file, this method can be quite slow.</p>
+     *
+     * @return the hash code value for this map.
+     *
+     * @see Object#hashCode()
+     * @see Object#equals(Object)
+     * @see #equals(Object)
+     */
+    public int hashCode()
+    {
+        checkValidity();
+
+        return super.hashCode();
+    }
+
+    /**
+     * Determine whether the <tt>FileHashMap</tt> is valid or not. Once
+     * a <tt>FileHashMap</tt> has been closed, it is invalid and can no
+     * longer be used.
+     *
+     * @return <tt>true</tt> if this object is valid, <tt>false</tt> if not
+     */
+    public boolean isValid()
+    {
+        return valid;
+    }
+
+    /**
+     * <p>Returns a <tt>Set</tt> containing all the keys in this map. Since
+     * the keys are cached in memory, this method is relatively efficient.
+     * The keys are returned in an order that optimizes sequential access
+     * to the data file; see the <b>Optimizations</b> section in the main
+     * class documentation for details.</p>
+     *
+     * <p>The set is backed by the map, so changes to the map are reflected
+     * in the set. If the map is modified while an iteration over the set
+     * is in progress, the results of the iteration are undefined. Neither
+     * the set nor its associated iterator supports any of the
+     * set-modification methods (e.g., <tt>add()</tt>, <tt>remove()</tt>,
+     * etc). If you attempt to call any of those methods, the called method
+     * will throw an <tt>UnsupportedOperationException</tt>.</p>
+     *
+     * @return a set view of the keys contained in this map.
+     */
+    public Set<K> keySet()
+    {
+        checkValidity();
+        return new KeySet();
+    }
+
     /**
-     * The file prefix with which this object was created.
+     * <p>Associates the specified value with the specified key in this map.
+     * If the map previously contained a mapping for this key, the old
+     * value is replaced. This map class does not permit a null value to be
+     * stored.</p>
+     *
+     * @param key   key with which the specified value is to be associated.
+     * @param value value to be associated with the specified key.
+     *
+     * @return previous value associated with specified key, or <tt>null</tt>
+     *         if there was no mapping for key.
+     *
+     * @throws ClassCastException        if the class of the specified key or
+     *                                   value prevents it from being stored
+     *                                   in this map.
+     * @throws IllegalArgumentException  Value not serializable (or can't be
+     *                                   encoded by the map's codec), or I/O
+     *                                   error while attempting to store
+     *                                   value.
+     * @throws NullPointerException      the specified key or value is
+     *                                   <tt>null</tt>.
+     */
+    public V put (K key, V value)
+        throws ClassCastException,
+               IllegalArgumentException,
+               NullPointerException
+    {
+        checkValidity();
+
+        V result = null;
+
+        if (key == null)
+            throw new NullPointerException ("null key parameter");     // NOPMD
+
+        if (value == null)
+            throw new NullPointerException ("null value parameter");   // NOPMD
+
+        // NOTE: We don't check the key for serializability. It's perfectly
+        // reasonable to use unserializable keys if the hash map is transient.
+        // Unserializable keys will be caught on save, for persistent maps.
+
+        if ((flags & CONCURRENT) != 0)
+            return putConcurrently (key, value);
+
+        try
+        {
+            FileHashMapEntry<K> old = indexMap.get (key);
+
+            // Read the old value first. Then write the new value, which
+            // may reuse the old value's space if RECLAIM_FILE_GAPS is
+            // enabled.
+
+            if (old != null)
+                result = readValueNoError (old);
+
+            replaceValue (key, value, old);
+            modified = true;
+        }
+
+        catch (NotSerializableException ex)
+        {
+            throw new IllegalArgumentException ("Value is not serializable.");
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException ("Error saving value: " +
+                                                ex.getMessage());
+        }
+
+        return result;
+    }
+
+    /**
+     * <p>Associates the specified value with the specified key in this map,
+     * without reading the value it replaces. Otherwise, this method is
+     * the same as {@link #put put()}. If the map was created with the
+     * {@link #RECLAIM_FILE_GAPS} flag, and is neither {@link #CONCURRENT}
+     * nor {@link #JOURNALED}, a value that fits in the space occupied by
+     * the value it replaces is written over the old value, rather than
+     * appended to the data file. (That's the same space that
+     * <tt>RECLAIM_FILE_GAPS</tt> would release for reuse anyway.)</p>
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     *
+     * @return <tt>true</tt> if the key was already mapped to a value,
+     *         <tt>false</tt> if not
+     *
+     * @throws IllegalArgumentException  Value not serializable (or can't be
+     *                                   encoded by the map's codec), or I/O
+     *                                   error while attempting to store
+     *                                   value.
+     * @throws NullPointerException      the specified key or value is
+     *                                   <tt>null</tt>.
+     *
+     * @see #put
+     */
+    public boolean set (K key, V value)
+        throws IllegalArgumentException,
+               NullPointerException
+    {
+        checkValidity();
+
+        if (key == null)
+            throw new NullPointerException ("null key parameter");     // NOPMD
+
+        if (value == null)
+            throw new NullPointerException ("null value parameter");   // NOPMD
+
+        FileHashMapEntry<K> old;
+
+        lockUpdates();
+        try
+        {
+            if ((flags & CONCURRENT) != 0)
+            {
+                old = indexPut (key, writeValue (key, value));
+                if (old != null)
+                    releaseSpace (old);
+            }
+
+            else
+            {
+                old = indexMap.get (key);
+                replaceValue (key, value, old);
+            }
+
+            modified = true;
+        }
+
+        catch (NotSerializableException ex)
+        {
+            throw new IllegalArgumentException ("Value is not serializable.");
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException ("Error saving value: " +
+                                                ex.getMessage());
+        }
+
+        finally
+        {
+            unlockUpdates();
+        }
+
+        return (old != null);
+    }
+
+    /**
+     * <p>Copies all of the mappings from the specified map to this map. The
+     * values are encoded into a single buffer and appended to the data
+     * file in one write, rather than written one at a time. Unlike
+     * {@link #put put()}, this method does not read the values it
+     * replaces.</p>
+     *
+     * @param map  mappings to be stored in this map
+     *
+     * @throws IllegalArgumentException  Value not serializable (or can't be
+     *                                   encoded by the map's codec), or I/O
+     *                                   error while attempting to store
+     *                                   values. Some of the mappings may
+     *                                   have been stored.
+     * @throws NullPointerException      a key or value is <tt>null</tt>
+     *
+     * @see #put
+     * @see #getAll
+     */
+    public void putAll (Map<? extends K, ? extends V> map)
+        throws IllegalArgumentException,
+               NullPointerException
+    {
+        checkValidity();
+
+        List<K>       keys       = new ArrayList<K>();
+        List<byte[]>  encoded    = new ArrayList<byte[]>();
+        List<Boolean> compressed = new ArrayList<Boolean>();
+        int           total      = 0;
+        Compressor    c          = compressor;
+
+        lockUpdates();
+        try
+        {
+            for (Map.Entry<? extends K, ? extends V> mapEntry : map.entrySet())
+            {
+                K key   = mapEntry.getKey();
+                V value = mapEntry.getValue();
+
+                if (key == null)
+                    throw new NullPointerException ("null key");   // NOPMD
+
+                if (value == null)
+                    throw new NullPointerException ("null value"); // NOPMD
+
+                byte[]  bytes  = valueCodec.encode (value);
+                byte[]  packed = (c == null) ? null : c.compress (bytes);
+
+                if (packed != null)
+                    bytes = packed;
+
+                if ((! keys.isEmpty()) &&
+                    (bytes.length > BATCH_WRITE_SIZE - total))
+                {
+                    writeBatch (keys, encoded, compressed, total);
+                    keys.clear();
+                    encoded.clear();
+                    compressed.clear();
+                    total = 0;
+                }
+
+                keys.add (key);
+                encoded.add (bytes);
+                compressed.add (packed != null);
+                total += bytes.length;
+            }
+
+            if (! keys.isEmpty())
+                writeBatch (keys, encoded, compressed, total);
+        }
+
+        catch (NotSerializableException ex)
+        {
+            throw new IllegalArgumentException ("Value is not serializable.");
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException ("Error saving value: " +
+                                                ex.getMessage());
+        }
+
+        finally
+        {
+            unlockUpdates();
+        }
+    }
+
+    /**
+     * <p>Removes the mapping for this key from this map, if present.
+     * <b>Note:</b> The space occupied by the serialized value in the
+     * data file is <i>not</i> coalesced at this point.</p>
+     *
+     * @param key key whose mapping is to be removed from the map.
+     *
+     * @return previous value associated with specified key, or <tt>null</tt>
+     *         if there was no mapping for key.
+     */
+    public V remove (Object key)
+    {
+        checkValidity();
+
+        V result = null;
+
+        if ((flags & CONCURRENT) != 0)
+            return removeConcurrently (key);
+
+        // We do nothing with the space in the data file for any existing
+        // item. It remains in the data file, but is unreferenced.
+
+        if (indexMap.containsKey (key))
+        {
+            FileHashMapEntry<K> entry = indexMap.get (key);
+            result = readValueNoError (entry);
+            indexRemoveNoError (key);
+            modified = true;
+
+            // Release the space, so that it can be coalesced with the gaps
+            // on either side of it.
+
+            releaseSpace (entry);
+        }
+
+        return result;
+    }
+
+
+    /**
+     * <p>Save any in-memory index changes to disk without closing the map.
+     * You can call this method even if the map is marked as temporary;
+     * on a temporary map, <tt>save()</tt> simply returns without doing
+     * anything. On a {@link #JOURNALED} map, saving the index also empties
+     * the journal.</p>
+     *
+     * @throws IOException              Error saving changes to disk.
+     * @throws NotSerializableException Can't save index because it contains
+     *                                  one or more objects that cannot be
+     *                                  serialized.
+     *
+     * @see #close
+     */
+    public void save()
+        throws IOException,
+               NotSerializableException
+    {
+        checkValidity();
+
+        if ( ((flags & TRANSIENT) == 0) && modified )
+        {
+            if (journal != null)
+                checkpoint();
+            else
+                saveIndex();
+        }
+    }
+
+    /**
+     * <p>Returns the number of key-value mappings in this map. If the map
+     * contains more than <tt>Integer.MAX_VALUE</tt> elements, returns
+     * <tt>Integer.MAX_VALUE</tt>. This method queries the in-memory key
+     * index, so it is relatively efficient.</p>
+     *
+     * @return the number of key-value mappings in this map.
+     */
+    public int size()
+    {
+        checkValidity();
+        return currentSize();
+    }
+
+    /**
+     * <p>Returns a collection view of the values contained in this map. The
+     * returned collection is a "thin" view of the values contained in
+     * this map. The collection contains proxies for the actual disk-resident
+     * values; the values themselves are not loaded until a
+     * <tt>Collection</tt> method such as <tt>contains()</tt> is called.</p>
+     *
+     * <p>The collection is backed by the map, so changes to the map are
+     * reflected in the set. If the map is modified while an iteration over
+     * the set is in progress, the results of the iteration are undefined.</p>
+     * The set does not support any of the <tt>add()</tt> methods.</p>
+     *
+     * <p><b>Warning:</b>: The <tt>toArray()</tt> methods can be dangerous,
+     * since they will attempt to load every value from the data file into
+     * an in-memory array.</p>
+     *
+     * @return a collection view of the values contained in this map.
+     *
+     * @see #keySet
+     * @see #values
      */
-    private String filePrefix = null;
+    public Collection<V> values()
+    {
+        checkValidity();
 
-    /**
-     * The index file.
-     */
-    private File indexFilePath = null;
+        return new ValueSet();
+    }
 
-    /**
-     * The values file.
-     */
-    private File valuesDBPath = null;
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
 
     /**
-     * The open values database.
+     * Throw an exception if the object isn't valid.
      */
-    private ValuesFile valuesDB = null;
+    private void checkValidity()
+    {
+        if (! valid)
+            throw new IllegalStateException ("Invalid FileHashMap object");
+    }
 
     /**
-     * The flags specified to the constructor.
+     * Initialize a new index and data file for a hash map being created.
+     * Used only by the constructors.
+     *
+     * @param valuesDBPath  path to the data file
+     *
+     * @throws IOException I/O error
      */
-    private int flags = 0;
+    private void createNewMap (File valuesDBPath)
+        throws IOException
+    {
+        this.valuesDB = new ValuesFile (valuesDBPath,
+                                        (flags & MEMORY_MAPPED) != 0,
+                                        (flags & CONCURRENT) != 0);
+        this.indexMap = newIndexMap();
+    }
 
     /**
-     * Whether or not the index has been modified since the file was
-     * opened.
+     * Determine the size of this map. Basically, this method just consolidates
+     * the size-determination logic in one place.
+     *
+     * @return the size
      */
-    private boolean modified = false;
+    private int currentSize()
+    {
+        return indexMap.size();
+    }
 
     /**
-     * Whether or not the object is still valid. See close().
+     * Create an empty in-memory index of the appropriate type.
+     *
+     * @return the index
      */
-    private boolean valid = true;
+    private Map<K, FileHashMapEntry<K>> newIndexMap()
+    {
+        return newIndexMap (16);
+    }
 
     /**
-     * The value returned by the entrySet() method. It's created the first
-     * time entrySet() is called.
+     * Create an empty in-memory index of the appropriate type, sized to
+     * hold a specified number of entries.
+     *
+     * @param expectedSize  the expected number of entries
+     *
+     * @return the index
      */
-    private EntrySet entrySetResult = null;
+    private Map<K, FileHashMapEntry<K>> newIndexMap (int expectedSize)
+    {
+        Map<K, FileHashMapEntry<K>> result;
+        int capacity = (int) Math.min ((expectedSize / 0.75f) + 1,
+                                       Integer.MAX_VALUE);
+
+        if ((flags & OFF_HEAP_INDEX) != 0)
+            result = new OffHeapIndex<K> (keyCodec, expectedSize);
+        else if ((flags & CONCURRENT) != 0)
+            result = new ConcurrentHashMap<K, FileHashMapEntry<K>> (capacity);
+        else
+            result = new HashMap<K, FileHashMapEntry<K>> (capacity);
+
+        return result;
+    }
 
     /**
-     * A set of gaps in the file, ordered sequentially by file position.
-     * Each entry in the set is a FileHashMapEntry with no associated
-     * object or key. This reference will be non-null only if the
-     * RECLAIM_FILE_GAPS flag was passed to the constructor.
+     * Implements put() for a CONCURRENT map. The new value is written and
+     * the index is updated before the old value is read, so the old
+     * value's space is not released until nobody can find it via the
+     * index.
+     *
+     * @param key   the key
+     * @param value the value, already checked
+     *
+     * @return the previous value, or null
      */
-    private TreeSet<FileHashMapEntry<K>> fileGaps = null;
+    private V putConcurrently (K key, V value)
+    {
+        V result = null;
 
-    /*----------------------------------------------------------------------*\
-                            Private Class Data
-    \*----------------------------------------------------------------------*/
+        lockUpdates();
+        try
+        {
+            FileHashMapEntry<K> old = indexPut (key, writeValue (key, value));
+
+            modified = true;
+            if (old != null)
+            {
+                result = readValueNoError (old);
+                releaseSpace (old);
+            }
+        }
+
+        catch (NotSerializableException ex)
+        {
+            throw new IllegalArgumentException ("Value is not serializable.");
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException ("Error saving value: " +
+                                                ex.getMessage());
+        }
+
+        finally
+        {
+            unlockUpdates();
+        }
+
+        return result;
+    }
 
     /**
-     * For log messages
+     * Implements remove() for a CONCURRENT map.
+     *
+     * @param key the key
+     *
+     * @return the removed value, or null
      */
-    private static final Logger log = new Logger (FileHashMap.class);
+    private V removeConcurrently (Object key)
+    {
+        V result = null;
 
-    /*----------------------------------------------------------------------*\
-                               Constructors
-    \*----------------------------------------------------------------------*/
+        lockUpdates();
+        try
+        {
+            FileHashMapEntry<K> entry = indexRemoveNoError (key);
+
+            if (entry != null)
+            {
+                modified = true;
+                result = readValueNoError (entry);
+                releaseSpace (entry);
+            }
+        }
+
+        finally
+        {
+            unlockUpdates();
+        }
+
+        return result;
+    }
 
     /**
-     * <p>Create a new transient <tt>FileHashMap</tt> object. The transient
-     * disk files will be in the normal temporary directory and will have
-     * the prefix "FileHashMap". The names of the associated disk files are
-     * guaranteed to be unique, and will go away when the object is
-     * finalized or when the Java VM goes away. Call this constructor is
-     * identical to calling {@link #FileHashMap(String)} with a null
-     * <tt>filePrefix</tt> parameter.</p>
-     *
-     * <p>Note that this constructor implicitly sets the {@link #TRANSIENT}
-     * flag.</p>
+     * Append a batch of encoded values to the data file with a single
+     * write, and index them. Called with the update lock held.
      *
-     * @throws IOException  Unable to create temp file
+     * @param keys        the keys
+     * @param encoded     the corresponding encoded values
+     * @param compressed  whether each encoded value is compressed
+     * @param total       the total size of the encoded values
      *
-     * @see #FileHashMap(String,int)
-     * @see #FileHashMap(String)
+     * @throws IOException on error
      */
-    public FileHashMap()
+    private void writeBatch (List<K>       keys,
+                             List<byte[]>  encoded,
+                             List<Boolean> compressed,
+                             int           total)
         throws IOException
     {
-        this (null);
+        byte[] buf    = new byte[total];
+        int    offset = 0;
+
+        for (byte[] bytes : encoded)
+        {
+            System.arraycopy (bytes, 0, buf, offset, bytes.length);
+            offset += bytes.length;
+        }
+
+        ValuesFile db = valuesDB;
+        long       pos;
+
+        if (db.supportsConcurrentAccess())
+        {
+            pos = db.allocate (total);
+            db.write (pos, buf, total);
+        }
+
+        else
+        {
+            synchronized (this)
+            {
+                pos = db.allocate (total);
+                db.write (pos, buf, total);
+            }
+        }
+
+        List<FileHashMapEntry<K>> entries =
+            new ArrayList<FileHashMapEntry<K>> (keys.size());
+
+        for (int i = 0; i < keys.size(); i++)
+        {
+            int size = encoded.get (i).length;
+
+            entries.add (new FileHashMapEntry<K> (pos, size, keys.get (i),
+                                                  db.getGeneration(),
+                                                  compressed.get (i)));
+            pos += size;
+        }
+
+        for (FileHashMapEntry<K> old : indexPutAll (keys, entries))
+        {
+            if (old != null)
+                releaseSpace (old);
+        }
+
+        modified = true;
     }
 
     /**
-     * <p>Create a new transient <tt>FileHashMap</tt> object. The transient
-     * disk files will be in the normal temporary directory and will have
-     * the specified temporary file prefix. If no temporary file prefix is
-     * specified (i.e., the <tt>tempFilePrefix</tt> parameter is null), then
-     * "fhm" will be used. The names of the associated disk files are
-     * guaranteed to be unique, and they will go away when the object is
-     * finalized or when the Java VM goes away.</p>
-     *
-     * <p>Note that this constructor implicitly sets the {@link #TRANSIENT}
-     * flag.</p>
+     * Add a batch of entries to the index, logging the changes to the
+     * journal, if the map is journaled, with a single commit.
      *
-     * @param tempFilePrefix the prefix to use with the temporary file, or
-     *                       null for default prefix "fhm"
+     * @param keys     the keys
+     * @param entries  the corresponding entries
      *
-     * @throws IOException  Unable to create temp file
+     * @return the entries previously associated with the keys (with null
+     *         elements for keys that weren't in the index)
      *
-     * @see #FileHashMap(String,int)
-     * @see #FileHashMap()
+     * @throws IOException error writing the journal
      */
-    public FileHashMap (String tempFilePrefix)
+    private List<FileHashMapEntry<K>> indexPutAll
+        (List<K> keys, List<FileHashMapEntry<K>> entries)
         throws IOException
     {
-        this.flags = TRANSIENT;
-        this.filePrefix = tempFilePrefix;
+        int                       total = keys.size();
+        List<FileHashMapEntry<K>> olds  =
+            new ArrayList<FileHashMapEntry<K>> (total);
 
-        if (filePrefix == null)
-            filePrefix = "fmh";
+        if (journal == null)
+        {
+            for (int i = 0; i < total; i++)
+                olds.add (indexMap.put (keys.get (i), entries.get (i)));
+        }
 
-        this.valuesDBPath = File.createTempFile (filePrefix, DATA_FILE_SUFFIX);
-        this.valuesDBPath.deleteOnExit();
+        else
+        {
+            List<byte[]> keyBytes = new ArrayList<byte[]> (total);
+            long         seq      = 0;
 
-        createNewMap (this.valuesDBPath);
+            for (K key : keys)
+                keyBytes.add (keyCodec.encode (key));
+
+            synchronized (journal)
+            {
+                for (int i = 0; i < total; i++)
+                {
+                    FileHashMapEntry<K> entry = entries.get (i);
+
+                    olds.add (indexMap.put (keys.get (i), entry));
+                    seq = journal.log (JOURNAL_PUT,
+                                       entry.getFilePosition(),
+                                       entry.getSizeAndFlags(),
+                                       keyBytes.get (i));
+                }
+            }
+
+            journal.commit (seq, valuesDB);
+        }
+
+        for (int i = 0; i < total; i++)
+        {
+            FileHashMapEntry<K> old = olds.get (i);
+
+            liveBytes.addAndGet (entries.get (i).getObjectSize() -
+                                 ((old == null) ? 0 : old.getObjectSize()));
+            invalidateCachedValue (keys.get (i));
+        }
+
+        return olds;
     }
 
     /**
-     * <p>Create a new <tt>FileHashMap</tt> object that will read its data
-     * from and/or store its data in files derived from the specified
-     * prefix. The prefix is a file prefix onto which data and index
-     * suffixes will be appended.</p>
-     *
-     * <p><u>Values for the <tt>flag</tt> parameter</u></p>
-     *
-     * <p>The <tt>flags</tt> parameter consists of a set of logically OR'd
-     * constants.
-     *
-     * <p>If <tt>(flags & NO_CREATE)</tt> is zero, the constructor will
-     * attempt to create the index files if they don't exist. Otherwise, it
-     * expects to find a saved hash map, and it will throw an exception if
-     * the files are not present.</p>
-     *
-     * <p>If <tt>(flags & TRANSIENT)</tt> is non-zero, the constructor will
-     * attempt to create a transient map. A transient map is not saved; its
-     * disk files are removed when the map is finalized or manually closed.
-     * You cannot create a transient map using a file prefix that specifies
-     * an existing, saved map. Specifying the <tt>TRANSIENT</tt> flag
-     * causes any <tt>NO_CREATE</tt> flag to be ignored.</p>
-     *
-     * <p>For example, the following statement creates a transient
-     * <tt>FileHashMap</tt>:</p>
-     *
-     * <blockquote><pre>
-     * Map map = new FileHashMap ("/my/temp/dir", FileHashMap.TRANSIENT);
-     * </pre></blockquote>
-     *
-     * <p>whereas this statements opens a persistent <tt>FileHashMap</tt>,
-     * creating it if it doesn't already exist:</p>
-     *
-     * <blockquote><pre>
-     * Map map = new FileHashMap ("/my/map/dir", FileHashMap.CREATE);
-     * </pre></blockquote>
-     *
-     * @param pathPrefix   The pathname prefix to the files to be used
-     * @param flags        Flags that control the disposition of the files.
-     *                     A value of 0 means no flags are set. See above
-     *                     for details.
-     *
-     * @throws FileNotFoundException        The specified hash files do not
-     *                                      exist, and the {@link #NO_CREATE}
-     *                                      flag was specified.
-     * @throws ClassNotFoundException       Failed to deserialize an object
-     * @throws VersionMismatchException     Bad or unsupported version stamp
-     *                                      in <tt>FileHashMap</tt> index file
-     * @throws ObjectExistsException        One or both of the files already
-     *                                      exist, but the {@link #TRANSIENT}
-     *                                      flag was set and the
-     *                                      {@link #FORCE_OVERWRITE} flag was
-     *                                      <i>not</i> set.
-     * @throws IOException                  Other errors
+     * Read a run of bytes from a data file, serializing access to the
+     * file pointer if necessary.
      *
-     * @see #NO_CREATE
-     * @see #TRANSIENT
+     * @param db   the data file
+     * @param pos  where to start reading
+     * @param buf  where to put the bytes
+     * @param len  how many bytes to read
      *
-     * @see #FileHashMap()
-     * @see #FileHashMap(String)
+     * @throws IOException on error, or if fewer bytes are available
      */
-    public FileHashMap (String pathPrefix, int flags)
-        throws FileNotFoundException,
-               ObjectExistsException,
-               ClassNotFoundException,
-               VersionMismatchException,
-               IOException
+    private void readRun (ValuesFile db, long pos, byte[] buf, int len)
+        throws IOException
     {
-        assert ( ((~ALL_FLAGS_MASK) & flags) == 0 );
+        int sizeRead;
 
-        int filesFound = 0;
+        if (db.supportsConcurrentAccess())
+            sizeRead = db.read (pos, buf, len);
 
-        this.filePrefix = pathPrefix;
-        this.flags      = flags;
+        else
+        {
+            synchronized (this)
+            {
+                sizeRead = db.read (pos, buf, len);
+            }
+        }
 
-        valuesDBPath    = new File (pathPrefix + DATA_FILE_SUFFIX);
-        indexFilePath   = new File (pathPrefix + INDEX_FILE_SUFFIX);
+        if (sizeRead != len)
+        {
+            throw new IOException ("Expected to read " + len +
+                                   " bytes at position " + pos +
+                                   ". Got only " + sizeRead + " bytes.");
+        }
+    }
 
-        if ((flags & TRANSIENT) != 0)
-            flags &= (~NO_CREATE);
+    /**
+     * Discard a key's value from the value cache, if there is one.
+     *
+     * @param key  the key
+     */
+    private void invalidateCachedValue (Object key)
+    {
+        ValueCache<K,V> cache = valueCache;
 
-        if (valuesDBPath.exists())
-            filesFound++;
-        if (indexFilePath.exists())
-            filesFound++;
+        if (cache != null)
+            cache.invalidate (key);
+    }
 
-        if ( (filesFound > 0) && ((flags & TRANSIENT) != 0) )
-        {
-            if ((flags & FORCE_OVERWRITE) == 0)
-            {
-                throw new ObjectExistsException
-                    (Package.BUNDLE_NAME, "FileHashMap.diskFilesExist",
-                     "One or both of the hash table files (\"{0}\" " +
-                     "and/or \"{1}\") already exists, but the " +
-                     "FileHashMap.FORCE_OVERWRITE constructor flag " +
-                     "was not set.",
-                     new Object[]
-                     {
-                         valuesDBPath.getName(),
-                         indexFilePath.getName()
-                     });
-            }
+    /**
+     * Acquire the shared update lock, in a CONCURRENT map.
+     */
+    private void lockUpdates()
+    {
+        if (updateLock != null)
+            updateLock.readLock().lock();
+    }
 
-            // FORCE_OVERWRITE is set. Wipe out the files, and reset the
-            // existence count.
+    /**
+     * Release the shared update lock, in a CONCURRENT map.
+     */
+    private void unlockUpdates()
+    {
+        if (updateLock != null)
+            updateLock.readLock().unlock();
+    }
 
-            valuesDBPath.delete();
-            indexFilePath.delete();
-            filesFound = 0;
-        }
+    /**
+     * Compute the number of live bytes from the index.
+     */
+    private void countLiveBytes()
+    {
+        long total = 0;
 
-        switch (filesFound)
-        {
-            case 0:
-                if ((flags & NO_CREATE) != 0)
-                {
-                    // Can't localize this one. It's not one of our exceptions.
+        for (FileHashMapEntry<K> entry : indexMap.values())
+            total += entry.getObjectSize();
 
-                    throw new FileNotFoundException
-                                  ("On-disk hash table \"" +
-                                   pathPrefix +
-                                   "\" does not exist, and the " +
-                                   "FileHashMap.NO_CREATE flag was set.");
-                }
+        liveBytes.set (total);
+    }
 
-                createNewMap (this.valuesDBPath);
-                break;
+    /**
+     * Add an entry to the index, logging the change to the journal if the
+     * map is journaled. Returns once the journal record has been written.
+     *
+     * @param key    the key
+     * @param entry  the entry for the key's value
+     *
+     * @return the entry previously associated with the key, or null
+     *
+     * @throws IOException error writing the journal
+     */
+    private FileHashMapEntry<K> indexPut (K key, FileHashMapEntry<K> entry)
+        throws IOException
+    {
+        FileHashMapEntry<K> old;
 
-            case 1:
-                throw new ObjectExistsException
-                              (Package.BUNDLE_NAME,
-                               "FileHashMap.halfMissing",
-                               "One of the hash table files exists (\"{0}\" " +
-                               "or \"{1}\") exists, but the other one does " +
-                               "not.",
-                               new Object[]
-                               {
-                                   valuesDBPath.getName(),
-                                   indexFilePath.getName()
-                               });
+        if (journal == null)
+            old = indexMap.put (key, entry);
 
-            case 2:
-                valuesDB = new ValuesFile (valuesDBPath);
-                loadIndex();
-                break;
+        else
+        {
+            byte[] keyBytes = keyCodec.encode (key);
+            long   seq;
 
-            default:
-                assert (false);
+            synchronized (journal)
+            {
+                old = indexMap.put (key, entry);
+                seq = journal.log (JOURNAL_PUT,
+                                   entry.getFilePosition(),
+                                   entry.getSizeAndFlags(),
+                                   keyBytes);
+            }
+
+            journal.commit (seq, valuesDB);
         }
 
-        if ((flags & RECLAIM_FILE_GAPS) != 0)
-            findFileGaps();
+        liveBytes.addAndGet (entry.getObjectSize() -
+                             ((old == null) ? 0 : old.getObjectSize()));
+        invalidateCachedValue (key);
+        return old;
     }
 
-    /*----------------------------------------------------------------------*\
-                              Finalizer
-    \*----------------------------------------------------------------------*/
-
     /**
-     * Finalizer
+     * Remove an entry from the index, logging the change to the journal if
+     * the map is journaled. If the journal can't be written, the map is
+     * marked invalid, as with clear().
      *
-     * @throws throwable on error
+     * @param key  the key
+     *
+     * @return the removed entry, or null
      */
-    protected void finalize()
-        throws Throwable
+    private FileHashMapEntry<K> indexRemoveNoError (Object key)
     {
+        FileHashMapEntry<K> entry;
+
+        if (journal == null)
+        {
+            entry = indexMap.remove (key);
+            if (entry != null)
+            {
+                liveBytes.addAndGet (-entry.getObjectSize());
+                invalidateCachedValue (key);
+            }
+            return entry;
+        }
+
+        entry = indexMap.get (key);
+
+        if (entry == null)
+            return null;
+
         try
         {
-            close();
+            byte[] keyBytes = keyCodec.encode (entry.getKey());
+            long   seq      = 0;
+
+            synchronized (journal)
+            {
+                entry = indexMap.remove (key);
+                if (entry != null)
+                    seq = journal.log (JOURNAL_REMOVE, 0, 0, keyBytes);
+            }
+
+            if (entry != null)
+            {
+                liveBytes.addAndGet (-entry.getObjectSize());
+                invalidateCachedValue (key);
+            }
+
+            if (seq != 0)
+                journal.commit (seq, valuesDB);
         }
 
         catch (IOException ex)
         {
-            log.error("Error during finalize", ex);
+            log.error ("Failed to journal removal from FileHashMap \"" +
+                       filePrefix + "\"",
+                       ex);
+            valid = false;
         }
 
-        super.finalize();
+        return entry;
     }
 
-    /*----------------------------------------------------------------------*\
-                              Public Methods
-    \*----------------------------------------------------------------------*/
+    /**
+     * Save the index and empty the journal. Index changes are blocked
+     * while the checkpoint is taken, so every change is either in the
+     * saved index or in the emptied journal's successor records.
+     *
+     * @throws IOException  on error
+     */
+    private synchronized void checkpoint()
+        throws IOException
+    {
+        synchronized (journal)
+        {
+            saveIndex();
+            journal.reset();
+        }
+    }
 
     /**
-     * <p>Removes all mappings from this map. The data file is cleared by
-     * closing it, deleting it, and reopening it. If an I/O error occurs at
-     * any point, this object will be closed and marked invalid.</p>
+     * Open the journal, if the map is journaled, and replay any records
+     * left in an existing journal. If the map is not journaled, but a
+     * journal file exists, it's replayed, the index is saved, and the
+     * journal is removed. Either way, the logical length of a mapped data
+     * file is then restored.
+     *
+     * @throws IOException             on error
+     * @throws ClassNotFoundException  error decoding a key
+     * @throws VersionMismatchException bad version in journal file
      */
-    public synchronized void clear()
+    private void openJournal()
+        throws IOException,
+               ClassNotFoundException,
+               VersionMismatchException
     {
-        checkValidity();
-        indexMap.clear();
+        boolean journaled = ((flags & JOURNALED) != 0);
+
+        if ((! journaled) && (! journalFilePath.exists()))
+        {
+            restoreDataLength();
+            return;
+        }
+
+        Journal j = new Journal (journalFilePath);
 
         try
         {
-            // Implement the clear operation by truncating the data file.
+            int total = replayJournal (j);
 
-            valuesDB.getFile().getChannel().truncate (0);
-            modified = true;
+            // The index may be saved below, and records the data file's
+            // logical length, so the length must be restored first.
+
+            restoreDataLength();
+
+            if (total > 0)
+            {
+                log.debug ("Replayed " + total + " journal records from \"" +
+                           journalFilePath.getPath() + "\"");
+                modified = true;
+            }
+
+            if (journaled)
+            {
+                journal = j;
+                j = null;
+            }
+
+            else
+            {
+                saveIndex();
+            }
         }
 
-        catch (IOException ex)
+        finally
         {
-            log.error ("Failed to truncate FileHashMap file \"" +
-                       valuesDBPath.getPath() + "\"",
-                       ex);
-            valid = false;
+            if (j != null)
+            {
+                j.close();
+                if (! journaled)
+                    journalFilePath.delete();
+            }
         }
     }
 
     /**
-     * <p>Close this map. If the map is not marked as transient, this method
-     * saves the index to disk. Otherwise, it removes both the index file
-     * and data file.</p>
+     * Apply the records in a journal to the in-memory index. Replay stops
+     * at the first incomplete or corrupt record, and the journal is
+     * truncated there.
      *
-     * @throws NotSerializableException Can't save index (bug)
-     * @throws IOException              Error writing index
+     * @param j  the journal
      *
-     * @see #save
+     * @return the number of records replayed
+     *
+     * @throws IOException              on error
+     * @throws ClassNotFoundException   error decoding a key
+     * @throws VersionMismatchException bad version in journal file
      */
-    public synchronized void close()
-        throws NotSerializableException,
-               IOException
+    private int replayJournal (Journal j)
+        throws IOException,
+               ClassNotFoundException,
+               VersionMismatchException
     {
-        if (valid)
+        FileChannel channel = j.getChannel();
+        long        fileSize = channel.size();
+        long        end;
+        int         total = 0;
+
+        channel.position (0);
+
+        IndexReader reader = new IndexReader (channel);
+        checkVersion (journalFilePath,
+                      JOURNAL_VERSION_STAMP,
+                      reader.getString());
+
+        end = j.getHeaderLength();
+
+        CRC32 crc = new CRC32();
+
+        try
         {
-            if ((flags & TRANSIENT) != 0)
+            for (;;)
             {
-                // Be sure to remove the data files.
+                if (end + JOURNAL_RECORD_HEADER_SIZE > fileSize)
+                    break;
 
-                if (valuesDB != null)
+                int  bodyLength = reader.getInt();
+                int  checksum   = reader.getInt();
+                long next       = end + JOURNAL_RECORD_HEADER_SIZE + bodyLength;
+
+                if ((bodyLength < 1) || (next > fileSize))
+                    break;
+
+                byte[] body = new byte[bodyLength];
+                reader.getBytes (body);
+
+                crc.reset();
+                crc.update (body, 0, bodyLength);
+                if (((int) crc.getValue()) != checksum)
+                    break;
+
+                ByteBuffer buf = ByteBuffer.wrap (body);
+
+                switch (buf.get())
                 {
-                    valuesDB.close();
-                    valuesDB = null;
+                    case JOURNAL_PUT:
+                        long pos  = buf.getLong();
+                        int  size = buf.getInt();
+                        K    key  = keyCodec.decode (body,
+                                                     buf.position(),
+                                                     buf.remaining());
+                        indexMap.put (key,
+                                      FileHashMapEntry.fromSizeAndFlags
+                                          (pos, size, key, 0));
+                        break;
+
+                    case JOURNAL_REMOVE:
+                        indexMap.remove (keyCodec.decode (body,
+                                                          buf.position(),
+                                                          buf.remaining()));
+                        break;
+
+                    case JOURNAL_CLEAR:
+                        indexMap.clear();
+                        break;
+
+                    default:
+                        throw new IOException ("Unknown record type in " +
+                                               "journal file \"" +
+                                               journalFilePath.getPath() +
+                                               "\"");
                 }
 
-                deleteMapFiles();
+                end = next;
+                total++;
             }
+        }
 
-            else
-            {
-                save();
-            }
+        catch (EOFException ex)
+        {
+            // Torn record at the end of the journal.
+        }
 
-            valid = false;
+        if (end < fileSize)
+        {
+            log.debug ("Discarding " + (fileSize - end) + " bytes at end " +
+                       "of journal \"" + journalFilePath.getPath() + "\"");
+            j.truncate (end);
         }
+
+        return total;
     }
 
     /**
-     * <p>Returns <tt>true</tt> if this map contains a mapping for the
-     * specified key. Since the keys are cached in an in-memory index, this
-     * method does not have to access the data file, and is fairly
-     * cheap.</p>
-     *
-     * @param key key whose presence in this map is to be tested
+     * Note that the space occupied by a value is no longer in use.
      *
-     * @return <tt>true</tt> if this map contains a mapping for the specified
-     *         key, <tt>false</tt> otherwise.
+     * @param entry  the entry for the value
      */
-    public boolean containsKey (Object key)
+    private void releaseSpace (FileHashMapEntry<K> entry)
     {
-        checkValidity();
-        return indexMap.containsKey (key);
+        if ((flags & RECLAIM_FILE_GAPS) != 0)
+        {
+            log.debug ("Releasing space at pos=" + entry.getFilePosition() +
+                       ", size=" + entry.getObjectSize());
+
+            synchronized (this)
+            {
+                // Space in a data file that has since been compacted away
+                // is of no interest.
+
+                if (entry.getGeneration() != valuesDB.getGeneration())
+                    return;
+
+                // A snapshot may still need the value. So may a lock-free
+                // reader, in a CONCURRENT map.
+
+                if (openSnapshots > 0)
+                    deferredReleases.add (entry);
+
+                else if (epochReaders != null)
+                {
+                    currentEpochReleases.add (entry);
+                    epochReleasesPending = true;
+                    advanceReadEpoch();
+                }
+
+                else
+                    fileGaps.release (entry.getFilePosition(),
+                                      entry.getObjectSize());
+            }
+        }
     }
 
     /**
-     * <p>Returns <tt>true</tt> if this map maps one or more keys that are
-     * mapped to the specified value. Because it must iterate through some
-     * portion of the on-disk value set, this method can be slow.</p>
+     * Register a lock-free reader in the current reader epoch, in a map
+     * that tracks readers (see epochReaders). Once registered, the reader
+     * may read any value that's in the index, or that it finds in the
+     * index; an entry it obtained before registering must be looked up
+     * again. The reader must call exitRead() when it's finished.
      *
-     * @param value value whose presence in this map is to be tested.
+     * @return the reader's epoch slot, or -1 if the map doesn't track
+     *         readers
+     */
+    private int enterRead()
+    {
+        AtomicInteger[] readers = epochReaders;
+
+        if (readers == null)
+            return -1;
+
+        for (;;)
+        {
+            long epoch = readEpoch;
+            int  slot  = (int) (epoch & 1);
+
+            readers[slot].incrementAndGet();
+            if (readEpoch == epoch)
+                return slot;
+
+            // The epoch advanced meanwhile, possibly without seeing this
+            // reader. Register in the new one.
+
+            readers[slot].decrementAndGet();
+        }
+    }
+
+    /**
+     * Note that a reader registered by enterRead() has finished. The
+     * space it was holding is handed to the allocator by the next update
+     * or allocation, rather than here, so that a reader never waits for
+     * the map's monitor.
      *
-     * @return <tt>true</tt> if this map maps one or more keys to the
-     *         specified value, <tt>false</tt> otherwise.
+     * @param slot  the value returned by enterRead()
      */
-    public boolean containsValue (Object value)
+    private void exitRead (int slot)
     {
-        checkValidity();
-        return new ValueSet().contains (value);
+        if (slot >= 0)
+            epochReaders[slot].decrementAndGet();
     }
 
     /**
-     * Deletes the files backing this <tt>FileHashMap</tt>. This method
-     * implicitly calls {@link #close}.
+     * Hand the space queued by releaseSpace() to the allocator, as far as
+     * the registered readers allow: advance the reader epoch (at most
+     * twice) for as long as no reader of the previous epoch remains.
+     * Called while synchronized on the map.
      */
-    public void delete()
+    private void advanceReadEpoch()
     {
-        try
+        for (int i = 0; (i < 2) && epochReleasesPending; i++)
         {
-            close();
-        }
+            long epoch = readEpoch;
 
-        catch (NotSerializableException ex)
-        {
-        }
+            if (epochReaders[(int) ((epoch + 1) & 1)].get() != 0)
+                break;
 
-        catch (IOException ex)
-        {
-        }
+            // Space in a data file that has since been compacted away is
+            // of no interest.
 
-        deleteMapFiles();
+            int generation = valuesDB.getGeneration();
+
+            for (FileHashMapEntry<K> entry : previousEpochReleases)
+            {
+                if (entry.getGeneration() == generation)
+                {
+                    fileGaps.release (entry.getFilePosition(),
+                                      entry.getObjectSize());
+                }
+            }
+
+            List<FileHashMapEntry<K>> released = previousEpochReleases;
+
+            released.clear();
+            previousEpochReleases = currentEpochReleases;
+            currentEpochReleases  = released;
+            epochReleasesPending  = ! previousEpochReleases.isEmpty();
+            readEpoch             = epoch + 1;
+        }
     }
 
     /**
-     * <p>Returns a "thin" set view of the mappings contained in this map.
-     * Each element in the returned set is a <tt>Map.Entry</tt>; each
-     * <tt>Map.Entry</tt> contains a key and a proxy for the associated value.
-     * The map's values themselves are not loaded into memory until requested
-     * via a call to <tt>Map.Entry.getValue()</tt>.</p>
-     *
-     * <p>The set is backed by the map, so changes to the map are reflected
-     * in the set. If the map is modified while an iteration over the set
-     * is in progress, the results of the iteration are undefined. Neither
-     * the set nor its associated iterator supports any of the
-     * set-modification methods (e.g., <tt>add()</tt>, <tt>remove()</tt>,
-     * etc). If you attempt to call any of those methods, the called method
-     * will throw an <tt>UnsupportedOperationException</tt>.</p>
-     *
-     * <p>NOTE: Calling this method on an invalid or closed
-     * <tt>FileHashMap</tt> will result in an exception.</p>
+     * Read the value of an entry that was obtained from the index some
+     * time ago, by an iterator. In a map that tracks readers, the entry's
+     * space may have been reused since, so the key is looked up again,
+     * and its current value returned.
      *
-     * @return a set view of the mappings contained in this map.
+     * @param entry  the entry
      *
-     * @see #keySet
-     * @see #values
-     * @see UnsupportedOperationException
+     * @return the value, or null if it can't be read or the key has since
+     *         been removed
      */
-    public Set<Map.Entry<K,V>> entrySet()
+    private V readCurrentValueNoError (FileHashMapEntry<K> entry)
     {
-        checkValidity();
+        int slot = enterRead();
 
-        if (entrySetResult == null)
-            entrySetResult = new EntrySet();
+        try
+        {
+            if (slot >= 0)
+            {
+                entry = indexMap.get (entry.getKey());
+                if (entry == null)
+                    return null;
+            }
 
-        return (Set<Map.Entry<K,V>>) entrySetResult;
+            return readValueNoError (entry);
+        }
+
+        finally
+        {
+            exitRead (slot);
+        }
     }
 
     /**
-     * <p>Compares the specified object with this map for equality.  Returns
-     * <tt>true</tt> if the given object is also a map and the two Maps
-     * represent the same mappings.  More formally, two maps <tt>t1</tt> and
-     * <tt>t2</tt> represent the same mappings if
-     * <tt>t1.entrySet().equals(t2.entrySet())</tt>.  This ensures that the
-     * <tt>equals</tt> method works properly across different implementations
-     * of the <tt>Map</tt> interface.</p>
-     *
-     * <p><b>Warning:</b>: Because this method must compare the actual
-     * values stored in the map, and the values in a file, this method can
-     * be quite slow.</p>
-     *
-     * @param o object to be compared for equality with this map.
-     *
-     * @return <tt>true</tt> if the specified object is equal to this map.
+     * Note that a snapshot has been closed. When the last one is closed,
+     * the space that was held for the snapshots is released.
      */
-    public boolean equals (Object o)
+    private synchronized void releaseSnapshot()
     {
-        checkValidity();
+        if (--openSnapshots > 0)
+            return;
 
-        return super.equals (o);
+        List<FileHashMapEntry<K>> entries = deferredReleases;
+
+        deferredReleases = new ArrayList<FileHashMapEntry<K>>();
+        if (valid)
+        {
+            for (FileHashMapEntry<K> entry : entries)
+                releaseSpace (entry);
+        }
     }
 
     /**
-     * <p>Returns the value associated with the the specified key.  Returns
-     * <tt>null</tt> if the map contains no mapping for this key.</p>
-     *
-     * @param key key whose associated value is to be returned.
-     *
-     * @return the value to which this map maps the specified key, or
-     *         <tt>null</tt> if the map contains no mapping for this key.
-     *
-     * @throws ClassCastException   if the key is of an inappropriate type for
-     *                              this map.
-     * @throws NullPointerException key is <tt>null</tt>
+     * Locate gaps in the file by traversing the index. Initializes or
+     * reinitializes the fileGaps instance variable. After this, the gaps
+     * are maintained incrementally, as space is allocated and released.
      *
-     * @see #containsKey(Object)
+     * @throws IOException on error
      */
-    public V get (Object key)
+    private void findFileGaps()
+        throws IOException
     {
-        checkValidity();
+        log.debug ("Looking for file gaps.");
 
-        V                   result = null;
-        FileHashMapEntry<K> entry = indexMap.get (key);
+        if (fileGaps == null)
+            fileGaps = new FileGapAllocator();
+        else
+            fileGaps.clear();
 
-        if (entry != null)
-            result = readValueNoError (entry);
+        long end = 0;
 
-        return result;
-    }
+        for (FileHashMapEntry<K> entry : getSortedEntries())
+        {
+            long pos = entry.getFilePosition();
 
-    /**
-     * <p>Returns the hash code value for this map. The hash code of a map
-     * is defined to be the sum of the hash codes of each entry in the
-     * map's <tt>entrySet()</tt> view. This ensures that
-     * <tt>t1.equals(t2)</tt> implies that
-     * <tt>t1.hashCode()==t2.hashCode()</tt> for any two maps <tt>t1</tt>
-     * and <tt>t2</tt>, as required by the general contract of
-     * Object.hashCode.</p>
-     *
-     * <p><b>Warning:</b>: The recommended hash code for each entry in the
-     * <tt>entrySet()</tt> view is a combination of hash codes for the
-     * entry's key and the entry's value. (See <tt>java.util.Map.Entry</tt>
-     * for details.) Because the values in a <tt>FileHashMap</tt> object
-     * are stored in a file, this method can be quite slow.</p>
-     *
-     * @return the hash code value for this map.
-     *
-     * @see Object#hashCode()
-     * @see Object#equals(Object)
-     * @see #equals(Object)
-     */
-    public int hashCode()
-    {
-        checkValidity();
+            if (pos > end)
+            {
+                log.debug ("Gap at position " + end + " of size " +
+                           (pos - end));
+                fileGaps.release (end, pos - end);
+            }
 
-        return super.hashCode();
+            end = Math.max (end, pos + entry.getObjectSize());
+        }
+
+        // Space after the last value (left by values removed in an earlier
+        // session) is also a gap.
+
+        long length = valuesDB.length();
+        if (length > end)
+        {
+            log.debug ("Gap at end of file, position " + end + " of size " +
+                       (length - end));
+            fileGaps.release (end, length - end);
+        }
     }
 
     /**
-     * Determine whether the <tt>FileHashMap</tt> is valid or not. Once
-     * a <tt>FileHashMap</tt> has been closed, it is invalid and can no
-     * longer be used.
+     * Get the list of FileHashMapEntry pointers for the values, sorted
+     * in ascending file position order.
      *
-     * @return <tt>true</tt> if this object is valid, <tt>false</tt> if not
+     * @return A sorted list of FileHashMapEntry objects.
      */
-    public boolean isValid()
+    private List<FileHashMapEntry<K>> getSortedEntries()
     {
-        return valid;
+        // Get the set of values in the hash index. Each value is a
+        // FileHashMapEntry object.
+
+        List<FileHashMapEntry<K>> vals = new ArrayList<FileHashMapEntry<K>>();
+        vals.addAll (indexMap.values());
+
+        // Sort the list.
+
+        Collections.sort (vals, new FileHashMapEntryComparator());
+
+        return vals;
     }
 
     /**
-     * <p>Returns a <tt>Set</tt> containing all the keys in this map. Since
-     * the keys are cached in memory, this method is relatively efficient.
-     * The keys are returned in an order that optimizes sequential access
-     * to the data file; see the <b>Optimizations</b> section in the main
-     * class documentation for details.</p>
-     *
-     * <p>The set is backed by the map, so changes to the map are reflected
-     * in the set. If the map is modified while an iteration over the set
-     * is in progress, the results of the iteration are undefined. Neither
-     * the set nor its associated iterator supports any of the
-     * set-modification methods (e.g., <tt>add()</tt>, <tt>remove()</tt>,
-     * etc). If you attempt to call any of those methods, the called method
-     * will throw an <tt>UnsupportedOperationException</tt>.</p>
+     * Load the index from its disk file. Both the binary format and the
+     * older serialized format are supported.
      *
-     * @return a set view of the keys contained in this map.
+     * @throws IOException              on error
+     * @throws ClassNotFoundException   error deserializing one of the objects
+     * @throws VersionMismatchException bad version in index file
      */
-    public Set<K> keySet()
+    private void loadIndex()
+        throws IOException,
+               ClassNotFoundException,
+               VersionMismatchException
     {
-        checkValidity();
-        return new KeySet();
+        FileInputStream in = new FileInputStream (this.indexFilePath);
+
+        try
+        {
+            // A serialized index begins with the serialization stream
+            // magic number. A binary index begins with the length of the
+            // version stamp, which is much smaller.
+
+            FileChannel channel = in.getChannel();
+            ByteBuffer  magic   = ByteBuffer.allocate (2);
+
+            while (magic.hasRemaining() && (channel.read (magic) >= 0))
+                continue;
+
+            channel.position (0);
+            if ((! magic.hasRemaining()) &&
+                ((magic.getShort (0) & 0xffff) == SERIALIZATION_MAGIC))
+            {
+                loadSerializedIndex (in);
+            }
+
+            else
+            {
+                loadBinaryIndex (channel);
+            }
+        }
+
+        finally
+        {
+            in.close();
+        }
     }
 
     /**
-     * <p>Associates the specified value with the specified key in this map.
-     * If the map previously contained a mapping for this key, the old
-     * value is replaced. This map class does not permit a null value to be
-     * stored.</p>
+     * Load a binary index file. Keys are decoded directly from the read
+     * buffer whenever possible, and entries are inserted directly into a
+     * presized index, so no intermediate objects are created.
      *
-     * @param key   key with which the specified value is to be associated.
-     * @param value value to be associated with the specified key.
-     *
-     * @return previous value associated with specified key, or <tt>null</tt>
-     *         if there was no mapping for key.
+     * @param channel  the open index file
      *
-     * @throws ClassCastException        if the class of the specified key or
-     *                                   value prevents it from being stored
-     *                                   in this map.
-     * @throws IllegalArgumentException  Value not serializable, or I/O error
-     *                                   while attempting to serialize value.
-     * @throws NullPointerException      the specified key or value is
-     *                                   <tt>null</tt>.
+     * @throws IOException              on error
+     * @throws ClassNotFoundException   error decoding one of the keys
+     * @throws VersionMismatchException bad version in index file
      */
-    public V put (K key, V value)
-        throws ClassCastException,
-               IllegalArgumentException,
-               NullPointerException
+    private void loadBinaryIndex (FileChannel channel)
+        throws IOException,
+               ClassNotFoundException,
+               VersionMismatchException
     {
-        checkValidity();
+        IndexReader reader  = new IndexReader (channel);
+        String      version = reader.getString();
 
-        V result = null;
-
-        if (key == null)
-            throw new NullPointerException ("null key parameter");     // NOPMD
+        checkVersion (indexFilePath, VERSION_STAMP, version);
 
-        if (value == null)
-            throw new NullPointerException ("null value parameter");   // NOPMD
+        long total = reader.getLong();
+        indexMap = newIndexMap ((int) Math.min (total, Integer.MAX_VALUE));
 
-        if (! (value instanceof Serializable))
-            throw new IllegalArgumentException ("Value is not serializable.");
+        for (long i = 0; i < total; i++)
+        {
+            long pos       = reader.getLong();
+            int  size      = reader.getInt();
+            int  keyLength = reader.getInt();
+            K    key;
 
-        // NOTE: We don't check the key for serializability. It's perfectly
-        // reasonable to use unserializable keys if the hash map is transient.
-        // Unserializable keys will be caught on save, for persistent maps.
+            if (keyLength <= INDEX_BUFFER_SIZE)
+            {
+                reader.require (keyLength);
 
-        try
-        {
-            FileHashMapEntry<K> old = indexMap.get (key);
+                ByteBuffer buf = reader.buffer();
+                int        start = buf.position();
 
-            // Read the old value first. Then, modify the index and write
-            // the new value. That way, we can reclaim the old value's space
-            // if RECLAIM_FILE_GAPS is enabled.
+                key = keyCodec.decode (buf.array(),
+                                       buf.arrayOffset() + start,
+                                       keyLength);
+                buf.position (start + keyLength);
+            }
 
-            if (old != null)
+            else
             {
-                result = readValueNoError (old);
+                byte[] keyBytes = new byte[keyLength];
+                reader.getBytes (keyBytes);
+                key = keyCodec.decode (keyBytes, 0, keyLength);
+            }
 
-                // Removing the key forces the space to be listed in the gaps
-                // list.
+            indexMap.put (key,
+                          FileHashMapEntry.fromSizeAndFlags (pos, size,
+                                                             key, 0));
+        }
 
-                remove (key);
-            }
+        // The entries are followed by the logical length of the data file.
+        // Older index files don't have it.
 
-            FileHashMapEntry<K> entry = writeValue (key, value);
-            indexMap.put (key, entry);
-            modified = true;
+        try
+        {
+            savedDataLength = reader.getLong();
         }
 
-        catch (IOException ex)
+        catch (EOFException ex)
         {
-            throw new IllegalArgumentException ("Error saving value: " +
-                                                ex.getMessage());
+            savedDataLength = 0;
         }
-
-        return result;
     }
 
     /**
-     * <p>Removes the mapping for this key from this map, if present.
-     * <b>Note:</b> The space occupied by the serialized value in the
-     * data file is <i>not</i> coalesced at this point.</p>
-     *
-     * @param key key whose mapping is to be removed from the map.
-     *
-     * @return previous value associated with specified key, or <tt>null</tt>
-     *         if there was no mapping for key.
+     * Restore the logical length of a memory-mapped data file, which is
+     * physically padded to a segment boundary if the map wasn't closed.
+     * The length is the larger of the length recorded in the index and
+     * the end of the last value the index refers to.
      */
-    public V remove (Object key)
+    private void restoreDataLength()
     {
-        checkValidity();
+        if (! valuesDB.isMapped())
+            return;
 
-        V result = null;
-
-        // We do nothing with the space in the data file for any existing
-        // item. It remains in the data file, but is unreferenced.
+        long end = savedDataLength;
 
-        if (indexMap.containsKey (key))
+        for (FileHashMapEntry<K> entry : indexMap.values())
         {
-            FileHashMapEntry<K> entry = indexMap.get (key);
-            result = readValueNoError (entry);
-            indexMap.remove (key);
-            modified = true;
-
-            if ((flags & RECLAIM_FILE_GAPS) != 0)
-            {
-                // Have to recalculate gaps, since we may be able to coalesce
-                // this returned space with ones to either side of it.
-
-                log.debug ("Removed value for key \"" +
-                           key +
-                           "\" at pos=" +
-                           entry.getFilePosition() +
-                           ", size=" +
-                           entry.getObjectSize() +
-                           ". Re-figuring gaps.");
-                findFileGaps();
-            }
+            end = Math.max (end,
+                            entry.getFilePosition() + entry.getObjectSize());
         }
 
-        return result;
+        valuesDB.restoreLength (end);
     }
 
-
     /**
-     * <p>Save any in-memory index changes to disk without closing the map.
-     * You can call this method even if the map is marked as temporary;
-     * on a temporary map, <tt>save()</tt> simply returns without doing
-     * anything.</p>
+     * Load an index file that was saved, in its entirety, using Java
+     * serialization.
      *
-     * @throws IOException              Error saving changes to disk.
-     * @throws NotSerializableException Can't save index because it contains
-     *                                  one or more objects that cannot be
-     *                                  serialized.
+     * @param in  the open index file
      *
-     * @see #close
+     * @throws IOException              on error
+     * @throws ClassNotFoundException   error deserializing one of the objects
+     * @throws VersionMismatchException bad version in index file
      */
-    public void save()
+    private void loadSerializedIndex (InputStream in)
         throws IOException,
-               NotSerializableException
+               ClassNotFoundException,
+               VersionMismatchException
     {
-        checkValidity();
+        ObjectInputStream  objStream;
+        String             version;
 
-        if ( ((flags & TRANSIENT) == 0) && modified )
-            saveIndex();
+        objStream = new ObjectInputStream (in);
+        version = (String) objStream.readObject();
+
+        checkVersion (indexFilePath, SERIALIZED_INDEX_VERSION_STAMP, version);
+
+        // This typecast will generate an "unchecked cast" exception.
+        // Unfortunately, there's no way around it (other than to avoid
+        // making calls like this). See
+        // http://www.langer.camelot.de/GenericsFAQ/JavaGenericsFAQ.html#Technicalities
+
+        Map<K, FileHashMapEntry<K>> savedIndex;
+
+        savedIndex = (Map<K, FileHashMapEntry<K>>) objStream.readObject();
+        indexMap = newIndexMap (savedIndex.size());
+        indexMap.putAll (savedIndex);
+
+        // Make sure the index is rewritten in the current format.
+
+        modified = true;
     }
 
     /**
-     * <p>Returns the number of key-value mappings in this map. If the map
-     * contains more than <tt>Integer.MAX_VALUE</tt> elements, returns
-     * <tt>Integer.MAX_VALUE</tt>. This method queries the in-memory key
-     * index, so it is relatively efficient.</p>
+     * Verify the version stamp read from an index or journal file.
      *
-     * @return the number of key-value mappings in this map.
+     * @param file      the file
+     * @param expected  the expected version stamp
+     * @param version   the version stamp read from the file
+     *
+     * @throws VersionMismatchException the version stamps don't match
      */
-    public int size()
+    private void checkVersion (File file, String expected, String version)
+        throws VersionMismatchException
     {
-        checkValidity();
-        return currentSize();
+        if (! version.equals (expected))
+        {
+            throw new VersionMismatchException
+                          (Package.BUNDLE_NAME,
+                           "FileHashMap.versionMismatch",
+                           "FileHashMap version mismatch in index file " +
+                           "\"{0}\". Expected version \"{1}\", found " +
+                           "version \"{2}\"",
+                           new Object[]
+                           {
+                               file.getName(),
+                               expected,
+                               version
+                           },
+                           expected,
+                           version);
+        }
     }
 
     /**
-     * <p>Returns a collection view of the values contained in this map. The
-     * returned collection is a "thin" view of the values contained in
-     * this map. The collection contains proxies for the actual disk-resident
-     * values; the values themselves are not loaded until a
-     * <tt>Collection</tt> method such as <tt>contains()</tt> is called.</p>
+     * Read an object from a specific location in the random access file
+     * data file.
      *
-     * <p>The collection is backed by the map, so changes to the map are
-     * reflected in the set. If the map is modified while an iteration over
-     * the set is in progress, the results of the iteration are undefined.</p>
-     * The set does not support any of the <tt>add()</tt> methods.</p>
+     * @param entry  The FileHashMapEntry specifying the object's location
      *
-     * <p><b>Warning:</b>: The <tt>toArray()</tt> methods can be dangerous,
-     * since they will attempt to load every value from the data file into
-     * an in-memory array.</p>
+     * @return the object
      *
-     * @return a collection view of the values contained in this map.
+     * @throws IOException            Read error
+     * @throws ClassNotFoundException The serialized class read from the
+     *                                   file cannot be loaded
+     * @throws IllegalStateException  No object stored at location (i.e.,
+     *                                   no size value has been set)
      *
-     * @see #keySet
-     * @see #values
+     * @see #getFilePosition
+     * @see #writeObject
      */
-    public Collection<V> values()
+    private V readValue (FileHashMapEntry<K> entry)
+        throws IOException,
+               ClassNotFoundException,
+               IllegalStateException
     {
-        checkValidity();
+        int                size      = entry.getObjectSize();
+        byte               byteBuf[] = new byte[size];
+        int                sizeRead;
 
-        return new ValueSet();
-    }
+        for (;;)
+        {
+            // Find the generation of the data file the entry refers to.
+            // If the map has been compacted more than once since the
+            // entry was obtained, look it up again.
 
-    /*----------------------------------------------------------------------*\
-                              Private Methods
-    \*----------------------------------------------------------------------*/
+            ValuesFile db = fileFor (entry);
 
-    /**
-     * Throw an exception if the object isn't valid.
-     */
-    private void checkValidity()
-    {
-        if (! valid)
-            throw new IllegalStateException ("Invalid FileHashMap object");
+            if (db == null)
+            {
+                entry = indexMap.get (entry.getKey());
+                if (entry == null)
+                    throw new IOException ("Value has been removed.");
+
+                size    = entry.getObjectSize();
+                byteBuf = new byte[size];
+                continue;
+            }
+
+            // Load the serialized object into memory. A memory-mapped
+            // file, or one that's accessed via positional reads, can be
+            // read by multiple threads at once; otherwise, the file pointer
+            // has to be protected.
+
+            try
+            {
+                if (db.supportsConcurrentAccess())
+                    sizeRead = db.read (entry.getFilePosition(), byteBuf);
+
+                else
+                {
+                    synchronized (this)
+                    {
+                        sizeRead = db.read (entry.getFilePosition(), byteBuf);
+                    }
+                }
+            }
+
+            catch (IOException ex)
+            {
+                // The file may have been closed by a compaction. If so,
+                // try again.
+
+                if (db.getGeneration() + 1 >= valuesDB.getGeneration())
+                    throw ex;
+
+                continue;
+            }
+
+            break;
+        }
+
+        if (sizeRead != size)
+        {
+            throw new IOException ("Expected to read " +
+                                   size +
+                                   "-byte serialized object from " +
+                                   " on-disk data file. Got only " +
+                                   sizeRead +
+                                   " bytes.");
+        }
+
+        // Let the codec decode the actual object itself.
+
+        return decodeValue (entry, byteBuf, 0);
     }
 
     /**
-     * Initialize a new index and data file for a hash map being created.
-     * Used only by the constructors.
+     * Decode a stored value, decompressing it first if necessary.
      *
-     * @param valuesDBPath  path to the data file
+     * @param entry   the value's entry
+     * @param buf     buffer containing the stored value
+     * @param offset  offset of the value within the buffer
      *
-     * @throws IOException I/O error
+     * @return the value
+     *
+     * @throws IOException            bad compressed data, or decoding error
+     * @throws ClassNotFoundException decoding error
      */
-    private void createNewMap (File valuesDBPath)
-        throws IOException
+    private V decodeValue (FileHashMapEntry<K> entry, byte[] buf, int offset)
+        throws IOException,
+               ClassNotFoundException
     {
-        this.valuesDB = new ValuesFile (valuesDBPath);
-        this.indexMap = new HashMap<K, FileHashMapEntry<K>>();
+        int size = entry.getObjectSize();
+
+        if (! entry.isCompressed())
+            return valueCodec.decode (buf, offset, size);
+
+        byte[] raw = inflateValue (buf, offset, size);
+
+        return valueCodec.decode (raw, 0, raw.length);
     }
 
     /**
-     * Determine the size of this map. Basically, this method just consolidates
-     * the size-determination logic in one place.
+     * Decompress a stored value.
      *
-     * @return the size
+     * @param buf     buffer containing the compressed value
+     * @param offset  offset of the value within the buffer
+     * @param size    size of the compressed value
+     *
+     * @return the encoded value
+     *
+     * @throws IOException bad compressed data
      */
-    private int currentSize()
+    private byte[] inflateValue (byte[] buf, int offset, int size)
+        throws IOException
     {
-        return indexMap.size();
-    }
+        if (size < 4)
+            throw new IOException ("Truncated compressed value.");
 
-    /**
-     * Locate gaps in the file by traversing the index. Initializes or
-     * reinitializes the fileGaps instance variable.
-     */
-    private void findFileGaps()
-    {
-        log.debug ("Looking for file gaps.");
+        int      rawSize  = ByteBuffer.wrap (buf, offset, 4).getInt();
+        byte[]   raw      = new byte[rawSize];
+        Inflater inflater = inflaters.poll();
 
-        if (fileGaps == null)
-            fileGaps = new TreeSet<FileHashMapEntry<K>> (new FileHashMapEntryGapComparator());
-        else
-            fileGaps.clear();
+        if (inflater == null)
+            inflater = new Inflater();
 
-        if (currentSize() > 0)
+        try
         {
-            List<FileHashMapEntry<K>>     entries  = getSortedEntries();
-            FileHashMapEntry<K>           previous = null;
-            Iterator<FileHashMapEntry<K>> it       = entries.iterator();
+            inflater.setInput (buf, offset + 4, size - 4);
+            if ((inflater.inflate (raw) != rawSize) || (! inflater.finished()))
+                throw new IOException ("Corrupt compressed value.");
+        }
 
-            // Handle the first one specially.
+        catch (DataFormatException ex)
+        {
+            throw new IOException ("Corrupt compressed value: " +
+                                   ex.getMessage());
+        }
 
-            FileHashMapEntry<K> entry = it.next();
-            long pos  = entry.getFilePosition();
-            int  size = entry.getObjectSize();
+        finally
+        {
+            inflater.reset();
+            inflaters.offer (inflater);
+        }
 
-            if (pos > 0)
-            {
-                // There's a gap at the beginning.
+        return raw;
+    }
 
-                log.debug ("First entry is at pos " + pos + ", size=" + size);
-                size = (int) pos;
-                log.debug ("Gap at position 0 of size " + size);
-                fileGaps.add (new FileHashMapEntry<K> ((long) 0, size));
-            }
+    /**
+     * Queue an asynchronous operation, and make sure a task is draining
+     * the queue.
+     *
+     * @param request  the operation
+     *
+     * @return the operation's future
+     */
+    private CompletableFuture<V> queueAsync (AsyncRequest request)
+    {
+        checkValidity();
 
-            previous = entry;
+        asyncQueue.add (request);
 
-            while (it.hasNext())
-            {
-                entry = it.next();
+        if (asyncDraining.compareAndSet (false, true))
+        {
+            Executor executor = asyncExecutor;
 
-                long previousPos    = previous.getFilePosition();
-                long possibleGapPos = previousPos + previous.getObjectSize();
-                pos = entry.getFilePosition();
+            if (executor == null)
+                executor = getDefaultAsyncExecutor();
 
-                assert (pos > previousPos);
-                if (possibleGapPos != pos)
+            try
+            {
+                executor.execute (new Runnable()
                 {
-                    int gapSize = (int) (pos - possibleGapPos);
+                    public void run()
+                    {
+                        drainAsyncQueue();
+                    }
+                });
+            }
 
-                    log.debug ("Gap at position " + possibleGapPos +
-                               " of size " + gapSize);
-                    fileGaps.add (new FileHashMapEntry<K> (possibleGapPos,
-                                                           gapSize));
-                }
+            catch (RejectedExecutionException ex)
+            {
+                asyncDraining.set (false);
 
-                previous = entry;
+                AsyncRequest queued;
+                while ((queued = asyncQueue.poll()) != null)
+                    queued.future.completeExceptionally (ex);
             }
         }
+
+        return request.future;
     }
 
     /**
-     * Get the list of FileHashMapEntry pointers for the values, sorted
-     * in ascending file position order.
-     *
-     * @return A sorted list of FileHashMapEntry objects.
+     * Carry out queued asynchronous operations until the queue is empty.
+     * Only one thread drains the queue at a time.
      */
-    private List<FileHashMapEntry<K>> getSortedEntries()
+    private void drainAsyncQueue()
     {
-        // Get the set of values in the hash index. Each value is a
-        // FileHashMapEntry object.
+        for (;;)
+        {
+            AsyncRequest first;
 
-        List<FileHashMapEntry<K>> vals = new ArrayList<FileHashMapEntry<K>>();
-        vals.addAll (indexMap.values());
+            while ((first = asyncQueue.poll()) != null)
+                runAsyncBatch (first);
 
-        // Sort the list.
+            asyncDraining.set (false);
 
-        Collections.sort (vals, new FileHashMapEntryComparator());
+            // A request queued after the last poll, but before the flag
+            // was cleared, would otherwise be stranded.
 
-        return vals;
+            if (asyncQueue.isEmpty() || (! asyncDraining.compareAndSet (false,
+                                                                        true)))
+                break;
+        }
     }
 
     /**
-     * Load the index from its disk file.
+     * Carry out an asynchronous operation, along with any queued
+     * operations of the same type that immediately follow it and can be
+     * batched with it.
      *
-     * @throws IOException              on error
-     * @throws ClassNotFoundException   error deserializing one of the objects
-     * @throws VersionMismatchException bad version in index file
+     * @param first  the first operation
      */
-    private void loadIndex()
-        throws IOException,
-               ClassNotFoundException,
-               VersionMismatchException
+    private void runAsyncBatch (AsyncRequest first)
     {
-        ObjectInputStream  objStream;
-        String             version;
+        List<AsyncRequest> batch = new ArrayList<AsyncRequest>();
 
-        objStream = new ObjectInputStream
-                                  (new FileInputStream (this.indexFilePath));
-        version = (String) objStream.readObject();
+        batch.add (first);
 
-        if (! version.equals (VERSION_STAMP))
+        try
         {
-            throw new VersionMismatchException
-                          (Package.BUNDLE_NAME,
-                           "FileHashMap.versionMismatch",
-                           "FileHashMap version mismatch in index file " +
-                           "\"{0}\". Expected version \"{1}\", found " +
-                           "version \"{2}\"",
-                           new Object[]
-                           {
-                               indexFilePath.getName(),
-                               VERSION_STAMP,
-                               version
-                           },
-                           VERSION_STAMP,
-                           version);
+            switch (first.type)
+            {
+                case ASYNC_GET:
+                {
+                    Set<K> keys = new HashSet<K>();
+
+                    keys.add (first.key);
+                    while (batch.size() < ASYNC_BATCH_SIZE)
+                    {
+                        AsyncRequest next = asyncQueue.peek();
+
+                        if ((next == null) || (next.type != ASYNC_GET))
+                            break;
+
+                        batch.add (asyncQueue.poll());
+                        keys.add (next.key);
+                    }
+
+                    Map<K,V> values = getAll (keys);
+                    for (AsyncRequest request : batch)
+                        request.future.complete (values.get (request.key));
+                    break;
+                }
+
+                case ASYNC_PUT:
+                {
+                    // A second store to the same key ends the batch, so
+                    // the stores take effect in order.
+
+                    Map<K,V> values = new HashMap<K,V>();
+
+                    values.put (first.key, first.value);
+                    while (batch.size() < ASYNC_BATCH_SIZE)
+                    {
+                        AsyncRequest next = asyncQueue.peek();
+
+                        if ((next == null) ||
+                            (next.type != ASYNC_PUT) ||
+                            values.containsKey (next.key))
+                        {
+                            break;
+                        }
+
+                        batch.add (asyncQueue.poll());
+                        values.put (next.key, next.value);
+                    }
+
+                    putAll (values);
+                    for (AsyncRequest request : batch)
+                        request.future.complete (null);
+                    break;
+                }
+
+                default:
+                    first.future.complete (remove (first.key));
+                    break;
+            }
         }
 
-        // This typecast will generate an "unchecked cast" exception.
-        // Unfortunately, there's no way around it (other than to avoid
-        // making calls like this). See
-        // http://www.langer.camelot.de/GenericsFAQ/JavaGenericsFAQ.html#Technicalities
+        catch (Throwable ex)
+        {
+            // Errors, too, go to the callers, rather than out of the
+            // draining task, which would then leave the queue stalled,
+            // with its callers waiting forever.
 
-        indexMap = (HashMap<K, FileHashMapEntry<K>>) objStream.readObject();
+            for (AsyncRequest request : batch)
+                request.future.completeExceptionally (ex);
+        }
     }
 
     /**
-     * Read an object from a specific location in the random access file
-     * data file.
-     *
-     * @param entry  The FileHashMapEntry specifying the object's location
-     *
-     * @return the object
-     *
-     * @throws IOException            Read error
-     * @throws ClassNotFoundException The serialized class read from the
-     *                                   file cannot be loaded
-     * @throws IllegalStateException  No object stored at location (i.e.,
-     *                                   no size value has been set)
+     * Get the default executor for asynchronous operations, creating it if
+     * necessary. Virtual threads are used if the Java runtime has them;
+     * they're obtained via reflection, since this class is compiled for
+     * older runtimes.
      *
-     * @see #getFilePosition
-     * @see #writeObject
+     * @return the executor
      */
-    private V readValue (FileHashMapEntry<K> entry)
-        throws IOException,
-               ClassNotFoundException,
-               IllegalStateException
+    private static synchronized Executor getDefaultAsyncExecutor()
     {
-        int                size      = entry.getObjectSize();
-        byte               byteBuf[] = new byte[size];
-        int                sizeRead;
-        ObjectInputStream  objStream;
+        if (defaultAsyncExecutor == null)
+        {
+            try
+            {
+                Method factory = Executors.class.getMethod
+                    ("newVirtualThreadPerTaskExecutor");
 
-        // Load the serialized object into memory.
+                defaultAsyncExecutor = (Executor) factory.invoke (null);
+            }
 
-        synchronized (this)
-        {
-            RandomAccessFile valuesFile = valuesDB.getFile();
-            valuesFile.seek (entry.getFilePosition());
-            if ( (sizeRead = valuesFile.read (byteBuf)) != size )
+            catch (Exception ex)
             {
-                throw new IOException ("Expected to read " +
-                                       size +
-                                       "-byte serialized object from " +
-                                       " on-disk data file. Got only " +
-                                       sizeRead +
-                                       " bytes.");
+                defaultAsyncExecutor =
+                    Executors.newCachedThreadPool
+                        (new DaemonThreadFactory ("FileHashMap async"));
             }
         }
 
-        // Use a ByteArrayInputStream and an ObjectInputStream to read
-        // the actual object itself.
+        return defaultAsyncExecutor;
+    }
+
+    /**
+     * Find the generation of the data file that an entry refers to.
+     *
+     * @param entry  the entry
+     *
+     * @return the data file, or null if the map has been compacted more
+     *         than once since the entry was obtained (in which case it must
+     *         be looked up again)
+     */
+    private ValuesFile fileFor (FileHashMapEntry<K> entry)
+    {
+        ValuesFile db = valuesDB;
+
+        if (entry.getGeneration() == db.getGeneration())
+            return db;
 
-        objStream = new ObjectInputStream (new ByteArrayInputStream (byteBuf));
+        ValuesFile previous = db.getPrevious();
 
-        // This typecast will generate an "unchecked cast" exception.
-        // Unfortunately, there's no way around it (other than to avoid
-        // making calls like this). See
-        // http://www.langer.camelot.de/GenericsFAQ/JavaGenericsFAQ.html#Technicalities
+        if ((previous != null) &&
+            (previous.getGeneration() == entry.getGeneration()))
+        {
+            return previous;
+        }
 
-        return (V) objStream.readObject();
+        return null;
     }
 
     /**
@@ -1997,19 +7110,89 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
     }
 
     /**
-     * Save the index to its disk file.
+     * Save the index to its disk file, in the binary index format. The
+     * index is written to a temporary file, which then replaces the
+     * existing index file; a failed save leaves the old index intact.
      *
      * @throws IOException  on error
      */
-    private synchronized void saveIndex()
+    private void saveIndex()
         throws IOException
     {
-        ObjectOutputStream objStream;
+        saveIndex (indexFilePath);
+    }
+
+    /**
+     * Save the index to a specific file.
+     *
+     * @param indexFile  the file
+     *
+     * @throws IOException  on error
+     */
+    private synchronized void saveIndex (File indexFile)
+        throws IOException
+    {
+        boolean force = (durability != Durability.NONE);
+
+        // The data the index refers to must reach the device first.
+
+        if (force)
+            valuesDB.force();
+
+        File             tempFile = new File (indexFile.getPath() + ".tmp");
+        FileOutputStream out      = new FileOutputStream (tempFile);
+
+        try
+        {
+            FileChannel channel = out.getChannel();
+            IndexWriter writer  = new IndexWriter (channel);
+            long        total   = 0;
+
+            // The entry count isn't known until the entries have been
+            // written (in CONCURRENT mode, the index can change while it's
+            // being traversed), so a placeholder is written first and
+            // filled in afterwards.
 
-        objStream = new ObjectOutputStream
-                                   (new FileOutputStream (this.indexFilePath));
-        objStream.writeObject (VERSION_STAMP);
-        objStream.writeObject (indexMap);
+            writer.putString (VERSION_STAMP);
+            writer.flush();
+
+            long countPos = channel.position();
+            writer.putLong (0);
+
+            for (FileHashMapEntry<K> entry : indexMap.values())
+            {
+                byte[] keyBytes = keyCodec.encode (entry.getKey());
+
+                writer.reserve (INDEX_RECORD_SIZE);
+                writer.putLong (entry.getFilePosition());
+                writer.putInt (entry.getSizeAndFlags());
+                writer.putInt (keyBytes.length);
+                writer.putBytes (keyBytes);
+                total++;
+            }
+
+            // The logical length of the data file, so that a mapped file
+            // that wasn't trimmed can be restored to it. It's obtained
+            // after the entries, so it covers all of them.
+
+            writer.putLong (valuesDB.length());
+            writer.flush();
+
+            ByteBuffer count = ByteBuffer.allocate (8);
+            count.putLong (0, total);
+            while (count.hasRemaining())
+                channel.write (count, countPos + count.position());
+
+            if (force)
+                channel.force (false);
+        }
+
+        finally
+        {
+            out.close();
+        }
+
+        renameFile (tempFile, indexFile);
 
         if (log.isDebugEnabled())
         {
@@ -2030,7 +7213,8 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
     /**
      * Write an object to the end of the data file, recording its position
      * and length in a FileHashMapEntry object. Note: The object to be
-     * stored must implement the <tt>Serializable</tt> interface.
+     * stored must be encodable by the map's codec (which, by default,
+     * means it must implement the <tt>Serializable</tt> interface).
      *
      * @param key   The object's key (specified by the caller of
      *              FileHashMap.put())
@@ -2045,99 +7229,470 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
      * @see #getFilePosition
      * @see #readValue
      */
-    private synchronized FileHashMapEntry<K> writeValue (K key, V obj)
+    private FileHashMapEntry<K> writeValue (K key, V obj)
         throws IOException,
                NotSerializableException
     {
-        ObjectOutputStream     objStream;
-        ByteArrayOutputStream  byteStream;
-        int                    size;
-        long                   filePos = -1;
+        return writeValue (key, obj, null);
+    }
 
-        // Serialize the object to a byte buffer.
+    /**
+     * Store a value and index it, replacing the value it supersedes. Not
+     * for CONCURRENT maps.
+     *
+     * @param key    the key
+     * @param value  the value
+     * @param old    the entry for the value being replaced, or null
+     *
+     * @throws IOException                Write error
+     * @throws NotSerializableException   Object isn't serializable
+     */
+    private void replaceValue (K key, V value, FileHashMapEntry<K> old)
+        throws IOException,
+               NotSerializableException
+    {
+        indexPut (key, writeValue (key, value, old));
 
-        byteStream = new ByteArrayOutputStream();
-        objStream  = new ObjectOutputStream (byteStream);
-        objStream.writeObject (obj);
-        size = byteStream.size();
+        // writeValue() leaves a journaled map's old value alone, since
+        // recovery needs it until the new entry's journal record has been
+        // committed. indexPut() has committed it now.
 
-        // Find a location for the object.
+        if ((journal != null) && (old != null))
+            releaseSpace (old);
+    }
 
-        if ((flags & RECLAIM_FILE_GAPS) != 0)
-            filePos = findBestFitGap (size);
+    /**
+     * Write an object to the data file, replacing the value it supersedes.
+     * If RECLAIM_FILE_GAPS is enabled, the old value's space is released
+     * first, so that it can be reused; if the new value fits in that space,
+     * it's simply written over the old value. Not for CONCURRENT maps,
+     * whose readers may still be reading the old value. In a JOURNALED
+     * map, <tt>old</tt> is ignored: the old value must survive until the
+     * new entry is committed to the journal, so the caller has to release
+     * its space afterwards.
+     *
+     * @param key   The object's key
+     * @param obj   The object to serialize and store
+     * @param old   the entry for the value being replaced, or null
+     *
+     * @return the FileHashMapEntry object that records the location of
+     *         the stored object
+     *
+     * @throws IOException                Write error
+     * @throws NotSerializableException   Object isn't serializable
+     */
+    private FileHashMapEntry<K> writeValue (K                   key,
+                                            V                   obj,
+                                            FileHashMapEntry<K> old)
+        throws IOException,
+               NotSerializableException
+    {
+        byte[]  bytes;
+        int     size;
+        long    filePos = -1;
 
-        RandomAccessFile valuesFile = this.valuesDB.getFile();
-        if (filePos == -1)
-            filePos = valuesFile.length();
+        // Encode the object to a byte buffer.
+
+        bytes = valueCodec.encode (obj);
+
+        Compressor c          = compressor;
+        byte[]     packed     = (c == null) ? null : c.compress (bytes);
+        boolean    compressed = (packed != null);
+
+        if (compressed)
+            bytes = packed;
+
+        size = bytes.length;
+
+        // Find a location for the object, and write the bytes of the
+        // serialized object. Unless the data file permits concurrent
+        // access, the whole operation must be done under the lock.
+
+        ValuesFile db = valuesDB;
+
+        if ((old != null) && (journal == null))
+        {
+            assert ((flags & CONCURRENT) == 0);
+
+            if (((flags & RECLAIM_FILE_GAPS) != 0) &&
+                (old.getGeneration() == db.getGeneration()) &&
+                (size <= old.getObjectSize()))
+            {
+                // Rewrite in place, and release whatever's left over.
+
+                int oldSize = old.getObjectSize();
+
+                filePos = old.getFilePosition();
+                synchronized (this)
+                {
+                    // Not if a snapshot may still need the old value.
+
+                    if (openSnapshots == 0)
+                    {
+                        db.write (filePos, bytes, size);
+                        if (size < oldSize)
+                        {
+                            fileGaps.release (filePos + size,
+                                              oldSize - size);
+                        }
+
+                        return new FileHashMapEntry<K> (filePos, size, key,
+                                                        db.getGeneration(),
+                                                        compressed);
+                    }
+                }
+            }
 
-        valuesFile.seek (filePos);
+            releaseSpace (old);
+        }
 
-        // Write the bytes of the serialized object.
+        if (db.supportsConcurrentAccess())
+        {
+            filePos = allocateSpace (size);
+            db.write (filePos, bytes, size);
+        }
 
-        valuesFile.write (byteStream.toByteArray());
+        else
+        {
+            synchronized (this)
+            {
+                filePos = allocateSpace (size);
+                db.write (filePos, bytes, size);
+            }
+        }
 
         // Return the entry.
 
-        return new FileHashMapEntry<K> (filePos, size, key);
+        return new FileHashMapEntry<K> (filePos, size, key,
+                                        db.getGeneration(), compressed);
+    }
+
+    /**
+     * Find space in the data file for a serialized object, either in a gap
+     * (if RECLAIM_FILE_GAPS is enabled) or at the end of the file.
+     *
+     * @param size  the size of the serialized object
+     *
+     * @return the file position
+     *
+     * @throws IOException on error
+     */
+    private synchronized long allocateSpace (int size)
+        throws IOException
+    {
+        long filePos = -1;
+
+        if ((flags & RECLAIM_FILE_GAPS) != 0)
+        {
+            if (epochReleasesPending)
+                advanceReadEpoch();
+
+            filePos = fileGaps.allocate (size);
+            log.debug ("Best-fit gap for " + size + "-byte object: " +
+                       filePos);
+        }
+
+        if (filePos == -1)
+            filePos = valuesDB.allocate (size);
+
+        return filePos;
+    }
+
+    /**
+     * Rename a file, replacing the target if it exists.
+     *
+     * @param from  the file to rename
+     * @param to    the new name
+     *
+     * @throws IOException  the file can't be renamed
+     */
+    private void renameFile (File from, File to)
+        throws IOException
+    {
+        if ((! from.renameTo (to)) &&
+            ((! to.delete()) || (! from.renameTo (to))))
+        {
+            throw new IOException ("Unable to rename \"" + from.getPath() +
+                                   "\" to \"" + to.getPath() + "\"");
+        }
     }
 
     /**
-     * Finds the smallest gap that can hold a serialized object.
+     * Clean up after a compaction that was interrupted by the death of the
+     * program. If the new data file was renamed into place, the new index
+     * must be, too. Otherwise, the old files are intact, and the new ones
+     * are discarded.
      *
-     * @param objectSize  the size of the serialized object
+     * @throws IOException  on error
+     */
+    private void recoverCompaction()
+        throws IOException
+    {
+        File newData  = new File (valuesDBPath.getPath() + COMPACTION_SUFFIX);
+        File newIndex = new File (indexFilePath.getPath() + COMPACTION_SUFFIX);
+
+        if (newIndex.exists() && (! newData.exists()))
+        {
+            log.debug ("Completing interrupted compaction of \"" +
+                       filePrefix + "\"");
+            renameFile (newIndex, indexFilePath);
+        }
+
+        newData.delete();
+        newIndex.delete();
+    }
+
+    /**
+     * Implements compact(). The caller holds the compaction lock.
      *
-     * @return the file position, or -1 if not found
+     * @throws IOException on error
      */
-    private long findBestFitGap (int objectSize)
+    private void compactDataFile()
+        throws IOException
     {
-        long result = -1;
+        ValuesFile oldDB    = valuesDB;
+        File       tempPath = new File (valuesDBPath.getPath() +
+                                        COMPACTION_SUFFIX);
+        ValuesFile newDB;
+
+        log.debug ("Compacting \"" + filePrefix + "\": live bytes=" +
+                   liveBytes.get() + ", file size=" + oldDB.length());
+
+        tempPath.delete();
+        newDB = new ValuesFile (tempPath,
+                                (flags & MEMORY_MAPPED) != 0,
+                                (flags & CONCURRENT) != 0,
+                                oldDB.getGeneration() + 1,
+                                oldDB);
+
+        // Copy a snapshot of the live values without blocking anyone.
 
-        log.debug ("Finding smallest gap for " + objectSize + "-byte object");
+        List<FileHashMapEntry<K>> entries = getSortedEntries();
+        List<FileHashMapEntry<K>> copies;
 
-        assert (fileGaps != null);
-        for (Iterator<FileHashMapEntry<K>> it = fileGaps.iterator();
-             it.hasNext(); )
+        try
+        {
+            copies = copyValues (entries, oldDB, newDB);
+        }
+
+        catch (IOException ex)
         {
-            FileHashMapEntry<K> gap = it.next();
+            newDB.close();
+            tempPath.delete();
+            throw ex;
+        }
 
-            long pos  = gap.getFilePosition();
-            int  size = gap.getObjectSize();
+        // Hold off updates while the files are swapped.
 
-            log.debug ("Gap: pos=" + pos + ", size=" + size);
-            if (size >= objectSize)
+        if (updateLock != null)
+            updateLock.writeLock().lock();
+
+        try
+        {
+            synchronized (this)
             {
-                log.debug ("Found it.");
-                result = pos;
+                swapDataFiles (entries, copies, oldDB, newDB, tempPath);
+            }
+        }
 
-                if (size > objectSize)
-                {
-                    log.debug ("Gap size is larger than required. Making " +
-                               "smaller gap.");
+        finally
+        {
+            if (updateLock != null)
+                updateLock.writeLock().unlock();
+        }
 
-                    // Remove it and re-insert it, since the gap list is
-                    // sorted by size.
+        log.debug ("Compacted \"" + filePrefix + "\": file size=" +
+                   newDB.length());
+    }
 
-                    it.remove();
+    /**
+     * Second phase of a compaction: move the values that were written
+     * during the copy, publish the new data file and index entries, and
+     * rename the new files into place. Called with updates blocked.
+     *
+     * @param entries   the entries that were copied
+     * @param copies    the corresponding entries in the new data file
+     * @param oldDB     the old data file
+     * @param newDB     the new data file
+     * @param tempPath  the new data file's temporary name
+     *
+     * @throws IOException on error
+     */
+    private void swapDataFiles (List<FileHashMapEntry<K>> entries,
+                                List<FileHashMapEntry<K>> copies,
+                                ValuesFile                oldDB,
+                                ValuesFile                newDB,
+                                File                      tempPath)
+        throws IOException
+    {
+        boolean persistent = ((flags & TRANSIENT) == 0);
+        boolean published  = false;
+
+        try
+        {
+            // Make sure the old index and data file are consistent on
+            // disk, with an empty journal, before touching anything.
+
+            if (persistent && (journal != null))
+                checkpoint();
+
+            // Publish the new file. Readers holding old entries are
+            // directed to the old file, which stays open until the next
+            // compaction. The file before that can now be closed; a
+            // reader caught using it will notice the new generation and
+            // look its entry up again.
+
+            valuesDB  = newDB;
+            published = true;
+            oldDB.closePrevious();
+
+            replaceEntries (entries, copies);
+
+            // Values written (or rewritten) during the copy are still in
+            // the old file. Copy them, too.
+
+            List<FileHashMapEntry<K>> late =
+                new ArrayList<FileHashMapEntry<K>>();
+
+            for (FileHashMapEntry<K> entry : getSortedEntries())
+            {
+                if (entry.getGeneration() == oldDB.getGeneration())
+                    late.add (entry);
+            }
+
+            replaceEntries (late, copyValues (late, oldDB, newDB));
+
+            if (fileGaps != null)
+                fileGaps.clear();
+
+            if (persistent)
+            {
+                File newIndex = new File (indexFilePath.getPath() +
+                                          COMPACTION_SUFFIX);
+
+                saveIndex (newIndex);
+                renameFile (tempPath, valuesDBPath);
+                renameFile (newIndex, indexFilePath);
+            }
+
+            else
+            {
+                renameFile (tempPath, valuesDBPath);
+            }
+        }
+
+        catch (IOException ex)
+        {
+            if (published)
+            {
+                log.error ("Compaction of FileHashMap \"" + filePrefix +
+                           "\" failed after the data file was replaced", ex);
+                valid = false;
+            }
+
+            else
+            {
+                newDB.close();
+                tempPath.delete();
+            }
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Copy values from one data file to the end of another, reading and
+     * writing each run of adjacent values in one operation.
+     *
+     * @param entries  the entries for the values, sorted by file position
+     * @param from     the source file
+     * @param to       the target file
+     *
+     * @return the entries for the copied values, in the same order
+     *
+     * @throws IOException on error
+     */
+    private List<FileHashMapEntry<K>> copyValues
+        (List<FileHashMapEntry<K>> entries, ValuesFile from, ValuesFile to)
+        throws IOException
+    {
+        List<FileHashMapEntry<K>> result =
+            new ArrayList<FileHashMapEntry<K>> (entries.size());
+        byte[] buf      = new byte[COMPACTION_BUFFER_SIZE];
+        int    runFirst = 0;
+        long   runStart = 0;
+        int    runSize  = 0;
+
+        for (int i = 0; i <= entries.size(); i++)
+        {
+            FileHashMapEntry<K> entry = (i < entries.size()) ? entries.get (i)
+                                                             : null;
+
+            if ((entry != null) &&
+                (entry.getFilePosition() == runStart + runSize) &&
+                (runSize + entry.getObjectSize() <= buf.length))
+            {
+                runSize += entry.getObjectSize();
+                continue;
+            }
+
+            if (i > runFirst)
+            {
+                // Copy the run.
+
+                byte[] runBuf = (runSize <= buf.length) ? buf
+                                                        : new byte[runSize];
 
-                    pos  += objectSize;
-                    size -= objectSize;
-                    gap.setFilePosition (pos);
-                    gap.setObjectSize (size);
+                readRun (from, runStart, runBuf, runSize);
 
-                    log.debug ("Saving new, smaller gap: pos=" + pos +
-                               ", size=" + size);
+                long newPos = to.allocate (runSize);
+                to.write (newPos, runBuf, runSize);
 
-                    fileGaps.add (gap);
+                for (int j = runFirst; j < i; j++)
+                {
+                    FileHashMapEntry<K> copied = entries.get (j);
+
+                    result.add (new FileHashMapEntry<K>
+                                    (newPos + (copied.getFilePosition() -
+                                               runStart),
+                                     copied.getObjectSize(),
+                                     copied.getKey(),
+                                     to.getGeneration(),
+                                     copied.isCompressed()));
                 }
+            }
 
-                break;
+            if (entry != null)
+            {
+                runFirst = i;
+                runStart = entry.getFilePosition();
+                runSize  = entry.getObjectSize();
             }
         }
 
-        log.debug ("findBestFitGap: returning " + result);
         return result;
     }
 
+    /**
+     * Replace index entries with their copies in a new data file. An
+     * entry that's no longer in the index is skipped.
+     *
+     * @param entries  the old entries
+     * @param copies   the new entries
+     */
+    private void replaceEntries (List<FileHashMapEntry<K>> entries,
+                                 List<FileHashMapEntry<K>> copies)
+    {
+        for (int i = 0; i < entries.size(); i++)
+        {
+            FileHashMapEntry<K> entry = entries.get (i);
+            FileHashMapEntry<K> copy  = copies.get (i);
+
+            if (entry.sameLocation (indexMap.get (entry.getKey())))
+                indexMap.put (entry.getKey(), copy);
+        }
+    }
+
     private void deleteMapFiles()
     {
 
@@ -2152,5 +7707,11 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
             indexFilePath.delete();
             indexFilePath = null;
         }
+
+        if (journalFilePath != null)
+        {
+            journalFilePath.delete();
+            journalFilePath = null;
+        }
     }
 }
@@ -70,6 +70,16 @@ class FileHashMapEntry<K>
      */
     private static final long serialVersionUID = 1L;
 
+    /*----------------------------------------------------------------------*\
+                         Package-visible Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Bit set in a stored size (see {@link #getSizeAndFlags}) if the
+     * object is compressed.
+     */
+    static final int COMPRESSED_FLAG = 0x80000000;
+
     /*----------------------------------------------------------------------*\
                             Private Data Items
     \*----------------------------------------------------------------------*/
@@ -90,6 +100,17 @@ class FileHashMapEntry<K>
      */
     private K key = null;
 
+    /**
+     * The generation of the data file the object is stored in. The
+     * generation changes each time the data file is compacted.
+     */
+    private transient int generation = 0;
+
+    /**
+     * Whether the stored object is compressed.
+     */
+    private transient boolean compressed = false;
+
     /*----------------------------------------------------------------------*\
                                Constructors
     \*----------------------------------------------------------------------*/
@@ -114,10 +135,72 @@ class FileHashMapEntry<K>
      * @see FileHashMap#put
      */
     FileHashMapEntry (long pos, int size, K key)
+    {
+        this (pos, size, key, 0);
+    }
+
+    /**
+     * Create a new <tt>FileHashMapEntry</tt> for an item stored in a
+     * specific generation of the data file.
+     *
+     * @param pos         The object's file position.
+     * @param size        The stored object's serialized size.
+     * @param key         The caller's key. May be null.
+     * @param generation  The data file generation.
+     *
+     * @see #getGeneration
+     */
+    FileHashMapEntry (long pos, int size, K key, int generation)
+    {
+        this (pos, size, key, generation, false);
+    }
+
+    /**
+     * Create a new <tt>FileHashMapEntry</tt> for an item, which may be
+     * compressed, stored in a specific generation of the data file.
+     *
+     * @param pos         The object's file position.
+     * @param size        The stored object's size, after compression.
+     * @param key         The caller's key. May be null.
+     * @param generation  The data file generation.
+     * @param compressed  Whether the stored object is compressed.
+     *
+     * @see #isCompressed
+     */
+    FileHashMapEntry (long    pos,
+                      int     size,
+                      K       key,
+                      int     generation,
+                      boolean compressed)
     {
         this.filePosition = pos;
         this.objectSize   = size;
         this.key          = key;
+        this.generation   = generation;
+        this.compressed   = compressed;
+    }
+
+    /**
+     * Create an entry from a stored size in the form returned by
+     * {@link #getSizeAndFlags}.
+     *
+     * @param pos           The object's file position.
+     * @param sizeAndFlags  The stored size and flags.
+     * @param key           The caller's key.
+     * @param generation    The data file generation.
+     *
+     * @return the entry
+     */
+    static <K> FileHashMapEntry<K> fromSizeAndFlags (long pos,
+                                                     int  sizeAndFlags,
+                                                     K    key,
+                                                     int  generation)
+    {
+        return new FileHashMapEntry<K> (pos,
+                                        sizeAndFlags & ~COMPRESSED_FLAG,
+                                        key,
+                                        generation,
+                                        (sizeAndFlags & COMPRESSED_FLAG) != 0);
     }
 
     /**
@@ -240,10 +323,60 @@ class FileHashMapEntry<K>
     int getObjectSize()
         throws IllegalStateException
     {
-        assert (this.objectSize > 0) : "No object stored yet";
+        assert (this.objectSize >= 0) : "No object stored yet";
         return this.objectSize;
     }
 
+    /**
+     * Get the generation of the data file the object is stored in.
+     *
+     * @return the generation
+     */
+    int getGeneration()
+    {
+        return this.generation;
+    }
+
+    /**
+     * Determine whether the stored object is compressed.
+     *
+     * @return <tt>true</tt> if the object is compressed
+     */
+    boolean isCompressed()
+    {
+        return this.compressed;
+    }
+
+    /**
+     * Get the stored size, with the {@link #COMPRESSED_FLAG} bit set if the
+     * object is compressed. This is the form in which the size is written
+     * to index and journal files.
+     *
+     * @return the size and flags
+     */
+    int getSizeAndFlags()
+    {
+        return compressed ? (objectSize | COMPRESSED_FLAG) : objectSize;
+    }
+
+    /**
+     * Determine whether another entry refers to the same stored object as
+     * this one (that is, the same position and size in the same generation
+     * of the data file). Entries can't be compared by identity, because an
+     * off-heap index creates a new entry object each time one is retrieved.
+     *
+     * @param other  the other entry
+     *
+     * @return <tt>true</tt> if both entries locate the same stored object
+     */
+    boolean sameLocation (FileHashMapEntry<?> other)
+    {
+        return (other != null) &&
+               (this.filePosition == other.filePosition) &&
+               (this.objectSize == other.objectSize) &&
+               (this.generation == other.generation);
+    }
+
     /**
      * Get the number of bytes the serialized object occupies in the
      * random access file.
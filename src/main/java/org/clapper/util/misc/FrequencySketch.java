@@ -0,0 +1,258 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+/**
+ * <p>A compact, approximate count of how often each key has been seen
+ * recently, used by {@link LRUMap}'s W-TinyLFU eviction policy to decide
+ * whether a new entry is worth keeping at the expense of an old one.</p>
+ *
+ * <p>The sketch is a count-min sketch with four 4-bit counters per key,
+ * packed sixteen to a <tt>long</tt>. A key's frequency is the smallest of
+ * its counters, which overestimates only when all four collide with other
+ * keys. Counters saturate at 15. Once the number of recorded accesses
+ * reaches ten times the sketch's capacity, every counter is halved, so
+ * the sketch reflects recent popularity rather than all-time popularity,
+ * and keys that were popular long ago can be displaced.</p>
+ *
+ * <p>This class is not publicly accessible, and it is not thread-safe;
+ * <tt>LRUMap</tt> isn't either.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+final class FrequencySketch
+{
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Seeds for the four hash functions.
+     */
+    private static final long[] SEEDS =
+    {
+        0xc3a5c85c97cb3127L,
+        0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL,
+        0xcbf29ce484222325L
+    };
+
+    /**
+     * Mask that clears the high bit of each counter after a shift, used
+     * when halving all the counters at once.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * The largest capacity the sketch will size itself for. Bounds the
+     * table at 8 megabytes.
+     */
+    private static final int MAX_CAPACITY = 1 << 20;
+
+    /*----------------------------------------------------------------------*\
+                             Private Variables
+    \*----------------------------------------------------------------------*/
+
+    private long[] table;
+    private int    tableMask;
+    private int    sampleSize;
+    private int    additions = 0;
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new sketch.
+     *
+     * @param capacity  the number of keys the sketch should be able to
+     *                  track accurately, usually the number of entries
+     *                  the map holds
+     */
+    FrequencySketch (long capacity)
+    {
+        allocate (capacity);
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the estimated number of recent accesses to a key.
+     *
+     * @param key  the key
+     *
+     * @return the estimate, from 0 to 15
+     */
+    int frequency (Object key)
+    {
+        int hash      = spread ((key == null) ? 0 : key.hashCode());
+        int start     = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+
+        for (int i = 0; i < 4; i++)
+        {
+            long slot  = table[indexOf (hash, i)];
+            int  count = (int) ((slot >>> ((start + i) << 2)) & 0xfL);
+
+            frequency = Math.min (frequency, count);
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Make sure the sketch can track a given number of keys accurately,
+     * enlarging it if necessary. Enlarging the sketch discards the counts
+     * recorded so far, since they can't be redistributed without the keys,
+     * but the table at least doubles each time, so that's rare.
+     *
+     * @param capacity  the number of keys
+     */
+    void ensureCapacity (long capacity)
+    {
+        if (Math.min (capacity, MAX_CAPACITY) > table.length)
+            allocate (capacity);
+    }
+
+    /**
+     * Record an access to a key.
+     *
+     * @param key  the key
+     */
+    void increment (Object key)
+    {
+        int     hash  = spread ((key == null) ? 0 : key.hashCode());
+        int     start = (hash & 3) << 2;
+        boolean added = false;
+
+        for (int i = 0; i < 4; i++)
+            added |= incrementAt (indexOf (hash, i), start + i);
+
+        if (added && (++additions >= sampleSize))
+            reset();
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Allocate an empty table for a given capacity.
+     *
+     * @param capacity  the number of keys the sketch should be able to
+     *                  track accurately
+     */
+    private void allocate (long capacity)
+    {
+        int size = 8;
+        int max  = (int) Math.max (1, Math.min (capacity, MAX_CAPACITY));
+
+        while (size < max)
+            size <<= 1;
+
+        table      = new long[size];
+        tableMask  = size - 1;
+        sampleSize = 10 * max;
+        additions  = 0;
+    }
+
+    /**
+     * Increment the specified counter in a slot, unless it's saturated.
+     *
+     * @param i  the slot index
+     * @param j  which of the slot's sixteen counters to increment
+     *
+     * @return <tt>true</tt> if the counter was incremented
+     */
+    private boolean incrementAt (int i, int j)
+    {
+        int  offset = j << 2;
+        long mask   = 0xfL << offset;
+
+        if ((table[i] & mask) != mask)
+        {
+            table[i] += 1L << offset;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Halve all the counters.
+     */
+    private void reset()
+    {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+
+        additions /= 2;
+    }
+
+    private int indexOf (int hash, int i)
+    {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+
+        h += (h >>> 32);
+        return ((int) h) & tableMask;
+    }
+
+    /**
+     * Spread the bits of a hash code, since many hash codes (those of
+     * small Integers, say) vary only in their low bits.
+     */
+    private static int spread (int x)
+    {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -54,7 +54,24 @@ import java.util.Map;
 import java.util.Set;
 
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * <p>An <tt>LRUMap</tt> implements a <tt>Map</tt> of a fixed maximum size
@@ -63,6 +80,46 @@ import java.util.Collection;
  * any attempt to insert a new entry causes one of the least recently used
  * entries to be discarded.</p>
  *
+ * <p>An <tt>LRUMap</tt> can also be bounded by weight, rather than (or as
+ * well as) by number of entries. A map constructed with a {@link Weigher}
+ * and a maximum weight computes the weight of each entry as it's stored,
+ * and discards least recently used entries whenever the total weight
+ * exceeds the maximum. That's more useful than a count when the values
+ * vary widely in size: a count that's safe for the largest values wastes
+ * memory when the values are small. An entry that's heavier than the
+ * maximum weight on its own is discarded instead of being stored, along
+ * with any value it replaces; the removal listeners are told, and no other
+ * entry is evicted. (Without a <tt>Weigher</tt>, every entry weighs
+ * 1.)</p>
+ *
+ * <p>Entries can also be made to expire: a fixed time after they were
+ * stored (see {@link #setExpireAfterWrite setExpireAfterWrite()}), a
+ * fixed time after they were last retrieved or stored (see
+ * {@link #setExpireAfterAccess setExpireAfterAccess()}), or both, in which
+ * case an entry expires when either time is up. An expired entry is never
+ * returned by <tt>get()</tt> or reported by <tt>containsKey()</tt>. Expiry
+ * times are tracked by a hierarchical timer wheel, in which scheduling and
+ * rescheduling an entry take constant time, and expired entries are
+ * removed proactively, rather than lingering until they're touched or
+ * pushed out: whenever the map is updated, and, optionally, by a
+ * maintenance thread (see {@link #setMaintenanceInterval
+ * setMaintenanceInterval()}). Until it's removed, an expired entry still
+ * counts towards the map's size and weight, and can still be seen by
+ * iterating over the map. Expired entries are announced to removal
+ * listeners as automatic removals, just like entries discarded to make
+ * room.</p>
+ *
+ * <p>Finally, an <tt>LRUMap</tt> can be used as a loading cache, via the
+ * {@link #get(Object,Function) get(key, loader)} and {@link #getAll getAll()}
+ * methods, which compute and store missing values. When several threads
+ * miss on the same key at once, only one of them runs the loader; the
+ * others wait for its result. With {@link #setRefreshAfterWrite
+ * setRefreshAfterWrite()}, a value that's getting old is reloaded in the
+ * background, while the old value continues to be served. The loading
+ * methods synchronize on the map, and run the loader without holding the
+ * lock; so a map used as a loading cache by several threads must only be
+ * accessed otherwise while synchronized on the map itself.</p>
+ *
  * <p>Note:</p>
  *
  * <ul>
@@ -118,10 +175,91 @@ public class LRUMap<K,V>
      */
     public static final int   DEFAULT_INITIAL_CAPACITY = 16;
 
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Number of buckets in each level of the expiration timer wheel. Each
+     * must be a power of two.
+     */
+    private static final int[] WHEEL_BUCKETS = {64, 64, 32, 4, 1};
+
+    /**
+     * Time spanned by one bucket in each level of the timer wheel, in
+     * nanoseconds: roughly 1.07 seconds, 1.14 minutes, 1.22 hours, 1.63
+     * days and 6.5 days. Each span is the previous level's span times its
+     * number of buckets, so a level covers exactly one bucket of the next.
+     */
+    private static final long[] WHEEL_SPANS =
+    {
+        1L << 30,
+        1L << 36,
+        1L << 42,
+        1L << 47,
+        1L << 49
+    };
+
+    /**
+     * The longest expiration time, in nanoseconds. Longer times are
+     * truncated, so that adding one to the current time can't overflow.
+     */
+    private static final long MAX_EXPIRATION_NANOS = Long.MAX_VALUE >> 1;
+
+    /**
+     * Percentage of the map's capacity given to the admission window, under
+     * the W-TinyLFU eviction policy.
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    /**
+     * Percentage of the rest of the map's capacity given to the protected
+     * segment, under the segmented LRU and W-TinyLFU eviction policies.
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
     /*----------------------------------------------------------------------*\
                                Inner Classes
     \*----------------------------------------------------------------------*/
 
+    /**
+     * The policies that decide which entry an <tt>LRUMap</tt> discards to
+     * make room.
+     *
+     * @see #setEvictionPolicy
+     */
+    public enum EvictionPolicy
+    {
+        /**
+         * Discard the least recently used entry. Every new entry is
+         * admitted as the most recently used, so a scan through keys that
+         * won't be used again flushes out the entire working set. This is
+         * the default.
+         */
+        LRU,
+
+        /**
+         * Segmented LRU. New entries are admitted to a probationary
+         * segment, and promoted to a protected segment (which holds up to
+         * 80% of the map) when they're used again. Entries are discarded
+         * from the probationary segment first, so entries that are used
+         * only once, as in a scan, can only displace one another.
+         */
+        SEGMENTED_LRU,
+
+        /**
+         * W-TinyLFU. New entries are admitted to a small LRU window (1% of
+         * the map). An entry pushed out of the window is kept only if it
+         * has been used more often, recently, than the entry the
+         * segmented LRU main space would discard to make room for it;
+         * otherwise, it's discarded itself. Frequencies are estimated with
+         * a compact count-min sketch that ages as entries are accessed.
+         * Resists scans, and also keeps frequently used entries that
+         * haven't been used quite as recently as others.
+         */
+        W_TINY_LFU
+    }
+
     /**
      * Set of Map.Entry (really, LRULinkedListEntry) objects returned by
      * the LRUMap.entrySet() method.
@@ -196,13 +334,17 @@ public class LRUMap<K,V>
 
         EntryIterator()
         {
-            current = lruQueue.head;
+            current = nextEntry (null);
         }
 
         public LRULinkedListEntry next()
         {
             LRULinkedListEntry result = current;
-            current = current.next;
+
+            if (result == null)
+                throw new NoSuchElementException();
+
+            current = nextEntry (current);
             return result;
         }
 
@@ -262,13 +404,17 @@ public class LRUMap<K,V>
 
         KeySetIterator()
         {
-            current = lruQueue.head;
+            current = nextEntry (null);
         }
 
         public K next()
         {
             LRULinkedListEntry result = current;
-            current = current.next;
+
+            if (result == null)
+                throw new NoSuchElementException();
+
+            current = nextEntry (current);
             return result.key;
         }
 
@@ -349,13 +495,17 @@ public class LRUMap<K,V>
 
         ValueSetIterator()
         {
-            current = lruQueue.head;
+            current = nextEntry (null);
         }
 
         public V next()
         {
             LRULinkedListEntry result = current;
-            current = current.next;
+
+            if (result == null)
+                throw new NoSuchElementException();
+
+            current = nextEntry (current);
             return result.value;
         }
 
@@ -380,6 +530,22 @@ public class LRUMap<K,V>
         LRULinkedListEntry  next     = null;
         K                   key      = null;
         V                   value    = null;
+        int                 weight   = 0;
+
+        // Expiration state. The timer wheel links are null when the entry
+        // isn't scheduled.
+
+        long                writeTime      = 0;
+        long                expirationTime = 0;
+        LRULinkedListEntry  wheelPrevious  = null;
+        LRULinkedListEntry  wheelNext      = null;
+
+        // The queue (segment) the entry is in, and whether it has just
+        // been pushed out of the W-TinyLFU window and has yet to be
+        // admitted to the main space.
+
+        LRULinkedList       queue          = null;
+        boolean             candidate      = false;
 
         LRULinkedListEntry (K key, V value)
         {
@@ -414,8 +580,18 @@ public class LRUMap<K,V>
 
         public V setValue (V value)
         {
-            V oldValue = this.value;
-            this.value = value;
+            // The total weight is adjusted, but nothing is evicted until
+            // the next put(), since eviction would disrupt any iteration
+            // that's in progress.
+
+            int newWeight = weigh (key, value);
+            V   oldValue  = this.value;
+
+            totalWeight += (newWeight - weight);
+            if (queue != null)
+                queue.weight += (newWeight - weight);
+            this.weight = newWeight;
+            this.value  = value;
             return oldValue;
         }
     }
@@ -427,9 +603,10 @@ public class LRUMap<K,V>
      */
     private class LRULinkedList
     {
-        LRULinkedListEntry  head = null;
-        LRULinkedListEntry  tail = null;
-        int                 size = 0;
+        LRULinkedListEntry  head   = null;
+        LRULinkedListEntry  tail   = null;
+        int                 size   = 0;
+        long                weight = 0;
 
         private LRULinkedList()
         {
@@ -458,8 +635,11 @@ public class LRUMap<K,V>
             {
                 entry.previous = tail;
                 tail.next = entry;
+                tail = entry;
             }
 
+            entry.queue = this;
+            weight += entry.weight;
             size++;
         }
 
@@ -482,6 +662,8 @@ public class LRUMap<K,V>
                 head = entry;
             }
 
+            entry.queue = this;
+            weight += entry.weight;
             size++;
         }
 
@@ -501,7 +683,9 @@ public class LRUMap<K,V>
 
             entry.next = null;
             entry.previous = null;
+            entry.queue = null;
 
+            weight -= entry.weight;
             size--;
             assert (size >= 0);
         }
@@ -531,6 +715,7 @@ public class LRUMap<K,V>
 
                 head.next = null;
                 head.previous = null;
+                head.queue = null;
                 head.key = null;
                 head.value = null;
 
@@ -539,6 +724,216 @@ public class LRUMap<K,V>
 
             tail = null;
             size = 0;
+            weight = 0;
+        }
+    }
+
+    /**
+     * <p>A hierarchical timer wheel, which tracks the entries' expiration
+     * times. Each level of the wheel is an array of buckets, each of which
+     * is a circular doubly-linked list of the entries that expire during
+     * the time the bucket spans. An entry is scheduled in the finest level
+     * whose whole wheel spans its remaining lifetime, so scheduling,
+     * rescheduling and descheduling an entry are all constant-time
+     * operations.</p>
+     *
+     * <p>When the wheel is advanced, the buckets whose time has passed are
+     * emptied. Entries whose expiration time has passed are returned;
+     * entries from the coarser levels that haven't yet expired are
+     * rescheduled, which cascades them down to finer levels.</p>
+     */
+    private class TimerWheel
+    {
+        final LRULinkedListEntry[][] wheel;
+        final int[]                  shifts;
+        long                         time;
+
+        TimerWheel (long now)
+        {
+            // Arrays of a generic class's inner class can only be created
+            // raw.
+
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            LRULinkedListEntry[][] levels = (LRULinkedListEntry[][])
+                new LRUMap.LRULinkedListEntry[WHEEL_BUCKETS.length][];
+
+            wheel  = levels;
+            shifts = new int[WHEEL_SPANS.length];
+            time   = now;
+
+            for (int i = 0; i < wheel.length; i++)
+            {
+                @SuppressWarnings({"unchecked", "rawtypes"})
+                LRULinkedListEntry[] buckets = (LRULinkedListEntry[])
+                    new LRUMap.LRULinkedListEntry[WHEEL_BUCKETS[i]];
+
+                wheel[i]  = buckets;
+                shifts[i] = Long.numberOfTrailingZeros (WHEEL_SPANS[i]);
+
+                for (int j = 0; j < wheel[i].length; j++)
+                {
+                    LRULinkedListEntry sentinel =
+                        new LRULinkedListEntry (null, null);
+
+                    sentinel.wheelPrevious = sentinel;
+                    sentinel.wheelNext     = sentinel;
+                    wheel[i][j] = sentinel;
+                }
+            }
+        }
+
+        /**
+         * Schedule an entry, or move it to the right bucket for its
+         * (changed) expiration time.
+         */
+        void schedule (LRULinkedListEntry entry)
+        {
+            LRULinkedListEntry sentinel = findBucket (entry.expirationTime);
+
+            if (entry.wheelNext != null)
+                deschedule (entry);
+
+            entry.wheelPrevious = sentinel.wheelPrevious;
+            entry.wheelNext     = sentinel;
+            sentinel.wheelPrevious.wheelNext = entry;
+            sentinel.wheelPrevious = entry;
+        }
+
+        void deschedule (LRULinkedListEntry entry)
+        {
+            if (entry.wheelNext != null)
+            {
+                entry.wheelPrevious.wheelNext = entry.wheelNext;
+                entry.wheelNext.wheelPrevious = entry.wheelPrevious;
+                entry.wheelPrevious = null;
+                entry.wheelNext     = null;
+            }
+        }
+
+        /**
+         * Advance the wheel to the current time, collecting the entries
+         * that have expired.
+         *
+         * @param now      the current time, in nanoseconds
+         * @param expired  where to put the expired entries
+         */
+        void advance (long now, List<LRULinkedListEntry> expired)
+        {
+            long previous = time;
+
+            time = now;
+            for (int i = 0; i < shifts.length; i++)
+            {
+                long previousTicks = previous >>> shifts[i];
+                long currentTicks  = now >>> shifts[i];
+
+                // If this level hasn't ticked, no coarser level has.
+
+                if ((currentTicks - previousTicks) <= 0)
+                    break;
+
+                expireBuckets (i, previousTicks, currentTicks - previousTicks,
+                               expired);
+            }
+        }
+
+        private void expireBuckets (int                      level,
+                                    long                     previousTicks,
+                                    long                     delta,
+                                    List<LRULinkedListEntry> expired)
+        {
+            LRULinkedListEntry[] buckets = wheel[level];
+            int                  mask    = buckets.length - 1;
+            int                  steps   = (int) Math.min (delta + 1,
+                                                           buckets.length);
+            int                  start   = (int) (previousTicks & mask);
+
+            for (int i = start; i < start + steps; i++)
+            {
+                // Detach the bucket's list before walking it, since
+                // entries that haven't expired are rescheduled, possibly
+                // into the same bucket.
+
+                LRULinkedListEntry sentinel = buckets[i & mask];
+                LRULinkedListEntry entry    = sentinel.wheelNext;
+
+                sentinel.wheelPrevious = sentinel;
+                sentinel.wheelNext     = sentinel;
+
+                while (entry != sentinel)
+                {
+                    LRULinkedListEntry next = entry.wheelNext;
+
+                    entry.wheelPrevious = null;
+                    entry.wheelNext     = null;
+
+                    if ((entry.expirationTime - time) <= 0)
+                        expired.add (entry);
+                    else
+                        schedule (entry);
+
+                    entry = next;
+                }
+            }
+        }
+
+        private LRULinkedListEntry findBucket (long expirationTime)
+        {
+            long duration = expirationTime - time;
+            int  last     = wheel.length - 1;
+
+            for (int i = 0; i < last; i++)
+            {
+                if (duration < WHEEL_SPANS[i + 1])
+                {
+                    long ticks = expirationTime >>> shifts[i];
+                    return wheel[i][(int) (ticks & (wheel[i].length - 1))];
+                }
+            }
+
+            return wheel[last][0];
+        }
+    }
+
+    /**
+     * Periodically removes expired entries from a map. Holds only a weak
+     * reference to the map, so that the maintenance thread doesn't keep an
+     * abandoned map alive; the thread stops once the map is gone.
+     */
+    private static class MaintenanceTask implements Runnable
+    {
+        private final WeakReference<LRUMap<?,?>> mapRef;
+        private final ScheduledExecutorService   executor;
+
+        MaintenanceTask (LRUMap<?,?> map, ScheduledExecutorService executor)
+        {
+            this.mapRef   = new WeakReference<LRUMap<?,?>> (map);
+            this.executor = executor;
+        }
+
+        public void run()
+        {
+            LRUMap<?,?> map = mapRef.get();
+
+            if (map == null)
+                executor.shutdown();
+            else
+                map.cleanUp();
+        }
+    }
+
+    /**
+     * A load in progress, started by get(key, loader), getAll() or a
+     * refresh. Remembers the thread that's running the loader, if it's
+     * known, so that the thread can't end up waiting for itself.
+     */
+    private static class Load<V> extends CompletableFuture<V>
+    {
+        final Thread thread;
+
+        Load (Thread thread)
+        {
+            this.thread = thread;
         }
     }
 
@@ -606,12 +1001,42 @@ public class LRUMap<K,V>
     \*----------------------------------------------------------------------*/
 
     private int            maxCapacity;
+    private long           maxWeight   = Long.MAX_VALUE;
+    private long           totalWeight = 0;
     private float          loadFactor;
     private int            initialCapacity;
     private EntryMap       hash;
-    private LRULinkedList  lruQueue;
     private ListenerMap    removalListeners = null;
 
+    /**
+     * The LRU queue. Under the segmented LRU and W-TinyLFU eviction
+     * policies, this is the probationary segment, and the other segments
+     * have queues of their own.
+     */
+    private LRULinkedList  lruQueue;
+    private LRULinkedList  protectedQueue = null;
+    private LRULinkedList  windowQueue    = null;
+
+    private EvictionPolicy  evictionPolicy = EvictionPolicy.LRU;
+    private FrequencySketch sketch         = null;
+
+    private Weigher<? super K, ? super V> weigher = null;
+
+    private long                expireAfterWriteNanos  = 0;
+    private long                expireAfterAccessNanos = 0;
+    private TimerWheel          timerWheel             = null;
+    private long                refreshAfterWriteNanos = 0;
+
+    /**
+     * Loads in progress, by key. Guarded by the map's monitor, and created
+     * on first use, since it isn't serialized.
+     */
+    private transient Map<K, CompletableFuture<V>> loading = null;
+
+    private transient Executor  loaderExecutor = null;
+
+    private transient ScheduledExecutorService maintenanceExecutor = null;
+
     /*----------------------------------------------------------------------*\
                                 Constructors
     \*----------------------------------------------------------------------*/
@@ -666,6 +1091,50 @@ public class LRUMap<K,V>
         this.lruQueue        = new LRULinkedList();
     }
 
+    /**
+     * Construct a new empty map with a default capacity and load factor,
+     * bounded by the total weight of its entries, rather than by their
+     * number.
+     *
+     * @param maxWeight  the maximum total weight of the entries in the map.
+     *                   Must not be negative.
+     * @param weigher    computes the weight of each entry
+     *
+     * @see #setMaximumWeight
+     */
+    public LRUMap (long maxWeight, Weigher<? super K, ? super V> weigher)
+    {
+        this (DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR,
+              maxWeight, weigher);
+    }
+
+    /**
+     * Construct a new empty map with the specified initial capacity and
+     * load factor, bounded by the total weight of its entries, rather than
+     * by their number.
+     *
+     * @param initialCapacity  the initial capacity
+     * @param loadFactor       the load factor
+     * @param maxWeight        the maximum total weight of the entries in
+     *                         the map. Must not be negative.
+     * @param weigher          computes the weight of each entry
+     *
+     * @see #setMaximumWeight
+     */
+    public LRUMap (int                           initialCapacity,
+                   float                         loadFactor,
+                   long                          maxWeight,
+                   Weigher<? super K, ? super V> weigher)
+    {
+        this (initialCapacity, loadFactor, Integer.MAX_VALUE);
+
+        assert (maxWeight >= 0);
+        assert (weigher != null);
+
+        this.maxWeight = maxWeight;
+        this.weigher   = weigher;
+    }
+
     /**
      * Constructs a new map with the same mappings and parameters as the
      * given <tt>LRUMap</tt>. The initial capacity and load factor is
@@ -677,6 +1146,23 @@ public class LRUMap<K,V>
     public LRUMap (LRUMap<? extends K, ? extends V> map)
     {
         this (map.initialCapacity, map.loadFactor, map.maxCapacity);
+
+        // The copy is expected to hold the same kinds of keys and values
+        // as the original, so its weigher can be shared.
+
+        @SuppressWarnings("unchecked")
+        Weigher<? super K, ? super V> weigher =
+            (Weigher<? super K, ? super V>) map.weigher;
+
+        this.maxWeight = map.maxWeight;
+        this.weigher   = weigher;
+
+        this.expireAfterWriteNanos  = map.expireAfterWriteNanos;
+        this.expireAfterAccessNanos = map.expireAfterAccessNanos;
+        if (map.timerWheel != null)
+            this.timerWheel = new TimerWheel (currentTime());
+
+        setEvictionPolicy (map.evictionPolicy);
         doPutAll (map);
     }
 
@@ -747,6 +1233,25 @@ public class LRUMap<K,V>
     {
         hash.clear();
         lruQueue.clear();
+        if (protectedQueue != null)
+            protectedQueue.clear();
+        if (windowQueue != null)
+            windowQueue.clear();
+        totalWeight = 0;
+
+        if (timerWheel != null)
+            timerWheel = new TimerWheel (currentTime());
+    }
+
+    /**
+     * Remove any expired entries from the map now, rather than waiting for
+     * the next update. This is the method the maintenance thread calls
+     * (see {@link #setMaintenanceInterval setMaintenanceInterval()}), so
+     * it synchronizes on the map.
+     */
+    public synchronized void cleanUp()
+    {
+        expireEntries();
     }
 
     /**
@@ -760,7 +1265,10 @@ public class LRUMap<K,V>
      */
     public boolean containsKey (Object key)
     {
-        return hash.containsKey (key);
+        LRULinkedListEntry entry = (LRULinkedListEntry) hash.get (key);
+
+        return (entry != null) &&
+               ((timerWheel == null) || (! isExpired (entry, currentTime())));
     }
 
     /**
@@ -819,15 +1327,36 @@ public class LRUMap<K,V>
         V                   value = null;
         LRULinkedListEntry  entry  = (LRULinkedListEntry) hash.get (key);
 
+        // Misses count, too: a key that keeps being looked for is worth
+        // admitting when it's finally stored.
+
+        if (sketch != null)
+            sketch.increment (key);
+
         if (entry != null)
         {
             // It's there. It's just been accessed, so move it to the
-            // top of the linked list.
+            // top of the linked list (or, under a segmented policy, to the
+            // top of the protected segment).
 
             assert (entry.key.equals (key)) :
                    "entry.key=" + entry.key + ", key=" + key;
 
-            lruQueue.moveToHead (entry);
+            if (timerWheel != null)
+            {
+                long now = currentTime();
+
+                if (isExpired (entry, now))
+                {
+                    expire (entry);
+                    return null;
+                }
+
+                if (expireAfterAccessNanos > 0)
+                    setExpirationTime (entry, now, false);
+            }
+
+            recordAccess (entry);
             value = entry.value;
         }
 
@@ -835,73 +1364,386 @@ public class LRUMap<K,V>
     }
 
     /**
-     * Get the initial capacity of this <tt>LRUMap</tt>.
+     * <p>Retrieve an object from the map, loading and storing it if it
+     * isn't there. If another thread is already loading the same key, this
+     * method waits for that thread's result, rather than running the
+     * loader again. The loader runs without the map locked, so other keys
+     * can be retrieved and loaded meanwhile.</p>
      *
-     * @return the initial capacity, as passed to the constructor
+     * <p>If refresh-after-write is enabled (see {@link
+     * #setRefreshAfterWrite setRefreshAfterWrite()}), and the value was
+     * stored longer ago than the refresh time, the value is returned
+     * immediately, and the loader is run asynchronously (see
+     * {@link #setLoaderExecutor setLoaderExecutor()}) to replace it. If
+     * the refresh fails, the old value is kept.</p>
      *
-     * @see #getLoadFactor
-     * @see #getMaximumCapacity
-     */
-    public int getInitialCapacity()
-    {
-        return initialCapacity;
-    }
-
-    /**
-     * Get the load factor for this <tt>LRUMap</tt>.
+     * @param key     the object's key in the map
+     * @param loader  computes the value for a key that isn't in the map.
+     *                If it returns null, nothing is stored.
      *
-     * @return the load factor, as passed to the constructor
+     * @return the associated object, or null if the loader returned null
      *
-     * @see #getInitialCapacity
-     * @see #getMaximumCapacity
+     * @throws RuntimeException any runtime exception thrown by the loader,
+     *                          in this thread or in the thread that ran it
+     * @throws IllegalStateException the loader tried to retrieve the key
+     *                               it's loading
+     *
+     * @see #getAll
      */
-    public float getLoadFactor()
+    public V get (K key, Function<? super K, ? extends V> loader)
     {
-        return loadFactor;
+        CompletableFuture<V> future;
+        boolean              mine = false;
+
+        synchronized (this)
+        {
+            V value = get (key);
+
+            if (value != null)
+            {
+                if (refreshAfterWriteNanos > 0)
+                    refreshIfStale (key, loader);
+
+                return value;
+            }
+
+            future = loads().get (key);
+            if (future == null)
+            {
+                future = new Load<V> (Thread.currentThread());
+                loads().put (key, future);
+                mine = true;
+            }
+
+            else
+            {
+                checkRecursiveLoad (key, future);
+            }
+        }
+
+        if (! mine)
+            return awaitLoad (future);
+
+        V value;
+
+        try
+        {
+            value = loader.apply (key);
+        }
+
+        catch (Throwable ex)
+        {
+            // Including checked exceptions thrown by devious means, which
+            // would otherwise leave the load registered forever.
+
+            loadFailed (key, future, ex);
+            throw ex;
+        }
+
+        synchronized (this)
+        {
+            if ((value != null) && (! containsKey (key)))
+                put (key, value);
+
+            loads().remove (key);
+        }
+
+        future.complete (value);
+        return value;
     }
 
     /**
-     * Get the maximum capacity of this <tt>LRUMap</tt>.
+     * <p>Retrieve several objects from the map, loading the missing ones
+     * with one call to a bulk loader. Keys that other threads are already
+     * loading aren't passed to the loader; this method waits for those
+     * threads' results, instead. Values the loader returns for keys that
+     * weren't asked for are stored, too, unless they're already in the
+     * map.</p>
      *
-     * @return the maximum capacity, as passed to the constructor
+     * @param keys    the keys to retrieve
+     * @param loader  loads the values for the set of keys that aren't in
+     *                the map, returning a map of the keys to their values.
+     *                Keys it omits, or maps to null, are left out of the
+     *                result.
      *
-     * @see #setMaximumCapacity
-     * @see #getLoadFactor
-     * @see #getInitialCapacity
-     */
-    public int getMaximumCapacity()
-    {
-        return maxCapacity;
-    }
-
-    /**
-     * Determine whether this map is empty or not.
+     * @return a map of the keys to their values, in the order of
+     *         <tt>keys</tt>
      *
-     * @return <tt>true</tt> if the map has no mappings, <tt>false</tt>
-     *          otherwise
-     */
-    public boolean isEmpty()
-    {
-        return hash.isEmpty();
-    }
-
-    /**
-     * <p>Return a <tt>Set</tt> view of the keys in the map. The set is
-     * backed by the map, so changes to the map are reflected in the set,
-     * and vice-versa. The set does supports element removal, which removes
-     * the corresponding mapping from this map; however, the
-     * <tt>Iterator</tt> returned by the set currently does <b>not</b>
-     * support element removal. The set does not support the <tt>add</tt>
-     * or <tt>addAll</tt> operations.
+     * @throws RuntimeException any runtime exception thrown by the loader,
+     *                          in this thread or in a thread that ran it
+     * @throws IllegalStateException a loader running in this thread is
+     *                               already loading one of the keys
      *
-     * @return the set of keys in this map
+     * @see #get(Object,Function)
      */
-    public Set<K> keySet()
+    public Map<K,V>
+    getAll (Iterable<? extends K>                                        keys,
+            Function<? super Set<K>, ? extends Map<? extends K, ? extends V>>
+                                                                         loader)
     {
-        return new KeySet();
-    }
+        Map<K,V>                     found   = new HashMap<K,V>();
+        Map<K, CompletableFuture<V>> waiting =
+            new HashMap<K, CompletableFuture<V>>();
+        Map<K, CompletableFuture<V>> mine    =
+            new LinkedHashMap<K, CompletableFuture<V>>();
+        Set<K>                       wanted  = new LinkedHashSet<K>();
 
-    /**
+        for (K key : keys)
+            wanted.add (key);
+
+        synchronized (this)
+        {
+            for (K key : wanted)
+            {
+                V value = get (key);
+
+                if (value != null)
+                {
+                    found.put (key, value);
+                    continue;
+                }
+
+                CompletableFuture<V> future = loads().get (key);
+
+                if (future != null)
+                {
+                    checkRecursiveLoad (key, future);
+                    waiting.put (key, future);
+                }
+
+                else
+                {
+                    future = new Load<V> (Thread.currentThread());
+                    loads().put (key, future);
+                    mine.put (key, future);
+                }
+            }
+        }
+
+        if (mine.size() > 0)
+        {
+            Map<? extends K, ? extends V> loaded;
+
+            try
+            {
+                loaded = loader.apply (Collections.unmodifiableSet
+                                           (mine.keySet()));
+            }
+
+            catch (Throwable ex)
+            {
+                for (Map.Entry<K, CompletableFuture<V>> e : mine.entrySet())
+                    loadFailed (e.getKey(), e.getValue(), ex);
+                throw ex;
+            }
+
+            if (loaded == null)
+                loaded = Collections.<K,V>emptyMap();
+
+            synchronized (this)
+            {
+                // Don't let an extra value the loader returned replace one
+                // another thread is loading.
+
+                for (Map.Entry<? extends K, ? extends V> e : loaded.entrySet())
+                {
+                    K       key        = e.getKey();
+                    boolean mayStore   = mine.containsKey (key) ||
+                                         (! loads().containsKey (key));
+
+                    if ((e.getValue() != null) && mayStore &&
+                        (! containsKey (key)))
+                    {
+                        put (key, e.getValue());
+                    }
+                }
+
+                for (K key : mine.keySet())
+                    loads().remove (key);
+            }
+
+            for (Map.Entry<K, CompletableFuture<V>> e : mine.entrySet())
+            {
+                V value = loaded.get (e.getKey());
+
+                e.getValue().complete (value);
+                if (value != null)
+                    found.put (e.getKey(), value);
+            }
+        }
+
+        for (Map.Entry<K, CompletableFuture<V>> e : waiting.entrySet())
+        {
+            V value = awaitLoad (e.getValue());
+
+            if (value != null)
+                found.put (e.getKey(), value);
+        }
+
+        Map<K,V> result = new LinkedHashMap<K,V>();
+
+        for (K key : wanted)
+        {
+            V value = found.get (key);
+
+            if (value != null)
+                result.put (key, value);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the eviction policy of this <tt>LRUMap</tt>.
+     *
+     * @return the eviction policy
+     *
+     * @see #setEvictionPolicy
+     */
+    public EvictionPolicy getEvictionPolicy()
+    {
+        return evictionPolicy;
+    }
+
+    /**
+     * Get the time after which entries expire once they've been accessed.
+     *
+     * @param unit  the unit in which to return the time
+     *
+     * @return the time, or 0 if entries don't expire after access
+     *
+     * @see #setExpireAfterAccess
+     */
+    public long getExpireAfterAccess (TimeUnit unit)
+    {
+        return unit.convert (expireAfterAccessNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the time after which entries expire once they've been stored.
+     *
+     * @param unit  the unit in which to return the time
+     *
+     * @return the time, or 0 if entries don't expire after being stored
+     *
+     * @see #setExpireAfterWrite
+     */
+    public long getExpireAfterWrite (TimeUnit unit)
+    {
+        return unit.convert (expireAfterWriteNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the time after which a value retrieved with
+     * {@link #get(Object,Function) get(key, loader)} is refreshed.
+     *
+     * @param unit  the unit in which to return the time
+     *
+     * @return the time, or 0 if values aren't refreshed
+     *
+     * @see #setRefreshAfterWrite
+     */
+    public long getRefreshAfterWrite (TimeUnit unit)
+    {
+        return unit.convert (refreshAfterWriteNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the initial capacity of this <tt>LRUMap</tt>.
+     *
+     * @return the initial capacity, as passed to the constructor
+     *
+     * @see #getLoadFactor
+     * @see #getMaximumCapacity
+     */
+    public int getInitialCapacity()
+    {
+        return initialCapacity;
+    }
+
+    /**
+     * Get the load factor for this <tt>LRUMap</tt>.
+     *
+     * @return the load factor, as passed to the constructor
+     *
+     * @see #getInitialCapacity
+     * @see #getMaximumCapacity
+     */
+    public float getLoadFactor()
+    {
+        return loadFactor;
+    }
+
+    /**
+     * Get the maximum capacity of this <tt>LRUMap</tt>.
+     *
+     * @return the maximum capacity, as passed to the constructor
+     *
+     * @see #setMaximumCapacity
+     * @see #getLoadFactor
+     * @see #getInitialCapacity
+     */
+    public int getMaximumCapacity()
+    {
+        return maxCapacity;
+    }
+
+    /**
+     * Get the maximum total weight of the entries in this <tt>LRUMap</tt>.
+     *
+     * @return the maximum weight, or <tt>Long.MAX_VALUE</tt> if the map
+     *         isn't bounded by weight
+     *
+     * @see #setMaximumWeight
+     * @see #getWeight
+     */
+    public long getMaximumWeight()
+    {
+        return maxWeight;
+    }
+
+    /**
+     * Get the total weight of the entries currently in this
+     * <tt>LRUMap</tt>. For a map without a {@link Weigher}, that's the
+     * same as its size.
+     *
+     * @return the total weight
+     *
+     * @see #getMaximumWeight
+     */
+    public long getWeight()
+    {
+        return totalWeight;
+    }
+
+    /**
+     * Determine whether this map is empty or not.
+     *
+     * @return <tt>true</tt> if the map has no mappings, <tt>false</tt>
+     *          otherwise
+     */
+    public boolean isEmpty()
+    {
+        return hash.isEmpty();
+    }
+
+    /**
+     * <p>Return a <tt>Set</tt> view of the keys in the map. The set is
+     * backed by the map, so changes to the map are reflected in the set,
+     * and vice-versa. The set does supports element removal, which removes
+     * the corresponding mapping from this map; however, the
+     * <tt>Iterator</tt> returned by the set currently does <b>not</b>
+     * support element removal. The set does not support the <tt>add</tt>
+     * or <tt>addAll</tt> operations.
+     *
+     * @return the set of keys in this map
+     */
+    public Set<K> keySet()
+    {
+        return new KeySet();
+    }
+
+    /**
      * Associates the specified value with the specified key in this map.
      * If the key already has a value in this map, the existing value is
      * replaced by the new value, and the old value is replaced. If the key
@@ -946,16 +1788,219 @@ public class LRUMap<K,V>
         if (entry != null)
         {
             value = entry.value;
-            lruQueue.remove (entry);
+            entry.queue.remove (entry);
+            totalWeight -= entry.weight;
+            if (timerWheel != null)
+                timerWheel.deschedule (entry);
 
             callRemovalListeners (key, value, false);
         }
 
-        assert (hash.size() == lruQueue.size);
+        assert (hash.size() == queuedEntries());
 
+        expireEntries();
         return value;
     }
 
+    /**
+     * Set the policy that decides which entries are discarded to make
+     * room. The entries already in the map are kept; under the segmented
+     * policies, they start out in the probationary segment, in their
+     * current order.
+     *
+     * @param policy  the new policy
+     *
+     * @see #getEvictionPolicy
+     */
+    public void setEvictionPolicy (EvictionPolicy policy)
+    {
+        List<LRULinkedListEntry> entries =
+            new ArrayList<LRULinkedListEntry> (hash.size());
+
+        for (LRULinkedListEntry entry = nextEntry (null);
+             entry != null;
+             entry = nextEntry (entry))
+        {
+            entries.add (entry);
+        }
+
+        this.evictionPolicy = policy;
+        this.lruQueue       = new LRULinkedList();
+        this.protectedQueue = null;
+        this.windowQueue    = null;
+        this.sketch         = null;
+
+        switch (policy)
+        {
+            case W_TINY_LFU:
+                windowQueue = new LRULinkedList();
+                sketch      = new FrequencySketch (sketchCapacity());
+                protectedQueue = new LRULinkedList();
+                break;
+
+            case SEGMENTED_LRU:
+                protectedQueue = new LRULinkedList();
+                break;
+
+            default:
+                break;
+        }
+
+        for (LRULinkedListEntry entry : entries)
+        {
+            entry.candidate = false;
+            lruQueue.addToTail (entry);
+        }
+    }
+
+    /**
+     * Make entries expire a fixed time after they were last retrieved (via
+     * <tt>get()</tt>) or stored. The expiration times of the entries
+     * already in the map are computed from the current time.
+     *
+     * @param duration  how long after its last access an entry expires, or
+     *                  0 to stop entries expiring after access
+     * @param unit      the unit of <tt>duration</tt>
+     *
+     * @see #getExpireAfterAccess
+     * @see #setExpireAfterWrite
+     */
+    public void setExpireAfterAccess (long duration, TimeUnit unit)
+    {
+        assert (duration >= 0);
+
+        expireAfterAccessNanos = Math.min (unit.toNanos (duration),
+                                           MAX_EXPIRATION_NANOS);
+        expirationPolicyChanged();
+    }
+
+    /**
+     * Make entries expire a fixed time after they were stored, regardless
+     * of how often they're retrieved. The expiration times of the entries
+     * already in the map are computed from the current time.
+     *
+     * @param duration  how long after it was stored an entry expires, or
+     *                  0 to stop entries expiring after being stored
+     * @param unit      the unit of <tt>duration</tt>
+     *
+     * @see #getExpireAfterWrite
+     * @see #setExpireAfterAccess
+     */
+    public void setExpireAfterWrite (long duration, TimeUnit unit)
+    {
+        assert (duration >= 0);
+
+        expireAfterWriteNanos = Math.min (unit.toNanos (duration),
+                                          MAX_EXPIRATION_NANOS);
+        expirationPolicyChanged();
+    }
+
+    /**
+     * Set the executor that runs background refreshes (see
+     * {@link #setRefreshAfterWrite setRefreshAfterWrite()}). By default,
+     * refreshes run in the common <tt>ForkJoinPool</tt>.
+     *
+     * @param executor  the executor, or null for the default
+     */
+    public synchronized void setLoaderExecutor (Executor executor)
+    {
+        loaderExecutor = executor;
+    }
+
+    /**
+     * <p>Start, stop or change the interval of a maintenance thread that
+     * periodically removes expired entries from the map (by calling
+     * {@link #cleanUp}). Without one, expired entries are removed only
+     * when the map is updated, so a map that's rarely updated can hold on
+     * to them indefinitely.</p>
+     *
+     * <p>The maintenance thread synchronizes on the map. Since an
+     * <tt>LRUMap</tt> isn't otherwise synchronized, a map with a
+     * maintenance thread must only be accessed while synchronized on the
+     * map itself. (Wrapping it with <tt>Collections.synchronizedMap()</tt>
+     * isn't enough, since the wrapper synchronizes on itself.) The thread
+     * is a daemon thread, and it stops by itself once the map has been
+     * garbage collected.</p>
+     *
+     * @param interval  the interval between runs, or 0 to stop the
+     *                  maintenance thread
+     * @param unit      the unit of <tt>interval</tt>
+     *
+     * @see #cleanUp
+     */
+    public synchronized void setMaintenanceInterval (long     interval,
+                                                     TimeUnit unit)
+    {
+        assert (interval >= 0);
+
+        if (maintenanceExecutor != null)
+        {
+            maintenanceExecutor.shutdown();
+            maintenanceExecutor = null;
+        }
+
+        if (interval > 0)
+        {
+            maintenanceExecutor = Executors.newSingleThreadScheduledExecutor
+                (new ThreadFactory()
+                 {
+                     public Thread newThread (Runnable r)
+                     {
+                         Thread thread = new Thread (r, "LRUMap maintenance");
+
+                         thread.setDaemon (true);
+                         return thread;
+                     }
+                 });
+
+            maintenanceExecutor.scheduleWithFixedDelay
+                (new MaintenanceTask (this, maintenanceExecutor),
+                 interval, interval, unit);
+        }
+    }
+
+    /**
+     * Make {@link #get(Object,Function) get(key, loader)} refresh values
+     * that were stored more than a given time ago. The old value is
+     * returned, and the loader runs in the background to replace it;
+     * until it finishes, other retrievals return the old value, too,
+     * without starting another refresh. Unlike expiration, refreshing
+     * never makes a caller wait for the loader. Refresh only happens when
+     * the value is retrieved, so values that aren't used aren't reloaded.
+     *
+     * @param duration  how long after it was stored a value is refreshed,
+     *                  or 0 to stop refreshing
+     * @param unit      the unit of <tt>duration</tt>
+     *
+     * @see #getRefreshAfterWrite
+     * @see #setLoaderExecutor
+     */
+    public synchronized void setRefreshAfterWrite (long duration, TimeUnit unit)
+    {
+        assert (duration >= 0);
+
+        long oldNanos = refreshAfterWriteNanos;
+
+        refreshAfterWriteNanos = Math.min (unit.toNanos (duration),
+                                           MAX_EXPIRATION_NANOS);
+
+        // Unless expiration is enabled, the time each entry was stored
+        // hasn't been recorded. Count the existing entries as stored now.
+
+        if ((oldNanos == 0) && (refreshAfterWriteNanos > 0) &&
+            (timerWheel == null))
+        {
+            long now = currentTime();
+
+            for (LRULinkedListEntry entry = nextEntry (null);
+                 entry != null;
+                 entry = nextEntry (entry))
+            {
+                entry.writeTime = now;
+            }
+        }
+    }
+
     /**
      * Set or change the maximum capacity of this <tt>LRUMap</tt>. If the
      * maximum capacity is reduced to less than the map's current size,
@@ -972,11 +2017,35 @@ public class LRUMap<K,V>
         assert (newCapacity > 0);
 
         int oldCapacity = this.maxCapacity;
-        clearTo (newCapacity);
+        clearTo (newCapacity, this.maxWeight);
         this.maxCapacity = newCapacity;
+        evictionBudgetChanged();
         return oldCapacity;
     }
 
+    /**
+     * Set or change the maximum total weight of the entries in this
+     * <tt>LRUMap</tt>. If the maximum weight is reduced to less than the
+     * map's current weight, then the map is reduced in size by discarding
+     * the oldest entries.
+     *
+     * @param newWeight  the new maximum weight. Must not be negative.
+     *
+     * @return the old maximum weight
+     *
+     * @see #getMaximumWeight
+     */
+    public long setMaximumWeight (long newWeight)
+    {
+        assert (newWeight >= 0);
+
+        long oldWeight = this.maxWeight;
+        clearTo (this.maxCapacity, newWeight);
+        this.maxWeight = newWeight;
+        evictionBudgetChanged();
+        return oldWeight;
+    }
+
     /**
      * Get the number of entries in the map. Note that this value can
      * temporarily exceed the maximum capacity of the map. See the class
@@ -986,7 +2055,7 @@ public class LRUMap<K,V>
      */
     public int size()
     {
-        return lruQueue.size;
+        return hash.size();
     }
 
     /**
@@ -1037,16 +2106,130 @@ public class LRUMap<K,V>
                               Private Methods
     \*----------------------------------------------------------------------*/
 
-    private LRULinkedListEntry clearTo (int size)
+    /**
+     * Get the current time, in nanoseconds, for expiration purposes.
+     * Package-private, so that tests can control the clock.
+     *
+     * @return the current time
+     */
+    long currentTime()
     {
-        assert (hash.size() == lruQueue.size);
-        LRULinkedListEntry oldTail = null;
-
-        while (lruQueue.size > size)
-        {
-            oldTail = lruQueue.removeTail();
+        return System.nanoTime();
+    }
 
-            assert (oldTail != null);
+    private boolean isExpired (LRULinkedListEntry entry, long now)
+    {
+        return (timerWheel != null) && ((entry.expirationTime - now) <= 0);
+    }
+
+    /**
+     * Compute and schedule an entry's expiration time.
+     *
+     * @param entry  the entry
+     * @param now    the current time
+     * @param write  <tt>true</tt> if the entry has just been stored,
+     *               <tt>false</tt> if it has just been retrieved
+     */
+    private void setExpirationTime (LRULinkedListEntry entry,
+                                    long               now,
+                                    boolean            write)
+    {
+        long expirationTime = now + MAX_EXPIRATION_NANOS;
+
+        if (write)
+            entry.writeTime = now;
+
+        if (expireAfterWriteNanos > 0)
+            expirationTime = entry.writeTime + expireAfterWriteNanos;
+
+        if ((expireAfterAccessNanos > 0) &&
+            ((now + expireAfterAccessNanos) - expirationTime < 0))
+        {
+            expirationTime = now + expireAfterAccessNanos;
+        }
+
+        entry.expirationTime = expirationTime;
+        timerWheel.schedule (entry);
+    }
+
+    /**
+     * Called when an expiration time is changed. Creates or discards the
+     * timer wheel, and (re)schedules all the entries.
+     */
+    private void expirationPolicyChanged()
+    {
+        if ((expireAfterWriteNanos == 0) && (expireAfterAccessNanos == 0))
+        {
+            timerWheel = null;
+        }
+
+        else
+        {
+            long now = currentTime();
+
+            timerWheel = new TimerWheel (now);
+            for (LRULinkedListEntry entry = nextEntry (null);
+                 entry != null;
+                 entry = nextEntry (entry))
+            {
+                entry.wheelPrevious = null;
+                entry.wheelNext     = null;
+                setExpirationTime (entry, now, true);
+            }
+        }
+    }
+
+    /**
+     * Remove all expired entries from the map, notifying the removal
+     * listeners.
+     */
+    private void expireEntries()
+    {
+        if (timerWheel != null)
+        {
+            List<LRULinkedListEntry> expired =
+                new ArrayList<LRULinkedListEntry>();
+
+            timerWheel.advance (currentTime(), expired);
+            for (LRULinkedListEntry entry : expired)
+                expire (entry);
+        }
+    }
+
+    /**
+     * Remove an expired entry from the map, notifying the removal
+     * listeners.
+     *
+     * @param entry  the entry
+     */
+    private void expire (LRULinkedListEntry entry)
+    {
+        K key   = entry.key;
+        V value = entry.value;
+
+        hash.remove (key);
+        entry.queue.remove (entry);
+        totalWeight -= entry.weight;
+        timerWheel.deschedule (entry);
+
+        callRemovalListeners (key, value, true);
+    }
+
+    private LRULinkedListEntry clearTo (int size, long weight)
+    {
+        assert (hash.size() == queuedEntries());
+        LRULinkedListEntry oldTail = null;
+
+        while ((hash.size() > size) ||
+               ((totalWeight > weight) && (hash.size() > 0)))
+        {
+            oldTail = selectVictim();
+            oldTail.queue.remove (oldTail);
+            totalWeight -= oldTail.weight;
+            if (timerWheel != null)
+                timerWheel.deschedule (oldTail);
+
+            assert (oldTail != null);
 
             Object              key = oldTail.key;
             LRULinkedListEntry  rem = (LRULinkedListEntry) hash.remove (key);
@@ -1057,8 +2240,9 @@ public class LRUMap<K,V>
             callRemovalListeners (key, rem.value, true);
         }
 
-        assert (lruQueue.size <= size);
-        assert (hash.size() == lruQueue.size);
+        assert (hash.size() <= size);
+        assert (hash.size() == queuedEntries());
+        assert ((totalWeight <= weight) || (hash.size() == 0));
 
         return oldTail;
     }
@@ -1135,22 +2319,68 @@ public class LRUMap<K,V>
         // queue, of sorts, with least recently used items at the end. So
         // remove the tail entries.
 
+        // Clear out expired entries first, so they don't push out
+        // live ones.
+
+        expireEntries();
+
         V                   oldValue = null;
         LRULinkedListEntry  entry    = (LRULinkedListEntry) hash.get (key);
+        int                 weight   = weigh (key, value);
+
+        if (sketch != null)
+            sketch.increment (key);
+
+        if (weight > this.maxWeight)
+        {
+            // An entry that's too heavy on its own can never fit. Discard
+            // it right away, rather than evicting everything else first.
+            // The value it replaces, if any, goes, too.
+
+            if (entry != null)
+            {
+                oldValue = entry.value;
+                hash.remove (key);
+                entry.queue.remove (entry);
+                totalWeight -= entry.weight;
+                if (timerWheel != null)
+                    timerWheel.deschedule (entry);
+
+                callRemovalListeners (key, oldValue, true);
+            }
+
+            callRemovalListeners (key, value, true);
+            return oldValue;
+        }
 
         if (entry == null)
         {
-            // Must add a new one. Clear out the cruft. Reuse the last
-            // cleared entry, though, rather than allocate a new object.
+            if (evictionPolicy == EvictionPolicy.LRU)
+            {
+                // Must add a new one. Clear out the cruft. Reuse the last
+                // cleared entry, though, rather than allocate a new object.
+
+                entry = clearTo (this.maxCapacity - 1,
+                                 this.maxWeight - weight);
+            }
+
+            // Under the other policies, the new entry may itself be the
+            // one that's discarded, so it has to be added first.
 
-            entry = clearTo (this.maxCapacity - 1);
             if (entry == null)
                 entry = new LRULinkedListEntry (key, value);
             else
                 entry.setKeyValue (key, value);
 
-            lruQueue.addToHead (entry);
+            entry.weight = weight;
+            totalWeight += weight;
+            admit (entry);
             hash.put (key, entry);
+
+            if ((sketch != null) && (weigher != null))
+                sketch.ensureCapacity (hash.size());
+
+            recordWrite (entry);
         }
 
         else
@@ -1160,9 +2390,450 @@ public class LRUMap<K,V>
 
             oldValue = entry.value;
             entry.value = value;
-            lruQueue.moveToHead (entry);
+            totalWeight += (weight - entry.weight);
+            entry.queue.weight += (weight - entry.weight);
+            entry.weight = weight;
+            recordAccess (entry);
+
+            recordWrite (entry);
+        }
+
+        // If the map is now too heavy, discard the oldest entries. The
+        // entry just stored is the newest, and it fits on its own, so
+        // it's kept.
+
+        if ((hash.size() > this.maxCapacity) || (totalWeight > this.maxWeight))
+            clearTo (this.maxCapacity, this.maxWeight);
+
+        // Any candidates from the W-TinyLFU window that survived have now
+        // been admitted. They're all at the head of the probationary
+        // segment.
+
+        for (LRULinkedListEntry e = lruQueue.head;
+             (e != null) && e.candidate;
+             e = e.next)
+        {
+            e.candidate = false;
         }
 
         return oldValue;
     }
+
+    /**
+     * Add a new entry to the appropriate queue, for the eviction policy.
+     *
+     * @param entry  the entry
+     */
+    private void admit (LRULinkedListEntry entry)
+    {
+        entry.candidate = false;
+
+        switch (evictionPolicy)
+        {
+            case W_TINY_LFU:
+                // Entries pushed out of the window become candidates for
+                // admission to the main space. If there's no room for them
+                // there, selectVictim() decides.
+
+                long windowLimit = windowLimit();
+
+                windowQueue.addToHead (entry);
+                while ((windowQueue.weight > windowLimit) &&
+                       (windowQueue.size > 1))
+                {
+                    LRULinkedListEntry candidate = windowQueue.removeTail();
+
+                    candidate.candidate = true;
+                    lruQueue.addToHead (candidate);
+                }
+                break;
+
+            default:
+                lruQueue.addToHead (entry);
+                break;
+        }
+    }
+
+    /**
+     * Record a hit on an entry, moving it as the eviction policy dictates.
+     *
+     * @param entry  the entry
+     */
+    private void recordAccess (LRULinkedListEntry entry)
+    {
+        if ((entry.queue == lruQueue) && (protectedQueue != null))
+        {
+            // Promote the entry from the probationary segment to the
+            // protected one, demoting the protected segment's least
+            // recently used entries if it's now too big.
+
+            long protectedLimit = protectedLimit();
+
+            lruQueue.remove (entry);
+            entry.candidate = false;
+            protectedQueue.addToHead (entry);
+
+            while ((protectedQueue.weight > protectedLimit) &&
+                   (protectedQueue.size > 1))
+            {
+                lruQueue.addToHead (protectedQueue.removeTail());
+            }
+        }
+
+        else
+        {
+            entry.queue.moveToHead (entry);
+        }
+    }
+
+    /**
+     * Choose the next entry to discard to make room.
+     *
+     * @return the entry, which is still in its queue
+     */
+    private LRULinkedListEntry selectVictim()
+    {
+        LRULinkedListEntry victim = lruQueue.tail;
+
+        if (evictionPolicy == EvictionPolicy.W_TINY_LFU)
+        {
+            // The latest candidate from the window has to beat the main
+            // space's victim to get in; otherwise, it's discarded itself.
+            // Ties go to the victim, since the candidate has had less
+            // time to prove itself.
+
+            LRULinkedListEntry candidate = lruQueue.head;
+
+            if ((candidate != null) && candidate.candidate)
+            {
+                LRULinkedListEntry rival = (candidate != victim)
+                                           ? victim
+                                           : protectedQueue.tail;
+
+                if (rival != null)
+                {
+                    candidate.candidate = false;
+                    if (sketch.frequency (candidate.key) <=
+                        sketch.frequency (rival.key))
+                    {
+                        return candidate;
+                    }
+
+                    return rival;
+                }
+            }
+        }
+
+        if ((victim == null) && (protectedQueue != null))
+            victim = protectedQueue.tail;
+
+        if ((victim == null) && (windowQueue != null))
+            victim = windowQueue.tail;
+
+        return victim;
+    }
+
+    /**
+     * Get the capacity that the segmented policies divide up among their
+     * segments: the maximum weight, for a map with a weigher, and the
+     * maximum capacity, otherwise.
+     *
+     * @return the capacity
+     */
+    private long evictionBudget()
+    {
+        return (weigher == null) ? Math.min (maxCapacity, maxWeight)
+                                 : maxWeight;
+    }
+
+    private long windowLimit()
+    {
+        return Math.max (1, (evictionBudget() / 100) * WINDOW_PERCENT);
+    }
+
+    private long protectedLimit()
+    {
+        long mainBudget = evictionBudget();
+
+        if (windowQueue != null)
+            mainBudget -= windowLimit();
+
+        return (mainBudget / 100) * PROTECTED_PERCENT +
+               ((mainBudget % 100) * PROTECTED_PERCENT) / 100;
+    }
+
+    /**
+     * Called when the maximum capacity or weight changes, to enlarge the
+     * frequency sketch if the map can now hold more entries. The sketch
+     * is never shrunk, since that would discard its history.
+     */
+    private void evictionBudgetChanged()
+    {
+        if (sketch != null)
+            sketch.ensureCapacity (sketchCapacity());
+    }
+
+    /**
+     * Get the number of keys the frequency sketch should be able to track.
+     * Without a weigher, that's the maximum number of entries. With one,
+     * the maximum weight says nothing about the number of entries (it's
+     * often a number of bytes), so the sketch starts at the map's initial
+     * capacity and grows with the map.
+     *
+     * @return the number of keys
+     */
+    private long sketchCapacity()
+    {
+        if (weigher == null)
+            return evictionBudget();
+
+        return Math.max (initialCapacity, hash.size());
+    }
+
+    /**
+     * Get the entry that follows another when iterating over the map:
+     * the window, the protected segment and the probationary segment (or
+     * just the LRU queue), each from most to least recently used.
+     *
+     * @param entry  the current entry, or null to get the first one
+     *
+     * @return the next entry, or null if there are no more
+     */
+    private LRULinkedListEntry nextEntry (LRULinkedListEntry entry)
+    {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        LRULinkedList[] queues = (LRULinkedList[]) new LRUMap.LRULinkedList[]
+                                 {windowQueue, protectedQueue, lruQueue};
+        int             i      = 0;
+
+        if (entry != null)
+        {
+            if (entry.next != null)
+                return entry.next;
+
+            // The entry may have been removed from the map.
+
+            if (entry.queue == null)
+                return null;
+
+            while (queues[i] != entry.queue)
+                i++;
+            i++;
+        }
+
+        for (; i < queues.length; i++)
+        {
+            if ((queues[i] != null) && (queues[i].head != null))
+                return queues[i].head;
+        }
+
+        return null;
+    }
+
+    /**
+     * Count the entries in all the queues, for consistency checks.
+     *
+     * @return the count
+     */
+    private int queuedEntries()
+    {
+        int total = lruQueue.size;
+
+        if (protectedQueue != null)
+            total += protectedQueue.size;
+        if (windowQueue != null)
+            total += windowQueue.size;
+
+        return total;
+    }
+
+    /**
+     * Get the table of loads in progress, creating it if necessary.
+     * Called while synchronized on the map.
+     *
+     * @return the table
+     */
+    private Map<K, CompletableFuture<V>> loads()
+    {
+        if (loading == null)
+            loading = new HashMap<K, CompletableFuture<V>>();
+
+        return loading;
+    }
+
+    /**
+     * Record the time an entry was stored, for expiration and refresh, if
+     * either is enabled.
+     *
+     * @param entry  the entry
+     */
+    private void recordWrite (LRULinkedListEntry entry)
+    {
+        if ((timerWheel != null) || (refreshAfterWriteNanos > 0))
+        {
+            long now = currentTime();
+
+            entry.writeTime = now;
+            if (timerWheel != null)
+                setExpirationTime (entry, now, true);
+        }
+    }
+
+    /**
+     * Start an asynchronous refresh of a key, if its value was stored long
+     * enough ago and it isn't already being loaded. Called while
+     * synchronized on the map.
+     *
+     * @param key     the key, which is in the map
+     * @param loader  the loader
+     */
+    private void refreshIfStale (final K                                  key,
+                                 final Function<? super K, ? extends V> loader)
+    {
+        final LRULinkedListEntry entry = (LRULinkedListEntry) hash.get (key);
+
+        if (((currentTime() - entry.writeTime) < refreshAfterWriteNanos) ||
+            loads().containsKey (key))
+        {
+            return;
+        }
+
+        final CompletableFuture<V> future    = new Load<V> (null);
+        final long                 writeTime = entry.writeTime;
+        Executor                   executor  = loaderExecutor;
+
+        if (executor == null)
+            executor = ForkJoinPool.commonPool();
+
+        loads().put (key, future);
+        executor.execute (new Runnable()
+        {
+            public void run()
+            {
+                V value;
+
+                try
+                {
+                    value = loader.apply (key);
+                }
+
+                catch (Throwable ex)
+                {
+                    loadFailed (key, future, ex);
+                    return;
+                }
+
+                synchronized (LRUMap.this)
+                {
+                    // Don't overwrite a value that was stored, or resurrect
+                    // one that was removed, while the refresh was running.
+
+                    if ((value != null) && (hash.get (key) == entry) &&
+                        (entry.writeTime == writeTime))
+                    {
+                        put (key, value);
+                    }
+
+                    loads().remove (key);
+                }
+
+                future.complete (value);
+            }
+        });
+    }
+
+    /**
+     * Make sure that a thread isn't about to wait for a load that it's
+     * running itself, which would never finish: a loader that retrieves
+     * the key it's loading, for instance. Called while synchronized on
+     * the map.
+     *
+     * @param key     the key
+     * @param future  the key's load in progress
+     *
+     * @throws IllegalStateException  the load is the current thread's
+     */
+    private void checkRecursiveLoad (K key, CompletableFuture<V> future)
+    {
+        if (((Load<V>) future).thread == Thread.currentThread())
+        {
+            throw new IllegalStateException ("Recursive load of key \"" +
+                                             key + "\"");
+        }
+    }
+
+    /**
+     * Clean up after a failed load, and pass the failure on to any
+     * threads waiting for it.
+     *
+     * @param key     the key that was being loaded
+     * @param future  the load's future
+     * @param ex      the failure
+     */
+    private void loadFailed (K                    key,
+                             CompletableFuture<V> future,
+                             Throwable            ex)
+    {
+        synchronized (this)
+        {
+            loads().remove (key);
+        }
+
+        future.completeExceptionally (ex);
+    }
+
+    /**
+     * Wait for another thread's load to finish.
+     *
+     * @param future  the load's future
+     *
+     * @return the loaded value
+     *
+     * @throws RuntimeException the load failed
+     */
+    private V awaitLoad (CompletableFuture<V> future)
+    {
+        try
+        {
+            return future.join();
+        }
+
+        catch (CompletionException ex)
+        {
+            Throwable cause = ex.getCause();
+
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Compute the weight of an entry.
+     *
+     * @param key    the key
+     * @param value  the value
+     *
+     * @return the weight, which is 1 if there's no weigher
+     *
+     * @throws IllegalArgumentException the weigher returned a negative weight
+     */
+    private int weigh (K key, V value)
+    {
+        if (weigher == null)
+            return 1;
+
+        int weight = weigher.weigh (key, value);
+
+        if (weight < 0)
+        {
+            throw new IllegalArgumentException ("Negative weight " + weight +
+                                                " for key \"" + key + "\"");
+        }
+
+        return weight;
+    }
 }
@@ -0,0 +1,909 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>A disk-resident map keyed by primitive <tt>long</tt> values. Like a
+ * {@link FileHashMap}, a <tt>LongFileHashMap</tt> keeps its values in a
+ * data file and its index in memory; but since the keys are primitive,
+ * the index is a pair of parallel arrays (the keys, and the position and
+ * size of each value) managed as an open-addressing hash table, rather
+ * than a <tt>HashMap</tt> of key and entry objects. Each slot in the table
+ * occupies 20 bytes. The table doubles in size whenever it would become
+ * more than three quarters full, so, as keys are added, it stays (once
+ * it has outgrown its initial 16 slots) between three eighths and three
+ * quarters full, and the index needs 27 to 54 bytes per key, compared to
+ * well over 100 bytes per key (a <tt>HashMap</tt> node, a <tt>Long</tt>
+ * and an index entry) for a <tt>FileHashMap&lt;Long,V&gt;</tt>. The table
+ * doesn't shrink when keys are removed, so the space per key grows as the
+ * map empties. Looking up a key neither boxes the key nor allocates
+ * anything else (although reading the value does, of course).</p>
+ *
+ * <p>The files are named like those of a {@link FileHashMap}: the data
+ * file has the suffix {@link FileHashMap#DATA_FILE_SUFFIX}, and the index
+ * file, which is written when the map is saved or closed, has the suffix
+ * {@link FileHashMap#INDEX_FILE_SUFFIX}. The index file consists of a
+ * version stamp, the number of entries, and a fixed-width record (key,
+ * position, size) for each entry. The values are encoded with a
+ * {@link ValueCodec}, which defaults to Java serialization.</p>
+ *
+ * <p>The constructor accepts the {@link FileHashMap#NO_CREATE},
+ * {@link FileHashMap#TRANSIENT} and {@link FileHashMap#FORCE_OVERWRITE}
+ * flags, which have the same meaning as they do for a
+ * <tt>FileHashMap</tt>. Space occupied by removed and replaced values is
+ * not reused. All methods are synchronized.</p>
+ *
+ * <p>Since this class isn't a <tt>java.util.Map</tt>, it doesn't have
+ * collection views. Instead, {@link #cursor} returns a {@link Cursor},
+ * which traverses the entries without creating an object per entry.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ *
+ * @see FileHashMap
+ */
+public class LongFileHashMap<V>
+{
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Version stamp, written to the index file.
+     */
+    private static final String VERSION_STAMP =
+                                  "org.clapper.util.misc.LongFileHashMap-1.0";
+
+    /**
+     * Flags accepted by the constructor.
+     */
+    private static final int ALL_FLAGS_MASK = FileHashMap.NO_CREATE
+                                            | FileHashMap.TRANSIENT
+                                            | FileHashMap.FORCE_OVERWRITE;
+
+    /**
+     * Size value that marks an empty slot.
+     */
+    private static final int EMPTY = -1;
+
+    private static final int   MIN_CAPACITY = 16;
+    private static final float MAX_LOAD     = 0.75f;
+
+    /*----------------------------------------------------------------------*\
+                              Public Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * <p>Traverses the entries in a <tt>LongFileHashMap</tt>, in no
+     * particular order. Call {@link #next} to advance to each entry, then
+     * {@link #key} and {@link #value} to retrieve the entry's key and
+     * value. The map must not be modified during the traversal.</p>
+     */
+    public final class Cursor
+    {
+        private int slot = -1;
+        private final int expectedModCount;
+
+        private Cursor()
+        {
+            expectedModCount = modCount;
+        }
+
+        /**
+         * Advance to the next entry.
+         *
+         * @return <tt>true</tt> if there is another entry, <tt>false</tt>
+         *         if the traversal is complete
+         *
+         * @throws ConcurrentModificationException the map was modified
+         */
+        public boolean next()
+        {
+            synchronized (LongFileHashMap.this)
+            {
+                checkModCount();
+
+                while (++slot < sizes.length)
+                {
+                    if (sizes[slot] != EMPTY)
+                        return true;
+                }
+
+                return false;
+            }
+        }
+
+        /**
+         * Get the key of the current entry.
+         *
+         * @return the key
+         */
+        public long key()
+        {
+            synchronized (LongFileHashMap.this)
+            {
+                checkCurrent();
+                return keys[slot];
+            }
+        }
+
+        /**
+         * Read the value of the current entry.
+         *
+         * @return the value, or null if it can't be read
+         */
+        public V value()
+        {
+            synchronized (LongFileHashMap.this)
+            {
+                checkCurrent();
+                return readValueNoError (slot);
+            }
+        }
+
+        private void checkModCount()
+        {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+
+        private void checkCurrent()
+        {
+            checkModCount();
+            if ((slot < 0) || (slot >= sizes.length) || (sizes[slot] == EMPTY))
+                throw new NoSuchElementException();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The keys, indexed by slot.
+     */
+    private long[] keys;
+
+    /**
+     * Data file positions of the values, indexed by slot.
+     */
+    private long[] positions;
+
+    /**
+     * Sizes of the values, indexed by slot. EMPTY marks an unused slot.
+     */
+    private int[] sizes;
+
+    /**
+     * Number of entries.
+     */
+    private int size = 0;
+
+    /**
+     * Number of modifications, for detecting modification during
+     * traversal.
+     */
+    private int modCount = 0;
+
+    private String        filePrefix;
+    private int           flags;
+    private File          dataFilePath;
+    private File          indexFilePath;
+    private ValueCodec<V> valueCodec;
+
+    /**
+     * The open data file, or null once the map is closed.
+     */
+    private RandomAccessFile dataFile;
+
+    /**
+     * Length of the data file.
+     */
+    private long dataLength;
+
+    /**
+     * Whether the index has changed since it was last saved.
+     */
+    private boolean modified = false;
+
+    /*----------------------------------------------------------------------*\
+                                Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * <p>Open or create a map whose values are stored using Java
+     * serialization.</p>
+     *
+     * @param pathPrefix  the pathname prefix to the files to be used
+     * @param flags       {@link FileHashMap#NO_CREATE},
+     *                    {@link FileHashMap#TRANSIENT} and/or
+     *                    {@link FileHashMap#FORCE_OVERWRITE}, or 0
+     *
+     * @throws FileNotFoundException    The files do not exist, and the
+     *                                  {@link FileHashMap#NO_CREATE} flag
+     *                                  was specified.
+     * @throws VersionMismatchException Bad or unsupported version stamp in
+     *                                  the index file
+     * @throws ObjectExistsException    The files already exist, but the map
+     *                                  is transient and
+     *                                  {@link FileHashMap#FORCE_OVERWRITE}
+     *                                  was not specified; or only one of
+     *                                  the files exists.
+     * @throws IOException              Other errors
+     *
+     * @see #LongFileHashMap(String,int,ValueCodec)
+     */
+    public LongFileHashMap (String pathPrefix, int flags)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               VersionMismatchException,
+               IOException
+    {
+        this (pathPrefix, flags, ValueCodecs.<V>serialization());
+    }
+
+    /**
+     * <p>Open or create a map whose values are stored using a specific
+     * codec.</p>
+     *
+     * @param pathPrefix  the pathname prefix to the files to be used
+     * @param flags       {@link FileHashMap#NO_CREATE},
+     *                    {@link FileHashMap#TRANSIENT} and/or
+     *                    {@link FileHashMap#FORCE_OVERWRITE}, or 0
+     * @param valueCodec  the codec used to encode the values
+     *
+     * @throws FileNotFoundException    The files do not exist, and the
+     *                                  {@link FileHashMap#NO_CREATE} flag
+     *                                  was specified.
+     * @throws VersionMismatchException Bad or unsupported version stamp in
+     *                                  the index file
+     * @throws ObjectExistsException    The files already exist, but the map
+     *                                  is transient and
+     *                                  {@link FileHashMap#FORCE_OVERWRITE}
+     *                                  was not specified; or only one of
+     *                                  the files exists.
+     * @throws IOException              Other errors
+     */
+    public LongFileHashMap (String        pathPrefix,
+                            int           flags,
+                            ValueCodec<V> valueCodec)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               VersionMismatchException,
+               IOException
+    {
+        if (((~ALL_FLAGS_MASK) & flags) != 0)
+            throw new IllegalArgumentException ("Bad flags: " + flags);
+
+        if ((flags & FileHashMap.TRANSIENT) != 0)
+            flags &= (~FileHashMap.NO_CREATE);
+
+        this.filePrefix    = pathPrefix;
+        this.flags         = flags;
+        this.valueCodec    = valueCodec;
+        this.dataFilePath  = new File (pathPrefix +
+                                       FileHashMap.DATA_FILE_SUFFIX);
+        this.indexFilePath = new File (pathPrefix +
+                                       FileHashMap.INDEX_FILE_SUFFIX);
+
+        int filesFound = 0;
+
+        if (dataFilePath.exists())
+            filesFound++;
+        if (indexFilePath.exists())
+            filesFound++;
+
+        if ((filesFound > 0) && ((flags & FileHashMap.TRANSIENT) != 0))
+        {
+            if ((flags & FileHashMap.FORCE_OVERWRITE) == 0)
+            {
+                throw new ObjectExistsException
+                    (Package.BUNDLE_NAME, "FileHashMap.diskFilesExist",
+                     "One or both of the hash table files (\"{0}\" " +
+                     "and/or \"{1}\") already exists, but the " +
+                     "FileHashMap.FORCE_OVERWRITE constructor flag " +
+                     "was not set.",
+                     new Object[]
+                     {
+                         dataFilePath.getName(),
+                         indexFilePath.getName()
+                     });
+            }
+
+            dataFilePath.delete();
+            indexFilePath.delete();
+            filesFound = 0;
+        }
+
+        switch (filesFound)
+        {
+            case 0:
+                if ((flags & FileHashMap.NO_CREATE) != 0)
+                {
+                    throw new FileNotFoundException
+                                  ("On-disk hash table \"" +
+                                   pathPrefix +
+                                   "\" does not exist, and the " +
+                                   "FileHashMap.NO_CREATE flag was set.");
+                }
+
+                allocateTable (MIN_CAPACITY);
+                break;
+
+            case 1:
+                throw new ObjectExistsException
+                              (Package.BUNDLE_NAME,
+                               "FileHashMap.halfMissing",
+                               "One of the hash table files exists (\"{0}\" " +
+                               "or \"{1}\") exists, but the other one does " +
+                               "not.",
+                               new Object[]
+                               {
+                                   dataFilePath.getName(),
+                                   indexFilePath.getName()
+                               });
+
+            case 2:
+                loadIndex();
+                break;
+
+            default:
+                assert (false);
+        }
+
+        dataFile   = new RandomAccessFile (dataFilePath, "rw");
+        dataLength = dataFile.length();
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Finalizer
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Finalizer
+     *
+     * @throws throwable on error
+     */
+    protected void finalize()
+        throws Throwable
+    {
+        try
+        {
+            close();
+        }
+
+        catch (IOException ex)
+        {
+        }
+
+        super.finalize();
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Remove all entries from the map, and truncate the data file.
+     *
+     * @throws IOException  error truncating the data file
+     */
+    public synchronized void clear()
+        throws IOException
+    {
+        checkValidity();
+        allocateTable (MIN_CAPACITY);
+        size = 0;
+        dataFile.setLength (0);
+        dataLength = 0;
+        modified = true;
+        modCount++;
+    }
+
+    /**
+     * Close the map, saving its index if the map is persistent, or
+     * deleting its files if it's transient. Once closed, the map can't be
+     * used. Closing a closed map has no effect.
+     *
+     * @throws IOException  error saving the index
+     */
+    public synchronized void close()
+        throws IOException
+    {
+        if (dataFile == null)
+            return;
+
+        try
+        {
+            if ((flags & FileHashMap.TRANSIENT) == 0)
+                save();
+        }
+
+        finally
+        {
+            dataFile.close();
+            dataFile = null;
+
+            if ((flags & FileHashMap.TRANSIENT) != 0)
+                deleteFiles();
+        }
+    }
+
+    /**
+     * Determine whether the map contains a key.
+     *
+     * @param key  the key
+     *
+     * @return <tt>true</tt> if the key is in the map
+     */
+    public synchronized boolean containsKey (long key)
+    {
+        checkValidity();
+        return findSlot (key) >= 0;
+    }
+
+    /**
+     * Return a cursor for traversing the entries in the map.
+     *
+     * @return the cursor
+     */
+    public synchronized Cursor cursor()
+    {
+        checkValidity();
+        return new Cursor();
+    }
+
+    /**
+     * Close the map and delete its files.
+     */
+    public synchronized void delete()
+    {
+        if (dataFile != null)
+        {
+            try
+            {
+                dataFile.close();
+            }
+
+            catch (IOException ex)
+            {
+            }
+
+            dataFile = null;
+        }
+
+        deleteFiles();
+    }
+
+    /**
+     * Retrieve the value associated with a key.
+     *
+     * @param key  the key
+     *
+     * @return the value, or null if the key isn't in the map or its value
+     *         can't be read
+     */
+    public synchronized V get (long key)
+    {
+        checkValidity();
+
+        int slot = findSlot (key);
+        return (slot < 0) ? null : readValueNoError (slot);
+    }
+
+    /**
+     * Determine whether the map is empty.
+     *
+     * @return <tt>true</tt> if the map has no entries
+     */
+    public synchronized boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Store a value. The value is appended to the data file; the space
+     * occupied by the previous value, if any, is not reused.
+     *
+     * @param key    the key
+     * @param value  the value
+     *
+     * @return the previous value associated with the key, or null
+     *
+     * @throws IllegalArgumentException the value can't be encoded, or I/O
+     *                                  error while storing it
+     * @throws NullPointerException     the value is null
+     */
+    public synchronized V put (long key, V value)
+        throws IllegalArgumentException,
+               NullPointerException
+    {
+        checkValidity();
+
+        if (value == null)
+            throw new NullPointerException ("null value parameter");   // NOPMD
+
+        int slot   = findSlot (key);
+        V   result = (slot < 0) ? null : readValueNoError (slot);
+        long pos;
+        int  valueSize;
+
+        try
+        {
+            byte[] bytes = valueCodec.encode (value);
+
+            pos       = dataLength;
+            valueSize = bytes.length;
+            dataFile.seek (pos);
+            dataFile.write (bytes);
+            dataLength += valueSize;
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException ("Error saving value: " +
+                                                ex.getMessage());
+        }
+
+        if (slot < 0)
+        {
+            if (size + 1 > (int) (keys.length * MAX_LOAD))
+                rehash (keys.length * 2);
+
+            slot = -findSlot (key) - 1;
+            keys[slot] = key;
+            size++;
+            modCount++;
+        }
+
+        positions[slot] = pos;
+        sizes[slot]     = valueSize;
+        modified        = true;
+        return result;
+    }
+
+    /**
+     * Remove a key and its value from the map.
+     *
+     * @param key  the key
+     *
+     * @return the value that was associated with the key, or null
+     */
+    public synchronized V remove (long key)
+    {
+        checkValidity();
+
+        int slot = findSlot (key);
+
+        if (slot < 0)
+            return null;
+
+        V result = readValueNoError (slot);
+
+        removeSlot (slot);
+        modified = true;
+        modCount++;
+        return result;
+    }
+
+    /**
+     * Save the index, if the map is persistent and has been modified.
+     *
+     * @throws IOException  error writing the index
+     */
+    public synchronized void save()
+        throws IOException
+    {
+        checkValidity();
+
+        if (((flags & FileHashMap.TRANSIENT) == 0) && modified)
+        {
+            saveIndex();
+            modified = false;
+        }
+    }
+
+    /**
+     * Get the number of entries in the map.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private void checkValidity()
+    {
+        if (dataFile == null)
+            throw new IllegalStateException ("LongFileHashMap is closed");
+    }
+
+    private void allocateTable (int capacity)
+    {
+        keys      = new long[capacity];
+        positions = new long[capacity];
+        sizes     = new int[capacity];
+        Arrays.fill (sizes, EMPTY);
+    }
+
+    /**
+     * Compute a key's home slot.
+     */
+    private int homeSlot (long key)
+    {
+        // Final mix from MurmurHash3.
+
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+
+        return (int) key & (keys.length - 1);
+    }
+
+    /**
+     * Find a key. Returns its slot, if present; otherwise, returns
+     * (-(slot) - 1), where slot is the empty slot where it belongs.
+     */
+    private int findSlot (long key)
+    {
+        int mask = keys.length - 1;
+        int slot = homeSlot (key);
+
+        while (sizes[slot] != EMPTY)
+        {
+            if (keys[slot] == key)
+                return slot;
+
+            slot = (slot + 1) & mask;
+        }
+
+        return -slot - 1;
+    }
+
+    /**
+     * Empty a slot, shifting back any later entries in the same probe
+     * sequence, so that no tombstone is needed.
+     */
+    private void removeSlot (int slot)
+    {
+        int mask = keys.length - 1;
+        int hole = slot;
+        int i    = slot;
+
+        for (;;)
+        {
+            i = (i + 1) & mask;
+            if (sizes[i] == EMPTY)
+                break;
+
+            // Move the entry into the hole unless its home slot lies
+            // (cyclically) after the hole and at or before the entry.
+
+            int     home  = homeSlot (keys[i]);
+            boolean stays = (hole <= i) ? ((hole < home) && (home <= i))
+                                        : ((hole < home) || (home <= i));
+            if (! stays)
+            {
+                keys[hole]      = keys[i];
+                positions[hole] = positions[i];
+                sizes[hole]     = sizes[i];
+                hole            = i;
+            }
+        }
+
+        sizes[hole] = EMPTY;
+        size--;
+    }
+
+    private void rehash (int capacity)
+    {
+        long[] oldKeys      = keys;
+        long[] oldPositions = positions;
+        int[]  oldSizes     = sizes;
+
+        allocateTable (capacity);
+
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldSizes[i] != EMPTY)
+            {
+                int slot = -findSlot (oldKeys[i]) - 1;
+
+                keys[slot]      = oldKeys[i];
+                positions[slot] = oldPositions[i];
+                sizes[slot]     = oldSizes[i];
+            }
+        }
+    }
+
+    private V readValueNoError (int slot)
+    {
+        try
+        {
+            byte[] buf = new byte[sizes[slot]];
+
+            dataFile.seek (positions[slot]);
+            dataFile.readFully (buf);
+            return valueCodec.decode (buf, 0, buf.length);
+        }
+
+        catch (IOException ex)
+        {
+            return null;
+        }
+
+        catch (ClassNotFoundException ex)
+        {
+            return null;
+        }
+    }
+
+    private void loadIndex()
+        throws IOException,
+               VersionMismatchException
+    {
+        DataInputStream in =
+            new DataInputStream
+                (new BufferedInputStream (new FileInputStream (indexFilePath),
+                                          64 * 1024));
+
+        try
+        {
+            String version = in.readUTF();
+
+            if (! version.equals (VERSION_STAMP))
+            {
+                throw new VersionMismatchException
+                              (Package.BUNDLE_NAME,
+                               "FileHashMap.versionMismatch",
+                               "FileHashMap version mismatch in index file " +
+                               "\"{0}\". Expected version \"{1}\", found " +
+                               "version \"{2}\"",
+                               new Object[]
+                               {
+                                   indexFilePath.getName(),
+                                   VERSION_STAMP,
+                                   version
+                               },
+                               VERSION_STAMP,
+                               version);
+            }
+
+            int total    = in.readInt();
+            int capacity = MIN_CAPACITY;
+
+            while (total >= (int) (capacity * MAX_LOAD))
+                capacity <<= 1;
+
+            allocateTable (capacity);
+
+            for (int i = 0; i < total; i++)
+            {
+                long key  = in.readLong();
+                int  slot = -findSlot (key) - 1;
+
+                keys[slot]      = key;
+                positions[slot] = in.readLong();
+                sizes[slot]     = in.readInt();
+            }
+
+            size = total;
+        }
+
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void saveIndex()
+        throws IOException
+    {
+        File             tempFile = new File (indexFilePath.getPath() + ".tmp");
+        DataOutputStream out =
+            new DataOutputStream
+                (new BufferedOutputStream (new FileOutputStream (tempFile),
+                                           64 * 1024));
+
+        try
+        {
+            out.writeUTF (VERSION_STAMP);
+            out.writeInt (size);
+
+            for (int i = 0; i < keys.length; i++)
+            {
+                if (sizes[i] != EMPTY)
+                {
+                    out.writeLong (keys[i]);
+                    out.writeLong (positions[i]);
+                    out.writeInt (sizes[i]);
+                }
+            }
+        }
+
+        finally
+        {
+            out.close();
+        }
+
+        if ((! tempFile.renameTo (indexFilePath)) &&
+            ((! indexFilePath.delete()) ||
+             (! tempFile.renameTo (indexFilePath))))
+        {
+            throw new IOException ("Unable to rename \"" + tempFile.getPath() +
+                                   "\" to \"" + indexFilePath.getPath() + "\"");
+        }
+    }
+
+    private void deleteFiles()
+    {
+        dataFilePath.delete();
+        indexFilePath.delete();
+    }
+}
@@ -0,0 +1,673 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An index, for a <tt>FileHashMap</tt>, that keeps its entries outside the
+ * Java heap. The entries are stored in an open-addressing hash table
+ * (linear probing) in direct <tt>ByteBuffer</tt> segments, one fixed-width
+ * slot (key hash, file position, value size, data file generation and key
+ * location) per entry. The keys are stored, encoded by the map's key
+ * codec, in an arena of direct buffers. Keys are compared by their encoded
+ * bytes, not with <tt>equals()</tt>, so the key codec must encode equal
+ * keys identically. <tt>FileHashMapEntry</tt> objects are created on
+ * demand, when an entry is retrieved, so the heap space used by the index
+ * does not depend on the number of keys.
+ *
+ * <p>A removed entry leaves a tombstone in its slot, and its key bytes stay
+ * in the arena until the table is rebuilt, which happens when the table
+ * fills up or the arena is mostly garbage. Iterators traverse the table
+ * that was current when they were created, so they never fail, but they
+ * may not reflect changes made after the table was rebuilt.</p>
+ *
+ * <p>This class is not publicly accessible. All methods are synchronized.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+final class OffHeapIndex<K> extends AbstractMap<K, FileHashMapEntry<K>>
+{
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Slot layout: key hash (int), file position (long), value size and
+     * flags (int), generation (int), arena chunk (int), offset in chunk
+     * (int) and key length (int).
+     */
+    private static final int SLOT_SIZE         = 32;
+    private static final int HASH_OFFSET       = 0;
+    private static final int POSITION_OFFSET   = 4;
+    private static final int SIZE_OFFSET       = 12;
+    private static final int GENERATION_OFFSET = 16;
+    private static final int CHUNK_OFFSET      = 20;
+    private static final int KEY_OFFSET        = 24;
+    private static final int KEY_LENGTH_OFFSET = 28;
+
+    /**
+     * Hash values that mark unused slots. Real hash values are adjusted to
+     * avoid them.
+     */
+    private static final int EMPTY   = 0;
+    private static final int DELETED = 1;
+
+    /**
+     * Slots per table segment, as a power of two. Each segment is a
+     * separate direct buffer, which keeps the table clear of the 2GB limit
+     * on a single buffer.
+     */
+    private static final int  SEGMENT_SHIFT = 20;
+    private static final long SEGMENT_MASK  = (1L << SEGMENT_SHIFT) - 1;
+
+    private static final long  MIN_CAPACITY = 16;
+    private static final long  MAX_CAPACITY = 1L << 32;
+    private static final float MAX_LOAD     = 0.75f;
+
+    /**
+     * Arena chunks start small and double, up to a limit. A key longer
+     * than the limit gets a chunk of its own.
+     */
+    private static final int MIN_CHUNK_SIZE = 4096;
+    private static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /*----------------------------------------------------------------------*\
+                             Private Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * A hash table and its key arena.
+     */
+    private static final class Table
+    {
+        final long             capacity;
+        final long             mask;
+        final ByteBuffer[]     segments;
+        final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+        /**
+         * Number of slots that are live or deleted.
+         */
+        long used = 0;
+
+        /**
+         * Number of bytes stored in the arena.
+         */
+        long arenaBytes = 0;
+
+        Table (long capacity)
+        {
+            this.capacity = capacity;
+            this.mask     = capacity - 1;
+
+            int total = (int) ((capacity + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+            segments = new ByteBuffer[total];
+            for (int i = 0; i < total; i++)
+            {
+                long slots = Math.min (capacity - ((long) i << SEGMENT_SHIFT),
+                                       1L << SEGMENT_SHIFT);
+                segments[i] = ByteBuffer.allocateDirect ((int) slots *
+                                                         SLOT_SIZE);
+            }
+        }
+
+        ByteBuffer segment (long slot)
+        {
+            return segments[(int) (slot >>> SEGMENT_SHIFT)];
+        }
+
+        int offset (long slot, int field)
+        {
+            return ((int) (slot & SEGMENT_MASK) * SLOT_SIZE) + field;
+        }
+
+        int getInt (long slot, int field)
+        {
+            return segment (slot).getInt (offset (slot, field));
+        }
+
+        void putInt (long slot, int field, int value)
+        {
+            segment (slot).putInt (offset (slot, field), value);
+        }
+
+        long getLong (long slot, int field)
+        {
+            return segment (slot).getLong (offset (slot, field));
+        }
+
+        void putLong (long slot, int field, long value)
+        {
+            segment (slot).putLong (offset (slot, field), value);
+        }
+
+        /**
+         * Copy a key into the arena and record its location in a slot.
+         */
+        void storeKey (long slot, byte[] key)
+        {
+            int        last  = chunks.size() - 1;
+            ByteBuffer chunk = (last < 0) ? null : chunks.get (last);
+
+            if ((chunk == null) || (chunk.remaining() < key.length))
+            {
+                int size = (chunk == null) ? MIN_CHUNK_SIZE
+                                           : Math.min (chunk.capacity() * 2,
+                                                       MAX_CHUNK_SIZE);
+                chunk = ByteBuffer.allocateDirect (Math.max (size,
+                                                             key.length));
+                chunks.add (chunk);
+                last++;
+            }
+
+            putInt (slot, CHUNK_OFFSET, last);
+            putInt (slot, KEY_OFFSET, chunk.position());
+            putInt (slot, KEY_LENGTH_OFFSET, key.length);
+            chunk.put (key);
+            arenaBytes += key.length;
+        }
+
+        byte[] loadKey (long slot)
+        {
+            ByteBuffer chunk = chunks.get (getInt (slot, CHUNK_OFFSET))
+                                     .duplicate();
+            byte[]     key   = new byte[getInt (slot, KEY_LENGTH_OFFSET)];
+
+            chunk.position (getInt (slot, KEY_OFFSET));
+            chunk.get (key);
+            return key;
+        }
+
+        boolean keyEquals (long slot, byte[] key)
+        {
+            if (getInt (slot, KEY_LENGTH_OFFSET) != key.length)
+                return false;
+
+            ByteBuffer chunk  = chunks.get (getInt (slot, CHUNK_OFFSET));
+            int        offset = getInt (slot, KEY_OFFSET);
+
+            for (int i = 0; i < key.length; i++)
+            {
+                if (chunk.get (offset + i) != key[i])
+                    return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * Find a key. Returns the slot, if the key is present; otherwise,
+         * returns (-(slot) - 1), where slot is where the key should be
+         * inserted.
+         */
+        long find (byte[] key, int hash)
+        {
+            long slot      = (hash & 0xffffffffL) & mask;
+            long firstFree = -1;
+
+            for (;;)
+            {
+                int h = getInt (slot, HASH_OFFSET);
+
+                if (h == EMPTY)
+                    return -((firstFree < 0) ? slot : firstFree) - 1;
+
+                if (h == DELETED)
+                {
+                    if (firstFree < 0)
+                        firstFree = slot;
+                }
+
+                else if ((h == hash) && keyEquals (slot, key))
+                {
+                    return slot;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    /**
+     * Iterates over the entries in a table.
+     */
+    private final class EntryIterator
+        implements Iterator<Map.Entry<K, FileHashMapEntry<K>>>
+    {
+        private final Table         iterTable;
+        private long                slot = -1;
+        private FileHashMapEntry<K> nextEntry = null;
+        private FileHashMapEntry<K> lastEntry = null;
+
+        EntryIterator()
+        {
+            synchronized (OffHeapIndex.this)
+            {
+                iterTable = table;
+            }
+
+            advance();
+        }
+
+        public boolean hasNext()
+        {
+            return nextEntry != null;
+        }
+
+        public Map.Entry<K, FileHashMapEntry<K>> next()
+        {
+            if (nextEntry == null)
+                throw new NoSuchElementException();
+
+            lastEntry = nextEntry;
+            advance();
+            return new SimpleImmutableEntry<K, FileHashMapEntry<K>>
+                (lastEntry.getKey(), lastEntry);
+        }
+
+        public void remove()
+        {
+            if (lastEntry == null)
+                throw new IllegalStateException();
+
+            OffHeapIndex.this.remove (lastEntry.getKey());
+            lastEntry = null;
+        }
+
+        private void advance()
+        {
+            synchronized (OffHeapIndex.this)
+            {
+                nextEntry = null;
+                while (++slot < iterTable.capacity)
+                {
+                    if (isLive (iterTable.getInt (slot, HASH_OFFSET)))
+                    {
+                        nextEntry = makeEntry (iterTable, slot,
+                                               decodeKey (iterTable, slot));
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The codec used to encode the keys.
+     */
+    private final ValueCodec<K> keyCodec;
+
+    /**
+     * The current table.
+     */
+    private Table table;
+
+    /**
+     * Number of live entries.
+     */
+    private long size = 0;
+
+    /**
+     * Number of arena bytes occupied by the keys of removed entries.
+     */
+    private long deadKeyBytes = 0;
+
+    /*----------------------------------------------------------------------*\
+                               Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new, empty index.
+     *
+     * @param keyCodec      the codec used to encode keys
+     * @param expectedSize  the expected number of entries
+     */
+    OffHeapIndex (ValueCodec<K> keyCodec, int expectedSize)
+    {
+        this.keyCodec = keyCodec;
+        this.table    = new Table (capacityFor (expectedSize));
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    public synchronized int size()
+    {
+        return (int) Math.min (size, Integer.MAX_VALUE);
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public synchronized boolean containsKey (Object key)
+    {
+        byte[] keyBytes = encodeKeyNoError (key);
+
+        return (keyBytes != null) && (table.find (keyBytes,
+                                                  hash (keyBytes)) >= 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized FileHashMapEntry<K> get (Object key)
+    {
+        byte[] keyBytes = encodeKeyNoError (key);
+
+        if (keyBytes == null)
+            return null;
+
+        long slot = table.find (keyBytes, hash (keyBytes));
+
+        return (slot < 0) ? null : makeEntry (table, slot, (K) key);
+    }
+
+    public synchronized FileHashMapEntry<K> put (K                   key,
+                                                 FileHashMapEntry<K> entry)
+    {
+        byte[] keyBytes;
+
+        try
+        {
+            keyBytes = keyCodec.encode (key);
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException ("Can't encode key: " +
+                                                ex.getMessage());
+        }
+
+        int                 hash   = hash (keyBytes);
+        long                slot   = table.find (keyBytes, hash);
+        FileHashMapEntry<K> result = null;
+
+        if (slot >= 0)
+            result = makeEntry (table, slot, key);
+
+        else
+        {
+            slot = -slot - 1;
+            if (table.getInt (slot, HASH_OFFSET) == EMPTY)
+            {
+                if (table.used + 1 > (long) (table.capacity * MAX_LOAD))
+                {
+                    rebuild (capacityFor (size + 1));
+                    slot = -table.find (keyBytes, hash) - 1;
+                }
+
+                if (table.getInt (slot, HASH_OFFSET) == EMPTY)
+                    table.used++;
+            }
+
+            table.putInt (slot, HASH_OFFSET, hash);
+            table.storeKey (slot, keyBytes);
+            size++;
+        }
+
+        table.putLong (slot, POSITION_OFFSET, entry.getFilePosition());
+        table.putInt (slot, SIZE_OFFSET, entry.getSizeAndFlags());
+        table.putInt (slot, GENERATION_OFFSET, entry.getGeneration());
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized FileHashMapEntry<K> remove (Object key)
+    {
+        byte[] keyBytes = encodeKeyNoError (key);
+
+        if (keyBytes == null)
+            return null;
+
+        long slot = table.find (keyBytes, hash (keyBytes));
+
+        if (slot < 0)
+            return null;
+
+        FileHashMapEntry<K> result = makeEntry (table, slot, (K) key);
+
+        table.putInt (slot, HASH_OFFSET, DELETED);
+        size--;
+        deadKeyBytes += keyBytes.length;
+
+        // Reclaim the arena once it's mostly garbage.
+
+        if ((deadKeyBytes >= MAX_CHUNK_SIZE) &&
+            (deadKeyBytes > table.arenaBytes / 2))
+        {
+            rebuild (capacityFor (size));
+        }
+
+        return result;
+    }
+
+    public synchronized void clear()
+    {
+        table        = new Table (MIN_CAPACITY);
+        size         = 0;
+        deadKeyBytes = 0;
+    }
+
+    public Set<Map.Entry<K, FileHashMapEntry<K>>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<K, FileHashMapEntry<K>>>()
+        {
+            public Iterator<Map.Entry<K, FileHashMapEntry<K>>> iterator()
+            {
+                return new EntryIterator();
+            }
+
+            public int size()
+            {
+                return OffHeapIndex.this.size();
+            }
+
+            public void clear()
+            {
+                OffHeapIndex.this.clear();
+            }
+        };
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Copy the live entries, and their keys, into a new table.
+     *
+     * @param capacity  the capacity of the new table
+     */
+    private void rebuild (long capacity)
+    {
+        Table newTable = new Table (capacity);
+
+        for (long slot = 0; slot < table.capacity; slot++)
+        {
+            int hash = table.getInt (slot, HASH_OFFSET);
+
+            if (! isLive (hash))
+                continue;
+
+            byte[] key     = table.loadKey (slot);
+            long   newSlot = -newTable.find (key, hash) - 1;
+
+            newTable.putInt (newSlot, HASH_OFFSET, hash);
+            newTable.putLong (newSlot, POSITION_OFFSET,
+                              table.getLong (slot, POSITION_OFFSET));
+            newTable.putInt (newSlot, SIZE_OFFSET,
+                             table.getInt (slot, SIZE_OFFSET));
+            newTable.putInt (newSlot, GENERATION_OFFSET,
+                             table.getInt (slot, GENERATION_OFFSET));
+            newTable.storeKey (newSlot, key);
+            newTable.used++;
+        }
+
+        table        = newTable;
+        deadKeyBytes = 0;
+    }
+
+    /**
+     * Create an entry object from a slot.
+     */
+    private FileHashMapEntry<K> makeEntry (Table t, long slot, K key)
+    {
+        return FileHashMapEntry.fromSizeAndFlags
+                   (t.getLong (slot, POSITION_OFFSET),
+                    t.getInt (slot, SIZE_OFFSET),
+                    key,
+                    t.getInt (slot, GENERATION_OFFSET));
+    }
+
+    private K decodeKey (Table t, long slot)
+    {
+        byte[] key = t.loadKey (slot);
+
+        try
+        {
+            return keyCodec.decode (key, 0, key.length);
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException ("Can't decode key: " +
+                                             ex.getMessage());
+        }
+
+        catch (ClassNotFoundException ex)
+        {
+            throw new IllegalStateException ("Can't decode key: " +
+                                             ex.getMessage());
+        }
+    }
+
+    /**
+     * Encode a key, returning null if it can't be encoded (in which case
+     * it can't be in the index).
+     */
+    @SuppressWarnings("unchecked")
+    private byte[] encodeKeyNoError (Object key)
+    {
+        try
+        {
+            return keyCodec.encode ((K) key);
+        }
+
+        catch (IOException ex)
+        {
+            return null;
+        }
+
+        catch (ClassCastException ex)
+        {
+            return null;
+        }
+    }
+
+    private static boolean isLive (int hash)
+    {
+        return (hash != EMPTY) && (hash != DELETED);
+    }
+
+    /**
+     * Hash an encoded key (FNV-1a, followed by a final mix), avoiding the
+     * values that mark unused slots.
+     */
+    private static int hash (byte[] key)
+    {
+        int h = 0x811c9dc5;
+
+        for (byte b : key)
+            h = (h ^ (b & 0xff)) * 0x01000193;
+
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+
+        if (! isLive (h))
+            h += 2;
+
+        return h;
+    }
+
+    /**
+     * Compute the capacity of a table that holds a number of entries at
+     * no more than half the maximum load.
+     */
+    private static long capacityFor (long entries)
+    {
+        long capacity = MIN_CAPACITY;
+
+        while (capacity * MAX_LOAD / 2 < entries)
+        {
+            capacity <<= 1;
+            if (capacity > MAX_CAPACITY)
+                throw new IllegalStateException ("Index is full.");
+        }
+
+        return capacity;
+    }
+}
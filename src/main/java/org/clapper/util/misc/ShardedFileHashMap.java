@@ -0,0 +1,774 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>A disk-resident map that spreads its keys over several
+ * {@link FileHashMap} shards. Each shard has its own data file, index and
+ * lock, so threads that update keys in different shards don't contend with
+ * each other, and the shards' files can be placed on different volumes
+ * (see {@link #ShardedFileHashMap(String[],int,ValueCodec,ValueCodec)}).
+ * Write throughput therefore scales with the number of shards, as long as
+ * there are enough writing threads to keep them busy.</p>
+ *
+ * <p>A key's shard is chosen by hashing its encoded form, as produced by
+ * the key codec, so a key always maps to the same shard, regardless of its
+ * <tt>hashCode()</tt> implementation. The key codec must therefore encode
+ * equal keys identically; otherwise, equal keys can land in different
+ * shards, and a lookup misses. The default codec, Java serialization,
+ * doesn't guarantee that for every class: two equal <tt>HashSet</tt>
+ * keys with different capacities, for instance, serialize differently.
+ * The number of shards, and their order, are not recorded in the files;
+ * a persistent sharded map must always be reopened with the same shards,
+ * in the same order, and with the same codecs.</p>
+ *
+ * <p>The flags passed to the constructor are passed to every shard. If
+ * they include {@link FileHashMap#CONCURRENT}, operations are passed
+ * straight to the shards, which handle their own concurrency. Otherwise,
+ * each operation locks the shard it uses for the duration of the
+ * operation. Either way, iterating over the map while another thread
+ * modifies it has the same effect as iterating over the individual
+ * shards.</p>
+ *
+ * <p>The {@link #save save()}, {@link #close close()} and
+ * {@link #delete delete()} methods apply to all the shards at once.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ *
+ * @see FileHashMap
+ */
+public class ShardedFileHashMap<K,V> extends AbstractMap<K,V>
+{
+    /*----------------------------------------------------------------------*\
+                             Private Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Iterates over the entries of each shard in turn.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<K,V>>
+    {
+        private int                      shard = 0;
+        private Iterator<Map.Entry<K,V>> it = null;
+        private Iterator<Map.Entry<K,V>> last = null;
+
+        public boolean hasNext()
+        {
+            while ((it == null) || (! it.hasNext()))
+            {
+                if (shard >= shards.length)
+                    return false;
+
+                it = shards[shard++].entrySet().iterator();
+            }
+
+            return true;
+        }
+
+        public Map.Entry<K,V> next()
+        {
+            if (! hasNext())
+                throw new NoSuchElementException();
+
+            last = it;
+            return it.next();
+        }
+
+        public void remove()
+        {
+            if (last == null)
+                throw new IllegalStateException();
+
+            last.remove();
+            last = null;
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The shards.
+     */
+    private FileHashMap<K,V>[] shards;
+
+    /**
+     * One lock per shard, used unless the shards are CONCURRENT.
+     */
+    private Object[] locks;
+
+    /**
+     * Whether the shards handle their own concurrency.
+     */
+    private boolean concurrent;
+
+    /**
+     * Codec used to encode keys, for hashing.
+     */
+    private ValueCodec<K> keyCodec;
+
+    /*----------------------------------------------------------------------*\
+                                Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * <p>Create a sharded map whose keys and values are stored using Java
+     * serialization. The shards' files are named by appending a hyphen and
+     * the shard number to the path prefix.</p>
+     *
+     * @param pathPrefix  the pathname prefix for the shards' files
+     * @param totalShards the number of shards
+     * @param flags       {@link FileHashMap} flags, passed to each shard
+     *
+     * @throws FileNotFoundException        A shard's files do not exist,
+     *                                      and the
+     *                                      {@link FileHashMap#NO_CREATE}
+     *                                      flag was specified.
+     * @throws ClassNotFoundException       Failed to deserialize an object
+     * @throws VersionMismatchException     Bad or unsupported version stamp
+     *                                      in a shard's index file
+     * @throws ObjectExistsException        A shard's files already exist,
+     *                                      but the map is transient.
+     * @throws IOException                  Other errors
+     *
+     * @see #ShardedFileHashMap(String,int,int,ValueCodec,ValueCodec)
+     */
+    public ShardedFileHashMap (String pathPrefix, int totalShards, int flags)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               IOException
+    {
+        this (pathPrefix, totalShards, flags,
+              ValueCodecs.<K>serialization(),
+              ValueCodecs.<V>serialization());
+    }
+
+    /**
+     * <p>Create a sharded map whose shards' files are named by appending a
+     * hyphen and the shard number to a path prefix. For example, shard 0
+     * of a map with the prefix <tt>/data/ids</tt> is stored in
+     * <tt>/data/ids-0.db</tt> and <tt>/data/ids-0.ix</tt>.</p>
+     *
+     * @param pathPrefix  the pathname prefix for the shards' files
+     * @param totalShards the number of shards
+     * @param flags       {@link FileHashMap} flags, passed to each shard
+     * @param keyCodec    codec used to encode the keys
+     * @param valueCodec  codec used to encode the values
+     *
+     * @throws FileNotFoundException        A shard's files do not exist,
+     *                                      and the
+     *                                      {@link FileHashMap#NO_CREATE}
+     *                                      flag was specified.
+     * @throws ClassNotFoundException       Failed to deserialize an object
+     * @throws VersionMismatchException     Bad or unsupported version stamp
+     *                                      in a shard's index file
+     * @throws ObjectExistsException        A shard's files already exist,
+     *                                      but the map is transient.
+     * @throws IOException                  Other errors
+     *
+     * @see #ShardedFileHashMap(String[],int,ValueCodec,ValueCodec)
+     */
+    public ShardedFileHashMap (String        pathPrefix,
+                               int           totalShards,
+                               int           flags,
+                               ValueCodec<K> keyCodec,
+                               ValueCodec<V> valueCodec)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               IOException
+    {
+        this (shardPrefixes (pathPrefix, totalShards), flags,
+              keyCodec, valueCodec);
+    }
+
+    /**
+     * <p>Create a sharded map with one shard for each of a list of path
+     * prefixes. Use this constructor to place the shards in different
+     * directories (or on different volumes).</p>
+     *
+     * @param pathPrefixes the pathname prefixes for the shards' files
+     * @param flags        {@link FileHashMap} flags, passed to each shard
+     * @param keyCodec     codec used to encode the keys
+     * @param valueCodec   codec used to encode the values
+     *
+     * @throws FileNotFoundException        A shard's files do not exist,
+     *                                      and the
+     *                                      {@link FileHashMap#NO_CREATE}
+     *                                      flag was specified.
+     * @throws ClassNotFoundException       Failed to deserialize an object
+     * @throws VersionMismatchException     Bad or unsupported version stamp
+     *                                      in a shard's index file
+     * @throws ObjectExistsException        A shard's files already exist,
+     *                                      but the map is transient.
+     * @throws IOException                  Other errors
+     */
+    public ShardedFileHashMap (String[]      pathPrefixes,
+                               int           flags,
+                               ValueCodec<K> keyCodec,
+                               ValueCodec<V> valueCodec)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               IOException
+    {
+        if (pathPrefixes.length == 0)
+            throw new IllegalArgumentException ("No shards specified.");
+
+        @SuppressWarnings("unchecked")
+        FileHashMap<K,V>[] newShards =
+            (FileHashMap<K,V>[]) new FileHashMap<?,?>[pathPrefixes.length];
+
+        this.keyCodec   = keyCodec;
+        this.concurrent = ((flags & FileHashMap.CONCURRENT) != 0);
+        this.shards     = newShards;
+        this.locks      = new Object[pathPrefixes.length];
+
+        try
+        {
+            for (int i = 0; i < pathPrefixes.length; i++)
+            {
+                shards[i] = new FileHashMap<K,V> (pathPrefixes[i], flags,
+                                                  keyCodec, valueCodec);
+                locks[i]  = new Object();
+            }
+        }
+
+        finally
+        {
+            // Don't leave the shards that were opened lying around.
+
+            if (shards[shards.length - 1] == null)
+            {
+                for (FileHashMap<K,V> shard : shards)
+                {
+                    if (shard != null)
+                        shard.close();
+                }
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int getShardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * <p>Removes all mappings from all the shards.</p>
+     */
+    public void clear()
+    {
+        for (int i = 0; i < shards.length; i++)
+        {
+            if (concurrent)
+                shards[i].clear();
+
+            else
+            {
+                synchronized (locks[i])
+                {
+                    shards[i].clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Close all the shards, saving their indexes if the map is
+     * persistent. Every shard is closed, even if closing one of them
+     * fails.</p>
+     *
+     * @throws NotSerializableException a key can't be saved
+     * @throws IOException              error closing a shard; the first
+     *                                  error is thrown
+     *
+     * @see FileHashMap#close
+     */
+    public void close()
+        throws NotSerializableException,
+               IOException
+    {
+        IOException error = null;
+
+        for (FileHashMap<K,V> shard : shards)
+        {
+            try
+            {
+                shard.close();
+            }
+
+            catch (IOException ex)
+            {
+                if (error == null)
+                    error = ex;
+            }
+        }
+
+        if (error != null)
+            throw error;
+    }
+
+    public boolean containsKey (Object key)
+    {
+        int i = shardFor (key);
+
+        if (i < 0)
+            return false;
+
+        if (concurrent)
+            return shards[i].containsKey (key);
+
+        synchronized (locks[i])
+        {
+            return shards[i].containsKey (key);
+        }
+    }
+
+    public boolean containsValue (Object value)
+    {
+        for (int i = 0; i < shards.length; i++)
+        {
+            boolean found;
+
+            if (concurrent)
+                found = shards[i].containsValue (value);
+
+            else
+            {
+                synchronized (locks[i])
+                {
+                    found = shards[i].containsValue (value);
+                }
+            }
+
+            if (found)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Deletes the files backing all the shards. This method implicitly
+     * closes the map.
+     *
+     * @see FileHashMap#delete
+     */
+    public void delete()
+    {
+        for (FileHashMap<K,V> shard : shards)
+            shard.delete();
+    }
+
+    /**
+     * <p>Returns a "thin" set view of the mappings contained in this map,
+     * which traverses the shards one after the other. See
+     * {@link FileHashMap#entrySet} for details.</p>
+     *
+     * @return a set view of the mappings contained in this map
+     */
+    public Set<Map.Entry<K,V>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<K,V>>()
+        {
+            public Iterator<Map.Entry<K,V>> iterator()
+            {
+                return new EntryIterator();
+            }
+
+            public int size()
+            {
+                return ShardedFileHashMap.this.size();
+            }
+        };
+    }
+
+    public V get (Object key)
+    {
+        int i = shardFor (key);
+
+        if (i < 0)
+            return null;
+
+        if (concurrent)
+            return shards[i].get (key);
+
+        synchronized (locks[i])
+        {
+            return shards[i].get (key);
+        }
+    }
+
+    /**
+     * <p>Retrieve the values for a collection of keys, using one
+     * {@link FileHashMap#getAll getAll()} call per shard.</p>
+     *
+     * @param keys  the keys to look up
+     *
+     * @return a map containing an entry for each key that's in this map
+     */
+    public Map<K,V> getAll (Collection<? extends K> keys)
+    {
+        List<List<K>> byShard = new ArrayList<List<K>> (shards.length);
+        Map<K,V>      result  = new HashMap<K,V>();
+
+        for (int i = 0; i < shards.length; i++)
+            byShard.add (new ArrayList<K>());
+
+        for (K key : keys)
+        {
+            int i = shardFor (key);
+
+            if (i >= 0)
+                byShard.get (i).add (key);
+        }
+
+        for (int i = 0; i < shards.length; i++)
+        {
+            List<K> shardKeys = byShard.get (i);
+
+            if (shardKeys.isEmpty())
+                continue;
+
+            if (concurrent)
+                result.putAll (shards[i].getAll (shardKeys));
+
+            else
+            {
+                synchronized (locks[i])
+                {
+                    result.putAll (shards[i].getAll (shardKeys));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public boolean isEmpty()
+    {
+        for (FileHashMap<K,V> shard : shards)
+        {
+            if (! shard.isEmpty())
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * <p>Associates the specified value with the specified key, in the
+     * key's shard.</p>
+     *
+     * @param key   key with which the specified value is to be associated
+     * @param value value to be associated with the specified key
+     *
+     * @return previous value associated with specified key, or
+     *         <tt>null</tt> if there was no mapping for key
+     *
+     * @throws IllegalArgumentException  The key can't be encoded, or the
+     *                                   value can't be stored.
+     * @throws NullPointerException      the specified key or value is
+     *                                   <tt>null</tt>.
+     *
+     * @see FileHashMap#put
+     */
+    public V put (K key, V value)
+        throws IllegalArgumentException,
+               NullPointerException
+    {
+        if (key == null)
+            throw new NullPointerException ("null key parameter");     // NOPMD
+
+        int i = shardForPut (key);
+
+        if (concurrent)
+            return shards[i].put (key, value);
+
+        synchronized (locks[i])
+        {
+            return shards[i].put (key, value);
+        }
+    }
+
+    /**
+     * <p>Copies all of the mappings from the specified map to this map,
+     * using one batched {@link FileHashMap#putAll putAll()} call per
+     * shard.</p>
+     *
+     * @param map  mappings to be stored in this map
+     *
+     * @throws IllegalArgumentException  A key can't be encoded, or a value
+     *                                   can't be stored.
+     * @throws NullPointerException      a key or value is <tt>null</tt>
+     */
+    public void putAll (Map<? extends K, ? extends V> map)
+        throws IllegalArgumentException,
+               NullPointerException
+    {
+        List<Map<K,V>> byShard = new ArrayList<Map<K,V>> (shards.length);
+
+        for (int i = 0; i < shards.length; i++)
+            byShard.add (new HashMap<K,V>());
+
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet())
+        {
+            K key = entry.getKey();
+
+            if (key == null)
+                throw new NullPointerException ("null key");          // NOPMD
+
+            byShard.get (shardForPut (key)).put (key, entry.getValue());
+        }
+
+        for (int i = 0; i < shards.length; i++)
+        {
+            Map<K,V> shardMap = byShard.get (i);
+
+            if (shardMap.isEmpty())
+                continue;
+
+            if (concurrent)
+                shards[i].putAll (shardMap);
+
+            else
+            {
+                synchronized (locks[i])
+                {
+                    shards[i].putAll (shardMap);
+                }
+            }
+        }
+    }
+
+    public V remove (Object key)
+    {
+        int i = shardFor (key);
+
+        if (i < 0)
+            return null;
+
+        if (concurrent)
+            return shards[i].remove (key);
+
+        synchronized (locks[i])
+        {
+            return shards[i].remove (key);
+        }
+    }
+
+    /**
+     * <p>Save all the shards' indexes.</p>
+     *
+     * @throws IOException              Error saving a shard.
+     * @throws NotSerializableException A key can't be saved.
+     *
+     * @see FileHashMap#save
+     */
+    public void save()
+        throws IOException,
+               NotSerializableException
+    {
+        for (int i = 0; i < shards.length; i++)
+        {
+            if (concurrent)
+                shards[i].save();
+
+            else
+            {
+                synchronized (locks[i])
+                {
+                    shards[i].save();
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Returns the total number of mappings in all the shards. If the map
+     * contains more than <tt>Integer.MAX_VALUE</tt> elements, returns
+     * <tt>Integer.MAX_VALUE</tt>.</p>
+     *
+     * @return the number of key-value mappings in this map
+     */
+    public int size()
+    {
+        long total = 0;
+
+        for (FileHashMap<K,V> shard : shards)
+            total += shard.size();
+
+        return (int) Math.min (total, Integer.MAX_VALUE);
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Build the list of path prefixes for shards that share a prefix.
+     *
+     * @param pathPrefix  the shared prefix
+     * @param totalShards the number of shards
+     *
+     * @return the shards' prefixes
+     */
+    private static String[] shardPrefixes (String pathPrefix, int totalShards)
+    {
+        if (totalShards <= 0)
+        {
+            throw new IllegalArgumentException ("Bad shard count: " +
+                                                totalShards);
+        }
+
+        String[] result = new String[totalShards];
+
+        for (int i = 0; i < totalShards; i++)
+            result[i] = pathPrefix + "-" + i;
+
+        return result;
+    }
+
+    /**
+     * Find the shard for a key.
+     *
+     * @param key  the key
+     *
+     * @return the shard number, or -1 if the key can't be encoded (in which
+     *         case it can't be in the map)
+     */
+    @SuppressWarnings("unchecked")
+    private int shardFor (Object key)
+    {
+        try
+        {
+            return shardFor (keyCodec.encode ((K) key));
+        }
+
+        catch (IOException ex)
+        {
+            return -1;
+        }
+
+        catch (ClassCastException ex)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Find the shard in which to store a key.
+     *
+     * @param key  the key
+     *
+     * @return the shard number
+     *
+     * @throws IllegalArgumentException the key can't be encoded
+     */
+    private int shardForPut (K key)
+        throws IllegalArgumentException
+    {
+        try
+        {
+            return shardFor (keyCodec.encode (key));
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException ("Can't encode key: " +
+                                                ex.getMessage());
+        }
+    }
+
+    /**
+     * Hash an encoded key (FNV-1a) to a shard number.
+     *
+     * @param keyBytes  the encoded key
+     *
+     * @return the shard number
+     */
+    private int shardFor (byte[] keyBytes)
+    {
+        int h = 0x811c9dc5;
+
+        for (byte b : keyBytes)
+            h = (h ^ (b & 0xff)) * 0x01000193;
+
+        return (h & 0x7fffffff) % shards.length;
+    }
+}
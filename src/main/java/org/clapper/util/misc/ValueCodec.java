@@ -0,0 +1,114 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.io.IOException;
+
+/**
+ * <p>A <tt>ValueCodec</tt> converts objects of a particular type to and from
+ * the bytes that represent them on disk. A {@link FileHashMap} uses a
+ * <tt>ValueCodec</tt> to store its values (and, for its saved index, its
+ * keys). By default, <tt>FileHashMap</tt> uses Java serialization, which
+ * works for any <tt>Serializable</tt> object, but which writes class
+ * descriptors into every record and relies on reflection to encode and
+ * decode. For simple types, a specialized codec produces much smaller
+ * records, much more quickly. The {@link ValueCodecs} class provides codecs
+ * for common types.</p>
+ *
+ * <p>A <tt>ValueCodec</tt> must be stateless, or at least thread-safe,
+ * since a map may invoke it from multiple threads at once. The same codec
+ * must be used every time a persistent map is opened; the codec is not
+ * recorded in the map's files.</p>
+ *
+ * @see ValueCodecs
+ * @see FileHashMap
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public interface ValueCodec<T>
+{
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Encode an object into bytes.
+     *
+     * @param value  the object to encode. Will not be null.
+     *
+     * @return the encoded bytes. The caller may retain the returned array,
+     *         so a codec must not reuse it.
+     *
+     * @throws IOException  the object cannot be encoded
+     *
+     * @see #decode
+     */
+    public byte[] encode (T value)
+        throws IOException;
+
+    /**
+     * Decode an object from a region of a byte array. The caller may reuse
+     * the buffer once this method returns, so a codec must not retain it.
+     *
+     * @param buf     the buffer containing the encoded object
+     * @param offset  the offset of the first encoded byte in <tt>buf</tt>
+     * @param length  the number of encoded bytes
+     *
+     * @return the decoded object
+     *
+     * @throws IOException            the bytes cannot be decoded
+     * @throws ClassNotFoundException the class of a serialized object
+     *                                cannot be loaded
+     *
+     * @see #encode
+     */
+    public T decode (byte[] buf, int offset, int length)
+        throws IOException,
+               ClassNotFoundException;
+}
@@ -0,0 +1,465 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+import java.nio.charset.Charset;
+
+/**
+ * <p>Built-in {@link ValueCodec} implementations. The codecs for the boxed
+ * primitive types write fixed-width, big-endian values (the same format
+ * <tt>java.io.DataOutput</tt> uses); the string codec writes UTF-8; the
+ * byte array codec stores the array as is; and the serialization codec
+ * uses Java serialization, for anything else.</p>
+ *
+ * <p>For example, to create a transient map of strings to strings that
+ * doesn't use serialization:</p>
+ *
+ * <blockquote><pre>
+ * FileHashMap&lt;String,String&gt; map =
+ *     new FileHashMap&lt;String,String&gt; ("/tmp/strings",
+ *                                      FileHashMap.TRANSIENT,
+ *                                      ValueCodecs.STRING);
+ * </pre></blockquote>
+ *
+ * @see ValueCodec
+ * @see FileHashMap
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public final class ValueCodecs
+{
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Codec for byte arrays.
+     */
+    private static class ByteArrayCodec implements ValueCodec<byte[]>
+    {
+        public byte[] encode (byte[] value)
+        {
+            return value;
+        }
+
+        public byte[] decode (byte[] buf, int offset, int length)
+        {
+            byte[] result = new byte[length];
+            System.arraycopy (buf, offset, result, 0, length);
+            return result;
+        }
+    }
+
+    /**
+     * Codec for strings, using UTF-8.
+     */
+    private static class StringCodec implements ValueCodec<String>
+    {
+        public byte[] encode (String value)
+        {
+            return value.getBytes (UTF8);
+        }
+
+        public String decode (byte[] buf, int offset, int length)
+        {
+            return new String (buf, offset, length, UTF8);
+        }
+    }
+
+    /**
+     * Codec for longs.
+     */
+    private static class LongCodec implements ValueCodec<Long>
+    {
+        public byte[] encode (Long value)
+        {
+            byte[] result = new byte[8];
+            putLong (result, 0, value);
+            return result;
+        }
+
+        public Long decode (byte[] buf, int offset, int length)
+            throws IOException
+        {
+            checkLength (length, 8);
+            return getLong (buf, offset);
+        }
+    }
+
+    /**
+     * Codec for integers.
+     */
+    private static class IntegerCodec implements ValueCodec<Integer>
+    {
+        public byte[] encode (Integer value)
+        {
+            byte[] result = new byte[4];
+            putInt (result, 0, value);
+            return result;
+        }
+
+        public Integer decode (byte[] buf, int offset, int length)
+            throws IOException
+        {
+            checkLength (length, 4);
+            return getInt (buf, offset);
+        }
+    }
+
+    /**
+     * Codec for shorts.
+     */
+    private static class ShortCodec implements ValueCodec<Short>
+    {
+        public byte[] encode (Short value)
+        {
+            short s = value;
+            return new byte[] {(byte) (s >>> 8), (byte) s};
+        }
+
+        public Short decode (byte[] buf, int offset, int length)
+            throws IOException
+        {
+            checkLength (length, 2);
+            return (short) (((buf[offset] & 0xff) << 8) |
+                            (buf[offset + 1] & 0xff));
+        }
+    }
+
+    /**
+     * Codec for bytes.
+     */
+    private static class ByteCodec implements ValueCodec<Byte>
+    {
+        public byte[] encode (Byte value)
+        {
+            return new byte[] {value};
+        }
+
+        public Byte decode (byte[] buf, int offset, int length)
+            throws IOException
+        {
+            checkLength (length, 1);
+            return buf[offset];
+        }
+    }
+
+    /**
+     * Codec for characters.
+     */
+    private static class CharacterCodec implements ValueCodec<Character>
+    {
+        public byte[] encode (Character value)
+        {
+            char c = value;
+            return new byte[] {(byte) (c >>> 8), (byte) c};
+        }
+
+        public Character decode (byte[] buf, int offset, int length)
+            throws IOException
+        {
+            checkLength (length, 2);
+            return (char) (((buf[offset] & 0xff) << 8) |
+                           (buf[offset + 1] & 0xff));
+        }
+    }
+
+    /**
+     * Codec for booleans.
+     */
+    private static class BooleanCodec implements ValueCodec<Boolean>
+    {
+        public byte[] encode (Boolean value)
+        {
+            return new byte[] {(byte) (value ? 1 : 0)};
+        }
+
+        public Boolean decode (byte[] buf, int offset, int length)
+            throws IOException
+        {
+            checkLength (length, 1);
+            return (buf[offset] != 0);
+        }
+    }
+
+    /**
+     * Codec for doubles.
+     */
+    private static class DoubleCodec implements ValueCodec<Double>
+    {
+        public byte[] encode (Double value)
+        {
+            byte[] result = new byte[8];
+            putLong (result, 0, Double.doubleToLongBits (value));
+            return result;
+        }
+
+        public Double decode (byte[] buf, int offset, int length)
+            throws IOException
+        {
+            checkLength (length, 8);
+            return Double.longBitsToDouble (getLong (buf, offset));
+        }
+    }
+
+    /**
+     * Codec for floats.
+     */
+    private static class FloatCodec implements ValueCodec<Float>
+    {
+        public byte[] encode (Float value)
+        {
+            byte[] result = new byte[4];
+            putInt (result, 0, Float.floatToIntBits (value));
+            return result;
+        }
+
+        public Float decode (byte[] buf, int offset, int length)
+            throws IOException
+        {
+            checkLength (length, 4);
+            return Float.intBitsToFloat (getInt (buf, offset));
+        }
+    }
+
+    /**
+     * Codec that uses Java serialization.
+     */
+    private static class SerializationCodec<T> implements ValueCodec<T>
+    {
+        public byte[] encode (T value)
+            throws IOException
+        {
+            ByteArrayOutputStream byteStream;
+            ObjectOutputStream    objStream;
+
+            if (! (value instanceof Serializable))
+            {
+                throw new NotSerializableException
+                    (value.getClass().getName());
+            }
+
+            byteStream = new ByteArrayOutputStream();
+            objStream  = new ObjectOutputStream (byteStream);
+
+            objStream.writeObject (value);
+            objStream.close();
+            return byteStream.toByteArray();
+        }
+
+        public T decode (byte[] buf, int offset, int length)
+            throws IOException,
+                   ClassNotFoundException
+        {
+            ObjectInputStream objStream;
+
+            objStream = new ObjectInputStream
+                            (new ByteArrayInputStream (buf, offset, length));
+
+            // This typecast is unchecked. Unfortunately, there's no way
+            // around it.
+
+            @SuppressWarnings("unchecked")
+            T value = (T) objStream.readObject();
+
+            return value;
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                             Public Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Codec for <tt>byte[]</tt> values. The array is stored as is.
+     */
+    public static final ValueCodec<byte[]> BYTE_ARRAY = new ByteArrayCodec();
+
+    /**
+     * Codec for <tt>String</tt> values, encoded in UTF-8.
+     */
+    public static final ValueCodec<String> STRING = new StringCodec();
+
+    /**
+     * Codec for <tt>Long</tt> values (8 bytes).
+     */
+    public static final ValueCodec<Long> LONG = new LongCodec();
+
+    /**
+     * Codec for <tt>Integer</tt> values (4 bytes).
+     */
+    public static final ValueCodec<Integer> INTEGER = new IntegerCodec();
+
+    /**
+     * Codec for <tt>Short</tt> values (2 bytes).
+     */
+    public static final ValueCodec<Short> SHORT = new ShortCodec();
+
+    /**
+     * Codec for <tt>Byte</tt> values (1 byte).
+     */
+    public static final ValueCodec<Byte> BYTE = new ByteCodec();
+
+    /**
+     * Codec for <tt>Character</tt> values (2 bytes).
+     */
+    public static final ValueCodec<Character> CHARACTER = new CharacterCodec();
+
+    /**
+     * Codec for <tt>Boolean</tt> values (1 byte).
+     */
+    public static final ValueCodec<Boolean> BOOLEAN = new BooleanCodec();
+
+    /**
+     * Codec for <tt>Double</tt> values (8 bytes).
+     */
+    public static final ValueCodec<Double> DOUBLE = new DoubleCodec();
+
+    /**
+     * Codec for <tt>Float</tt> values (4 bytes).
+     */
+    public static final ValueCodec<Float> FLOAT = new FloatCodec();
+
+    /*----------------------------------------------------------------------*\
+                             Private Variables
+    \*----------------------------------------------------------------------*/
+
+    private static final SerializationCodec<Object> SERIALIZATION =
+        new SerializationCodec<Object>();
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    private ValueCodecs()
+    {
+        // Cannot be instantiated.
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get a codec that uses Java serialization. This codec works for any
+     * object that implements <tt>java.io.Serializable</tt>; it throws
+     * <tt>NotSerializableException</tt> for any other object. It's the
+     * codec a {@link FileHashMap} uses if no codec is specified.
+     *
+     * @return the serialization codec
+     */
+    public static <T> ValueCodec<T> serialization()
+    {
+        // This typecast is unchecked, but safe, since the codec holds no
+        // type-specific state.
+
+        @SuppressWarnings("unchecked")
+        ValueCodec<T> codec = (ValueCodec<T>) SERIALIZATION;
+
+        return codec;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static void checkLength (int length, int expected)
+        throws IOException
+    {
+        if (length != expected)
+        {
+            throw new EOFException ("Expected " + expected +
+                                    "-byte encoded value. Got " + length +
+                                    " bytes.");
+        }
+    }
+
+    private static void putInt (byte[] buf, int offset, int i)
+    {
+        buf[offset]     = (byte) (i >>> 24);
+        buf[offset + 1] = (byte) (i >>> 16);
+        buf[offset + 2] = (byte) (i >>> 8);
+        buf[offset + 3] = (byte) i;
+    }
+
+    private static int getInt (byte[] buf, int offset)
+    {
+        return ((buf[offset] & 0xff) << 24)      |
+               ((buf[offset + 1] & 0xff) << 16)  |
+               ((buf[offset + 2] & 0xff) << 8)   |
+               (buf[offset + 3] & 0xff);
+    }
+
+    private static void putLong (byte[] buf, int offset, long l)
+    {
+        putInt (buf, offset, (int) (l >>> 32));
+        putInt (buf, offset + 4, (int) l);
+    }
+
+    private static long getLong (byte[] buf, int offset)
+    {
+        return (((long) getInt (buf, offset)) << 32) |
+               (getInt (buf, offset + 4) & 0xffffffffL);
+    }
+}
@@ -0,0 +1,303 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc.test;
+
+import org.clapper.util.cmdline.CommandLineUtility;
+import org.clapper.util.cmdline.CommandLineException;
+import org.clapper.util.cmdline.CommandLineUsageException;
+import org.clapper.util.cmdline.UsageInfo;
+import org.clapper.util.misc.LRUMap;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.text.DecimalFormat;
+
+/**
+ * Replays access traces against an <tt>LRUMap</tt> under each of its
+ * eviction policies, and reports the hit ratio of each. Each access is a
+ * <tt>get()</tt>, followed, on a miss, by a <tt>put()</tt>, as a cache
+ * would do. With no parameters, replays three synthetic traces:
+ *
+ * <ul>
+ *   <li><i>zipf</i>: keys drawn from a Zipf distribution, over a key space
+ *       100 times the size of the map
+ *   <li><i>zipf+scans</i>: the same, interrupted periodically by scans of
+ *       keys that are never seen again
+ *   <li><i>loop</i>: a loop over a key space a little bigger than the map,
+ *       which defeats LRU completely
+ * </ul>
+ *
+ * <p>Trace files can be replayed instead. A trace file has one access per
+ * line; the first whitespace-delimited token on the line is the key.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @see LRUMap#setEvictionPolicy
+ */
+public class TestLRUMapPolicies
+    extends CommandLineUtility
+{
+    private static final DecimalFormat RATIO_FMT = new DecimalFormat ("#0.00");
+
+    private static final double ZIPF_EXPONENT = 0.9;
+
+    private int                capacity    = 1000;
+    private int                accesses    = 1000000;
+    private long               seed        = 1L;
+    private Collection<String> traceFiles  = new ArrayList<String>();
+
+    public static void main (String args[])
+    {
+        TestLRUMapPolicies tester = new TestLRUMapPolicies();
+
+        try
+        {
+            tester.execute (args);
+        }
+
+        catch (CommandLineUsageException ex)
+        {
+            // Already reported
+
+            System.exit (1);
+        }
+
+        catch (CommandLineException ex)
+        {
+            System.err.println (ex.getMessage());
+            ex.printStackTrace();
+            System.exit (1);
+        }
+
+        catch (Exception ex)
+        {
+            ex.printStackTrace (System.err);
+            System.exit (1);
+        }
+    }
+
+    private TestLRUMapPolicies()
+    {
+        super();
+    }
+
+    protected void runCommand()
+        throws CommandLineException
+    {
+        System.out.println ("Map capacity: " + capacity);
+        System.out.println ();
+        System.out.print (pad ("Trace", 24));
+        for (LRUMap.EvictionPolicy policy : LRUMap.EvictionPolicy.values())
+            System.out.print (" " + pad (policy.toString(), 13));
+        System.out.println();
+        System.out.print ("------------------------");
+        for (LRUMap.EvictionPolicy policy : LRUMap.EvictionPolicy.values())
+            System.out.print (" -------------");
+        System.out.println();
+
+        try
+        {
+            if (traceFiles.isEmpty())
+            {
+                replay ("zipf", zipfTrace (false));
+                replay ("zipf+scans", zipfTrace (true));
+                replay ("loop", loopTrace());
+            }
+
+            else
+            {
+                for (String path : traceFiles)
+                    replay (path, readTrace (path));
+            }
+        }
+
+        catch (IOException ex)
+        {
+            throw new CommandLineException (ex);
+        }
+    }
+
+    protected void parseCustomOption (char             shortOption,
+                                      String           longOption,
+                                      Iterator<String> it)
+        throws CommandLineUsageException,
+               NoSuchElementException
+    {
+        switch (shortOption)
+        {
+            case 'c':
+                capacity = parseIntOptionArgument (shortOption,
+                                                   longOption,
+                                                   it.next(),
+                                                   1,
+                                                   Integer.MAX_VALUE);
+                break;
+
+            case 'n':
+                accesses = parseIntOptionArgument (shortOption,
+                                                   longOption,
+                                                   it.next(),
+                                                   1,
+                                                   Integer.MAX_VALUE);
+                break;
+
+            case 's':
+                seed = parseIntOptionArgument (shortOption,
+                                               longOption,
+                                               it.next(),
+                                               0,
+                                               Integer.MAX_VALUE);
+                break;
+
+            default:
+                throw new CommandLineUsageException ("Unrecognized option");
+        }
+    }
+
+    protected void processPostOptionCommandLine (Iterator<String> it)
+        throws CommandLineUsageException,
+               NoSuchElementException
+    {
+        while (it.hasNext())
+            traceFiles.add (it.next());
+    }
+
+    protected void getCustomUsageInfo (UsageInfo info)
+    {
+        info.addOption ('c', "capacity", "<n>",
+                        "Maximum capacity of the map. Defaults to 1000.");
+        info.addOption ('n', "accesses", "<n>",
+                        "Number of accesses in each synthetic trace. " +
+                        "Defaults to 1000000.");
+        info.addOption ('s', "seed", "<n>",
+                        "Random number seed for the synthetic traces.");
+        info.addParameter ("traceFile ...",
+                           "Trace files to replay, instead of the synthetic " +
+                           "traces.",
+                           false);
+    }
+
+    private void replay (String label, String[] trace)
+    {
+        System.out.print (pad (label, 24));
+
+        for (LRUMap.EvictionPolicy policy : LRUMap.EvictionPolicy.values())
+        {
+            LRUMap<String,String> map = new LRUMap<String,String> (capacity);
+            int                   hits = 0;
+
+            map.setEvictionPolicy (policy);
+            for (String key : trace)
+            {
+                if (map.get (key) != null)
+                    hits++;
+                else
+                    map.put (key, key);
+            }
+
+            double ratio = (100.0 * hits) / trace.length;
+            System.out.print (" " + pad (RATIO_FMT.format (ratio) + "%", 13));
+        }
+
+        System.out.println();
+    }
+
+    private String[] zipfTrace (boolean withScans)
+    {
+        Random   random   = new Random (seed);
+        int      keySpace = capacity * 100;
+        double[] cdf      = new double[keySpace];
+        double   total    = 0.0;
+
+        for (int i = 0; i < keySpace; i++)
+        {
+            total += 1.0 / Math.pow (i + 1, ZIPF_EXPONENT);
+            cdf[i] = total;
+        }
+
+        // After every 10 map-fulls of Zipf-distributed accesses, a scan of
+        // 5 map-fulls of keys that are never used again.
+
+        List<String> trace        = new ArrayList<String> (accesses);
+        int          scanInterval = capacity * 10;
+        int          scanLength   = capacity * 5;
+        int          scanned      = 0;
+        int          sinceScan    = 0;
+
+        while (trace.size() < accesses)
+        {
+            if (withScans && (++sinceScan > scanInterval))
+            {
+                sinceScan = 1;
+                for (int i = 0; (i < scanLength) && (trace.size() < accesses);
+                     i++)
+                {
+                    trace.add ("scan" + scanned++);
+                }
+            }
+
+            int i = Arrays.binarySearch (cdf, random.nextDouble() * total);
+            if (i < 0)
+                i = -(i + 1);
+
+            trace.add ("key" + i);
+        }
+
+        return trace.toArray (new String[trace.size()]);
+    }
+
+    private String[] loopTrace()
+    {
+        String[] trace = new String[accesses];
+        int      loop  = capacity + (capacity / 4);
+
+        for (int i = 0; i < accesses; i++)
+            trace[i] = "key" + (i % loop);
+
+        return trace;
+    }
+
+    private String[] readTrace (String path)
+        throws IOException
+    {
+        List<String>   trace = new ArrayList<String>();
+        BufferedReader in    = new BufferedReader (new FileReader (path));
+
+        try
+        {
+            String line;
+
+            while ((line = in.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.length() > 0)
+                    trace.add (line.split ("\\s+", 2)[0]);
+            }
+        }
+
+        finally
+        {
+            in.close();
+        }
+
+        return trace.toArray (new String[trace.size()]);
+    }
+
+    private String pad (String s, int width)
+    {
+        StringBuilder buf = new StringBuilder (s);
+        while (buf.length() < width)
+            buf.append (' ');
+        return buf.toString();
+    }
+}
@@ -0,0 +1,236 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc.test;
+
+import org.clapper.util.cmdline.CommandLineUtility;
+import org.clapper.util.cmdline.CommandLineException;
+import org.clapper.util.cmdline.CommandLineUsageException;
+import org.clapper.util.cmdline.UsageInfo;
+import org.clapper.util.misc.FileHashMap;
+import org.clapper.util.misc.ValueCodec;
+import org.clapper.util.misc.ValueCodecs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.text.DecimalFormat;
+
+/**
+ * Benchmarks the built-in <tt>ValueCodec</tt> implementations against the
+ * default (Java serialization) codec, using transient <tt>FileHashMap</tt>
+ * objects. For each value type, reports the number of bytes each record
+ * occupies in the data file, and the put and get rates. Invoke with no
+ * parameters for usage summary.
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @see FileHashMap
+ * @see ValueCodecs
+ */
+public class TestValueCodecs
+    extends CommandLineUtility
+{
+    private static final DecimalFormat RATE_FMT = new DecimalFormat ("#0");
+    private static final DecimalFormat SIZE_FMT = new DecimalFormat ("#0.0");
+
+    private static int     totalValues = 0;
+    private static String  directory = System.getProperty ("java.io.tmpdir");
+
+    /**
+     * Produces the i'th test value of some type.
+     */
+    private interface ValueMaker<T>
+    {
+        T makeValue (int i);
+    }
+
+    public static void main (String args[])
+    {
+        TestValueCodecs tester = new TestValueCodecs();
+
+        try
+        {
+            tester.execute (args);
+        }
+
+        catch (CommandLineUsageException ex)
+        {
+            // Already reported
+
+            System.exit (1);
+        }
+
+        catch (CommandLineException ex)
+        {
+            System.err.println (ex.getMessage());
+            ex.printStackTrace();
+            System.exit (1);
+        }
+
+        catch (Exception ex)
+        {
+            ex.printStackTrace (System.err);
+            System.exit (1);
+        }
+    }
+
+    private TestValueCodecs()
+    {
+        super();
+    }
+
+    protected void runCommand()
+        throws CommandLineException
+    {
+        try
+        {
+            runTests();
+        }
+
+        catch (Exception ex)
+        {
+            throw new CommandLineException (ex);
+        }
+    }
+
+    protected void parseCustomOption (char             shortOption,
+                                      String           longOption,
+                                      Iterator<String> it)
+        throws CommandLineUsageException,
+               NoSuchElementException
+    {
+        switch (shortOption)
+        {
+            case 'd':
+                directory = it.next();
+                break;
+
+            default:
+                throw new CommandLineUsageException ("Unrecognized option");
+        }
+    }
+
+    protected void processPostOptionCommandLine (Iterator<String> it)
+        throws CommandLineUsageException,
+               NoSuchElementException
+    {
+        totalValues = parseIntParameter (it.next());
+    }
+
+    protected void getCustomUsageInfo (UsageInfo info)
+    {
+        info.addOption ('d', "directory", "<dir>",
+                        "Directory in which to create the temporary maps. " +
+                        "Defaults to java.io.tmpdir.");
+        info.addParameter ("totalEntries",
+                           "Total number of values to store with each codec.",
+                           true);
+    }
+
+    private void runTests()
+        throws Exception
+    {
+        ValueMaker<String> strings = new ValueMaker<String>()
+        {
+            public String makeValue (int i)
+            {
+                return "value number " + i;
+            }
+        };
+
+        ValueMaker<Long> longs = new ValueMaker<Long>()
+        {
+            public Long makeValue (int i)
+            {
+                return (long) i * 31L;
+            }
+        };
+
+        ValueMaker<byte[]> byteArrays = new ValueMaker<byte[]>()
+        {
+            public byte[] makeValue (int i)
+            {
+                byte[] result = new byte[64];
+                result[0] = (byte) i;
+                return result;
+            }
+        };
+
+        System.out.println ("Entries per test: " + totalValues);
+        System.out.println ();
+        System.out.println ("Codec                bytes/record      " +
+                            "puts/sec      gets/sec");
+        System.out.println ("-------------------- ------------ ------------- " +
+                            "-------------");
+
+        runTest ("String (serialized)", ValueCodecs.<String>serialization(),
+                 strings);
+        runTest ("String (UTF-8)", ValueCodecs.STRING, strings);
+        runTest ("Long (serialized)", ValueCodecs.<Long>serialization(),
+                 longs);
+        runTest ("Long", ValueCodecs.LONG, longs);
+        runTest ("byte[] (serialized)", ValueCodecs.<byte[]>serialization(),
+                 byteArrays);
+        runTest ("byte[]", ValueCodecs.BYTE_ARRAY, byteArrays);
+    }
+
+    private <T> void runTest (String        label,
+                              ValueCodec<T> codec,
+                              ValueMaker<T> maker)
+        throws Exception
+    {
+        String prefix = new File (directory, "codecs").getPath();
+        FileHashMap<Integer,T> map = new FileHashMap<Integer,T>
+            (prefix,
+             FileHashMap.TRANSIENT | FileHashMap.FORCE_OVERWRITE,
+             codec);
+
+        try
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < totalValues; i++)
+                map.put (i, maker.makeValue (i));
+            long putNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < totalValues; i++)
+            {
+                if (map.get (i) == null)
+                    throw new IllegalStateException ("Missing value " + i);
+            }
+            long getNanos = System.nanoTime() - start;
+
+            File dataFile = new File (prefix + FileHashMap.DATA_FILE_SUFFIX);
+            double bytesPerRecord = ((double) dataFile.length()) /
+                                    ((double) totalValues);
+
+            System.out.println (pad (label, 20) + " " +
+                                pad (SIZE_FMT.format (bytesPerRecord), 12) +
+                                " " +
+                                pad (rate (putNanos), 13) + " " +
+                                pad (rate (getNanos), 13));
+        }
+
+        finally
+        {
+            map.close();
+        }
+    }
+
+    private String rate (long nanos)
+    {
+        double seconds = ((double) nanos) / 1000000000.0;
+        return RATE_FMT.format (((double) totalValues) / seconds);
+    }
+
+    private String pad (String s, int width)
+    {
+        StringBuilder buf = new StringBuilder (s);
+        while (buf.length() < width)
+            buf.append (' ');
+        return buf.toString();
+    }
+}
@@ -0,0 +1,205 @@
+package org.clapper.util.misc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class ConcurrentLRUMapTest extends MapTestBase
+{
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    class TestListener implements ObjectRemovalListener
+    {
+        private List<String> removedKeys = new ArrayList<String>();
+
+        public synchronized void objectRemoved(ObjectRemovalEvent event)
+        {
+            Map.Entry<String,String> removed =
+                (Map.Entry<String,String>) event.getSource();
+            assertEquals("Removed item has wrong value",
+                         removed.getKey() + " value", removed.getValue());
+            removedKeys.add(removed.getKey());
+        }
+
+        synchronized List<String> getRemovedKeys()
+        {
+            return removedKeys;
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    public ConcurrentLRUMapTest()
+    {
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Test of addRemovalListener method.
+     */
+    @Test public void addRemovalListener()
+    {
+        ConcurrentLRUMap<String,String> map =
+            new ConcurrentLRUMap<String,String>(1);
+        map.put("a", "a value");
+
+        TestListener listener = new TestListener();
+        map.addRemovalListener(listener, true);
+        map.put("b", "b value");
+        assertEquals("Map size should be 1", 1, map.size());
+        assertEquals("Listener not invoked as expected", "[a]",
+                     listener.getRemovedKeys().toString());
+
+        // Explicit removal shouldn't be reported to an automatic-only
+        // listener.
+        map.remove("b");
+        assertEquals("Listener unexpectedly invoked", "[a]",
+                     listener.getRemovedKeys().toString());
+    }
+
+    /**
+     * Test of removeRemovalListener method.
+     */
+    @Test public void removeRemovalListener()
+    {
+        ConcurrentLRUMap<String,String> map =
+            new ConcurrentLRUMap<String,String>(1);
+        map.put("a", "a value");
+
+        TestListener listener = new TestListener();
+        map.addRemovalListener(listener, false);
+        assertTrue("Listener not removed", map.removeRemovalListener(listener));
+        map.remove("a");
+        assertEquals("Map size should be 0", 0, map.size());
+        assertTrue("Listener unexpectedly invoked",
+                   listener.getRemovedKeys().isEmpty());
+    }
+
+    /**
+     * Test of setMaximumCapacity method.
+     */
+    @Test public void setMaximumCapacity()
+    {
+        ConcurrentLRUMap<Integer,String> map =
+            new ConcurrentLRUMap<Integer,String>(10);
+        for (int i = 0; i < 15; i++)
+            map.put(i, String.valueOf(i));
+        assertEquals("Size should be 10", 10, map.size());
+
+        assertEquals(10, map.setMaximumCapacity(5));
+        assertEquals("Explicitly lowered maximum capacity incorrect", 5,
+                     map.getMaximumCapacity());
+        assertEquals("Size should be same as max capacity, but isn't",
+                     map.getMaximumCapacity(), map.size());
+        for (int i = 10; i < 15; i++)
+            assertTrue("Map lost recent key " + i, map.containsKey(i));
+    }
+
+    /**
+     * Test the LRU behavior.
+     */
+    @Test public void lruBehavior()
+    {
+        ConcurrentLRUMap<Integer,String> map =
+            new ConcurrentLRUMap<Integer,String>(10);
+        for (int i = 0; i < 10; i++)
+            map.put(i, String.valueOf(i));
+
+        // First one thrown out should be 0, if we add a new one
+        assertTrue("Map doesn't contain key 0", map.containsKey(0));
+        map.put(100, "100");
+        assertFalse("Map still contains key 0", map.containsKey(0));
+
+        // Next one thrown out would be 1, except that we're going to
+        // access it, which makes it "new" again, so 2 should be tossed out
+        // instead.
+        map.get(1);
+        map.put(101, "101");
+        assertTrue("Map doesn't contain freshened key 1", map.containsKey(1));
+        assertFalse("Map still contains key 2", map.containsKey(2));
+    }
+
+    /**
+     * Null keys and values aren't permitted.
+     */
+    @Test(expected=NullPointerException.class) public void nullValue()
+    {
+        new ConcurrentLRUMap<String,String>(10).put("a", null);
+    }
+
+    /**
+     * Hammer the map from several threads, and make sure it stays within
+     * its capacity and that hot keys survive.
+     */
+    @Test public void concurrentAccess()
+        throws InterruptedException
+    {
+        final int capacity = 100;
+        final ConcurrentLRUMap<String,String> map =
+            new ConcurrentLRUMap<String,String>(capacity);
+        final AtomicInteger errors = new AtomicInteger(0);
+        final TestListener listener = new TestListener();
+
+        map.addRemovalListener(listener, true);
+        for (int i = 0; i < 10; i++)
+            map.put("hot" + i, "hot" + i + " value");
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++)
+        {
+            final int id = t;
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < 20000; i++)
+                    {
+                        String hot = "hot" + (i % 10);
+                        if (! (hot + " value").equals(map.get(hot)))
+                            errors.incrementAndGet();
+
+                        if ((i % 4) == 0)
+                        {
+                            String cold = "cold" + id + "-" + i;
+                            map.put(cold, cold + " value");
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals("Hot keys were evicted", 0, errors.get());
+        assertTrue("Map exceeded its capacity", map.size() <= capacity);
+        assertEquals("Wrong number of evictions",
+                     10 + (threads.length * 5000) - map.size(),
+                     listener.getRemovedKeys().size());
+    }
+
+    /*----------------------------------------------------------------------*\
+                             Protected Methods
+    \*----------------------------------------------------------------------*/
+
+    protected Map<String,String> newMap()
+    {
+        return new ConcurrentLRUMap<String,String>(100);
+    }
+}
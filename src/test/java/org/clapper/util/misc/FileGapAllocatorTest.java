@@ -0,0 +1,124 @@
+package org.clapper.util.misc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+/**
+ * Tests the FileHashMap free-space allocator.
+ */
+public class FileGapAllocatorTest
+{
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    public FileGapAllocatorTest()
+    {
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Test public void coalesce()
+    {
+        FileGapAllocator gaps = new FileGapAllocator();
+
+        gaps.release(10, 10);
+        gaps.release(40, 10);
+        assertEquals("Wrong extent count", 2, gaps.getExtentCount());
+
+        // Fills the hole between the two extents.
+
+        gaps.release(20, 20);
+        assertEquals("Extents not coalesced", 1, gaps.getExtentCount());
+        assertEquals("Wrong free byte count", 40, gaps.getFreeBytes());
+        assertEquals("Wrong position", 10, gaps.allocate(40));
+        assertEquals("Space not used up", 0, gaps.getFreeBytes());
+        assertEquals("Allocated from empty allocator", -1, gaps.allocate(1));
+    }
+
+    @Test public void bestFit()
+    {
+        FileGapAllocator gaps = new FileGapAllocator();
+
+        gaps.release(0, 100);
+        gaps.release(200, 8);
+        gaps.release(300, 20);
+        gaps.release(400, 8);
+
+        assertEquals("Not best fit", 200, gaps.allocate(8));
+        assertEquals("Not best fit", 400, gaps.allocate(8));
+        assertEquals("Not best fit", 300, gaps.allocate(9));
+        assertEquals("Remainder not kept", 309, gaps.allocate(11));
+        assertEquals("Too big", -1, gaps.allocate(101));
+        assertEquals("Not best fit", 0, gaps.allocate(60));
+        assertEquals("Wrong free byte count", 40, gaps.getFreeBytes());
+
+        gaps.release(0, 60);
+        assertEquals("Extents not coalesced", 1, gaps.getExtentCount());
+        gaps.clear();
+        assertEquals("Not cleared", 0, gaps.getFreeBytes());
+    }
+
+    @Test public void reclaimInMap()
+        throws Exception
+    {
+        String prefix = System.getProperty("java.io.tmpdir") +
+                        System.getProperty("file.separator") +
+                        "FileGapAllocatorTest";
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(prefix,
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.RECLAIM_FILE_GAPS,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        File dataFile = new File(prefix + FileHashMap.DATA_FILE_SUFFIX);
+
+        try
+        {
+            for (int i = 0; i < 100; i++)
+                map.put("key" + i, "0123456789");
+            assertEquals("Wrong data file size", 1000, dataFile.length());
+
+            for (int i = 0; i < 100; i += 2)
+                map.remove("key" + i);
+            for (int i = 1; i < 100; i += 2)
+                map.put("key" + i, "abcdefghij");
+            for (int i = 0; i < 100; i += 2)
+                map.put("key" + i, "ABCDEFGHIJ");
+
+            assertEquals("Gaps not reused", 1000, dataFile.length());
+            assertEquals("Wrong value", "abcdefghij", map.get("key51"));
+            assertEquals("Wrong value", "ABCDEFGHIJ", map.get("key50"));
+
+            map.clear();
+            map.put("a", "0123456789");
+            map.put("b", "0123456789");
+            map.put("c", "0123456789");
+            map.close();
+
+            // Trailing free space is found when the map is reopened.
+
+            map = new FileHashMap<String,String>(prefix,
+                                                 FileHashMap.RECLAIM_FILE_GAPS,
+                                                 ValueCodecs.STRING,
+                                                 ValueCodecs.STRING);
+            map.remove("c");
+            map.close();
+            map = new FileHashMap<String,String>(prefix,
+                                                 FileHashMap.RECLAIM_FILE_GAPS,
+                                                 ValueCodecs.STRING,
+                                                 ValueCodecs.STRING);
+            map.put("d", "abcdefghij");
+            assertEquals("Trailing gap not reused", 30, dataFile.length());
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+}
@@ -3,10 +3,28 @@ package org.clapper.util.misc;
 import org.junit.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -98,6 +116,1431 @@ public class FileHashMapTest extends MapTestBase
         }
     }
 
+    /**
+     * Test a FileHashMap with a non-default value codec.
+     *
+     * @throws IOException              error creating/writing/reading map
+     * @throws ObjectExistsException    unexpected
+     * @throws ClassNotFoundException   can't deserialized object
+     * @throws VersionMismatchException bad or unsupported version stamp
+     *                                  in <tt>FileHashMap</tt> index file
+     */
+    @Test public void valueCodec()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        String prefix = getFilePrefix();
+        FileHashMap<String,Long> map =
+            new FileHashMap<String,Long>(prefix,
+                                         FileHashMap.FORCE_OVERWRITE,
+                                         ValueCodecs.LONG);
+        try
+        {
+            map.put("a", 1L);
+            map.put("b", Long.MAX_VALUE);
+            map.put("a", -1L);
+            assertEquals("Wrong value", Long.valueOf(-1L), map.get("a"));
+            assertEquals("Data file has wrong size", 24,
+                         new File(prefix + FileHashMap.DATA_FILE_SUFFIX)
+                             .length());
+            map.close();
+
+            map = new FileHashMap<String,Long>(prefix, 0, ValueCodecs.LONG);
+            assertEquals("Reloaded map has wrong value",
+                         Long.valueOf(Long.MAX_VALUE), map.get("b"));
+
+            FileHashMap<String,String> strings =
+                new FileHashMap<String,String>(prefix + "s",
+                                               FileHashMap.TRANSIENT,
+                                               ValueCodecs.STRING);
+            strings.put("empty", "");
+            strings.put("full", "full");
+            assertEquals("Wrong empty value", "", strings.get("empty"));
+            assertEquals("Wrong value", "full", strings.get("full"));
+            strings.close();
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test a memory-mapped FileHashMap, including save/restore.
+     *
+     * @throws IOException              error creating/writing/reading map
+     * @throws ObjectExistsException    unexpected
+     * @throws ClassNotFoundException   can't deserialized object
+     * @throws VersionMismatchException bad or unsupported version stamp
+     *                                  in <tt>FileHashMap</tt> index file
+     */
+    @Test public void binaryIndex()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        String prefix = getFilePrefix();
+        FileHashMap<String,Long> map =
+            new FileHashMap<String,Long>(prefix,
+                                         FileHashMap.FORCE_OVERWRITE,
+                                         ValueCodecs.STRING,
+                                         ValueCodecs.LONG);
+        try
+        {
+            for (long i = 0; i < 1000; i++)
+                map.put("key" + i, i);
+            map.put("", -1L);
+            map.close();
+
+            // 16-byte records plus key bytes, after the header.
+
+            File indexFile = new File(prefix + FileHashMap.INDEX_FILE_SUFFIX);
+            assertTrue("Index file is too big", indexFile.length() < 30000);
+
+            map = new FileHashMap<String,Long>(prefix, 0,
+                                               ValueCodecs.STRING,
+                                               ValueCodecs.LONG);
+            assertEquals("Reloaded map has wrong size", 1001, map.size());
+            assertEquals("Wrong value", Long.valueOf(999), map.get("key999"));
+            assertEquals("Wrong value", Long.valueOf(-1), map.get(""));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void serializedIndex()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        String prefix = getFilePrefix();
+        FileHashMap<String,Long> map =
+            new FileHashMap<String,Long>(prefix,
+                                         FileHashMap.FORCE_OVERWRITE,
+                                         ValueCodecs.LONG);
+        try
+        {
+            map.put("a", 1L);
+            map.put("b", 2L);
+            map.close();
+
+            // Rewrite the index the way older versions did.
+
+            Map<String,FileHashMapEntry<String>> index =
+                new HashMap<String,FileHashMapEntry<String>>();
+            index.put("a", new FileHashMapEntry<String>(0, 8, "a"));
+            index.put("b", new FileHashMapEntry<String>(8, 8, "b"));
+            ObjectOutputStream out = new ObjectOutputStream
+                (new FileOutputStream(prefix + FileHashMap.INDEX_FILE_SUFFIX));
+            out.writeObject("org.clapper.util.misc.FileHashMap-1.0");
+            out.writeObject(index);
+            out.close();
+
+            map = new FileHashMap<String,Long>(prefix, 0, ValueCodecs.LONG);
+            assertEquals("Wrong value", Long.valueOf(2), map.get("b"));
+            map.close();
+
+            // Closing the map converts the index.
+
+            map = new FileHashMap<String,Long>(prefix, 0, ValueCodecs.LONG);
+            assertEquals("Wrong value", Long.valueOf(1), map.get("a"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void journaledReplacementKeepsOldValue()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        String prefix = getFilePrefix();
+        File journalFile = new File(prefix + FileHashMap.JOURNAL_FILE_SUFFIX);
+        FileHashMap<String,Long> map =
+            new FileHashMap<String,Long>(prefix,
+                                         FileHashMap.FORCE_OVERWRITE |
+                                         FileHashMap.JOURNALED |
+                                         FileHashMap.RECLAIM_FILE_GAPS,
+                                         ValueCodecs.STRING,
+                                         ValueCodecs.LONG);
+        FileHashMap<String,Long> reopened = null;
+        try
+        {
+            map.put("a", 1L);
+            long committed = journalFile.length();
+
+            // Simulate a crash after the replacement value was written,
+            // but before its journal record was: the old value must still
+            // be intact.
+
+            map.set("a", 2L);
+            RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+            raf.setLength(committed);
+            raf.close();
+
+            reopened = new FileHashMap<String,Long>(prefix,
+                                                    FileHashMap.JOURNALED,
+                                                    ValueCodecs.STRING,
+                                                    ValueCodecs.LONG);
+            assertEquals("Old value was overwritten",
+                         Long.valueOf(1), reopened.get("a"));
+        }
+
+        finally
+        {
+            if (reopened != null)
+                reopened.close();
+            map.delete();
+        }
+    }
+
+    @Test public void journal()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        String prefix = getFilePrefix();
+        File journalFile = new File(prefix + FileHashMap.JOURNAL_FILE_SUFFIX);
+        FileHashMap<String,Long> map =
+            new FileHashMap<String,Long>(prefix,
+                                         FileHashMap.FORCE_OVERWRITE |
+                                         FileHashMap.JOURNALED,
+                                         ValueCodecs.STRING,
+                                         ValueCodecs.LONG);
+        FileHashMap<String,Long> reopened = null;
+        try
+        {
+            map.put("a", 1L);
+            map.put("b", 2L);
+            map.put("a", 3L);
+            map.remove("b");
+            map.put("c", 4L);
+            long checkpointed = journalFile.length();
+            assertTrue("Journal is empty", checkpointed > 0);
+
+            // Simulate a crash: reopen the files without closing the map,
+            // after appending a torn record to the journal.
+
+            RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+            raf.seek(raf.length());
+            raf.writeInt(100);
+            raf.close();
+
+            reopened = new FileHashMap<String,Long>(prefix,
+                                                    FileHashMap.JOURNALED,
+                                                    ValueCodecs.STRING,
+                                                    ValueCodecs.LONG);
+            assertEquals("Replayed map has wrong size", 2, reopened.size());
+            assertEquals("Wrong value", Long.valueOf(3), reopened.get("a"));
+            assertEquals("Wrong value", Long.valueOf(4), reopened.get("c"));
+            assertNull("Removed key came back", reopened.get("b"));
+            assertEquals("Torn record not discarded", checkpointed,
+                         journalFile.length());
+
+            reopened.save();
+            assertTrue("Checkpoint didn't empty the journal",
+                       journalFile.length() < checkpointed);
+            reopened.put("d", 5L);
+            reopened.close();
+            reopened = null;
+
+            // A non-journaled open replays the journal and removes it.
+
+            FileHashMap<String,Long> plain =
+                new FileHashMap<String,Long>(prefix, 0,
+                                             ValueCodecs.STRING,
+                                             ValueCodecs.LONG);
+            assertFalse("Journal still exists", journalFile.exists());
+            assertEquals("Wrong value", Long.valueOf(5), plain.get("d"));
+            plain.close();
+        }
+
+        finally
+        {
+            if (reopened != null)
+                reopened.close();
+            map.delete();
+        }
+    }
+
+    @Test public void set()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        String prefix = getFilePrefix();
+        File dataFile = new File(prefix + FileHashMap.DATA_FILE_SUFFIX);
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(prefix,
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.RECLAIM_FILE_GAPS,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        try
+        {
+            assertFalse("New key reported as replaced",
+                        map.set("a", "0123456789"));
+            map.set("b", "b");
+            long length = dataFile.length();
+
+            // Smaller and same-sized values are rewritten in place.
+
+            assertTrue("Old key not reported", map.set("a", "01234"));
+            assertEquals("put() didn't return old value", "01234",
+                         map.put("a", "56789"));
+            assertEquals("Data file grew", length, dataFile.length());
+            assertEquals("Wrong dead bytes", 5, map.getDeadBytes());
+
+            // A larger value moves.
+
+            map.set("a", "0123456789abcdef");
+            assertEquals("Wrong value", "0123456789abcdef", map.get("a"));
+            assertEquals("Wrong value", "b", map.get("b"));
+            map.close();
+
+            map = new FileHashMap<String,String>(prefix,
+                                                 FileHashMap.CONCURRENT,
+                                                 ValueCodecs.STRING,
+                                                 ValueCodecs.STRING);
+            assertEquals("Wrong value after reopen", "0123456789abcdef",
+                         map.get("a"));
+            assertTrue("Old key not reported", map.set("b", "c"));
+            assertEquals("Wrong value", "c", map.get("b"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void durability()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               InterruptedException
+    {
+        final FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.CONCURRENT |
+                                           FileHashMap.JOURNALED,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        FileHashMap<String,String> reopened = null;
+        try
+        {
+            // Group commit: concurrent writers share forces.
+
+            map.setDurability(FileHashMap.Durability.SYNC, 200,
+                              TimeUnit.MICROSECONDS);
+            assertEquals("Wrong mode", FileHashMap.Durability.SYNC,
+                         map.getDurability());
+
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++)
+            {
+                final int base = t * 100;
+                threads[t] = new Thread(() ->
+                {
+                    for (int i = base; i < base + 100; i++)
+                        map.put("key" + i, "value " + i);
+                });
+                threads[t].start();
+            }
+
+            for (Thread thread : threads)
+                thread.join();
+
+            map.setDurability(FileHashMap.Durability.PERIODIC, 10,
+                              TimeUnit.MILLISECONDS);
+            map.put("periodic", "value");
+            Thread.sleep(50);
+
+            map.setDurability(FileHashMap.Durability.NONE);
+            map.remove("key0");
+            map.sync();
+
+            // Simulate a crash: open a second map over the same files,
+            // without saving the first.
+
+            reopened = new FileHashMap<String,String>(getFilePrefix(), 0,
+                                                      ValueCodecs.STRING,
+                                                      ValueCodecs.STRING);
+            assertEquals("Wrong size", 400, reopened.size());
+            assertNull("Removed key present", reopened.get("key0"));
+            assertEquals("Wrong value", "value 399", reopened.get("key399"));
+            assertEquals("Wrong value", "value", reopened.get("periodic"));
+        }
+
+        finally
+        {
+            if (reopened != null)
+                reopened.close();
+            map.delete();
+        }
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void syncRequiresJournal()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE);
+        try
+        {
+            map.setDurability(FileHashMap.Durability.SYNC);
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void periodicRequiresJournal()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE);
+        try
+        {
+            map.setDurability(FileHashMap.Durability.PERIODIC, 10,
+                              TimeUnit.MILLISECONDS);
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void compact()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        String prefix = getFilePrefix();
+        File dataFile = new File(prefix + FileHashMap.DATA_FILE_SUFFIX);
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(prefix,
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.JOURNALED,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        try
+        {
+            for (int i = 0; i < 100; i++)
+                map.put("key" + i, "0123456789");
+            for (int i = 0; i < 100; i += 2)
+                map.remove("key" + i);
+            map.put("key1", "abcde");
+
+            assertEquals("Wrong live bytes", 495, map.getLiveBytes());
+            assertEquals("Wrong dead bytes", 510, map.getDeadBytes());
+            assertEquals("Wrong fragmentation", 510.0 / 1005,
+                         map.getFragmentation(), 0.0001);
+
+            map.compact();
+            assertEquals("Data file not compacted", 495, dataFile.length());
+            assertEquals("Wrong dead bytes", 0, map.getDeadBytes());
+            assertEquals("Wrong value", "abcde", map.get("key1"));
+            assertEquals("Wrong value", "0123456789", map.get("key99"));
+            assertNull("Removed value came back", map.get("key98"));
+
+            // The index was saved with the new positions.
+
+            FileHashMap<String,String> reopened =
+                new FileHashMap<String,String>(prefix, 0,
+                                               ValueCodecs.STRING,
+                                               ValueCodecs.STRING);
+            assertEquals("Reopened map has wrong size", 50, reopened.size());
+            assertEquals("Wrong value", "0123456789", reopened.get("key51"));
+            reopened.close();
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void concurrentCompaction()
+        throws Exception
+    {
+        String prefix = getFilePrefix();
+        final FileHashMap<String,Integer> map =
+            new FileHashMap<String,Integer>(prefix,
+                                            FileHashMap.FORCE_OVERWRITE |
+                                            FileHashMap.CONCURRENT,
+                                            ValueCodecs.STRING,
+                                            ValueCodecs.INTEGER);
+        final int      TOTAL_KEYS = 200;
+        final String[] failure = new String[1];
+        final boolean[] done = new boolean[1];
+        Thread[]       threads = new Thread[3];
+
+        try
+        {
+            for (int i = 0; i < TOTAL_KEYS; i++)
+                map.put("key" + i, i);
+
+            for (int i = 0; i < threads.length; i++)
+            {
+                final int t = i;
+                threads[i] = new Thread()
+                {
+                    public void run()
+                    {
+                        for (int j = 0; ! done[0]; j++)
+                        {
+                            String key = "key" + (j % TOTAL_KEYS);
+                            if (t == 0)
+                                map.put(key, j % TOTAL_KEYS);
+                            Integer value = map.get(key);
+                            if ((value == null) ||
+                                (value != (j % TOTAL_KEYS)))
+                                failure[0] = "Bad value for " + key + ": " +
+                                             value;
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+
+            map.startBackgroundCompaction(0.2, 5);
+            for (int i = 0; i < 20; i++)
+            {
+                Thread.sleep(10);
+                map.compact();
+            }
+
+            done[0] = true;
+            for (Thread thread : threads)
+                thread.join();
+
+            assertNull(failure[0], failure[0]);
+            map.compact();
+            assertEquals("Wrong dead bytes", 0, map.getDeadBytes());
+            assertEquals("Wrong size", TOTAL_KEYS, map.size());
+            assertEquals("Wrong value", Integer.valueOf(123),
+                         map.get("key123"));
+        }
+
+        finally
+        {
+            done[0] = true;
+            map.delete();
+        }
+    }
+
+    @Test public void compactionRecovery()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        String prefix = getFilePrefix();
+        File indexFile = new File(prefix + FileHashMap.INDEX_FILE_SUFFIX);
+        File newIndexFile = new File(indexFile.getPath() + ".compact");
+        FileHashMap<String,Long> map =
+            new FileHashMap<String,Long>(prefix,
+                                         FileHashMap.FORCE_OVERWRITE,
+                                         ValueCodecs.STRING,
+                                         ValueCodecs.LONG);
+        try
+        {
+            map.put("a", 1L);
+            map.put("b", 2L);
+            map.close();
+
+            // Data file renamed, but not the index: the new index wins.
+
+            assertTrue(indexFile.renameTo(newIndexFile));
+            new FileOutputStream(indexFile).close();
+            map = new FileHashMap<String,Long>(prefix, 0,
+                                               ValueCodecs.STRING,
+                                               ValueCodecs.LONG);
+            assertEquals("Wrong value", Long.valueOf(2), map.get("b"));
+            assertFalse("New index left behind", newIndexFile.exists());
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void valueCache()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.TRANSIENT,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        try
+        {
+            map.enableValueCache(10, 25);
+            map.put("a", "0123456789");
+            map.put("b", "0123456789");
+            map.put("big", "012345678901234567890123456789");
+
+            String a = map.get("a");
+            assertSame("Value not cached", a, map.get("a"));
+            assertEquals("Wrong hit count", 1, map.getValueCacheHits());
+            assertEquals("Wrong miss count", 1, map.getValueCacheMisses());
+
+            // Too big to cache.
+
+            map.get("big");
+            map.get("big");
+            assertEquals("Wrong miss count", 3, map.getValueCacheMisses());
+
+            // Reading a third value exceeds the byte limit.
+
+            map.get("b");
+            map.put("c", "0123456789");
+            map.get("c");
+            assertEquals("Wrong miss count", 5, map.getValueCacheMisses());
+            map.get("a");
+            assertEquals("Least recently used value not evicted", 6,
+                         map.getValueCacheMisses());
+
+            // Updates are visible.
+
+            map.put("a", "new");
+            assertEquals("Stale value after put", "new", map.get("a"));
+            map.remove("a");
+            assertNull("Stale value after remove", map.get("a"));
+            map.get("c");
+            map.clear();
+            assertNull("Stale value after clear", map.get("c"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void batch()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.JOURNALED,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        Map<String,String> values = new HashMap<String,String>();
+        List<String> keys = new ArrayList<String>();
+        try
+        {
+            for (int i = 0; i < 1000; i++)
+                values.put("key" + i, "value " + i);
+
+            map.put("key7", "old");
+            map.putAll(values);
+            assertEquals("Wrong size after putAll", 1000, map.size());
+            assertEquals("Wrong value", "value 7", map.get("key7"));
+
+            // Punch a few holes so getAll() has to read across gaps.
+
+            map.remove("key500");
+            map.put("key10", "replaced");
+            values.remove("key500");
+            values.put("key10", "replaced");
+
+            keys.addAll(values.keySet());
+            keys.add("missing");
+            assertEquals("Wrong getAll result", values, map.getAll(keys));
+
+            map.close();
+            map = new FileHashMap<String,String>(getFilePrefix(), 0,
+                                                 ValueCodecs.STRING,
+                                                 ValueCodecs.STRING);
+            map.enableValueCache(100, 0);
+            map.get("key1");
+            assertEquals("Wrong getAll result after reopen", values,
+                         map.getAll(keys));
+            assertEquals("Wrong hit count", 1, map.getValueCacheHits());
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void compression()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.JOURNALED,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            buf.append("compressible ");
+        String big = buf.toString();
+        try
+        {
+            map.enableCompression(100);
+            map.put("big", big);
+            map.put("small", "tiny");
+            assertTrue("Value not compressed",
+                       map.getLiveBytes() < big.length() / 10);
+            assertTrue("Bad compression ratio",
+                       map.getCompressionRatio() > 10.0);
+
+            Map<String,String> batch = new HashMap<String,String>();
+            batch.put("big2", big + "2");
+            batch.put("small2", "tiny2");
+            map.putAll(batch);
+            batch.put("big", big);
+            assertEquals("Wrong getAll result", batch,
+                         map.getAll(batch.keySet()));
+
+            // Compressed values survive compaction, reopening and
+            // disabling compression.
+
+            map.remove("small");
+            map.compact();
+            map.disableCompression();
+            assertEquals("Wrong ratio when disabled", 1.0,
+                         map.getCompressionRatio(), 0.0);
+            map.put("big3", big);
+            map.close();
+
+            map = new FileHashMap<String,String>(getFilePrefix(), 0,
+                                                 ValueCodecs.STRING,
+                                                 ValueCodecs.STRING);
+            assertEquals("Wrong value", big, map.get("big"));
+            assertEquals("Wrong value", big + "2", map.get("big2"));
+            assertEquals("Wrong value", big, map.get("big3"));
+            assertEquals("Wrong value", "tiny2", map.get("small2"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void compressionOfTinyValues()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        try
+        {
+            map.enableCompression(0);
+            map.put("empty", "");
+            map.put("one", "a");
+            map.put("three", "abc");
+            assertEquals("Wrong value", "", map.get("empty"));
+            assertEquals("Wrong value", "a", map.get("one"));
+            assertEquals("Wrong value", "abc", map.get("three"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void scan()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        final Map<String,String> values = new HashMap<String,String>();
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            buf.append('x');
+        String big = buf.toString();
+        try
+        {
+            // Enough data for several read-ahead chunks, with a few gaps
+            // and a compressed value.
+
+            for (int i = 0; i < 2000; i++)
+                values.put("key" + i, i + big);
+            map.putAll(values);
+            for (int i = 0; i < 2000; i += 100)
+            {
+                map.remove("key" + i);
+                values.remove("key" + i);
+            }
+
+            map.enableCompression(100);
+            map.put("compressed", big);
+            values.put("compressed", big);
+
+            final Map<String,String> scanned = new HashMap<String,String>();
+            map.scan((key, value) ->
+                         assertNull("Duplicate key " + key,
+                                    scanned.put(key, value)));
+            assertEquals("Wrong scan result", values, scanned);
+
+            assertEquals("Wrong stream count", values.size(),
+                         map.stream().count());
+
+            scanned.clear();
+            map.stream()
+               .limit(10)
+               .forEach(e -> scanned.put(e.getKey(), e.getValue()));
+            assertEquals("Wrong partial stream count", 10, scanned.size());
+
+            // Scans share the map's read-ahead threads.
+
+            for (int i = 0; i < 10; i++)
+                assertEquals("Wrong stream count", values.size(),
+                             map.stream().count());
+            int threads = 0;
+            for (Thread t : Thread.getAllStackTraces().keySet())
+            {
+                if (t.getName().startsWith("FileHashMap read-ahead"))
+                    threads++;
+            }
+            assertTrue("Too many read-ahead threads: " + threads,
+                       threads < 5);
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void parallelStreams()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.CONCURRENT,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        Map<String,String> values = new HashMap<String,String>();
+        try
+        {
+            for (int i = 0; i < 5000; i++)
+            {
+                values.put("key" + i, "value " + i);
+                map.put("key" + i, "value " + i);
+            }
+
+            assertEquals("Wrong keys", values.keySet(),
+                         map.keySet().parallelStream()
+                            .collect(Collectors.toSet()));
+            assertEquals("Wrong values",
+                         new HashSet<String>(values.values()),
+                         map.values().parallelStream()
+                            .collect(Collectors.toSet()));
+            assertEquals("Wrong entries", values,
+                         map.entrySet().parallelStream()
+                            .collect(Collectors.toMap(e -> e.getKey(),
+                                                      e -> e.getValue())));
+
+            // Splits cover contiguous, non-overlapping ranges, in order.
+
+            Spliterator<String> suffix = map.values().spliterator();
+            Spliterator<String> prefix = suffix.trySplit();
+            assertNotNull("No split", prefix);
+            assertEquals("Wrong split sizes", values.size(),
+                         prefix.estimateSize() + suffix.estimateSize());
+            List<Integer> order = new ArrayList<Integer>();
+            prefix.forEachRemaining(v -> order.add(Integer.valueOf
+                                                       (v.substring(6))));
+            suffix.forEachRemaining(v -> order.add(Integer.valueOf
+                                                       (v.substring(6))));
+            assertEquals("Wrong count", values.size(), order.size());
+            for (int i = 0; i < order.size(); i++)
+                assertEquals("Wrong order", Integer.valueOf(i), order.get(i));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void rawValues()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            buf.append("compressible ");
+        String big = buf.toString();
+
+        for (int flags : new int[] {0, FileHashMap.MEMORY_MAPPED})
+        {
+            FileHashMap<String,String> map =
+                new FileHashMap<String,String>(getFilePrefix(),
+                                               FileHashMap.FORCE_OVERWRITE |
+                                               flags,
+                                               ValueCodecs.STRING,
+                                               ValueCodecs.STRING);
+            try
+            {
+                map.put("plain", "value");
+                map.enableCompression(100);
+                map.put("big", big);
+
+                assertNull("Raw value for missing key", map.getRaw("none"));
+                assertFalse("Transferred missing key",
+                            map.transferValueTo("none", null));
+
+                for (String key : new String[] {"plain", "big"})
+                {
+                    byte[] expected = ValueCodecs.STRING.encode(map.get(key));
+                    ByteBuffer raw = map.getRaw(key);
+                    assertTrue("Raw buffer is writable", raw.isReadOnly());
+                    byte[] bytes = new byte[raw.remaining()];
+                    raw.get(bytes);
+                    assertArrayEquals("Wrong raw value", expected, bytes);
+
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    assertTrue("Not transferred",
+                               map.transferValueTo(key,
+                                                   Channels.newChannel(out)));
+                    assertArrayEquals("Wrong transferred value", expected,
+                                      out.toByteArray());
+                }
+            }
+
+            finally
+            {
+                map.delete();
+            }
+        }
+    }
+
+    @Test public void async()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               InterruptedException,
+               ExecutionException
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.CONCURRENT,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            List<CompletableFuture<?>> futures =
+                new ArrayList<CompletableFuture<?>>();
+            for (int i = 0; i < 1000; i++)
+                futures.add(map.putAsync("key" + i, "value " + i));
+
+            // Queued operations take effect in order.
+
+            futures.add(map.putAsync("key1", "replaced"));
+            CompletableFuture<String> removed = map.removeAsync("key2");
+            CompletableFuture<String> missing = map.getAsync("key2");
+            CompletableFuture<String> replaced = map.getAsync("key1");
+
+            CompletableFuture.allOf(futures.toArray(
+                                        new CompletableFuture<?>[0]))
+                             .get();
+            assertEquals("Wrong removed value", "value 2", removed.get());
+            assertNull("Removed key found", missing.get());
+            assertEquals("Wrong replaced value", "replaced", replaced.get());
+            assertEquals("Wrong size", 999, map.size());
+
+            map.setAsyncExecutor(executor);
+            List<CompletableFuture<String>> gets =
+                new ArrayList<CompletableFuture<String>>();
+            for (int i = 3; i < 1000; i++)
+                gets.add(map.getAsync("key" + i));
+            for (int i = 3; i < 1000; i++)
+                assertEquals("Wrong value", "value " + i,
+                             gets.get(i - 3).get());
+        }
+
+        finally
+        {
+            executor.shutdown();
+            map.delete();
+        }
+    }
+
+    @Test public void asyncError()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               InterruptedException,
+               ExecutionException
+    {
+        // A codec that fails with an Error for one value.
+
+        ValueCodec<String> codec = new ValueCodec<String>()
+        {
+            public byte[] encode(String value)
+                throws IOException
+            {
+                if (value.equals("bad"))
+                    throw new AssertionError("can't encode");
+                return ValueCodecs.STRING.encode(value);
+            }
+
+            public String decode(byte[] buf, int offset, int length)
+                throws IOException,
+                       ClassNotFoundException
+            {
+                return ValueCodecs.STRING.decode(buf, offset, length);
+            }
+        };
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.CONCURRENT,
+                                           ValueCodecs.STRING,
+                                           codec);
+        try
+        {
+            CompletableFuture<Void> failed = map.putAsync("a", "bad");
+
+            try
+            {
+                failed.get(10, TimeUnit.SECONDS);
+                fail("Error not reported");
+            }
+            catch (ExecutionException ex)
+            {
+                assertTrue(ex.getCause() instanceof AssertionError);
+            }
+            catch (TimeoutException ex)
+            {
+                fail("Failed operation never completed");
+            }
+
+            // The queue is still being drained.
+
+            map.putAsync("b", "good");
+            try
+            {
+                assertEquals("good",
+                             map.getAsync("b").get(10, TimeUnit.SECONDS));
+            }
+            catch (TimeoutException ex)
+            {
+                fail("Asynchronous queue stalled");
+            }
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void snapshot()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.RECLAIM_FILE_GAPS,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        Map<String,String> values = new HashMap<String,String>();
+        try
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                values.put("key" + i, "value " + i);
+                map.put("key" + i, "value " + i);
+            }
+
+            FileHashMap.Snapshot<String,String> snapshot = map.snapshot();
+
+            // Update the map while iterating over the snapshot. Replaced
+            // and removed values' space must not be reused meanwhile.
+
+            Map<String,String> seen = new HashMap<String,String>();
+            for (Map.Entry<String,String> e : snapshot.entrySet())
+            {
+                seen.put(e.getKey(), e.getValue());
+                map.put(e.getKey(), "new " + e.getKey());
+                map.remove("key" + (seen.size() - 1));
+                map.put("extra" + seen.size(), "extra");
+            }
+
+            assertEquals("Wrong snapshot contents", values, seen);
+            assertEquals("Wrong snapshot value", "value 5",
+                         snapshot.get("key5"));
+            assertTrue("Wrong snapshot key set",
+                       snapshot.keySet().equals(values.keySet()));
+
+            try
+            {
+                map.compact();
+                fail("Compacted with an open snapshot");
+            }
+
+            catch (IllegalStateException ex)
+            {
+            }
+
+            map.clear();
+            assertEquals("Snapshot affected by clear()", "value 7",
+                         snapshot.get("key7"));
+
+            snapshot.close();
+            snapshot.close();
+            try
+            {
+                snapshot.get("key1");
+                fail("Read from a closed snapshot");
+            }
+
+            catch (IllegalStateException ex)
+            {
+            }
+
+            map.put("a", "b");
+            map.compact();
+            assertEquals("Wrong value", "b", map.get("a"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void memoryMapped()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        String prefix = getFilePrefix();
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (prefix,
+                 FileHashMap.FORCE_OVERWRITE | FileHashMap.MEMORY_MAPPED);
+        try
+        {
+            for (int i = 0; i < 1000; i++)
+                map.put("key" + i, "value" + i);
+
+            map.put("key10", "new value");
+            assertEquals("Wrong value from mapped map",
+                         "value999", map.get("key999"));
+            assertEquals("Wrong replaced value from mapped map",
+                         "new value", map.get("key10"));
+            map.close();
+
+            File dataFile = new File(prefix + FileHashMap.DATA_FILE_SUFFIX);
+            assertTrue("Data file wasn't trimmed on close",
+                       dataFile.length() < 100000);
+
+            map = new FileHashMap<String,String>
+                (prefix, FileHashMap.MEMORY_MAPPED);
+            assertEquals("Reloaded map has wrong size", 1000, map.size());
+            assertEquals("Reloaded map has wrong value",
+                         "value500", map.get("key500"));
+            assertEquals("Reloaded map has wrong value",
+                         "new value", map.get("key10"));
+
+            map.put("another", "value");
+            map.close();
+
+            map = new FileHashMap<String,String>(prefix, 0);
+            assertEquals("Mapped data unreadable without mapping",
+                         "value", map.get("another"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void memoryMappedAfterCrash()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        String prefix = getFilePrefix();
+        File dataFile = new File(prefix + FileHashMap.DATA_FILE_SUFFIX);
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (prefix,
+                 FileHashMap.FORCE_OVERWRITE | FileHashMap.MEMORY_MAPPED);
+        try
+        {
+            for (int i = 0; i < 100; i++)
+                map.put("key" + i, "value" + i);
+            map.close();
+
+            // A map that isn't closed leaves its data file padded to the
+            // end of the last mapped segment.
+
+            RandomAccessFile raf = new RandomAccessFile(dataFile, "rw");
+            raf.setLength(1 << 24);
+            raf.close();
+
+            map = new FileHashMap<String,String>
+                (prefix, FileHashMap.MEMORY_MAPPED);
+            map.put("another", "value");
+            map.close();
+
+            assertTrue("Logical length wasn't restored",
+                       dataFile.length() < 100000);
+
+            map = new FileHashMap<String,String>
+                (prefix, FileHashMap.MEMORY_MAPPED);
+            assertEquals("Reloaded map has wrong size", 101, map.size());
+            assertEquals("Reloaded map has wrong value",
+                         "value50", map.get("key50"));
+            assertEquals("Reloaded map has wrong value",
+                         "value", map.get("another"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test a CONCURRENT FileHashMap shared by several threads.
+     *
+     * @throws Exception on error
+     */
+    @Test public void concurrentAccess()
+        throws Exception
+    {
+        concurrentPuts(0);
+    }
+
+    @Test public void concurrentJournal()
+        throws Exception
+    {
+        concurrentPuts(FileHashMap.JOURNALED);
+    }
+
+    @Test public void concurrentOffHeapIndex()
+        throws Exception
+    {
+        concurrentPuts(FileHashMap.JOURNALED | FileHashMap.OFF_HEAP_INDEX);
+    }
+
+    /**
+     * In a CONCURRENT map that reclaims gaps, a reader never sees the
+     * value of a key other than the one it asked for, even while the
+     * space of removed values is being reused.
+     *
+     * @throws Exception on error
+     */
+    @Test public void concurrentReclaim()
+        throws Exception
+    {
+        final FileHashMap<String,String> map =
+            new FileHashMap<String,String>(getFilePrefix(),
+                                           FileHashMap.FORCE_OVERWRITE |
+                                           FileHashMap.CONCURRENT |
+                                           FileHashMap.RECLAIM_FILE_GAPS,
+                                           ValueCodecs.STRING,
+                                           ValueCodecs.STRING);
+        final int      TOTAL_KEYS = 50;
+        final int      TOTAL_OPS = 5000;
+        final String[] failure = new String[1];
+        Thread[]       threads = new Thread[4];
+
+        try
+        {
+            // An iterator's entry that has been removed, and whose space
+            // has been reused, doesn't return the new value.
+
+            map.put("a", "value a");
+            Map.Entry<String,String> stale = map.entrySet().iterator().next();
+            map.remove("a");
+            map.put("b", "value b");
+            assertNull("Stale entry returned reused space", stale.getValue());
+            map.remove("b");
+
+            for (int i = 0; i < threads.length; i++)
+            {
+                final boolean writer = (i % 2) == 0;
+                final int t = i;
+                threads[i] = new Thread()
+                {
+                    public void run()
+                    {
+                        for (int j = 0; j < TOTAL_OPS; j++)
+                        {
+                            String key = "k" + ((j * 7 + t) % TOTAL_KEYS);
+
+                            if (writer)
+                            {
+                                if ((j % 3) == 0)
+                                    map.remove(key);
+                                else
+                                    map.put(key, "value " + key);
+                            }
+
+                            else
+                            {
+                                String value = map.get(key);
+                                if ((value != null) &&
+                                    (! value.equals("value " + key)))
+                                {
+                                    failure[0] = "Got " + value + " for " + key;
+                                }
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+
+            for (Thread thread : threads)
+                thread.join();
+
+            assertNull(failure[0], failure[0]);
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    private void concurrentPuts(int extraFlags)
+        throws Exception
+    {
+        String prefix = getFilePrefix();
+        final FileHashMap<String,Integer> map =
+            new FileHashMap<String,Integer>
+                (prefix,
+                 FileHashMap.FORCE_OVERWRITE | FileHashMap.CONCURRENT |
+                 extraFlags);
+        final int      TOTAL_THREADS = 4;
+        final int      TOTAL_PER_THREAD = 500;
+        final String[] failure = new String[1];
+        Thread[]       threads = new Thread[TOTAL_THREADS];
+
+        try
+        {
+            for (int i = 0; i < TOTAL_THREADS; i++)
+            {
+                final int t = i;
+                threads[i] = new Thread()
+                {
+                    public void run()
+                    {
+                        for (int j = 0; j < TOTAL_PER_THREAD; j++)
+                        {
+                            String key = t + "-" + j;
+                            map.put(key, j);
+                            Integer value = map.get(key);
+                            if ((value == null) || (value != j))
+                                failure[0] = "Bad value for " + key + ": " +
+                                             value;
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+
+            for (Thread thread : threads)
+                thread.join();
+
+            assertNull(failure[0], failure[0]);
+            assertEquals("Wrong size after concurrent puts",
+                         TOTAL_THREADS * TOTAL_PER_THREAD, map.size());
+
+            // A journaled map doesn't have to be saved.
+
+            if ((extraFlags & FileHashMap.JOURNALED) == 0)
+                map.save();
+
+            FileHashMap<String,Integer> map2 =
+                new FileHashMap<String,Integer>(prefix, 0);
+            assertEquals("Reloaded map has wrong size",
+                         map.size(), map2.size());
+            assertEquals("Reloaded map has wrong value",
+                         Integer.valueOf(17), map2.get("3-17"));
+            map2.close();
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
     /**
      * Test concurrent modification.
      * @throws IOException              error creating/writing/reading map
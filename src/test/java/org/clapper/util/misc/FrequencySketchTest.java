@@ -0,0 +1,58 @@
+package org.clapper.util.misc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the frequency sketch used by LRUMap's W-TinyLFU policy.
+ */
+public class FrequencySketchTest
+{
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    public FrequencySketchTest()
+    {
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Test public void increment()
+    {
+        FrequencySketch sketch = new FrequencySketch(100);
+
+        for (int i = 0; i < 5; i++)
+            sketch.increment("a");
+        sketch.increment("b");
+
+        assertEquals("Wrong frequency", 5, sketch.frequency("a"));
+        assertEquals("Wrong frequency", 1, sketch.frequency("b"));
+        assertEquals("Unseen key counted", 0, sketch.frequency("c"));
+
+        for (int i = 0; i < 20; i++)
+            sketch.increment("a");
+        assertEquals("Counter not saturated", 15, sketch.frequency("a"));
+    }
+
+    @Test public void ensureCapacity()
+    {
+        FrequencySketch sketch = new FrequencySketch(100);
+
+        for (int i = 0; i < 5; i++)
+            sketch.increment("a");
+
+        // Capacities the sketch can already handle keep its history.
+
+        sketch.ensureCapacity(10);
+        sketch.ensureCapacity(100);
+        assertEquals("History lost", 5, sketch.frequency("a"));
+
+        sketch.ensureCapacity(100000);
+        assertEquals("Sketch not enlarged", 0, sketch.frequency("a"));
+        sketch.increment("a");
+        assertEquals("Wrong frequency", 1, sketch.frequency("a"));
+    }
+}
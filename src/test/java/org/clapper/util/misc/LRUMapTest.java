@@ -1,6 +1,17 @@
 package org.clapper.util.misc;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import org.clapper.util.logging.Logger;
 
 import org.junit.*;
@@ -21,6 +32,29 @@ public class LRUMapTest extends MapTestBase
                                Inner Classes
     \*----------------------------------------------------------------------*/
 
+    /**
+     * An LRUMap whose expiration clock is controlled by the test.
+     */
+    static class ClockedLRUMap extends LRUMap<String,String>
+    {
+        private volatile long now = 0;
+
+        ClockedLRUMap(int maxCapacity)
+        {
+            super(maxCapacity);
+        }
+
+        void advance(long duration, TimeUnit unit)
+        {
+            now += unit.toNanos(duration);
+        }
+
+        long currentTime()
+        {
+            return now;
+        }
+    }
+
     class TestListener implements ObjectRemovalListener
     {
         private String lookForKey;
@@ -188,6 +222,556 @@ public class LRUMapTest extends MapTestBase
         
     }
 
+    /**
+     * Test weight-based eviction.
+     */
+    @Test public void weightedEviction()
+    {
+        LRUMap<String,String> map = newWeightedMap(10);
+
+        map.put("a", "aaaa");
+        map.put("b", "bbbb");
+        assertEquals("Wrong total weight", 8, map.getWeight());
+
+        // Adding 3 more exceeds the maximum, so "a" must go.
+        map.get("a");
+        map.put("c", "ccc");
+        assertEquals("Wrong total weight", 7, map.getWeight());
+        assertTrue("Map lost recently used key", map.containsKey("a"));
+        assertFalse("Map still contains oldest key", map.containsKey("b"));
+
+        // Replacing a value with a heavier one evicts others, too.
+        map.put("c", "cccccc");
+        assertEquals("Wrong total weight", 10, map.getWeight());
+        map.put("c", "ccccccc");
+        assertEquals("Wrong total weight", 7, map.getWeight());
+        assertFalse("Map still contains key a", map.containsKey("a"));
+
+        map.remove("c");
+        assertEquals("Wrong total weight", 0, map.getWeight());
+    }
+
+    /**
+     * An entry that's too heavy on its own is evicted immediately.
+     */
+    @Test public void overweightEntry()
+    {
+        LRUMap<String,String> map = newWeightedMap(10);
+        TestListener listener = new TestListener("big", "xxxxxxxxxxx");
+
+        map.addRemovalListener(listener, true);
+        map.put("big", "xxxxxxxxxxx");
+        assertFalse("Overweight entry was kept", map.containsKey("big"));
+        assertTrue("Listener not invoked for overweight entry",
+                   listener.wasCalled());
+        assertTrue("Map is not empty", map.isEmpty());
+        assertEquals("Wrong total weight", 0, map.getWeight());
+    }
+
+    /**
+     * An overweight entry doesn't push anything else out of a full map,
+     * under any eviction policy.
+     */
+    @Test public void overweightEntryInFullMap()
+    {
+        for (LRUMap.EvictionPolicy policy : LRUMap.EvictionPolicy.values())
+        {
+            LRUMap<String,String> map = newWeightedMap(100);
+            String big = String.format("%150s", "x");
+            TestListener listener = new TestListener("big", big);
+
+            map.setEvictionPolicy(policy);
+            for (int i = 0; i < 5; i++)
+                map.put("k" + i, "vvvvvvvvvv");
+            map.addRemovalListener(listener, true);
+            map.put("big", big);
+
+            assertTrue(policy + ": listener not invoked for overweight entry",
+                       listener.wasCalled());
+            assertFalse(policy + ": overweight entry was kept",
+                        map.containsKey("big"));
+            assertEquals(policy + ": other entries were evicted",
+                         5, map.size());
+            assertEquals(policy + ": wrong total weight", 50, map.getWeight());
+
+            // Replacing a value with an overweight one discards both, and
+            // both are announced.
+            map.removeRemovalListener(listener);
+            final List<String> removed = new ArrayList<String>();
+            map.addRemovalListener(event ->
+                                   {
+                                       Map.Entry<?,?> e =
+                                           (Map.Entry<?,?>) event.getSource();
+                                       removed.add(e.getKey() + "=" +
+                                                   e.getValue());
+                                   },
+                                   true);
+            assertEquals("vvvvvvvvvv", map.put("k0", big));
+            assertEquals(policy + ": wrong removals",
+                         Arrays.asList("k0=vvvvvvvvvv", "k0=" + big),
+                         removed);
+            assertFalse(map.containsKey("k0"));
+            assertEquals(policy + ": wrong size after replacement",
+                         4, map.size());
+            assertEquals(40, map.getWeight());
+        }
+    }
+
+    /**
+     * Test of setMaximumWeight method.
+     */
+    @Test public void setMaximumWeight()
+    {
+        LRUMap<String,String> map = newWeightedMap(100);
+
+        for (int i = 0; i < 10; i++)
+            map.put("k" + i, "vvvvv");
+        assertEquals(50, map.getWeight());
+        assertEquals(100, map.setMaximumWeight(20));
+        assertEquals(20, map.getMaximumWeight());
+        assertEquals("Wrong size after lowering maximum weight",
+                     4, map.size());
+        assertEquals(20, map.getWeight());
+        assertTrue("Map lost newest key", map.containsKey("k9"));
+
+        // Without a weigher, each entry weighs 1.
+        LRUMap<Integer,String> unweighted = makeAndFillIntegerKeyedMap(10);
+        assertEquals(10, unweighted.getWeight());
+        unweighted.setMaximumWeight(3);
+        assertEquals(3, unweighted.size());
+    }
+
+    /**
+     * Test expiration after write.
+     */
+    @Test public void expireAfterWrite()
+    {
+        ClockedLRUMap map = new ClockedLRUMap(100);
+        TestListener listener = new TestListener("a", "a value");
+
+        map.addRemovalListener(listener, true);
+        map.setExpireAfterWrite(10, TimeUnit.SECONDS);
+        assertEquals(10000, map.getExpireAfterWrite(TimeUnit.MILLISECONDS));
+        map.put("a", "a value");
+
+        // Retrieving the entry doesn't extend its life.
+        map.advance(5, TimeUnit.SECONDS);
+        assertEquals("a value", map.get("a"));
+        map.put("b", "b value");
+
+        map.advance(6, TimeUnit.SECONDS);
+        assertFalse("Expired key still reported", map.containsKey("a"));
+        assertTrue("Unexpired key not reported", map.containsKey("b"));
+
+        // The next update sweeps out the expired entry.
+        map.put("c", "c value");
+        assertTrue("Listener not invoked for expired entry",
+                   listener.wasCalled());
+        assertEquals("Wrong size after expiration", 2, map.size());
+        assertNull(map.get("a"));
+    }
+
+    /**
+     * Test expiration after access.
+     */
+    @Test public void expireAfterAccess()
+    {
+        ClockedLRUMap map = new ClockedLRUMap(100);
+
+        map.setExpireAfterAccess(10, TimeUnit.SECONDS);
+        map.put("a", "a value");
+        map.put("b", "b value");
+
+        map.advance(8, TimeUnit.SECONDS);
+        assertEquals("a value", map.get("a"));
+        map.advance(7, TimeUnit.SECONDS);
+        assertNull("Expired key retrieved", map.get("b"));
+        assertEquals("a value", map.get("a"));
+        assertEquals(1, map.size());
+
+        map.advance(11, TimeUnit.SECONDS);
+        map.cleanUp();
+        assertTrue("Map is not empty", map.isEmpty());
+    }
+
+    /**
+     * Expired entries are swept out even if they're never touched, from
+     * every level of the timer wheel.
+     */
+    @Test public void proactiveExpiration()
+    {
+        ClockedLRUMap map = new ClockedLRUMap(1000);
+
+        map.setExpireAfterWrite(3, TimeUnit.HOURS);
+        for (int i = 0; i < 100; i++)
+        {
+            map.put("k" + i, "v");
+            map.advance(1, TimeUnit.MINUTES);
+        }
+
+        map.advance(70, TimeUnit.MINUTES);
+        map.cleanUp();
+        assertEquals("Entries expired early", 100, map.size());
+
+        // 3 hours after k50 was stored.
+        map.advance(60, TimeUnit.MINUTES);
+        map.cleanUp();
+        assertEquals("Wrong number of entries expired", 49, map.size());
+        assertFalse(map.containsKey("k50"));
+        assertTrue(map.containsKey("k51"));
+
+        map.advance(1, TimeUnit.HOURS);
+        map.put("x", "x");
+        assertEquals("Expired entries not swept by update", 1, map.size());
+        assertEquals(1, map.getWeight());
+    }
+
+    /**
+     * The maintenance thread sweeps out expired entries.
+     */
+    @Test public void maintenanceThread()
+        throws InterruptedException
+    {
+        ClockedLRUMap map = new ClockedLRUMap(100);
+
+        map.setExpireAfterWrite(1, TimeUnit.MINUTES);
+        map.put("a", "a value");
+        map.setMaintenanceInterval(10, TimeUnit.MILLISECONDS);
+        map.advance(2, TimeUnit.MINUTES);
+
+        for (int i = 0; i < 200; i++)
+        {
+            synchronized (map)
+            {
+                if (map.isEmpty())
+                    break;
+            }
+
+            Thread.sleep(10);
+        }
+
+        map.setMaintenanceInterval(0, TimeUnit.MILLISECONDS);
+        synchronized (map)
+        {
+            assertTrue("Maintenance thread didn't remove expired entry",
+                       map.isEmpty());
+        }
+    }
+
+    /**
+     * Test that the segmented policies keep a working set through a scan
+     * that flushes a plain LRU map.
+     */
+    @Test public void scanResistance()
+    {
+        for (LRUMap.EvictionPolicy policy : LRUMap.EvictionPolicy.values())
+        {
+            LRUMap<String,String> map = new LRUMap<String,String>(100);
+            map.setEvictionPolicy(policy);
+            assertEquals(policy, map.getEvictionPolicy());
+
+            for (int pass = 0; pass < 3; pass++)
+            {
+                for (int i = 0; i < 50; i++)
+                    getOrPut(map, "hot" + i);
+            }
+
+            for (int i = 0; i < 1000; i++)
+                getOrPut(map, "scan" + i);
+
+            int survivors = 0;
+            for (int i = 0; i < 50; i++)
+            {
+                if (map.containsKey("hot" + i))
+                    survivors++;
+            }
+
+            assertEquals("Wrong size under " + policy, 100, map.size());
+            if (policy == LRUMap.EvictionPolicy.LRU)
+                assertEquals("LRU kept hot keys", 0, survivors);
+            else
+                assertTrue("Only " + survivors + " hot keys survived under " +
+                           policy, survivors >= 45);
+        }
+    }
+
+    /**
+     * Changing the eviction policy keeps the entries, and iteration covers
+     * every segment.
+     */
+    @Test public void setEvictionPolicy()
+    {
+        LRUMap<Integer,String> map = makeAndFillIntegerKeyedMap(100);
+
+        map.setEvictionPolicy(LRUMap.EvictionPolicy.W_TINY_LFU);
+        assertEquals(100, map.size());
+        for (int i = 0; i < 50; i++)
+            map.get(i);
+        map.put(1000, "1000");
+
+        assertEquals(100, map.size());
+        assertEquals(100, map.keySet().size());
+
+        int count = 0;
+        for (Integer key : map.keySet())
+        {
+            assertTrue("Iterated over missing key " + key,
+                       map.containsKey(key));
+            count++;
+        }
+        assertEquals("Iteration missed entries", 100, count);
+
+        map.setEvictionPolicy(LRUMap.EvictionPolicy.SEGMENTED_LRU);
+        assertEquals(100, map.size());
+        for (int i = 0; i < 50; i++)
+            assertTrue("Lost key " + i, map.containsKey(i));
+
+        map.setMaximumCapacity(10);
+        assertEquals(10, map.size());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertFalse(map.keySet().iterator().hasNext());
+    }
+
+    /**
+     * The segmented policies respect a maximum weight, too.
+     */
+    @Test public void weightedTinyLfu()
+    {
+        LRUMap<String,String> map = newWeightedMap(1000);
+
+        map.setEvictionPolicy(LRUMap.EvictionPolicy.W_TINY_LFU);
+        for (int i = 0; i < 500; i++)
+        {
+            getOrPut(map, "k" + (i % 70));
+            assertTrue("Map too heavy", map.getWeight() <= 1000);
+        }
+
+        long weight = 0;
+        for (String value : map.values())
+            weight += value.length();
+        assertEquals("Weight out of sync", weight, map.getWeight());
+    }
+
+    /**
+     * Setting a value through an entry adjusts the weight.
+     */
+    @Test public void entrySetValue()
+    {
+        LRUMap<String,String> map = newWeightedMap(100);
+
+        map.put("a", "aa");
+        for (Map.Entry<String,String> entry : map.entrySet())
+            entry.setValue("aaaaa");
+        assertEquals("Wrong total weight", 5, map.getWeight());
+        assertEquals("aaaaa", map.get("a"));
+    }
+
+    /**
+     * Concurrent misses on the same key run the loader only once.
+     */
+    @Test public void singleFlight() throws Exception
+    {
+        final LRUMap<String,String> map = new LRUMap<String,String>(10);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Function<String,String> loader = new Function<String,String>()
+        {
+            public String apply(String key)
+            {
+                calls.incrementAndGet();
+                try
+                {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException ex)
+                {
+                }
+                return key + " value";
+            }
+        };
+        final String[] results = new String[10];
+        Thread[] threads = new Thread[results.length];
+
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int n = i;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (InterruptedException ex)
+                    {
+                    }
+                    results[n] = map.get("a", loader);
+                }
+            };
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals("Loader ran more than once", 1, calls.get());
+        for (String result : results)
+            assertEquals("a value", result);
+        assertEquals("a value", map.get("a"));
+    }
+
+    /**
+     * A failed load is rethrown, and isn't remembered.
+     */
+    @Test public void loaderException()
+    {
+        LRUMap<String,String> map = new LRUMap<String,String>(10);
+
+        try
+        {
+            map.get("a", new Function<String,String>()
+            {
+                public String apply(String key)
+                {
+                    throw new IllegalStateException("boom");
+                }
+            });
+            fail("Loader exception wasn't rethrown");
+        }
+        catch (IllegalStateException ex)
+        {
+        }
+
+        assertFalse(map.containsKey("a"));
+        assertEquals("a value", map.get("a", valueLoader()));
+    }
+
+    /**
+     * A loader that retrieves its own key fails, rather than waiting for
+     * itself. So does one that throws a checked exception, without
+     * leaving the load registered.
+     */
+    @Test public void recursiveLoad()
+    {
+        final LRUMap<String,String> map = new LRUMap<String,String>(10);
+
+        try
+        {
+            map.get("a", new Function<String,String>()
+            {
+                public String apply(String key)
+                {
+                    return map.get(key, this);
+                }
+            });
+            fail("Recursive load not detected");
+        }
+        catch (IllegalStateException ex)
+        {
+        }
+
+        try
+        {
+            map.get("a", new Function<String,String>()
+            {
+                public String apply(String key)
+                {
+                    return LRUMapTest.<RuntimeException>sneakyThrow
+                        (new java.io.IOException("checked"));
+                }
+            });
+            fail("Checked exception swallowed");
+        }
+        catch (Exception ex)
+        {
+            assertTrue(ex instanceof java.io.IOException);
+        }
+
+        assertEquals("a value", map.get("a", valueLoader()));
+    }
+
+    /**
+     * A stale value is served while it's refreshed.
+     */
+    @Test public void refreshAfterWrite()
+    {
+        ClockedLRUMap map = new ClockedLRUMap(10);
+        final AtomicInteger version = new AtomicInteger();
+        Function<String,String> loader = new Function<String,String>()
+        {
+            public String apply(String key)
+            {
+                return key + version.incrementAndGet();
+            }
+        };
+
+        map.setRefreshAfterWrite(1, TimeUnit.MINUTES);
+        map.setLoaderExecutor(directExecutor());
+
+        assertEquals("a1", map.get("a", loader));
+        map.advance(30, TimeUnit.SECONDS);
+        assertEquals("a1", map.get("a", loader));
+        assertEquals("Refreshed too soon", 1, version.get());
+
+        map.advance(31, TimeUnit.SECONDS);
+        assertEquals("Stale value not served", "a1", map.get("a", loader));
+        assertEquals("Not refreshed", "a2", map.get("a", loader));
+        assertEquals(2, version.get());
+
+        // Entries stored before refreshing was enabled count as stored
+        // when it was enabled.
+
+        ClockedLRUMap map2 = new ClockedLRUMap(10);
+        map2.advance(1, TimeUnit.HOURS);
+        map2.put("b", "b0");
+        map2.advance(1, TimeUnit.HOURS);
+        map2.setRefreshAfterWrite(1, TimeUnit.MINUTES);
+        map2.setLoaderExecutor(directExecutor());
+        assertEquals("b0", map2.get("b", loader));
+        assertEquals("Refreshed too soon", 2, version.get());
+        map2.advance(2, TimeUnit.MINUTES);
+        map2.get("b", loader);
+        assertEquals("Not refreshed", "b3", map2.get("b"));
+    }
+
+    /**
+     * getAll() loads only the missing keys, with one call.
+     */
+    @Test public void getAll()
+    {
+        LRUMap<String,String> map = new LRUMap<String,String>(10);
+        final AtomicInteger calls = new AtomicInteger();
+        final Set<?>[] requested = new Set<?>[1];
+
+        map.put("b", "b value");
+        Map<String,String> result = map.getAll
+            (Arrays.asList("a", "b", "c"),
+             new Function<Set<String>, Map<String,String>>()
+             {
+                 public Map<String,String> apply(Set<String> keys)
+                 {
+                     calls.incrementAndGet();
+                     requested[0] = new HashSet<String>(keys);
+                     Map<String,String> values = new HashMap<String,String>();
+                     for (String key : keys)
+                         values.put(key, key + " loaded");
+                     return values;
+                 }
+             });
+
+        assertEquals("Bulk loader not called once", 1, calls.get());
+        assertEquals(new HashSet<String>(Arrays.asList("a", "c")),
+                     requested[0]);
+        assertEquals(Arrays.asList("a", "b", "c"),
+                     new ArrayList<String>(result.keySet()));
+        assertEquals("a loaded", result.get("a"));
+        assertEquals("b value", result.get("b"));
+        assertEquals("c loaded", map.get("c"));
+    }
+
     /*----------------------------------------------------------------------*\
                              Protected Methods
     \*----------------------------------------------------------------------*/
@@ -208,6 +792,54 @@ public class LRUMapTest extends MapTestBase
             map.put(i, String.valueOf(i));
         return map;
     }
+
+    private Executor directExecutor()
+    {
+        return new Executor()
+        {
+            public void execute(Runnable task)
+            {
+                task.run();
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> String sneakyThrow(Throwable ex)
+        throws E
+    {
+        throw (E) ex;
+    }
+
+    private Function<String,String> valueLoader()
+    {
+        return new Function<String,String>()
+        {
+            public String apply(String key)
+            {
+                return key + " value";
+            }
+        };
+    }
+
+    private void getOrPut(Map<String,String> map, String key)
+    {
+        if (map.get(key) == null)
+            map.put(key, key + " value ................");
+    }
+
+    private LRUMap<String,String> newWeightedMap(long maxWeight)
+    {
+        return new LRUMap<String,String>
+            (maxWeight,
+             new Weigher<String,String>()
+             {
+                 public int weigh(String key, String value)
+                 {
+                     return value.length();
+                 }
+             });
+    }
 }
 
 
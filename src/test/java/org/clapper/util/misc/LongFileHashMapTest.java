@@ -0,0 +1,139 @@
+package org.clapper.util.misc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests LongFileHashMap.
+ */
+public class LongFileHashMapTest
+{
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    public LongFileHashMapTest()
+    {
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Test public void putGetRemove()
+        throws Exception
+    {
+        LongFileHashMap<String> map =
+            new LongFileHashMap<String>(getFilePrefix(),
+                                        FileHashMap.TRANSIENT |
+                                        FileHashMap.FORCE_OVERWRITE,
+                                        ValueCodecs.STRING);
+        Map<Long,String> expected = new HashMap<Long,String>();
+        try
+        {
+            // Keys that are multiples of a power of two, plus negative
+            // keys, plus enough removals to exercise the backward shift.
+
+            for (long i = 0; i < 5000; i++)
+            {
+                long key = ((i % 2) == 0) ? (i << 20) : -i;
+                assertNull("Unexpected old value", map.put(key, "v" + i));
+                expected.put(key, "v" + i);
+
+                if ((i % 3) == 0)
+                {
+                    long removed = (((i / 3) % 2) == 0) ? ((i / 3) << 20)
+                                                        : -(i / 3);
+                    assertEquals("Wrong removed value",
+                                 expected.remove(removed),
+                                 map.remove(removed));
+                }
+            }
+
+            assertEquals("Wrong old value", expected.get(-1L),
+                         map.put(-1L, "replaced"));
+            expected.put(-1L, "replaced");
+            assertEquals("Wrong size", expected.size(), map.size());
+
+            for (Map.Entry<Long,String> e : expected.entrySet())
+            {
+                assertEquals("Wrong value for " + e.getKey(), e.getValue(),
+                             map.get(e.getKey()));
+            }
+
+            assertNull("Found missing key", map.get(12345));
+            assertFalse("Found missing key", map.containsKey(12345));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void cursorAndReopen()
+        throws Exception
+    {
+        String prefix = getFilePrefix();
+        LongFileHashMap<Long> map =
+            new LongFileHashMap<Long>(prefix, 0, ValueCodecs.LONG);
+        try
+        {
+            map.clear();
+            for (long i = 0; i < 1000; i++)
+                map.put(i, i * 10);
+            map.close();
+
+            map = new LongFileHashMap<Long>(prefix, FileHashMap.NO_CREATE,
+                                            ValueCodecs.LONG);
+            assertEquals("Reopened map has wrong size", 1000, map.size());
+
+            LongFileHashMap<Long>.Cursor cursor = map.cursor();
+            long total = 0;
+            int count = 0;
+            while (cursor.next())
+            {
+                assertEquals("Wrong value",
+                             Long.valueOf(cursor.key() * 10),
+                             cursor.value());
+                total += cursor.key();
+                count++;
+            }
+
+            assertEquals("Wrong count", 1000, count);
+            assertEquals("Wrong key total", 999 * 1000 / 2, total);
+
+            cursor = map.cursor();
+            map.put(5000, 1L);
+            try
+            {
+                cursor.next();
+                fail("Modification not detected");
+            }
+
+            catch (ConcurrentModificationException ex)
+            {
+            }
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private String getFilePrefix()
+    {
+        return System.getProperty("java.io.tmpdir") +
+               System.getProperty("file.separator") +
+               "LongFileHashMapTest";
+    }
+}
@@ -0,0 +1,99 @@
+package org.clapper.util.misc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests the FileHashMap off-heap index.
+ */
+public class OffHeapIndexTest
+{
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    public OffHeapIndexTest()
+    {
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Test public void putGetRemove()
+    {
+        OffHeapIndex<String> index =
+            new OffHeapIndex<String>(ValueCodecs.STRING, 0);
+
+        assertNull("Put returned old entry",
+                   index.put("a", new FileHashMapEntry<String>(10, 5, "a", 1)));
+        FileHashMapEntry<String> entry = index.get("a");
+        assertEquals("Wrong position", 10, entry.getFilePosition());
+        assertEquals("Wrong size", 5, entry.getObjectSize());
+        assertEquals("Wrong generation", 1, entry.getGeneration());
+        assertEquals("Wrong key", "a", entry.getKey());
+
+        FileHashMapEntry<String> old =
+            index.put("a", new FileHashMapEntry<String>(20, 7, "a", 1));
+        assertTrue("Wrong old entry", entry.sameLocation(old));
+        assertEquals("Wrong size", 1, index.size());
+        assertEquals("Wrong position", 20, index.get("a").getFilePosition());
+
+        assertNull("Found missing key", index.get("b"));
+        assertNull("Found key of wrong type", index.get(Integer.valueOf(1)));
+        assertEquals("Wrong removed entry", 20,
+                     index.remove("a").getFilePosition());
+        assertNull("Found removed key", index.get("a"));
+        assertTrue("Not empty", index.isEmpty());
+    }
+
+    @Test public void manyKeys()
+    {
+        OffHeapIndex<String> index =
+            new OffHeapIndex<String>(ValueCodecs.STRING, 0);
+        Map<String,Long> expected = new HashMap<String,Long>();
+
+        // Enough keys to grow the table several times, with enough
+        // removals to leave tombstones and rebuild the key arena.
+
+        for (int i = 0; i < 200000; i++)
+        {
+            String key = "key-" + i;
+            index.put(key, new FileHashMapEntry<String>(i, 1, key));
+            expected.put(key, (long) i);
+
+            if ((i % 3) == 0)
+            {
+                String removed = "key-" + (i / 3);
+                index.remove(removed);
+                expected.remove(removed);
+            }
+        }
+
+        assertEquals("Wrong size", expected.size(), index.size());
+        for (Map.Entry<String,Long> e : expected.entrySet())
+        {
+            FileHashMapEntry<String> entry = index.get(e.getKey());
+            assertNotNull("Missing " + e.getKey(), entry);
+            assertEquals("Wrong position", e.getValue().longValue(),
+                         entry.getFilePosition());
+        }
+
+        int total = 0;
+        for (Map.Entry<String,FileHashMapEntry<String>> e : index.entrySet())
+        {
+            assertEquals("Wrong position for " + e.getKey(),
+                         expected.get(e.getKey()).longValue(),
+                         e.getValue().getFilePosition());
+            total++;
+        }
+
+        assertEquals("Wrong iteration count", expected.size(), total);
+        index.clear();
+        assertEquals("Not cleared", 0, index.size());
+        assertNull("Found key after clear", index.get("key-199999"));
+    }
+}
@@ -0,0 +1,147 @@
+package org.clapper.util.misc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests ShardedFileHashMap.
+ */
+public class ShardedFileHashMapTest
+{
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    public ShardedFileHashMapTest()
+    {
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Test public void saveRestore()
+        throws Exception
+    {
+        String prefix = getFilePrefix();
+        ShardedFileHashMap<String,Long> map =
+            new ShardedFileHashMap<String,Long>(prefix, 4,
+                                                FileHashMap.FORCE_OVERWRITE,
+                                                ValueCodecs.STRING,
+                                                ValueCodecs.LONG);
+        Map<String,Long> expected = new HashMap<String,Long>();
+        try
+        {
+            for (long i = 0; i < 1000; i++)
+                expected.put("key" + i, i);
+
+            map.putAll(expected);
+            map.put("extra", -1L);
+            map.remove("extra");
+            assertEquals("Wrong size", 1000, map.size());
+            assertEquals("Wrong value", Long.valueOf(17), map.get("key17"));
+            assertNull("Found key of wrong type", map.get(Integer.valueOf(1)));
+
+            // Every shard got some of the keys.
+
+            for (int i = 0; i < 4; i++)
+            {
+                File data = new File(prefix + "-" + i +
+                                     FileHashMap.DATA_FILE_SUFFIX);
+                assertTrue("Shard " + i + " is empty", data.length() > 0);
+            }
+
+            assertEquals("Wrong contents", expected,
+                         new HashMap<String,Long>(map));
+            map.close();
+
+            map = new ShardedFileHashMap<String,Long>(prefix, 4, 0,
+                                                      ValueCodecs.STRING,
+                                                      ValueCodecs.LONG);
+            assertEquals("Reopened map has wrong size", 1000, map.size());
+            assertEquals("Wrong getAll result", expected,
+                         map.getAll(expected.keySet()));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void concurrentPuts()
+        throws Exception
+    {
+        String prefix = getFilePrefix();
+        final ShardedFileHashMap<String,Integer> map =
+            new ShardedFileHashMap<String,Integer>
+                (new String[] {prefix + "-a", prefix + "-b", prefix + "-c"},
+                 FileHashMap.TRANSIENT | FileHashMap.FORCE_OVERWRITE,
+                 ValueCodecs.STRING,
+                 ValueCodecs.INTEGER);
+        final int      TOTAL_THREADS = 4;
+        final int      TOTAL_PER_THREAD = 500;
+        final String[] failure = new String[1];
+        Thread[]       threads = new Thread[TOTAL_THREADS];
+
+        try
+        {
+            for (int i = 0; i < TOTAL_THREADS; i++)
+            {
+                final int t = i;
+                threads[i] = new Thread()
+                {
+                    public void run()
+                    {
+                        for (int j = 0; j < TOTAL_PER_THREAD; j++)
+                        {
+                            String key = t + "-" + j;
+                            map.put(key, j);
+                            Integer value = map.get(key);
+                            if ((value == null) || (value != j))
+                                failure[0] = "Bad value for " + key + ": " +
+                                             value;
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+
+            for (Thread thread : threads)
+                thread.join();
+
+            assertNull(failure[0], failure[0]);
+            assertEquals("Wrong size after concurrent puts",
+                         TOTAL_THREADS * TOTAL_PER_THREAD, map.size());
+
+            int total = 0;
+            for (Map.Entry<String,Integer> entry : map.entrySet())
+                total++;
+            assertEquals("Wrong iteration count",
+                         TOTAL_THREADS * TOTAL_PER_THREAD, total);
+
+            map.clear();
+            assertTrue("Not cleared", map.isEmpty());
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private String getFilePrefix()
+    {
+        return System.getProperty("java.io.tmpdir") +
+               System.getProperty("file.separator") +
+               "ShardedFileHashMapTest";
+    }
+}
@@ -0,0 +1,104 @@
+package org.clapper.util.misc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+
+/**
+ * Tests the built-in value codecs.
+ */
+public class ValueCodecsTest
+{
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    public ValueCodecsTest()
+    {
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Test public void primitives()
+        throws IOException,
+               ClassNotFoundException
+    {
+        assertEquals(Long.valueOf(Long.MIN_VALUE),
+                     roundTrip(ValueCodecs.LONG, Long.MIN_VALUE));
+        assertEquals(Long.valueOf(-2L), roundTrip(ValueCodecs.LONG, -2L));
+        assertEquals(Integer.valueOf(Integer.MAX_VALUE),
+                     roundTrip(ValueCodecs.INTEGER, Integer.MAX_VALUE));
+        assertEquals(Integer.valueOf(-17),
+                     roundTrip(ValueCodecs.INTEGER, -17));
+        assertEquals(Short.valueOf((short) -300),
+                     roundTrip(ValueCodecs.SHORT, (short) -300));
+        assertEquals(Byte.valueOf((byte) -1),
+                     roundTrip(ValueCodecs.BYTE, (byte) -1));
+        assertEquals(Character.valueOf('\u20ac'),
+                     roundTrip(ValueCodecs.CHARACTER, '\u20ac'));
+        assertEquals(Boolean.TRUE, roundTrip(ValueCodecs.BOOLEAN, true));
+        assertEquals(Boolean.FALSE, roundTrip(ValueCodecs.BOOLEAN, false));
+        assertEquals(Double.valueOf(-1.5e300),
+                     roundTrip(ValueCodecs.DOUBLE, -1.5e300));
+        assertEquals(Float.valueOf(3.25f),
+                     roundTrip(ValueCodecs.FLOAT, 3.25f));
+
+        assertEquals("Wrong encoded size for Long",
+                     8, ValueCodecs.LONG.encode(1L).length);
+    }
+
+    @Test public void strings()
+        throws IOException,
+               ClassNotFoundException
+    {
+        String s = "gr\u00fc\u00dfe, \u4e16\u754c";
+        assertEquals(s, roundTrip(ValueCodecs.STRING, s));
+        assertEquals("", roundTrip(ValueCodecs.STRING, ""));
+    }
+
+    @Test public void byteArrays()
+        throws IOException,
+               ClassNotFoundException
+    {
+        byte[] bytes = new byte[] {1, 2, 3, -4};
+        assertArrayEquals(bytes, roundTrip(ValueCodecs.BYTE_ARRAY, bytes));
+    }
+
+    @Test public void serialization()
+        throws IOException,
+               ClassNotFoundException
+    {
+        ValueCodec<Object> codec = ValueCodecs.serialization();
+        java.util.Date date = new java.util.Date();
+        assertEquals(date, roundTrip(codec, date));
+    }
+
+    @Test(expected=NotSerializableException.class)
+    public void notSerializable()
+        throws IOException
+    {
+        ValueCodec<Object> codec = ValueCodecs.serialization();
+        codec.encode(new Object());
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private <T> T roundTrip(ValueCodec<T> codec, T value)
+        throws IOException,
+               ClassNotFoundException
+    {
+        // Decode from the middle of a larger buffer, to be sure the codec
+        // honors the offset.
+
+        byte[] encoded = codec.encode(value);
+        byte[] buf = new byte[encoded.length + 10];
+        System.arraycopy(encoded, 0, buf, 5, encoded.length);
+        return codec.decode(buf, 5, encoded.length);
+    }
+}